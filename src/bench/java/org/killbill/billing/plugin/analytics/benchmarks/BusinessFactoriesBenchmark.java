@@ -0,0 +1,122 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.benchmarks;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.plugin.analytics.AnalyticsRefreshException;
+import org.killbill.billing.plugin.analytics.BusinessExecutor;
+import org.killbill.billing.plugin.analytics.dao.factory.BusinessAccountFactory;
+import org.killbill.billing.plugin.analytics.dao.factory.BusinessBundleFactory;
+import org.killbill.billing.plugin.analytics.dao.factory.BusinessInvoiceFactory;
+import org.killbill.billing.plugin.analytics.dao.factory.BusinessPaymentFactory;
+import org.killbill.billing.plugin.analytics.dao.factory.BusinessSubscriptionTransitionFactory;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessAccountModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessBundleModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessInvoiceItemBaseModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessInvoiceModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessPaymentBaseModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessSubscriptionTransitionModelDao;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of building the analytics rows of a single account, per factory, as done during a refresh.
+ * <p/>
+ * Each invocation uses a new BusinessContextFactory (i.e. cold caches), the Kill Bill APIs being mocked.
+ * Run with -prof gc to get the allocation rates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class BusinessFactoriesBenchmark {
+
+    @Param({"10", "1000", "50000"})
+    private int nbItems;
+
+    private MockedAccountGraph accountGraph;
+    private ExecutorService executor;
+    private BusinessAccountFactory accountFactory;
+    private BusinessSubscriptionTransitionFactory subscriptionTransitionFactory;
+    private BusinessBundleFactory bundleFactory;
+    private BusinessInvoiceFactory invoiceFactory;
+    private BusinessPaymentFactory paymentFactory;
+    // Input of the bundle factory
+    private Collection<BusinessSubscriptionTransitionModelDao> bsts;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        accountGraph = new MockedAccountGraph(nbItems);
+        executor = BusinessExecutor.newCachedThreadPool(accountGraph.getOsgiConfigPropertiesService());
+
+        accountFactory = new BusinessAccountFactory();
+        subscriptionTransitionFactory = new BusinessSubscriptionTransitionFactory();
+        bundleFactory = new BusinessBundleFactory(executor);
+        invoiceFactory = new BusinessInvoiceFactory(executor);
+        paymentFactory = new BusinessPaymentFactory();
+
+        bsts = subscriptionTransitionFactory.createBusinessSubscriptionTransitions(accountGraph.newBusinessContextFactory());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Benchmark
+    public BusinessAccountModelDao createBusinessAccount() throws AnalyticsRefreshException {
+        return accountFactory.createBusinessAccount(accountGraph.newBusinessContextFactory());
+    }
+
+    @Benchmark
+    public Collection<BusinessSubscriptionTransitionModelDao> createBusinessSubscriptionTransitions() throws AnalyticsRefreshException {
+        return subscriptionTransitionFactory.createBusinessSubscriptionTransitions(accountGraph.newBusinessContextFactory());
+    }
+
+    @Benchmark
+    public Collection<BusinessBundleModelDao> createBusinessBundles() throws AnalyticsRefreshException {
+        return bundleFactory.createBusinessBundles(accountGraph.newBusinessContextFactory(), bsts);
+    }
+
+    @Benchmark
+    public Map<BusinessInvoiceModelDao, Collection<BusinessInvoiceItemBaseModelDao>> createBusinessInvoicesAndInvoiceItems() throws AnalyticsRefreshException {
+        return invoiceFactory.createBusinessInvoicesAndInvoiceItems(accountGraph.newBusinessContextFactory());
+    }
+
+    @Benchmark
+    public Collection<BusinessPaymentBaseModelDao> createBusinessPayments() throws AnalyticsRefreshException {
+        return paymentFactory.createBusinessPayments(accountGraph.newBusinessContextFactory());
+    }
+}
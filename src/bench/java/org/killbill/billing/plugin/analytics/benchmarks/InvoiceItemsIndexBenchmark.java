@@ -0,0 +1,75 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.plugin.analytics.utils.BusinessInvoiceUtils;
+import org.killbill.billing.plugin.analytics.utils.InvoiceItemsIndex;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Linking of the invoice items of an account (items on the same invoice, linked item), as done by BusinessInvoiceFactory.
+ * This needs to stay linear in the number of items.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class InvoiceItemsIndexBenchmark {
+
+    @Param({"10", "1000", "50000"})
+    private int nbItems;
+
+    private MockedAccountGraph accountGraph;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        accountGraph = new MockedAccountGraph(nbItems);
+    }
+
+    @Benchmark
+    public InvoiceItemsIndex buildIndex() {
+        return new InvoiceItemsIndex(accountGraph.getInvoiceItems());
+    }
+
+    @Benchmark
+    public void linkInvoiceItems(final Blackhole blackhole) {
+        final InvoiceItemsIndex invoiceItemsIndex = new InvoiceItemsIndex(accountGraph.getInvoiceItems());
+        for (final InvoiceItem invoiceItem : accountGraph.getInvoiceItems()) {
+            blackhole.consume(invoiceItemsIndex.getLinkedInvoiceItem(invoiceItem));
+            blackhole.consume(BusinessInvoiceUtils.isRevenueRecognizable(invoiceItem, invoiceItemsIndex));
+            blackhole.consume(BusinessInvoiceUtils.isInvoiceAdjustmentItem(invoiceItem, invoiceItemsIndex));
+        }
+    }
+}
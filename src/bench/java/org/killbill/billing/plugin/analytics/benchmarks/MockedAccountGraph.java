@@ -0,0 +1,472 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.benchmarks;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.account.api.Account;
+import org.killbill.billing.account.api.AccountUserApi;
+import org.killbill.billing.catalog.api.BillingPeriod;
+import org.killbill.billing.catalog.api.CatalogUserApi;
+import org.killbill.billing.catalog.api.Currency;
+import org.killbill.billing.catalog.api.InternationalPrice;
+import org.killbill.billing.catalog.api.PhaseType;
+import org.killbill.billing.catalog.api.Plan;
+import org.killbill.billing.catalog.api.PlanPhase;
+import org.killbill.billing.catalog.api.PriceList;
+import org.killbill.billing.catalog.api.Product;
+import org.killbill.billing.catalog.api.ProductCategory;
+import org.killbill.billing.catalog.api.Recurring;
+import org.killbill.billing.catalog.api.StaticCatalog;
+import org.killbill.billing.catalog.api.VersionedCatalog;
+import org.killbill.billing.entitlement.api.Entitlement.EntitlementState;
+import org.killbill.billing.entitlement.api.Subscription;
+import org.killbill.billing.entitlement.api.SubscriptionApi;
+import org.killbill.billing.entitlement.api.SubscriptionBundle;
+import org.killbill.billing.entitlement.api.SubscriptionBundleTimeline;
+import org.killbill.billing.entitlement.api.SubscriptionEvent;
+import org.killbill.billing.entitlement.api.SubscriptionEventType;
+import org.killbill.billing.invoice.api.Invoice;
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.invoice.api.InvoiceItemType;
+import org.killbill.billing.invoice.api.InvoicePayment;
+import org.killbill.billing.invoice.api.InvoicePaymentType;
+import org.killbill.billing.invoice.api.InvoiceUserApi;
+import org.killbill.billing.osgi.libs.killbill.OSGIConfigPropertiesService;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillLogService;
+import org.killbill.billing.payment.api.InvoicePaymentApi;
+import org.killbill.billing.payment.api.Payment;
+import org.killbill.billing.payment.api.PaymentApi;
+import org.killbill.billing.payment.api.PaymentMethod;
+import org.killbill.billing.payment.api.PaymentMethodPlugin;
+import org.killbill.billing.payment.api.PaymentTransaction;
+import org.killbill.billing.payment.api.TransactionStatus;
+import org.killbill.billing.payment.api.TransactionType;
+import org.killbill.billing.plugin.analytics.AnalyticsActivator;
+import org.killbill.billing.plugin.analytics.AnalyticsRefreshException;
+import org.killbill.billing.plugin.analytics.api.core.AnalyticsConfiguration;
+import org.killbill.billing.plugin.analytics.api.core.AnalyticsConfigurationHandler;
+import org.killbill.billing.plugin.analytics.dao.CurrencyConversionDao;
+import org.killbill.billing.plugin.analytics.dao.TestCallContext;
+import org.killbill.billing.plugin.analytics.dao.factory.BusinessContextFactory;
+import org.killbill.billing.tenant.api.TenantUserApi;
+import org.killbill.billing.util.api.AuditLevel;
+import org.killbill.billing.util.api.AuditUserApi;
+import org.killbill.billing.util.api.CustomFieldUserApi;
+import org.killbill.billing.util.api.RecordIdApi;
+import org.killbill.billing.util.api.TagUserApi;
+import org.killbill.billing.util.audit.AccountAuditLogs;
+import org.killbill.billing.util.audit.AccountAuditLogsForObjectType;
+import org.killbill.billing.util.audit.AuditLog;
+import org.killbill.billing.util.audit.ChangeType;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.killbill.billing.util.customfield.CustomField;
+import org.killbill.billing.util.tag.Tag;
+import org.killbill.clock.ClockMock;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Synthetic, fully mocked, Kill Bill account used by the benchmarks.
+ * <p/>
+ * For nbItems items, the account has nbItems invoice items and nbItems subscription events, spread over
+ * nbItems / 10 invoices, bundles and payments. Each invoice has an item adjustment and a repair linked to
+ * items of the previous invoice, so that invoice items are linked across invoices like in production.
+ * <p/>
+ * All mocks are stub only: invocations aren't recorded, so that the mocks don't allocate nor leak across iterations.
+ */
+public class MockedAccountGraph {
+
+    private static final DateTime CREATED_DATE = new DateTime(2016, 1, 22, 10, 56, 53, DateTimeZone.UTC);
+    private static final LocalDate START_DATE = new LocalDate(2016, 1, 22);
+    private static final int ITEMS_PER_OBJECT = 10;
+
+    private final int nbItems;
+    private final CallContext callContext = new TestCallContext();
+    private final ClockMock clock = new ClockMock();
+    private final Properties properties = new Properties();
+
+    private final Account account;
+    private final OSGIKillbillAPI killbillAPI;
+    private final OSGIConfigPropertiesService osgiConfigPropertiesService;
+    private final CurrencyConversionDao currencyConversionDao;
+    private final AnalyticsConfigurationHandler analyticsConfigurationHandler;
+
+    private final List<SubscriptionBundle> bundles = new ArrayList<SubscriptionBundle>();
+    private final List<Invoice> invoices = new ArrayList<Invoice>();
+    private final List<InvoiceItem> invoiceItems = new ArrayList<InvoiceItem>();
+    private final List<Payment> payments = new ArrayList<Payment>();
+    private final Map<UUID, List<InvoicePayment>> invoicePaymentsByPaymentId = new HashMap<UUID, List<InvoicePayment>>();
+    private final Map<String, List<SubscriptionBundle>> bundlesByExternalKey = new HashMap<String, List<SubscriptionBundle>>();
+
+    public MockedAccountGraph(final int nbItems) throws Exception {
+        this.nbItems = nbItems;
+
+        account = stub(Account.class);
+        Mockito.when(account.getId()).thenReturn(UUID.randomUUID());
+        Mockito.when(account.getExternalKey()).thenReturn(UUID.randomUUID().toString());
+        Mockito.when(account.getName()).thenReturn(UUID.randomUUID().toString());
+        Mockito.when(account.getFirstNameLength()).thenReturn(4);
+        Mockito.when(account.getEmail()).thenReturn(UUID.randomUUID().toString());
+        Mockito.when(account.getBillCycleDayLocal()).thenReturn(22);
+        Mockito.when(account.getCurrency()).thenReturn(Currency.USD);
+        Mockito.when(account.getPaymentMethodId()).thenReturn(UUID.randomUUID());
+        Mockito.when(account.getTimeZone()).thenReturn(DateTimeZone.UTC);
+        Mockito.when(account.getCreatedDate()).thenReturn(CREATED_DATE);
+        Mockito.when(account.getUpdatedDate()).thenReturn(CREATED_DATE);
+
+        final Product product = stub(Product.class);
+        Mockito.when(product.getName()).thenReturn("Benchmark");
+        Mockito.when(product.getCategory()).thenReturn(ProductCategory.BASE);
+        Mockito.when(product.getCatalogName()).thenReturn("BenchmarkCatalog");
+
+        final InternationalPrice internationalPrice = stub(InternationalPrice.class);
+        Mockito.when(internationalPrice.getPrice(Mockito.<Currency>any())).thenReturn(BigDecimal.TEN);
+        final Recurring recurring = stub(Recurring.class);
+        Mockito.when(recurring.getBillingPeriod()).thenReturn(BillingPeriod.MONTHLY);
+        Mockito.when(recurring.getRecurringPrice()).thenReturn(internationalPrice);
+
+        final PlanPhase phase = stub(PlanPhase.class);
+        Mockito.when(phase.getName()).thenReturn("benchmark-monthly-evergreen");
+        Mockito.when(phase.getPhaseType()).thenReturn(PhaseType.EVERGREEN);
+        Mockito.when(phase.getRecurring()).thenReturn(recurring);
+
+        final Plan plan = stub(Plan.class);
+        Mockito.when(plan.getName()).thenReturn("benchmark-monthly");
+        Mockito.when(plan.getProduct()).thenReturn(product);
+        Mockito.when(plan.getRecurringBillingPeriod()).thenReturn(BillingPeriod.MONTHLY);
+        Mockito.when(plan.findPhase(Mockito.anyString())).thenReturn(phase);
+
+        final PriceList priceList = stub(PriceList.class);
+        Mockito.when(priceList.getName()).thenReturn("DEFAULT");
+
+        buildBundles(plan, phase, priceList);
+        buildInvoicesAndPayments(plan, phase);
+
+        final AuditLog auditLog = stub(AuditLog.class);
+        Mockito.when(auditLog.getId()).thenReturn(UUID.randomUUID());
+        Mockito.when(auditLog.getChangeType()).thenReturn(ChangeType.INSERT);
+        Mockito.when(auditLog.getUserName()).thenReturn("benchmark");
+        Mockito.when(auditLog.getCreatedDate()).thenReturn(CREATED_DATE);
+        final List<AuditLog> auditLogs = ImmutableList.<AuditLog>of(auditLog);
+
+        final AccountAuditLogsForObjectType accountAuditLogsForObjectType = stub(AccountAuditLogsForObjectType.class);
+        Mockito.when(accountAuditLogsForObjectType.getAuditLogs(Mockito.<UUID>any())).thenReturn(auditLogs);
+        final AccountAuditLogs accountAuditLogs = stub(AccountAuditLogs.class);
+        Mockito.when(accountAuditLogs.getAuditLogsForAccount()).thenReturn(auditLogs);
+        Mockito.when(accountAuditLogs.getAuditLogsForBundle(Mockito.<UUID>any())).thenReturn(auditLogs);
+        Mockito.when(accountAuditLogs.getAuditLogsForInvoice(Mockito.<UUID>any())).thenReturn(auditLogs);
+        Mockito.when(accountAuditLogs.getAuditLogsForInvoiceItem(Mockito.<UUID>any())).thenReturn(auditLogs);
+        Mockito.when(accountAuditLogs.getAuditLogsForInvoicePayment(Mockito.<UUID>any())).thenReturn(auditLogs);
+        Mockito.when(accountAuditLogs.getAuditLogsForPayment(Mockito.<UUID>any())).thenReturn(auditLogs);
+        Mockito.when(accountAuditLogs.getAuditLogs(Mockito.<ObjectType>any())).thenReturn(accountAuditLogsForObjectType);
+
+        final AuditUserApi auditUserApi = stub(AuditUserApi.class);
+        Mockito.when(auditUserApi.getAccountAuditLogs(Mockito.<UUID>any(), Mockito.<AuditLevel>any(), Mockito.<TenantContext>any())).thenReturn(accountAuditLogs);
+
+        final RecordIdApi recordIdApi = stub(RecordIdApi.class);
+        Mockito.when(recordIdApi.getRecordId(Mockito.<UUID>any(), Mockito.<ObjectType>any(), Mockito.<TenantContext>any())).thenReturn(1L);
+
+        final AccountUserApi accountUserApi = stub(AccountUserApi.class);
+        Mockito.when(accountUserApi.getAccountById(Mockito.<UUID>any(), Mockito.<TenantContext>any())).thenReturn(account);
+
+        final SubscriptionApi subscriptionApi = stub(SubscriptionApi.class);
+        Mockito.when(subscriptionApi.getSubscriptionBundlesForAccountId(Mockito.<UUID>any(), Mockito.<TenantContext>any())).thenReturn(bundles);
+        Mockito.when(subscriptionApi.getSubscriptionBundlesForExternalKey(Mockito.<String>any(), Mockito.<TenantContext>any())).thenAnswer(new Answer<List<SubscriptionBundle>>() {
+            @Override
+            public List<SubscriptionBundle> answer(final InvocationOnMock invocation) {
+                return bundlesByExternalKey.get((String) invocation.getArguments()[0]);
+            }
+        });
+
+        final InvoiceUserApi invoiceUserApi = stub(InvoiceUserApi.class);
+        Mockito.when(invoiceUserApi.getInvoicesByAccount(Mockito.<UUID>any(), Mockito.anyBoolean(), Mockito.anyBoolean(), Mockito.<TenantContext>any())).thenReturn(invoices);
+        Mockito.when(invoiceUserApi.getAccountBalance(Mockito.<UUID>any(), Mockito.<TenantContext>any())).thenReturn(BigDecimal.ZERO);
+
+        final PaymentMethodPlugin paymentMethodPlugin = stub(PaymentMethodPlugin.class);
+        Mockito.when(paymentMethodPlugin.getExternalPaymentMethodId()).thenReturn(UUID.randomUUID().toString());
+        Mockito.when(paymentMethodPlugin.isDefaultPaymentMethod()).thenReturn(true);
+        final PaymentMethod paymentMethod = stub(PaymentMethod.class);
+        Mockito.when(paymentMethod.getId()).thenReturn(account.getPaymentMethodId());
+        Mockito.when(paymentMethod.getAccountId()).thenReturn(account.getId());
+        Mockito.when(paymentMethod.isActive()).thenReturn(true);
+        Mockito.when(paymentMethod.getPluginName()).thenReturn("__EXTERNAL_PAYMENT__");
+        Mockito.when(paymentMethod.getPluginDetail()).thenReturn(paymentMethodPlugin);
+        Mockito.when(paymentMethod.getCreatedDate()).thenReturn(CREATED_DATE);
+
+        final PaymentApi paymentApi = stub(PaymentApi.class);
+        //noinspection unchecked
+        Mockito.when(paymentApi.getAccountPayments(Mockito.<UUID>any(), Mockito.anyBoolean(), Mockito.anyBoolean(), Mockito.any(Iterable.class), Mockito.<TenantContext>any())).thenReturn(payments);
+        //noinspection unchecked
+        Mockito.when(paymentApi.getAccountPaymentMethods(Mockito.<UUID>any(), Mockito.anyBoolean(), Mockito.anyBoolean(), Mockito.any(Iterable.class), Mockito.<TenantContext>any())).thenReturn(ImmutableList.<PaymentMethod>of(paymentMethod));
+
+        final InvoicePaymentApi invoicePaymentApi = stub(InvoicePaymentApi.class);
+        Mockito.when(invoicePaymentApi.getInvoicePayments(Mockito.<UUID>any(), Mockito.<TenantContext>any())).thenAnswer(new Answer<List<InvoicePayment>>() {
+            @Override
+            public List<InvoicePayment> answer(final InvocationOnMock invocation) {
+                return invoicePaymentsByPaymentId.get((UUID) invocation.getArguments()[0]);
+            }
+        });
+
+        final StaticCatalog catalog = stub(StaticCatalog.class);
+        Mockito.when(catalog.findPlan(Mockito.anyString())).thenReturn(plan);
+        final VersionedCatalog versionedCatalog = stub(VersionedCatalog.class);
+        Mockito.when(versionedCatalog.getVersion(Mockito.<Date>any())).thenReturn(catalog);
+        final CatalogUserApi catalogUserApi = stub(CatalogUserApi.class);
+        Mockito.when(catalogUserApi.getCatalog(Mockito.anyString(), Mockito.<TenantContext>any())).thenReturn(versionedCatalog);
+
+        final TagUserApi tagUserApi = stub(TagUserApi.class);
+        Mockito.when(tagUserApi.getTagsForAccount(Mockito.<UUID>any(), Mockito.anyBoolean(), Mockito.<TenantContext>any())).thenReturn(ImmutableList.<Tag>of());
+        Mockito.when(tagUserApi.getTagsForObject(Mockito.<UUID>any(), Mockito.<ObjectType>any(), Mockito.anyBoolean(), Mockito.<TenantContext>any())).thenReturn(ImmutableList.<Tag>of());
+        final CustomFieldUserApi customFieldUserApi = stub(CustomFieldUserApi.class);
+        Mockito.when(customFieldUserApi.getCustomFieldsForAccount(Mockito.<UUID>any(), Mockito.<TenantContext>any())).thenReturn(ImmutableList.<CustomField>of());
+
+        killbillAPI = stub(OSGIKillbillAPI.class);
+        Mockito.when(killbillAPI.getAccountUserApi()).thenReturn(accountUserApi);
+        Mockito.when(killbillAPI.getSubscriptionApi()).thenReturn(subscriptionApi);
+        Mockito.when(killbillAPI.getInvoiceUserApi()).thenReturn(invoiceUserApi);
+        Mockito.when(killbillAPI.getPaymentApi()).thenReturn(paymentApi);
+        Mockito.when(killbillAPI.getInvoicePaymentApi()).thenReturn(invoicePaymentApi);
+        Mockito.when(killbillAPI.getRecordIdApi()).thenReturn(recordIdApi);
+        Mockito.when(killbillAPI.getAuditUserApi()).thenReturn(auditUserApi);
+        Mockito.when(killbillAPI.getCatalogUserApi()).thenReturn(catalogUserApi);
+        Mockito.when(killbillAPI.getTagUserApi()).thenReturn(tagUserApi);
+        Mockito.when(killbillAPI.getCustomFieldUserApi()).thenReturn(customFieldUserApi);
+        Mockito.when(killbillAPI.getTenantUserApi()).thenReturn(stub(TenantUserApi.class));
+
+        osgiConfigPropertiesService = stub(OSGIConfigPropertiesService.class);
+        Mockito.when(osgiConfigPropertiesService.getProperties()).thenReturn(properties);
+        Mockito.when(osgiConfigPropertiesService.getString(Mockito.<String>any())).thenAnswer(new Answer<String>() {
+            @Override
+            public String answer(final InvocationOnMock invocation) {
+                return properties.getProperty((String) invocation.getArguments()[0]);
+            }
+        });
+
+        currencyConversionDao = stub(CurrencyConversionDao.class);
+
+        analyticsConfigurationHandler = new AnalyticsConfigurationHandler(AnalyticsActivator.PLUGIN_NAME, killbillAPI, stub(OSGIKillbillLogService.class));
+        analyticsConfigurationHandler.setDefaultConfigurable(new AnalyticsConfiguration(new Properties()));
+    }
+
+    private void buildBundles(final Plan plan, final PlanPhase phase, final PriceList priceList) {
+        for (int i = 0; i < nbObjects(); i++) {
+            final UUID subscriptionId = UUID.randomUUID();
+            final Subscription subscription = stub(Subscription.class);
+            Mockito.when(subscription.getId()).thenReturn(subscriptionId);
+            Mockito.when(subscription.getBaseEntitlementId()).thenReturn(subscriptionId);
+            Mockito.when(subscription.getLastActiveProductCategory()).thenReturn(ProductCategory.BASE);
+            Mockito.when(subscription.getState()).thenReturn(EntitlementState.ACTIVE);
+            Mockito.when(subscription.getChargedThroughDate()).thenReturn(START_DATE.plusMonths(ITEMS_PER_OBJECT));
+
+            final List<SubscriptionEvent> events = new ArrayList<SubscriptionEvent>(ITEMS_PER_OBJECT);
+            events.add(createSubscriptionEvent(subscriptionId, SubscriptionEventType.START_ENTITLEMENT, "entitlement-service", START_DATE, plan, phase, priceList));
+            events.add(createSubscriptionEvent(subscriptionId, SubscriptionEventType.START_BILLING, "billing-service", START_DATE, plan, phase, priceList));
+            for (int j = 2; j < itemsForObject(i); j++) {
+                events.add(createSubscriptionEvent(subscriptionId, SubscriptionEventType.PHASE, "entitlement+billing-service", START_DATE.plusMonths(j), plan, phase, priceList));
+            }
+
+            final SubscriptionBundleTimeline timeline = stub(SubscriptionBundleTimeline.class);
+            Mockito.when(timeline.getSubscriptionEvents()).thenReturn(events);
+
+            final SubscriptionBundle bundle = stub(SubscriptionBundle.class);
+            Mockito.when(bundle.getId()).thenReturn(UUID.randomUUID());
+            Mockito.when(bundle.getAccountId()).thenReturn(account.getId());
+            Mockito.when(bundle.getExternalKey()).thenReturn(UUID.randomUUID().toString());
+            Mockito.when(bundle.getCreatedDate()).thenReturn(CREATED_DATE);
+            Mockito.when(bundle.getSubscriptions()).thenReturn(ImmutableList.<Subscription>of(subscription));
+            Mockito.when(bundle.getTimeline()).thenReturn(timeline);
+
+            bundles.add(bundle);
+            bundlesByExternalKey.put(bundle.getExternalKey(), ImmutableList.<SubscriptionBundle>of(bundle));
+        }
+    }
+
+    private SubscriptionEvent createSubscriptionEvent(final UUID subscriptionId,
+                                                      final SubscriptionEventType subscriptionEventType,
+                                                      final String serviceName,
+                                                      final LocalDate effectiveDate,
+                                                      final Plan plan,
+                                                      final PlanPhase phase,
+                                                      final PriceList priceList) {
+        final SubscriptionEvent event = stub(SubscriptionEvent.class);
+        Mockito.when(event.getId()).thenReturn(UUID.randomUUID());
+        Mockito.when(event.getEntitlementId()).thenReturn(subscriptionId);
+        Mockito.when(event.getSubscriptionEventType()).thenReturn(subscriptionEventType);
+        Mockito.when(event.getServiceName()).thenReturn(serviceName);
+        Mockito.when(event.getServiceStateName()).thenReturn(subscriptionEventType.toString());
+        Mockito.when(event.getEffectiveDate()).thenReturn(effectiveDate);
+        Mockito.when(event.getNextPlan()).thenReturn(plan);
+        Mockito.when(event.getNextPhase()).thenReturn(phase);
+        Mockito.when(event.getNextPriceList()).thenReturn(priceList);
+        return event;
+    }
+
+    private void buildInvoicesAndPayments(final Plan plan, final PlanPhase phase) {
+        List<InvoiceItem> previousInvoiceItems = null;
+        for (int i = 0; i < nbObjects(); i++) {
+            final UUID invoiceId = UUID.randomUUID();
+            final LocalDate invoiceDate = START_DATE.plusMonths(i);
+            final UUID subscriptionId = bundles.get(i).getSubscriptions().get(0).getId();
+
+            final List<InvoiceItem> items = new ArrayList<InvoiceItem>(ITEMS_PER_OBJECT);
+            for (int j = 0; j < itemsForObject(i); j++) {
+                if (j == ITEMS_PER_OBJECT - 2) {
+                    // Item adjustment on the same invoice
+                    items.add(createInvoiceItem(invoiceId, InvoiceItemType.ITEM_ADJ, subscriptionId, invoiceDate, BigDecimal.ONE.negate(), items.get(0).getId(), plan, phase));
+                } else if (j == ITEMS_PER_OBJECT - 1) {
+                    // Repair of an item on the previous invoice
+                    final InvoiceItem repairedItem = previousInvoiceItems == null ? items.get(1) : previousInvoiceItems.get(1);
+                    items.add(createInvoiceItem(invoiceId, InvoiceItemType.REPAIR_ADJ, subscriptionId, invoiceDate, BigDecimal.ONE.negate(), repairedItem.getId(), plan, phase));
+                } else {
+                    items.add(createInvoiceItem(invoiceId, InvoiceItemType.RECURRING, subscriptionId, invoiceDate, BigDecimal.TEN, null, plan, phase));
+                }
+            }
+            invoiceItems.addAll(items);
+            previousInvoiceItems = items;
+
+            final UUID paymentId = UUID.randomUUID();
+            final InvoicePayment invoicePayment = stub(InvoicePayment.class);
+            Mockito.when(invoicePayment.getId()).thenReturn(UUID.randomUUID());
+            Mockito.when(invoicePayment.getPaymentId()).thenReturn(paymentId);
+            Mockito.when(invoicePayment.getType()).thenReturn(InvoicePaymentType.ATTEMPT);
+            Mockito.when(invoicePayment.getInvoiceId()).thenReturn(invoiceId);
+            Mockito.when(invoicePayment.getPaymentDate()).thenReturn(invoiceDate.toDateTimeAtStartOfDay(DateTimeZone.UTC));
+            Mockito.when(invoicePayment.getAmount()).thenReturn(BigDecimal.TEN);
+            Mockito.when(invoicePayment.getCurrency()).thenReturn(Currency.USD);
+            Mockito.when(invoicePayment.getCreatedDate()).thenReturn(CREATED_DATE);
+            invoicePaymentsByPaymentId.put(paymentId, ImmutableList.<InvoicePayment>of(invoicePayment));
+
+            final Invoice invoice = stub(Invoice.class);
+            Mockito.when(invoice.getId()).thenReturn(invoiceId);
+            Mockito.when(invoice.getAccountId()).thenReturn(account.getId());
+            Mockito.when(invoice.getInvoiceItems()).thenReturn(items);
+            Mockito.when(invoice.getNumberOfItems()).thenReturn(items.size());
+            Mockito.when(invoice.getPayments()).thenReturn(ImmutableList.<InvoicePayment>of(invoicePayment));
+            Mockito.when(invoice.getNumberOfPayments()).thenReturn(1);
+            Mockito.when(invoice.getInvoiceNumber()).thenReturn(i + 1);
+            Mockito.when(invoice.getInvoiceDate()).thenReturn(invoiceDate);
+            Mockito.when(invoice.getTargetDate()).thenReturn(invoiceDate);
+            Mockito.when(invoice.getCurrency()).thenReturn(Currency.USD);
+            Mockito.when(invoice.getPaidAmount()).thenReturn(BigDecimal.TEN);
+            Mockito.when(invoice.getOriginalChargedAmount()).thenReturn(BigDecimal.TEN);
+            Mockito.when(invoice.getChargedAmount()).thenReturn(BigDecimal.TEN);
+            Mockito.when(invoice.getCreditedAmount()).thenReturn(BigDecimal.ZERO);
+            Mockito.when(invoice.getRefundedAmount()).thenReturn(BigDecimal.ZERO);
+            Mockito.when(invoice.getBalance()).thenReturn(BigDecimal.ZERO);
+            Mockito.when(invoice.getCreatedDate()).thenReturn(CREATED_DATE);
+            invoices.add(invoice);
+
+            final PaymentTransaction purchaseTransaction = stub(PaymentTransaction.class);
+            Mockito.when(purchaseTransaction.getId()).thenReturn(UUID.randomUUID());
+            Mockito.when(purchaseTransaction.getPaymentId()).thenReturn(paymentId);
+            Mockito.when(purchaseTransaction.getTransactionType()).thenReturn(TransactionType.PURCHASE);
+            Mockito.when(purchaseTransaction.getAmount()).thenReturn(BigDecimal.TEN);
+            Mockito.when(purchaseTransaction.getCurrency()).thenReturn(Currency.USD);
+            Mockito.when(purchaseTransaction.getEffectiveDate()).thenReturn(invoiceDate.toDateTimeAtStartOfDay(DateTimeZone.UTC));
+            Mockito.when(purchaseTransaction.getExternalKey()).thenReturn(UUID.randomUUID().toString());
+            Mockito.when(purchaseTransaction.getTransactionStatus()).thenReturn(TransactionStatus.SUCCESS);
+
+            final Payment payment = stub(Payment.class);
+            Mockito.when(payment.getId()).thenReturn(paymentId);
+            Mockito.when(payment.getAccountId()).thenReturn(account.getId());
+            Mockito.when(payment.getPaymentMethodId()).thenReturn(account.getPaymentMethodId());
+            Mockito.when(payment.getPaymentNumber()).thenReturn(i + 1);
+            Mockito.when(payment.getExternalKey()).thenReturn(UUID.randomUUID().toString());
+            Mockito.when(payment.getPurchasedAmount()).thenReturn(BigDecimal.TEN);
+            Mockito.when(payment.getCurrency()).thenReturn(Currency.USD);
+            Mockito.when(payment.getTransactions()).thenReturn(ImmutableList.<PaymentTransaction>of(purchaseTransaction));
+            Mockito.when(payment.getCreatedDate()).thenReturn(CREATED_DATE);
+            payments.add(payment);
+        }
+    }
+
+    private InvoiceItem createInvoiceItem(final UUID invoiceId,
+                                          final InvoiceItemType invoiceItemType,
+                                          final UUID subscriptionId,
+                                          final LocalDate startDate,
+                                          final BigDecimal amount,
+                                          final UUID linkedItemId,
+                                          final Plan plan,
+                                          final PlanPhase phase) {
+        final InvoiceItem invoiceItem = stub(InvoiceItem.class);
+        Mockito.when(invoiceItem.getId()).thenReturn(UUID.randomUUID());
+        Mockito.when(invoiceItem.getInvoiceItemType()).thenReturn(invoiceItemType);
+        Mockito.when(invoiceItem.getInvoiceId()).thenReturn(invoiceId);
+        Mockito.when(invoiceItem.getAccountId()).thenReturn(account.getId());
+        Mockito.when(invoiceItem.getStartDate()).thenReturn(startDate);
+        Mockito.when(invoiceItem.getEndDate()).thenReturn(startDate.plusMonths(1));
+        Mockito.when(invoiceItem.getAmount()).thenReturn(amount);
+        Mockito.when(invoiceItem.getCurrency()).thenReturn(Currency.USD);
+        Mockito.when(invoiceItem.getSubscriptionId()).thenReturn(subscriptionId);
+        Mockito.when(invoiceItem.getPlanName()).thenReturn(plan.getName());
+        Mockito.when(invoiceItem.getPhaseName()).thenReturn(phase.getName());
+        Mockito.when(invoiceItem.getRate()).thenReturn(BigDecimal.TEN);
+        Mockito.when(invoiceItem.getLinkedItemId()).thenReturn(linkedItemId);
+        Mockito.when(invoiceItem.getCreatedDate()).thenReturn(CREATED_DATE);
+        return invoiceItem;
+    }
+
+    // nbItems / 10 invoices, bundles and payments, the last one holding the remainder
+    private int nbObjects() {
+        return Math.max(1, nbItems / ITEMS_PER_OBJECT);
+    }
+
+    private int itemsForObject(final int i) {
+        return i < nbObjects() - 1 ? ITEMS_PER_OBJECT : nbItems - (nbObjects() - 1) * ITEMS_PER_OBJECT;
+    }
+
+    private static <T> T stub(final Class<T> clazz) {
+        return Mockito.mock(clazz, Mockito.withSettings().stubOnly());
+    }
+
+    /**
+     * @return a new context, with empty caches, as created for each refresh
+     */
+    public BusinessContextFactory newBusinessContextFactory() throws AnalyticsRefreshException {
+        return new BusinessContextFactory(account.getId(), callContext, currencyConversionDao, killbillAPI, osgiConfigPropertiesService, clock, analyticsConfigurationHandler);
+    }
+
+    public OSGIConfigPropertiesService getOsgiConfigPropertiesService() {
+        return osgiConfigPropertiesService;
+    }
+
+    public List<Invoice> getInvoices() {
+        return invoices;
+    }
+
+    public List<InvoiceItem> getInvoiceItems() {
+        return invoiceItems;
+    }
+}
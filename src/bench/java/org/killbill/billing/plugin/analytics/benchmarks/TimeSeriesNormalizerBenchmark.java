@@ -0,0 +1,155 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.benchmarks;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+import org.killbill.billing.plugin.analytics.json.TimeSeries;
+import org.killbill.billing.plugin.analytics.json.XY;
+import org.killbill.billing.plugin.analytics.reports.analysis.TimeSeriesNormalizer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Gap filling and sorting of the time series of a dashboard (daily data, with 1 day out of 3 missing),
+ * compared to the original implementation (linear scan of the series of XY for each day).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class TimeSeriesNormalizerBenchmark {
+
+    @Param({"90", "1095"})
+    private int nbDays;
+
+    @Param({"1", "30"})
+    private int nbPivots;
+
+    private final LocalDate startDate = new LocalDate(2016, 1, 1);
+
+    private Map<String, Map<String, TimeSeries>> dataForReports;
+    private Map<String, Map<String, List<XY>>> xyDataForReports;
+
+    @Setup(Level.Invocation)
+    public void setUp() {
+        final Random random = new Random(nbDays * nbPivots);
+        final Map<String, TimeSeries> dataForReport = new LinkedHashMap<String, TimeSeries>();
+        final Map<String, List<XY>> xyDataForReport = new LinkedHashMap<String, List<XY>>();
+        for (int i = 0; i < nbPivots; i++) {
+            final List<XY> dataForPivot = new LinkedList<XY>();
+            for (int j = 0; j < nbDays; j++) {
+                if (random.nextInt(3) != 0) {
+                    dataForPivot.add(new XY(startDate.plusDays(j).toString(), random.nextFloat()));
+                }
+            }
+            // The database doesn't guarantee any ordering
+            Collections.shuffle(dataForPivot, random);
+            dataForReport.put("pivot" + i, TimeSeries.fromXYs(dataForPivot));
+            xyDataForReport.put("pivot" + i, dataForPivot);
+        }
+
+        dataForReports = new HashMap<String, Map<String, TimeSeries>>();
+        dataForReports.put("report", dataForReport);
+        xyDataForReports = new HashMap<String, Map<String, List<XY>>>();
+        xyDataForReports.put("report", xyDataForReport);
+    }
+
+    @Benchmark
+    public Map<String, Map<String, TimeSeries>> normalizeAndSortXValues() {
+        TimeSeriesNormalizer.normalizeAndSortXValues(dataForReports, null, null);
+        return dataForReports;
+    }
+
+    @Benchmark
+    public Map<String, Map<String, List<XY>>> naiveNormalizeAndSortXValues() {
+        naiveNormalizeAndSortXValues(xyDataForReports);
+        return xyDataForReports;
+    }
+
+    // Previous implementation, for reference
+    private static void naiveNormalizeAndSortXValues(final Map<String, Map<String, List<XY>>> dataForReports) {
+        DateTime minDate = null;
+        DateTime maxDate = null;
+        for (final Map<String, List<XY>> dataForReport : dataForReports.values()) {
+            for (final List<XY> dataForPivot : dataForReport.values()) {
+                for (final XY xy : dataForPivot) {
+                    if (minDate == null || xy.getxDate().isBefore(minDate)) {
+                        minDate = xy.getxDate();
+                    }
+                    if (maxDate == null || xy.getxDate().isAfter(maxDate)) {
+                        maxDate = xy.getxDate();
+                    }
+                }
+            }
+        }
+
+        DateTime curDate = minDate;
+        while (!curDate.isAfter(maxDate)) {
+            for (final Map<String, List<XY>> dataForReport : dataForReports.values()) {
+                for (final List<XY> dataForPivot : dataForReport.values()) {
+                    boolean found = false;
+                    for (final XY xy : dataForPivot) {
+                        if (xy.getxDate().compareTo(curDate) == 0) {
+                            found = true;
+                            break;
+                        }
+                    }
+                    if (!found) {
+                        dataForPivot.add(new XY(curDate, (float) 0));
+                    }
+                }
+            }
+            curDate = curDate.plusDays(1);
+        }
+
+        for (final Map<String, List<XY>> dataForReport : dataForReports.values()) {
+            for (final List<XY> dataForPivot : dataForReport.values()) {
+                Collections.sort(dataForPivot,
+                                 new Comparator<XY>() {
+                                     @Override
+                                     public int compare(final XY o1, final XY o2) {
+                                         return o1.getxDate().compareTo(o2.getxDate());
+                                     }
+                                 });
+            }
+        }
+    }
+}
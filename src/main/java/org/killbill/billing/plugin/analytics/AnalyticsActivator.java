@@ -33,10 +33,13 @@ import org.killbill.billing.plugin.analytics.api.core.AnalyticsConfigurationHand
 import org.killbill.billing.plugin.analytics.api.user.AnalyticsUserApi;
 import org.killbill.billing.plugin.analytics.core.AnalyticsHealthcheck;
 import org.killbill.billing.plugin.analytics.dao.BusinessDBIProvider;
+import org.killbill.billing.plugin.analytics.dao.RecordIdCache;
 import org.killbill.billing.plugin.analytics.http.AnalyticsAccountResource;
 import org.killbill.billing.plugin.analytics.http.AnalyticsHealthcheckResource;
+import org.killbill.billing.plugin.analytics.http.ReportsJobsResource;
 import org.killbill.billing.plugin.analytics.http.ReportsResource;
 import org.killbill.billing.plugin.analytics.reports.ReportsConfiguration;
+import org.killbill.billing.plugin.analytics.reports.ReportsQueryExecutor;
 import org.killbill.billing.plugin.analytics.reports.ReportsUserApi;
 import org.killbill.billing.plugin.analytics.reports.scheduler.JobsScheduler;
 import org.killbill.billing.plugin.api.notification.PluginConfigurationEventHandler;
@@ -60,6 +63,7 @@ import org.skife.jdbi.v2.DBI;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.MetricRegistry;
 import com.google.common.collect.ImmutableMap;
 
@@ -117,6 +121,10 @@ public class AnalyticsActivator extends KillbillActivatorBase {
                 locker = new MemoryGlobalLocker();
                 break;
         }
+        // Shared by the listener and the APIs
+        final RecordIdCache recordIdCache = new RecordIdCache(configProperties);
+        registerRecordIdCacheMetrics(recordIdCache);
+
         analyticsListener = new AnalyticsListener(roOSGIkillbillAPI,
                                                   dataSource,
                                                   configProperties,
@@ -124,14 +132,16 @@ public class AnalyticsActivator extends KillbillActivatorBase {
                                                   locker,
                                                   killbillClock,
                                                   analyticsConfigurationHandler,
-                                                  notificationQueueService);
+                                                  notificationQueueService,
+                                                  recordIdCache);
 
-        jobsScheduler = new JobsScheduler(dataSource, killbillClock, notificationQueueService);
+        jobsScheduler = new JobsScheduler(dataSource, killbillClock, notificationQueueService, configProperties, metricRegistry);
 
         final ReportsConfiguration reportsConfiguration = new ReportsConfiguration(dataSource, jobsScheduler);
 
-        final AnalyticsUserApi analyticsUserApi = new AnalyticsUserApi(roOSGIkillbillAPI, dataSource, configProperties, executor, killbillClock, analyticsConfigurationHandler);
-        reportsUserApi = new ReportsUserApi(roOSGIkillbillAPI, dataSource, configProperties, dbEngine, reportsConfiguration, jobsScheduler);
+        final AnalyticsUserApi analyticsUserApi = new AnalyticsUserApi(roOSGIkillbillAPI, dataSource, configProperties, executor, killbillClock, analyticsConfigurationHandler, recordIdCache);
+        reportsUserApi = new ReportsUserApi(roOSGIkillbillAPI, dataSource, configProperties, dbEngine, reportsConfiguration, jobsScheduler, recordIdCache);
+        registerReportsQueryExecutorMetrics(reportsUserApi.getQueryExecutor());
 
         final AnalyticsHealthcheck healthcheck = new AnalyticsHealthcheck(analyticsListener, jobsScheduler);
         registerHealthcheck(context, healthcheck);
@@ -142,6 +152,7 @@ public class AnalyticsActivator extends KillbillActivatorBase {
                                                          dataSource,
                                                          clock,
                                                          configProperties).withRouteClass(AnalyticsHealthcheckResource.class)
+                                                                          .withRouteClass(ReportsJobsResource.class) // Needs to be before ReportsResource (to avoid matching /reports/{reportName})
                                                                           .withRouteClass(ReportsResource.class)
                                                                           .withRouteClass(AnalyticsAccountResource.class) // Needs to be last (to avoid matching /healthcheck or /reports)!
                                                                           .withService(analyticsUserApi)
@@ -183,6 +194,60 @@ public class AnalyticsActivator extends KillbillActivatorBase {
                                          });
     }
 
+    private void registerRecordIdCacheMetrics(final RecordIdCache recordIdCache) {
+        registerGauge(MetricRegistry.name(RecordIdCache.class, "hits"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return recordIdCache.getStats().hitCount();
+            }
+        });
+        registerGauge(MetricRegistry.name(RecordIdCache.class, "misses"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return recordIdCache.getStats().missCount();
+            }
+        });
+        registerGauge(MetricRegistry.name(RecordIdCache.class, "size"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return recordIdCache.getSize();
+            }
+        });
+    }
+
+    private void registerReportsQueryExecutorMetrics(final ReportsQueryExecutor queryExecutor) {
+        registerGauge(MetricRegistry.name(ReportsQueryExecutor.class, "active"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return queryExecutor.getNbActiveQueries();
+            }
+        });
+        registerGauge(MetricRegistry.name(ReportsQueryExecutor.class, "queued"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return queryExecutor.getNbQueuedQueries();
+            }
+        });
+        registerGauge(MetricRegistry.name(ReportsQueryExecutor.class, "rejected"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return queryExecutor.getNbRejected();
+            }
+        });
+        registerGauge(MetricRegistry.name(ReportsQueryExecutor.class, "timeouts"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return queryExecutor.getNbTimeouts();
+            }
+        });
+    }
+
+    private void registerGauge(final String name, final Gauge<Long> gauge) {
+        // In case the plugin is restarted
+        metricRegistry.remove(name);
+        metricRegistry.register(name, gauge);
+    }
+
     private void registerServlet(final BundleContext context, final HttpServlet servlet) {
         final Hashtable<String, String> props = new Hashtable<String, String>();
         props.put(OSGIPluginProperties.PLUGIN_NAME_PROP, PLUGIN_NAME);
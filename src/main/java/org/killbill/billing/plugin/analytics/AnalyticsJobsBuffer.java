@@ -0,0 +1,180 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.plugin.analytics.AnalyticsJobHierarchy.Group;
+
+import com.google.common.annotations.VisibleForTesting;
+
+import static org.killbill.billing.notification.plugin.api.ExtBusEventType.PAYMENT_SUCCESS;
+
+/**
+ * Node-local buffer of refresh jobs, keyed by (tenant, account, group).
+ * <p/>
+ * Jobs received within the debounce window for the same account are coalesced (a full refresh absorbs narrower groups)
+ * and only one job per key is released once the window has elapsed: this avoids querying the notification queue
+ * and the record ids for every bus event.
+ */
+public class AnalyticsJobsBuffer {
+
+    private final Map<BufferKey, BufferedJob> bufferedJobs = new LinkedHashMap<BufferKey, BufferedJob>();
+    private final int debounceSeconds;
+
+    public AnalyticsJobsBuffer(final int debounceSeconds) {
+        this.debounceSeconds = debounceSeconds;
+    }
+
+    /**
+     * @param job new job
+     * @param now current time
+     * @return false if the job was absorbed by an already buffered job
+     */
+    public synchronized boolean add(final AnalyticsJob job, final DateTime now) {
+        final Group group = AnalyticsJobHierarchy.fromEventType(job);
+        if (bufferedJobs.containsKey(key(job, Group.ALL)) ||
+            (group == Group.INVOICES && bufferedJobs.containsKey(key(job, Group.INVOICE_AND_PAYMENTS)))) {
+            return false;
+        }
+
+        final BufferKey key = key(job, group);
+        final BufferedJob existingJob = bufferedJobs.get(key);
+        if (existingJob != null) {
+            if (group != Group.INVOICES || sameObject(existingJob.job, job)) {
+                return false;
+            }
+
+            // Different invoices for the same account: refresh all invoices (and payments) instead
+            bufferedJobs.remove(key);
+            final AnalyticsJob invoicesAndPaymentsJob = new AnalyticsJob(PAYMENT_SUCCESS,
+                                                                         job.getObjectType(),
+                                                                         job.getObjectId(),
+                                                                         job.getAccountId(),
+                                                                         job.getTenantId());
+            bufferedJobs.put(key(job, Group.INVOICE_AND_PAYMENTS), new BufferedJob(invoicesAndPaymentsJob, existingJob.firstSeen));
+            return true;
+        }
+
+        // Don't delay the narrower jobs being absorbed
+        DateTime firstSeen = now;
+        if (group == Group.ALL) {
+            for (final Group narrowerGroup : Group.values()) {
+                firstSeen = absorb(key(job, narrowerGroup), firstSeen);
+            }
+        } else if (group == Group.INVOICE_AND_PAYMENTS) {
+            firstSeen = absorb(key(job, Group.INVOICES), firstSeen);
+        }
+
+        bufferedJobs.put(key, new BufferedJob(job, firstSeen));
+        return true;
+    }
+
+    /**
+     * @param now current time
+     * @return buffered jobs whose debounce window has elapsed, in order (these are removed from the buffer)
+     */
+    public synchronized List<AnalyticsJob> drainReadyJobs(final DateTime now) {
+        final List<AnalyticsJob> readyJobs = new LinkedList<AnalyticsJob>();
+        final Iterator<BufferedJob> iterator = bufferedJobs.values().iterator();
+        while (iterator.hasNext()) {
+            final BufferedJob bufferedJob = iterator.next();
+            if (!bufferedJob.firstSeen.plusSeconds(debounceSeconds).isAfter(now)) {
+                readyJobs.add(bufferedJob.job);
+                iterator.remove();
+            }
+        }
+        return readyJobs;
+    }
+
+    @VisibleForTesting
+    synchronized int size() {
+        return bufferedJobs.size();
+    }
+
+    private DateTime absorb(final BufferKey key, final DateTime firstSeen) {
+        final BufferedJob absorbedJob = bufferedJobs.remove(key);
+        return absorbedJob != null && absorbedJob.firstSeen.isBefore(firstSeen) ? absorbedJob.firstSeen : firstSeen;
+    }
+
+    private static boolean sameObject(final AnalyticsJob job, final AnalyticsJob otherJob) {
+        return job.getObjectId() == null ? otherJob.getObjectId() == null : job.getObjectId().equals(otherJob.getObjectId());
+    }
+
+    private static BufferKey key(final AnalyticsJob job, final Group group) {
+        return new BufferKey(job.getTenantId(), job.getAccountId(), group);
+    }
+
+    private static final class BufferedJob {
+
+        private final AnalyticsJob job;
+        private final DateTime firstSeen;
+
+        private BufferedJob(final AnalyticsJob job, final DateTime firstSeen) {
+            this.job = job;
+            this.firstSeen = firstSeen;
+        }
+    }
+
+    private static final class BufferKey {
+
+        private final UUID tenantId;
+        private final UUID accountId;
+        private final Group group;
+
+        private BufferKey(final UUID tenantId, final UUID accountId, final Group group) {
+            this.tenantId = tenantId;
+            this.accountId = accountId;
+            this.group = group;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+
+            final BufferKey bufferKey = (BufferKey) o;
+
+            if (tenantId != null ? !tenantId.equals(bufferKey.tenantId) : bufferKey.tenantId != null) {
+                return false;
+            }
+            if (accountId != null ? !accountId.equals(bufferKey.accountId) : bufferKey.accountId != null) {
+                return false;
+            }
+            return group == bufferKey.group;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = tenantId != null ? tenantId.hashCode() : 0;
+            result = 31 * result + (accountId != null ? accountId.hashCode() : 0);
+            result = 31 * result + (group != null ? group.hashCode() : 0);
+            return result;
+        }
+    }
+}
@@ -23,11 +23,13 @@ import java.math.BigDecimal;
 import java.util.Iterator;
 import java.util.UUID;
 import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.annotation.Nullable;
 
 import org.joda.time.DateTime;
-import org.killbill.billing.ObjectType;
 import org.killbill.billing.invoice.api.Invoice;
 import org.killbill.billing.invoice.api.InvoiceApiException;
 import org.killbill.billing.notification.plugin.api.ExtBusEvent;
@@ -36,6 +38,7 @@ import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillDataSource;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillEventDispatcher;
 import org.killbill.billing.plugin.analytics.AnalyticsJobHierarchy.Group;
+import org.killbill.billing.plugin.analytics.AnalyticsRefreshDispatcher.DispatchedJob;
 import org.killbill.billing.plugin.analytics.api.core.AnalyticsConfigurationHandler;
 import org.killbill.billing.plugin.analytics.dao.AllBusinessObjectsDao;
 import org.killbill.billing.plugin.analytics.dao.BusinessAccountDao;
@@ -45,6 +48,8 @@ import org.killbill.billing.plugin.analytics.dao.BusinessInvoiceAndPaymentDao;
 import org.killbill.billing.plugin.analytics.dao.BusinessInvoiceDao;
 import org.killbill.billing.plugin.analytics.dao.BusinessSubscriptionTransitionDao;
 import org.killbill.billing.plugin.analytics.dao.CurrencyConversionDao;
+import org.killbill.billing.plugin.analytics.dao.RecordIdCache;
+import org.killbill.billing.plugin.analytics.dao.RecordIdDao;
 import org.killbill.billing.plugin.analytics.dao.factory.BusinessContextFactory;
 import org.killbill.billing.plugin.api.PluginTenantContext;
 import org.killbill.billing.util.api.RecordIdApi;
@@ -91,6 +96,18 @@ public class AnalyticsListener implements OSGIKillbillEventDispatcher.OSGIKillbi
     // Groups to ignore for refresh, see https://github.com/killbill/killbill-analytics-plugin/issues/87
     @VisibleForTesting
     static final String ANALYTICS_IGNORED_GROUPS_PROPERTY = "org.killbill.billing.plugin.analytics.ignoredGroups";
+    // Number of in-process refresh lanes (jobs are sharded by account across lanes). Disabled by default (jobs are processed by the notification queue threads)
+    // (note: notifications are completed once dispatched to a lane, pending jobs are recorded again on shutdown but are lost if the node crashes)
+    @VisibleForTesting
+    static final String ANALYTICS_REFRESH_NB_LANES_PROPERTY = "org.killbill.billing.plugin.analytics.refresh.nbLanes";
+    // Max number of pending jobs per lane, before the notification queue is blocked
+    private static final String ANALYTICS_REFRESH_LANE_MAX_PENDING_JOBS_PROPERTY = "org.killbill.billing.plugin.analytics.refresh.lanes.maxPendingJobs";
+    // Lanes serialize refreshes for a given account within a node only: set to true if a given account can be refreshed by multiple nodes
+    // (e.g. notification queue not in sticky mode)
+    private static final String ANALYTICS_REFRESH_LANES_GLOBAL_LOCK_PROPERTY = "org.killbill.billing.plugin.analytics.refresh.lanes.globalLock";
+    // Coalesce jobs in memory during the refresh delay, before recording them in the notification queue (note: buffered jobs are lost if the node goes down)
+    @VisibleForTesting
+    static final String ANALYTICS_REFRESH_BUFFER_PROPERTY = "org.killbill.billing.plugin.analytics.refresh.buffer";
     private static final Splitter PROPERTY_SPLITTER = Splitter.on(',')
                                                               .trimResults()
                                                               .omitEmptyStrings();
@@ -106,10 +123,16 @@ public class AnalyticsListener implements OSGIKillbillEventDispatcher.OSGIKillbi
     private final BusinessFieldDao bFieldDao;
     private final AllBusinessObjectsDao allBusinessObjectsDao;
     private final CurrencyConversionDao currencyConversionDao;
+    private final RecordIdDao recordIdDao;
+    private final RecordIdCache recordIdCache;
     private final NotificationQueue jobQueue;
     private final GlobalLocker locker;
     private final Clock clock;
     private final AnalyticsConfigurationHandler analyticsConfigurationHandler;
+    private final Executor executor;
+    private final AnalyticsRefreshDispatcher refreshDispatcher;
+    private final AnalyticsJobsBuffer jobsBuffer;
+    private final ScheduledExecutorService jobsBufferFlusher;
 
     public AnalyticsListener(final OSGIKillbillAPI osgiKillbillAPI,
                              final OSGIKillbillDataSource osgiKillbillDataSource,
@@ -119,11 +142,33 @@ public class AnalyticsListener implements OSGIKillbillEventDispatcher.OSGIKillbi
                              final Clock clock,
                              final AnalyticsConfigurationHandler analyticsConfigurationHandler,
                              final DefaultNotificationQueueService notificationQueueService) throws NotificationQueueAlreadyExists {
+        this(osgiKillbillAPI,
+             osgiKillbillDataSource,
+             osgiConfigPropertiesService,
+             executor,
+             locker,
+             clock,
+             analyticsConfigurationHandler,
+             notificationQueueService,
+             new RecordIdCache(osgiConfigPropertiesService));
+    }
+
+    public AnalyticsListener(final OSGIKillbillAPI osgiKillbillAPI,
+                             final OSGIKillbillDataSource osgiKillbillDataSource,
+                             final OSGIConfigPropertiesService osgiConfigPropertiesService,
+                             final Executor executor,
+                             final GlobalLocker locker,
+                             final Clock clock,
+                             final AnalyticsConfigurationHandler analyticsConfigurationHandler,
+                             final DefaultNotificationQueueService notificationQueueService,
+                             final RecordIdCache recordIdCache) throws NotificationQueueAlreadyExists {
         this.osgiKillbillAPI = osgiKillbillAPI;
+        this.recordIdCache = recordIdCache;
         this.osgiConfigPropertiesService = osgiConfigPropertiesService;
         this.locker = locker;
         this.clock = clock;
         this.analyticsConfigurationHandler = analyticsConfigurationHandler;
+        this.executor = executor;
 
         final String refreshDelayMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(ANALYTICS_REFRESH_DELAY_PROPERTY));
         this.refreshDelaySeconds = refreshDelayMaybeNull == null ? 10 : Integer.valueOf(refreshDelayMaybeNull);
@@ -136,6 +181,15 @@ public class AnalyticsListener implements OSGIKillbillEventDispatcher.OSGIKillbi
         this.bFieldDao = new BusinessFieldDao(osgiKillbillDataSource);
         this.allBusinessObjectsDao = new AllBusinessObjectsDao(osgiKillbillDataSource, executor);
         this.currencyConversionDao = new CurrencyConversionDao(osgiKillbillDataSource);
+        this.recordIdDao = new RecordIdDao(osgiKillbillDataSource, osgiConfigPropertiesService);
+        this.refreshDispatcher = createRefreshDispatcher(osgiConfigPropertiesService);
+        if (Boolean.valueOf(osgiConfigPropertiesService.getString(ANALYTICS_REFRESH_BUFFER_PROPERTY))) {
+            this.jobsBuffer = new AnalyticsJobsBuffer(refreshDelaySeconds);
+            this.jobsBufferFlusher = BusinessExecutor.newSingleThreadScheduledExecutor("osgi-analytics-refresh-buffer");
+        } else {
+            this.jobsBuffer = null;
+            this.jobsBufferFlusher = null;
+        }
 
         final NotificationQueueHandler notificationQueueHandler = new NotificationQueueHandler() {
 
@@ -154,6 +208,22 @@ public class AnalyticsListener implements OSGIKillbillEventDispatcher.OSGIKillbi
                     return;
                 }
 
+                if (refreshDispatcher != null) {
+                    try {
+                        refreshDispatcher.dispatch(job, searchKey1, searchKey2);
+                        return;
+                    } catch (final InterruptedException e) {
+                        logger.warn("Interrupted while dispatching job {}", job);
+                        Thread.currentThread().interrupt();
+                        // Don't lose the job
+                        recordJob(job, searchKey1, searchKey2, computeFutureNotificationTime());
+                        return;
+                    } catch (final RejectedExecutionException e) {
+                        // Shutting down: process it inline
+                        logger.debug("Refresh lanes are shut down, processing job {} inline", job);
+                    }
+                }
+
                 try {
                     handleAnalyticsJob(job);
                 } catch (final AnalyticsRefreshException e) {
@@ -176,9 +246,36 @@ public class AnalyticsListener implements OSGIKillbillEventDispatcher.OSGIKillbi
 
     public void start() {
         jobQueue.startQueue();
+        if (jobsBufferFlusher != null) {
+            jobsBufferFlusher.scheduleWithFixedDelay(new Runnable() {
+                                                         @Override
+                                                         public void run() {
+                                                             try {
+                                                                 flushBufferedJobs(clock.getUTCNow());
+                                                             } catch (final RuntimeException e) {
+                                                                 logger.warn("Unable to flush buffered jobs", e);
+                                                             }
+                                                         }
+                                                     },
+                                                     1,
+                                                     1,
+                                                     TimeUnit.SECONDS);
+        }
     }
 
     public void shutdownNow() {
+        if (jobsBufferFlusher != null) {
+            jobsBufferFlusher.shutdownNow();
+            // Don't lose the buffered jobs
+            flushBufferedJobs(clock.getUTCNow().plusSeconds(refreshDelaySeconds));
+        }
+        if (refreshDispatcher != null) {
+            // Notifications of dispatched jobs have already been completed: record the unprocessed ones again
+            final DateTime effectiveDate = computeFutureNotificationTime();
+            for (final DispatchedJob dispatchedJob : refreshDispatcher.shutdownNow()) {
+                recordJob(dispatchedJob.getJob(), dispatchedJob.getAccountRecordId(), dispatchedJob.getTenantRecordId(), effectiveDate);
+            }
+        }
         jobQueue.stopQueue();
     }
 
@@ -222,6 +319,26 @@ public class AnalyticsListener implements OSGIKillbillEventDispatcher.OSGIKillbi
             return;
         }
 
+        if (jobsBuffer != null) {
+            // The job will be recorded once the refresh delay has elapsed, together with all overlapping jobs received in the meantime
+            if (!jobsBuffer.add(job, clock.getUTCNow())) {
+                logger.debug("Skipping already buffered job for event {}", killbillEvent);
+            }
+            return;
+        }
+
+        recordJob(job, computeFutureNotificationTime());
+    }
+
+    @VisibleForTesting
+    void flushBufferedJobs(final DateTime now) {
+        for (final AnalyticsJob job : jobsBuffer.drainReadyJobs(now)) {
+            // The refresh delay has already elapsed
+            recordJob(job, now);
+        }
+    }
+
+    private void recordJob(final AnalyticsJob job, final DateTime effectiveDate) {
         Long accountRecordId = null;
         Long tenantRecordId = null;
         final RecordIdApi recordIdApi = osgiKillbillAPI.getRecordIdApi();
@@ -229,22 +346,26 @@ public class AnalyticsListener implements OSGIKillbillEventDispatcher.OSGIKillbi
             logger.warn("Unable to retrieve the recordIdApi");
         } else {
             final CallContext callContext = new AnalyticsCallContext(job, clock);
-            accountRecordId = osgiKillbillAPI.getRecordIdApi().getRecordId(killbillEvent.getAccountId(), ObjectType.ACCOUNT, callContext);
-            tenantRecordId = osgiKillbillAPI.getRecordIdApi().getRecordId(killbillEvent.getTenantId(), ObjectType.TENANT, callContext);
+            accountRecordId = recordIdCache.getAccountRecordId(job.getAccountId(), recordIdApi, callContext);
+            tenantRecordId = recordIdCache.getTenantRecordId(job.getTenantId(), recordIdApi, callContext);
         }
 
+        recordJob(job, accountRecordId, tenantRecordId, effectiveDate);
+    }
+
+    private void recordJob(final AnalyticsJob job, @Nullable final Long accountRecordId, @Nullable final Long tenantRecordId, final DateTime effectiveDate) {
         // We check for duplicates here to avoid triggering useless refreshes. Note that because multiple bus_ext_events threads
         // are calling handleKillbillEvent in parallel, there is a small chance that this check will miss some, so we will check again
         // before processing the job (see handleReadyNotification above)
         if (accountRecordId != null && futureOverlappingJobAlreadyScheduled(job, accountRecordId, tenantRecordId)) {
-            logger.debug("Skipping already present notification for event {}", killbillEvent.toString());
+            logger.debug("Skipping already present notification for job {}", job);
             return;
         }
 
         try {
-            jobQueue.recordFutureNotification(computeFutureNotificationTime(), job, UUID.randomUUID(), accountRecordId, tenantRecordId);
+            jobQueue.recordFutureNotification(effectiveDate, job, UUID.randomUUID(), accountRecordId, tenantRecordId);
         } catch (final IOException e) {
-            logger.warn("Unable to record notification for event {}", killbillEvent);
+            logger.warn("Unable to record notification for job {}", job);
         }
     }
 
@@ -309,6 +430,32 @@ public class AnalyticsListener implements OSGIKillbillEventDispatcher.OSGIKillbi
                 AnalyticsJobHierarchy.Group.ALL.equals(existingHierarchyGroup));
     }
 
+    private AnalyticsRefreshDispatcher createRefreshDispatcher(final OSGIConfigPropertiesService osgiConfigPropertiesService) {
+        final String nbLanesMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(ANALYTICS_REFRESH_NB_LANES_PROPERTY));
+        final int nbLanes = nbLanesMaybeNull == null ? 0 : Integer.valueOf(nbLanesMaybeNull);
+        if (nbLanes <= 0) {
+            return null;
+        }
+
+        final String maxPendingJobsMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(ANALYTICS_REFRESH_LANE_MAX_PENDING_JOBS_PROPERTY));
+        final int maxPendingJobs = maxPendingJobsMaybeNull == null ? 1000 : Math.max(1, Integer.valueOf(maxPendingJobsMaybeNull));
+        final boolean useGlobalLock = Boolean.valueOf(osgiConfigPropertiesService.getString(ANALYTICS_REFRESH_LANES_GLOBAL_LOCK_PROPERTY));
+
+        return new AnalyticsRefreshDispatcher(nbLanes,
+                                              maxPendingJobs,
+                                              new AnalyticsRefreshDispatcher.AnalyticsJobHandler() {
+                                                  @Override
+                                                  public void handle(final AnalyticsJob job) throws AnalyticsRefreshException {
+                                                      if (useGlobalLock) {
+                                                          handleAnalyticsJob(job);
+                                                      } else {
+                                                          // Jobs for that account are already serialized by the lane
+                                                          handleAnalyticsJobWithLock(job);
+                                                      }
+                                                  }
+                                              });
+    }
+
     private void handleAnalyticsJob(final AnalyticsJob job) throws AnalyticsRefreshException {
         GlobalLock lock = null;
         try {
@@ -329,10 +476,12 @@ public class AnalyticsListener implements OSGIKillbillEventDispatcher.OSGIKillbi
         }
 
         final CallContext callContext = new AnalyticsCallContext(job, clock);
-        final BusinessContextFactory businessContextFactory = new BusinessContextFactory(job.getAccountId(), callContext, currencyConversionDao, osgiKillbillAPI, osgiConfigPropertiesService, clock, analyticsConfigurationHandler);
+        final BusinessContextFactory businessContextFactory = new BusinessContextFactory(job.getAccountId(), callContext, currencyConversionDao, recordIdDao, recordIdCache, osgiKillbillAPI, osgiConfigPropertiesService, clock, analyticsConfigurationHandler);
 
         final Group group = AnalyticsJobHierarchy.fromEventType(job);
         logger.info("Starting {} Analytics refresh for account {}", group, businessContextFactory.getAccountId());
+        // Retrieve all independent Kill Bill objects needed by the factories in parallel
+        businessContextFactory.prefetch(group, executor);
         switch (group) {
             case ALL:
                 allBusinessObjectsDao.update(businessContextFactory);
@@ -378,6 +527,16 @@ public class AnalyticsListener implements OSGIKillbillEventDispatcher.OSGIKillbi
         return jobQueue;
     }
 
+    @VisibleForTesting
+    AnalyticsJobsBuffer getJobsBuffer() {
+        return jobsBuffer;
+    }
+
+    @VisibleForTesting
+    AnalyticsRefreshDispatcher getRefreshDispatcher() {
+        return refreshDispatcher;
+    }
+
     private static final class AnalyticsCallContext implements CallContext {
 
         private static final String USER_NAME = AnalyticsListener.class.getName();
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.plugin.analytics.AnalyticsJobHierarchy.Group;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.primitives.Longs;
+
+/**
+ * Dispatches refresh jobs onto in-process worker lanes, sharded by account.
+ * <p/>
+ * All jobs for a given account go to the same lane and run one at a time, in order: overlapping refreshes
+ * for the same account don't need to be serialized by the global lock. Jobs for different accounts run in parallel
+ * (up to the number of lanes). Pending jobs overlapping a job already queued for the same account are coalesced.
+ * <p/>
+ * Jobs are kept in memory only once dispatched (the notification is completed at that point): on shutdown, pending and
+ * in-flight jobs are handed back (see {@link #shutdownNow()}) so they can be recorded again, but they are lost if the node crashes.
+ */
+public class AnalyticsRefreshDispatcher {
+
+    private static final Logger logger = LoggerFactory.getLogger(AnalyticsRefreshDispatcher.class);
+
+    public interface AnalyticsJobHandler {
+
+        void handle(AnalyticsJob job) throws AnalyticsRefreshException;
+    }
+
+    public static final class DispatchedJob {
+
+        private final AnalyticsJob job;
+        private final Long accountRecordId;
+        private final Long tenantRecordId;
+
+        private DispatchedJob(final AnalyticsJob job, @Nullable final Long accountRecordId, @Nullable final Long tenantRecordId) {
+            this.job = job;
+            this.accountRecordId = accountRecordId;
+            this.tenantRecordId = tenantRecordId;
+        }
+
+        public AnalyticsJob getJob() {
+            return job;
+        }
+
+        public Long getAccountRecordId() {
+            return accountRecordId;
+        }
+
+        public Long getTenantRecordId() {
+            return tenantRecordId;
+        }
+    }
+
+    private final Lane[] lanes;
+    private final int maxPendingJobsPerLane;
+    private final AnalyticsJobHandler handler;
+    private final ExecutorService executor;
+
+    private volatile boolean shutdown = false;
+
+    public AnalyticsRefreshDispatcher(final int nbLanes, final int maxPendingJobsPerLane, final AnalyticsJobHandler handler) {
+        this.maxPendingJobsPerLane = maxPendingJobsPerLane;
+        this.handler = handler;
+        // One thread per lane at most: a lane is drained by a single task at a time, so there are never more than nbLanes tasks
+        // (never run a drain on the caller thread, i.e. the notification queue thread)
+        this.executor = BusinessExecutor.newBoundedThreadPool(nbLanes, nbLanes, "osgi-analytics-refresh-lanes");
+        this.lanes = new Lane[nbLanes];
+        for (int i = 0; i < nbLanes; i++) {
+            lanes[i] = new Lane();
+        }
+    }
+
+    /**
+     * Queue a job on the lane of its account. Blocks if that lane is full.
+     *
+     * @param job             refresh job
+     * @param accountRecordId account record id, if known (the account id is used to shard otherwise)
+     * @return false if the job was coalesced with an already pending job
+     * @throws InterruptedException       if interrupted while waiting for the lane
+     * @throws RejectedExecutionException if the dispatcher has been shut down
+     */
+    public boolean dispatch(final AnalyticsJob job, @Nullable final Long accountRecordId) throws InterruptedException {
+        return dispatch(job, accountRecordId, null);
+    }
+
+    public boolean dispatch(final AnalyticsJob job, @Nullable final Long accountRecordId, @Nullable final Long tenantRecordId) throws InterruptedException {
+        return lanes[getLane(job, accountRecordId)].offer(new DispatchedJob(job, accountRecordId, tenantRecordId));
+    }
+
+    /**
+     * Stop the lanes.
+     *
+     * @return the jobs not yet processed (pending or in-flight), which need to be recorded again
+     */
+    public List<DispatchedJob> shutdownNow() {
+        shutdown = true;
+        final List<DispatchedJob> unprocessedJobs = new LinkedList<DispatchedJob>();
+        for (final Lane lane : lanes) {
+            lane.drainTo(unprocessedJobs);
+        }
+        executor.shutdownNow();
+        return unprocessedJobs;
+    }
+
+    @VisibleForTesting
+    int getLane(final AnalyticsJob job, @Nullable final Long accountRecordId) {
+        final int hash = accountRecordId != null ? Longs.hashCode(accountRecordId) : job.getAccountId().hashCode();
+        return Math.abs(hash % lanes.length);
+    }
+
+    @VisibleForTesting
+    int getNbPendingJobs() {
+        int nbPendingJobs = 0;
+        for (final Lane lane : lanes) {
+            nbPendingJobs += lane.getNbPendingJobs();
+        }
+        return nbPendingJobs;
+    }
+
+    // Does this pending job already cover the new one?
+    @VisibleForTesting
+    static boolean covers(final AnalyticsJob pendingJob, final AnalyticsJob newJob) {
+        if (!pendingJob.getAccountId().equals(newJob.getAccountId())) {
+            return false;
+        }
+
+        final Group pendingGroup = AnalyticsJobHierarchy.fromEventType(pendingJob);
+        final Group newGroup = AnalyticsJobHierarchy.fromEventType(newJob);
+        if (pendingGroup == Group.ALL) {
+            return true;
+        } else if (pendingGroup != newGroup) {
+            return false;
+        } else if (newGroup == Group.INVOICES) {
+            // Only the invoice of the job is refreshed
+            return pendingJob.getObjectId() == null ? newJob.getObjectId() == null : pendingJob.getObjectId().equals(newJob.getObjectId());
+        } else {
+            return true;
+        }
+    }
+
+    private final class Lane implements Runnable {
+
+        // Not yet started jobs, in order
+        private final LinkedList<DispatchedJob> pendingJobs = new LinkedList<DispatchedJob>();
+        private DispatchedJob runningJob = null;
+        private boolean draining = false;
+
+        private boolean offer(final DispatchedJob dispatchedJob) throws InterruptedException {
+            final AnalyticsJob job = dispatchedJob.getJob();
+            synchronized (this) {
+                checkNotShutdown();
+                for (final DispatchedJob pendingJob : pendingJobs) {
+                    if (covers(pendingJob.getJob(), job)) {
+                        logger.debug("Coalescing job {} with pending job {}", job, pendingJob.getJob());
+                        return false;
+                    }
+                }
+
+                if (Group.ALL == AnalyticsJobHierarchy.fromEventType(job)) {
+                    // A full refresh supersedes all pending jobs for that account
+                    final Iterator<DispatchedJob> iterator = pendingJobs.iterator();
+                    while (iterator.hasNext()) {
+                        if (iterator.next().getJob().getAccountId().equals(job.getAccountId())) {
+                            iterator.remove();
+                        }
+                    }
+                }
+
+                while (pendingJobs.size() >= maxPendingJobsPerLane) {
+                    wait();
+                    checkNotShutdown();
+                }
+                pendingJobs.add(dispatchedJob);
+
+                if (draining) {
+                    return true;
+                }
+                draining = true;
+            }
+
+            // Outside of the monitor: don't block the lane while handing it over to the executor
+            startDraining();
+            return true;
+        }
+
+        private void checkNotShutdown() {
+            if (shutdown) {
+                throw new RejectedExecutionException("Refresh lanes have been shut down");
+            }
+        }
+
+        private void startDraining() {
+            try {
+                executor.execute(this);
+            } catch (final RejectedExecutionException e) {
+                synchronized (this) {
+                    draining = false;
+                }
+                // Only expected on shutdown: pending jobs are handed back by shutdownNow
+                logger.warn("Unable to drain refresh lane, {} job(s) pending", getNbPendingJobs(), e);
+            }
+        }
+
+        private synchronized DispatchedJob poll() {
+            runningJob = pendingJobs.poll();
+            if (runningJob == null) {
+                draining = false;
+            } else {
+                notifyAll();
+            }
+            return runningJob;
+        }
+
+        private synchronized void done() {
+            runningJob = null;
+        }
+
+        private synchronized void drainTo(final List<DispatchedJob> unprocessedJobs) {
+            // The in-flight job may be interrupted: refresh it again (refreshes are idempotent)
+            if (runningJob != null) {
+                unprocessedJobs.add(runningJob);
+                runningJob = null;
+            }
+            unprocessedJobs.addAll(pendingJobs);
+            pendingJobs.clear();
+            // Wake up dispatchers waiting for room
+            notifyAll();
+        }
+
+        private synchronized int getNbPendingJobs() {
+            return pendingJobs.size();
+        }
+
+        @Override
+        public void run() {
+            boolean drained = false;
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    final DispatchedJob dispatchedJob = poll();
+                    if (dispatchedJob == null) {
+                        drained = true;
+                        break;
+                    }
+
+                    try {
+                        handler.handle(dispatchedJob.getJob());
+                    } catch (final AnalyticsRefreshException e) {
+                        logger.error("Unable to process job {}", dispatchedJob.getJob(), e);
+                    } catch (final RuntimeException e) {
+                        logger.error("Unable to process job {}", dispatchedJob.getJob(), e);
+                    } finally {
+                        done();
+                    }
+                }
+            } finally {
+                if (!drained) {
+                    // Interrupted or failed: don't leave the lane stuck in the draining state
+                    final boolean resume;
+                    synchronized (this) {
+                        resume = !shutdown && !pendingJobs.isEmpty();
+                        draining = resume;
+                    }
+                    if (resume) {
+                        startDraining();
+                    }
+                }
+            }
+        }
+    }
+}
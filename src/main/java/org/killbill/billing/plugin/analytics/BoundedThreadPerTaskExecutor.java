@@ -0,0 +1,136 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+/**
+ * Executor starting a new thread per task (typically, a virtual thread), where at most maxRunningTasks tasks run
+ * at the same time: the other ones wait (cheaply, in their own thread) for a permit. Since the tasks hold a database
+ * connection or call Kill Bill APIs, this caps the number of connections used, regardless of the number of tasks submitted.
+ * <p/>
+ * When maxQueuedTasks is specified, a RejectedExecutionException is thrown when that many tasks are already waiting.
+ */
+public class BoundedThreadPerTaskExecutor extends AbstractExecutorService {
+
+    private final ExecutorService delegate;
+    private final Semaphore runningPermits;
+    private final Semaphore admissionPermits;
+    private final AtomicInteger nbRunningTasks = new AtomicInteger();
+    private final AtomicInteger nbAdmittedTasks = new AtomicInteger();
+
+    public BoundedThreadPerTaskExecutor(final ExecutorService delegate, final int maxRunningTasks, @Nullable final Integer maxQueuedTasks) {
+        this.delegate = delegate;
+        this.runningPermits = new Semaphore(maxRunningTasks);
+        this.admissionPermits = maxQueuedTasks == null ? null : new Semaphore(maxRunningTasks + maxQueuedTasks);
+    }
+
+    @Override
+    public void execute(final Runnable command) {
+        if (admissionPermits != null && !admissionPermits.tryAcquire()) {
+            throw new RejectedExecutionException("Too many tasks queued");
+        }
+        nbAdmittedTasks.incrementAndGet();
+
+        try {
+            delegate.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runWithPermit(command);
+                    } finally {
+                        release();
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            release();
+            throw e;
+        }
+    }
+
+    private void runWithPermit(final Runnable command) {
+        try {
+            runningPermits.acquire();
+        } catch (final InterruptedException e) {
+            // Cancelled while waiting (e.g. shutdownNow): complete the future, if any, so that callers don't wait forever
+            Thread.currentThread().interrupt();
+            if (command instanceof Future) {
+                ((Future<?>) command).cancel(false);
+            }
+            return;
+        }
+
+        nbRunningTasks.incrementAndGet();
+        try {
+            command.run();
+        } finally {
+            nbRunningTasks.decrementAndGet();
+            runningPermits.release();
+        }
+    }
+
+    private void release() {
+        nbAdmittedTasks.decrementAndGet();
+        if (admissionPermits != null) {
+            admissionPermits.release();
+        }
+    }
+
+    public int getActiveCount() {
+        return nbRunningTasks.get();
+    }
+
+    public int getQueueSize() {
+        return Math.max(0, nbAdmittedTasks.get() - nbRunningTasks.get());
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        return delegate.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+        return delegate.awaitTermination(timeout, unit);
+    }
+}
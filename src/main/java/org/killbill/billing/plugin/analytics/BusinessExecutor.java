@@ -18,25 +18,82 @@
 package org.killbill.billing.plugin.analytics;
 
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor.AbortPolicy;
 import java.util.concurrent.ThreadPoolExecutor.CallerRunsPolicy;
 import java.util.concurrent.TimeUnit;
 
+import javax.annotation.Nullable;
+
 import org.killbill.billing.osgi.libs.killbill.OSGIConfigPropertiesService;
 import org.killbill.commons.concurrent.Executors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Strings;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 
 public class BusinessExecutor {
 
+    private static final Logger logger = LoggerFactory.getLogger(BusinessExecutor.class);
+
     private static final String ANALYTICS_REFRESH_NB_THREADS_PROPERTY = "org.killbill.billing.plugin.analytics.refresh.nbThreads";
+    // Run the refresh and dashboard tasks on virtual threads (requires JDK 21+, ignored otherwise)
+    private static final String ANALYTICS_VIRTUAL_THREADS_PROPERTY = "org.killbill.billing.plugin.analytics.virtualThreads";
+    // In that mode, maximum number of tasks running concurrently on each executor (i.e. database connections used)
+    private static final String ANALYTICS_VIRTUAL_THREADS_MAX_RUNNING_TASKS_PROPERTY = "org.killbill.billing.plugin.analytics.virtualThreads.maxRunningTasks";
 
     public static ExecutorService newCachedThreadPool(final OSGIConfigPropertiesService osgiConfigPropertiesService) {
+        final ExecutorService virtualThreadsExecutor = newVirtualThreadsExecutorIfEnabled(osgiConfigPropertiesService, null, "osgi-analytics-refresh");
+        if (virtualThreadsExecutor != null) {
+            return virtualThreadsExecutor;
+        }
+
         final int nbThreads = getNbThreads(osgiConfigPropertiesService);
         return newCachedThreadPool(nbThreads, "osgi-analytics-refresh");
     }
 
+    /**
+     * @param maxQueuedTasks maximum number of tasks waiting for a permit (unbounded if null)
+     * @return an executor running each task on its own virtual thread, null if virtual threads are disabled or not supported by the JVM
+     */
+    @Nullable
+    public static BoundedThreadPerTaskExecutor newVirtualThreadsExecutorIfEnabled(final OSGIConfigPropertiesService osgiConfigPropertiesService,
+                                                                                @Nullable final Integer maxQueuedTasks,
+                                                                                final String name) {
+        if (!Boolean.valueOf(osgiConfigPropertiesService.getString(ANALYTICS_VIRTUAL_THREADS_PROPERTY))) {
+            return null;
+        }
+
+        final ExecutorService delegate = newVirtualThreadPerTaskExecutor(name);
+        if (delegate == null) {
+            logger.warn("Virtual threads aren't supported by this JVM, using platform threads for {}", name);
+            return null;
+        }
+
+        final String maxRunningTasksMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(ANALYTICS_VIRTUAL_THREADS_MAX_RUNNING_TASKS_PROPERTY));
+        return new BoundedThreadPerTaskExecutor(delegate, maxRunningTasksMaybeNull == null ? 100 : Integer.valueOf(maxRunningTasksMaybeNull), maxQueuedTasks);
+    }
+
+    // The plugin is compiled for Java 8: Thread.ofVirtual().name(name + "-", 0).factory() and Executors.newThreadPerTaskExecutor(factory) are looked up at runtime
+    @VisibleForTesting
+    @Nullable
+    static ExecutorService newVirtualThreadPerTaskExecutor(final String name) {
+        try {
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            final Object namedBuilder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + "-", 0L);
+            final ThreadFactory threadFactory = (ThreadFactory) builderClass.getMethod("factory").invoke(namedBuilder);
+            return (ExecutorService) java.util.concurrent.Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, threadFactory);
+        } catch (final ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
     public static ExecutorService newCachedThreadPool(final int nbThreads, final String name) {
         // Note: we don't use the default rejection handler here (AbortPolicy) as we always want the tasks to be executed
         return Executors.newCachedThreadPool(0,
@@ -48,6 +105,29 @@ public class BusinessExecutor {
 
     }
 
+    // For tasks which cannot run in the caller thread (e.g. the caller is consuming their output): a RejectedExecutionException is thrown when all threads are busy
+    public static ExecutorService newBoundedCachedThreadPool(final int nbThreads, final String name) {
+        return Executors.newCachedThreadPool(0,
+                                             nbThreads,
+                                             name,
+                                             60L,
+                                             TimeUnit.SECONDS,
+                                             new AbortPolicy());
+    }
+
+    // Fixed number of threads with a bounded queue: a RejectedExecutionException is thrown when the queue is full
+    public static ThreadPoolExecutor newBoundedThreadPool(final int nbThreads, final int queueSize, final String name) {
+        final ThreadPoolExecutor executor = new ThreadPoolExecutor(nbThreads,
+                                                                   nbThreads,
+                                                                   60L,
+                                                                   TimeUnit.SECONDS,
+                                                                   new LinkedBlockingQueue<Runnable>(queueSize),
+                                                                   new ThreadFactoryBuilder().setNameFormat(name + "-%d").setDaemon(true).build(),
+                                                                   new AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     public static ScheduledExecutorService newSingleThreadScheduledExecutor(final String name) {
         return Executors.newSingleThreadScheduledExecutor(name,
                                                           new CallerRunsPolicy());
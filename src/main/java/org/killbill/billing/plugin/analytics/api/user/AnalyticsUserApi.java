@@ -25,6 +25,7 @@ import java.util.concurrent.Executor;
 import org.killbill.billing.osgi.libs.killbill.OSGIConfigPropertiesService;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillDataSource;
+import org.killbill.billing.plugin.analytics.AnalyticsJobHierarchy.Group;
 import org.killbill.billing.plugin.analytics.AnalyticsRefreshException;
 import org.killbill.billing.plugin.analytics.api.BusinessAccount;
 import org.killbill.billing.plugin.analytics.api.BusinessAccountTransition;
@@ -39,6 +40,8 @@ import org.killbill.billing.plugin.analytics.api.core.AnalyticsConfigurationHand
 import org.killbill.billing.plugin.analytics.dao.AllBusinessObjectsDao;
 import org.killbill.billing.plugin.analytics.dao.AnalyticsDao;
 import org.killbill.billing.plugin.analytics.dao.CurrencyConversionDao;
+import org.killbill.billing.plugin.analytics.dao.RecordIdCache;
+import org.killbill.billing.plugin.analytics.dao.RecordIdDao;
 import org.killbill.billing.plugin.analytics.dao.factory.BusinessContextFactory;
 import org.killbill.billing.util.callcontext.CallContext;
 import org.killbill.billing.util.callcontext.TenantContext;
@@ -57,6 +60,9 @@ public class AnalyticsUserApi {
     private final AnalyticsDao analyticsDao;
     private final AllBusinessObjectsDao allBusinessObjectsDao;
     private final CurrencyConversionDao currencyConversionDao;
+    private final RecordIdDao recordIdDao;
+    private final RecordIdCache recordIdCache;
+    private final Executor executor;
 
     public AnalyticsUserApi(final OSGIKillbillAPI osgiKillbillAPI,
                             final OSGIKillbillDataSource osgiKillbillDataSource,
@@ -64,13 +70,26 @@ public class AnalyticsUserApi {
                             final Executor executor,
                             final Clock clock,
                             final AnalyticsConfigurationHandler analyticsConfigurationHandler) {
+        this(osgiKillbillAPI, osgiKillbillDataSource, osgiConfigPropertiesService, executor, clock, analyticsConfigurationHandler, new RecordIdCache(osgiConfigPropertiesService));
+    }
+
+    public AnalyticsUserApi(final OSGIKillbillAPI osgiKillbillAPI,
+                            final OSGIKillbillDataSource osgiKillbillDataSource,
+                            final OSGIConfigPropertiesService osgiConfigPropertiesService,
+                            final Executor executor,
+                            final Clock clock,
+                            final AnalyticsConfigurationHandler analyticsConfigurationHandler,
+                            final RecordIdCache recordIdCache) {
         this.osgiKillbillAPI = osgiKillbillAPI;
+        this.recordIdCache = recordIdCache;
         this.osgiConfigPropertiesService = osgiConfigPropertiesService;
         this.clock = clock;
         this.analyticsConfigurationHandler = analyticsConfigurationHandler;
-        this.analyticsDao = new AnalyticsDao(osgiKillbillAPI, osgiKillbillDataSource);
+        this.executor = executor;
+        this.analyticsDao = new AnalyticsDao(osgiKillbillAPI, osgiKillbillDataSource, recordIdCache);
         this.allBusinessObjectsDao = new AllBusinessObjectsDao(osgiKillbillDataSource, executor);
         this.currencyConversionDao = new CurrencyConversionDao(osgiKillbillDataSource);
+        this.recordIdDao = new RecordIdDao(osgiKillbillDataSource, osgiConfigPropertiesService);
     }
 
     public BusinessSnapshot getBusinessSnapshot(final UUID accountId, final TenantContext context) {
@@ -107,9 +126,10 @@ public class AnalyticsUserApi {
     }
 
     public void rebuildAnalyticsForAccount(final UUID accountId, final CallContext context) throws AnalyticsRefreshException {
-        final BusinessContextFactory businessContextFactory = new BusinessContextFactory(accountId, context, currencyConversionDao, osgiKillbillAPI, osgiConfigPropertiesService, clock, analyticsConfigurationHandler);
+        final BusinessContextFactory businessContextFactory = new BusinessContextFactory(accountId, context, currencyConversionDao, recordIdDao, recordIdCache, osgiKillbillAPI, osgiConfigPropertiesService, clock, analyticsConfigurationHandler);
         logger.info("Starting Analytics refresh for account {}", businessContextFactory.getAccountId());
         // TODO Should we take the account lock?
+        businessContextFactory.prefetch(Group.ALL, executor);
         allBusinessObjectsDao.update(businessContextFactory);
         logger.info("Finished Analytics refresh for account {}", businessContextFactory.getAccountId());
     }
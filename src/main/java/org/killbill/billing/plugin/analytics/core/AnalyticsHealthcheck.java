@@ -18,6 +18,7 @@
 package org.killbill.billing.plugin.analytics.core;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import javax.annotation.Nullable;
@@ -51,6 +52,13 @@ public class AnalyticsHealthcheck implements Healthcheck {
         final Map details = new HashMap();
         details.put("AnalyticsListener", analyticsListenerStarted);
         details.put("JobsScheduler", jobsSchedulerStarted);
+        // Informational only: a late refresh doesn't take the node out of rotation
+        try {
+            final List<String> staleReports = jobsScheduler.getStaleReports();
+            details.put("StaleReports", staleReports);
+        } catch (final RuntimeException e) {
+            logger.warn("Unable to compute the stale reports", e);
+        }
 
         return new HealthStatus(healthy, details);
     }
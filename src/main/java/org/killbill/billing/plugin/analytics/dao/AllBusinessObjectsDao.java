@@ -18,52 +18,167 @@
 
 package org.killbill.billing.plugin.analytics.dao;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 import java.util.concurrent.Executor;
 
+import org.joda.time.LocalDate;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillDataSource;
 import org.killbill.billing.plugin.analytics.AnalyticsRefreshException;
+import org.killbill.billing.plugin.analytics.dao.factory.BusinessAccountFactory;
+import org.killbill.billing.plugin.analytics.dao.factory.BusinessAccountTransitionFactory;
+import org.killbill.billing.plugin.analytics.dao.factory.BusinessBundleFactory;
 import org.killbill.billing.plugin.analytics.dao.factory.BusinessContextFactory;
+import org.killbill.billing.plugin.analytics.dao.factory.BusinessFieldFactory;
+import org.killbill.billing.plugin.analytics.dao.factory.BusinessSubscriptionTransitionFactory;
+import org.killbill.billing.plugin.analytics.dao.factory.BusinessTagFactory;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessAccountModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessAccountTransitionModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessBundleModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessFieldModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessInvoiceItemBaseModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessInvoiceModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessModelDaosWithAccountAndTenantRecordId;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessPaymentBaseModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessSubscriptionTransitionModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessTagModelDao;
+import org.killbill.billing.util.callcontext.CallContext;
+import org.skife.jdbi.v2.Transaction;
+import org.skife.jdbi.v2.TransactionStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class AllBusinessObjectsDao {
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Multimap;
+
+public class AllBusinessObjectsDao extends BusinessAnalyticsDaoBase {
 
     private static final Logger logger = LoggerFactory.getLogger(AllBusinessObjectsDao.class);
 
+    private final BusinessAccountDao bacDao;
     private final BusinessSubscriptionTransitionDao bstDao;
     private final BusinessInvoiceAndPaymentDao binAndBipDao;
     private final BusinessAccountTransitionDao bosDao;
     private final BusinessFieldDao bFieldDao;
     private final BusinessTagDao bTagDao;
+    private final BusinessAccountFactory bacFactory;
+    private final BusinessSubscriptionTransitionFactory bstFactory;
+    private final BusinessBundleFactory bbsFactory;
+    private final BusinessAccountTransitionFactory bosFactory;
+    private final BusinessFieldFactory bFieldFactory;
+    private final BusinessTagFactory bTagFactory;
 
     public AllBusinessObjectsDao(final OSGIKillbillDataSource osgiKillbillDataSource,
                                  final Executor executor) {
-        final BusinessAccountDao bacDao = new BusinessAccountDao(osgiKillbillDataSource);
+        super(osgiKillbillDataSource);
+        this.bacDao = new BusinessAccountDao(osgiKillbillDataSource);
         this.bstDao = new BusinessSubscriptionTransitionDao(osgiKillbillDataSource, bacDao, executor);
         this.binAndBipDao = new BusinessInvoiceAndPaymentDao(osgiKillbillDataSource, bacDao, executor);
         this.bosDao = new BusinessAccountTransitionDao(osgiKillbillDataSource);
         this.bFieldDao = new BusinessFieldDao(osgiKillbillDataSource);
         this.bTagDao = new BusinessTagDao(osgiKillbillDataSource);
+        this.bacFactory = new BusinessAccountFactory();
+        this.bstFactory = new BusinessSubscriptionTransitionFactory();
+        this.bbsFactory = new BusinessBundleFactory(executor);
+        this.bosFactory = new BusinessAccountTransitionFactory();
+        this.bFieldFactory = new BusinessFieldFactory();
+        this.bTagFactory = new BusinessTagFactory();
     }
 
-    // TODO: each refresh is done in a transaction - do we want to share a long running transaction across all refreshes?
     public void update(final BusinessContextFactory businessContextFactory) throws AnalyticsRefreshException {
         logger.debug("Starting rebuild of Analytics for account {}", businessContextFactory.getAccountId());
 
-        // Refresh invoices and payments. This will automatically trigger a refresh of account
-        binAndBipDao.update(businessContextFactory);
+        // Recompute the account record, once for all tables
+        final BusinessAccountModelDao bac = bacFactory.createBusinessAccount(businessContextFactory);
+
+        // Recompute invoice, invoice items and invoice payments records
+        final Map<UUID, BusinessInvoiceModelDao> invoices = new HashMap<UUID, BusinessInvoiceModelDao>();
+        final Multimap<UUID, BusinessInvoiceItemBaseModelDao> invoiceItems = ArrayListMultimap.<UUID, BusinessInvoiceItemBaseModelDao>create();
+        final Multimap<UUID, BusinessPaymentBaseModelDao> invoicePayments = ArrayListMultimap.<UUID, BusinessPaymentBaseModelDao>create();
+        binAndBipDao.createBusinessPojos(businessContextFactory, invoices, invoiceItems, invoicePayments);
+
+        // Recompute subscription transitions and bundle summary records
+        final Collection<BusinessSubscriptionTransitionModelDao> bsts = bstFactory.createBusinessSubscriptionTransitions(businessContextFactory);
+        final Collection<BusinessBundleModelDao> bbss = bbsFactory.createBusinessBundles(businessContextFactory, bsts);
 
-        // Refresh subscription transitions
-        bstDao.update(businessContextFactory);
+        // Recompute tags, fields and account transitions
+        final BusinessModelDaosWithAccountAndTenantRecordId<BusinessTagModelDao> tagModelDaos = bTagFactory.createBusinessTags(businessContextFactory);
+        final BusinessModelDaosWithAccountAndTenantRecordId<BusinessFieldModelDao> fieldModelDaos = bFieldFactory.createBusinessFields(businessContextFactory);
+        final Collection<BusinessAccountTransitionModelDao> businessAccountTransitions = bosFactory.createBusinessAccountTransitions(businessContextFactory);
 
-        // Refresh tags
-        bTagDao.update(businessContextFactory);
+        final int batchSize = businessContextFactory.getBatchSize();
+        final boolean incremental = businessContextFactory.isIncrementalRefresh();
+        final LocalDate mrrDailyLastDay = businessContextFactory.getMrrDailyLastDay();
+        final CallContext context = businessContextFactory.getCallContext();
 
-        // Refresh fields
-        bFieldDao.update(businessContextFactory);
+        final List<Transaction<Void, BusinessAnalyticsSqlDao>> groups = ImmutableList.<Transaction<Void, BusinessAnalyticsSqlDao>>of(
+                new Transaction<Void, BusinessAnalyticsSqlDao>() {
+                    @Override
+                    public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
+                        binAndBipDao.updateInTransaction(bac, invoices, invoiceItems, invoicePayments, batchSize, incremental, transactional, context);
+                        return null;
+                    }
+                },
+                new Transaction<Void, BusinessAnalyticsSqlDao>() {
+                    @Override
+                    public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
+                        bstDao.updateInTransaction(bac, bbss, bsts, batchSize, incremental, mrrDailyLastDay, transactional, context);
+                        return null;
+                    }
+                },
+                new Transaction<Void, BusinessAnalyticsSqlDao>() {
+                    @Override
+                    public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
+                        bTagDao.updateInTransaction(tagModelDaos, batchSize, transactional, context);
+                        return null;
+                    }
+                },
+                new Transaction<Void, BusinessAnalyticsSqlDao>() {
+                    @Override
+                    public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
+                        bFieldDao.updateInTransaction(fieldModelDaos, batchSize, transactional, context);
+                        return null;
+                    }
+                },
+                new Transaction<Void, BusinessAnalyticsSqlDao>() {
+                    @Override
+                    public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
+                        bosDao.updateInTransaction(businessAccountTransitions, batchSize, transactional, context);
+                        return null;
+                    }
+                },
+                new Transaction<Void, BusinessAnalyticsSqlDao>() {
+                    @Override
+                    public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
+                        // Denormalized invoice, payment and subscription details are written once
+                        bacDao.updateInTransaction(bac, transactional, context);
+                        return null;
+                    }
+                });
 
-        // Refresh account transitions
-        bosDao.update(businessContextFactory);
+        if (businessContextFactory.isSplitTransactions()) {
+            // One (shorter) transaction per group of tables
+            for (final Transaction<Void, BusinessAnalyticsSqlDao> group : groups) {
+                executeInTransaction(group);
+            }
+        } else {
+            // Delete and recreate all items in a single transaction
+            executeInTransaction(new Transaction<Void, BusinessAnalyticsSqlDao>() {
+                @Override
+                public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
+                    // Before the invoices are read (see MrrDailyMaterializer)
+                    bstDao.lockMrrDailyInTransaction(bac.getTenantRecordId(), mrrDailyLastDay, transactional);
+                    for (final Transaction<Void, BusinessAnalyticsSqlDao> group : groups) {
+                        group.inTransaction(transactional, status);
+                    }
+                    return null;
+                }
+            });
+        }
 
         logger.debug("Finished rebuild of Analytics for account {}", businessContextFactory.getAccountId());
     }
@@ -26,6 +26,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
+import javax.annotation.Nullable;
+
 import org.killbill.billing.ObjectType;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillDataSource;
@@ -57,11 +59,19 @@ import com.google.common.collect.Lists;
 public class AnalyticsDao extends BusinessAnalyticsDaoBase {
 
     private final OSGIKillbillAPI osgiKillbillAPI;
+    private final RecordIdCache recordIdCache;
 
     public AnalyticsDao(final OSGIKillbillAPI osgiKillbillAPI,
                         final OSGIKillbillDataSource osgiKillbillDataSource) {
+        this(osgiKillbillAPI, osgiKillbillDataSource, null);
+    }
+
+    public AnalyticsDao(final OSGIKillbillAPI osgiKillbillAPI,
+                        final OSGIKillbillDataSource osgiKillbillDataSource,
+                        @Nullable final RecordIdCache recordIdCache) {
         super(osgiKillbillDataSource);
         this.osgiKillbillAPI = osgiKillbillAPI;
+        this.recordIdCache = recordIdCache;
     }
 
     public BusinessAccount getAccountById(final UUID accountId, final TenantContext context) {
@@ -206,7 +216,9 @@ public class AnalyticsDao extends BusinessAnalyticsDaoBase {
         if (recordIdApi == null) {
             return -1L;
         } else {
-            final Long accountRecordIdOrNull = recordIdApi.getRecordId(accountId, ObjectType.ACCOUNT, context);
+            final Long accountRecordIdOrNull = recordIdCache != null ?
+                                               recordIdCache.getAccountRecordId(accountId, recordIdApi, context) :
+                                               recordIdApi.getRecordId(accountId, ObjectType.ACCOUNT, context);
             // Never return null, to make sure indexes can be used (see https://github.com/killbill/killbill-analytics-plugin/issues/59)
             return accountRecordIdOrNull == null ? -1L : accountRecordIdOrNull;
         }
@@ -217,6 +229,8 @@ public class AnalyticsDao extends BusinessAnalyticsDaoBase {
         if (recordIdApi == null) {
             // Be safe
             return -1L;
+        } else if (recordIdCache != null) {
+            return recordIdCache.getTenantRecordId(context.getTenantId(), recordIdApi, context);
         } else {
             return (context.getTenantId() == null) ? null : recordIdApi.getRecordId(context.getTenantId(), ObjectType.TENANT, context);
         }
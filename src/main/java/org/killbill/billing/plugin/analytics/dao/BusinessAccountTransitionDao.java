@@ -50,7 +50,7 @@ public class BusinessAccountTransitionDao extends BusinessAnalyticsDaoBase {
         executeInTransaction(new Transaction<Void, BusinessAnalyticsSqlDao>() {
             @Override
             public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
-                updateInTransaction(businessAccountTransitions, transactional, businessContextFactory.getCallContext());
+                updateInTransaction(businessAccountTransitions, businessContextFactory.getBatchSize(), transactional, businessContextFactory.getCallContext());
                 return null;
             }
         });
@@ -58,9 +58,10 @@ public class BusinessAccountTransitionDao extends BusinessAnalyticsDaoBase {
         logger.debug("Finished rebuild of Analytics account transitions for account {}", businessContextFactory.getAccountId());
     }
 
-    private void updateInTransaction(final Collection<BusinessAccountTransitionModelDao> businessAccountTransitionModelDaos,
-                                     final BusinessAnalyticsSqlDao transactional,
-                                     final CallContext context) {
+    void updateInTransaction(final Collection<BusinessAccountTransitionModelDao> businessAccountTransitionModelDaos,
+                             final int batchSize,
+                             final BusinessAnalyticsSqlDao transactional,
+                             final CallContext context) {
         if (businessAccountTransitionModelDaos.size() == 0) {
             return;
         }
@@ -71,8 +72,6 @@ public class BusinessAccountTransitionDao extends BusinessAnalyticsDaoBase {
                                               firstTransition.getTenantRecordId(),
                                               context);
 
-        for (final BusinessAccountTransitionModelDao transition : businessAccountTransitionModelDaos) {
-            transactional.create(transition.getTableName(), transition, context);
-        }
+        createInBatches(businessAccountTransitionModelDaos, batchSize, transactional, context);
     }
 }
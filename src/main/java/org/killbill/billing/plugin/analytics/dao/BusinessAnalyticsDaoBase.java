@@ -18,11 +18,22 @@
 
 package org.killbill.billing.plugin.analytics.dao;
 
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillDataSource;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessModelDaoBase;
+import org.killbill.billing.util.callcontext.CallContext;
 import org.skife.jdbi.v2.DBI;
 import org.skife.jdbi.v2.Transaction;
 import org.skife.jdbi.v2.TransactionIsolationLevel;
 
+import com.google.common.base.Function;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Multimap;
+
 public class BusinessAnalyticsDaoBase {
 
     protected final BusinessAnalyticsSqlDao sqlDao;
@@ -40,4 +51,73 @@ public class BusinessAnalyticsDaoBase {
         // and accounts are not updated in parallel (not enforced, but we try hard not to).
         sqlDao.inTransaction(TransactionIsolationLevel.READ_COMMITTED, transaction);
     }
+
+    // Group the rows per table and insert them using JDBC batches of at most batchSize rows, to avoid one round trip per row
+    protected void createInBatches(final Iterable<? extends BusinessModelDaoBase> businessModelDaos,
+                                   final int batchSize,
+                                   final BusinessAnalyticsSqlDao transactional,
+                                   final CallContext context) {
+        final Multimap<String, BusinessModelDaoBase> businessModelDaosPerTable = ArrayListMultimap.<String, BusinessModelDaoBase>create();
+        for (final BusinessModelDaoBase businessModelDao : businessModelDaos) {
+            businessModelDaosPerTable.put(businessModelDao.getTableName(), businessModelDao);
+        }
+
+        for (final String tableName : businessModelDaosPerTable.keySet()) {
+            for (final List<BusinessModelDaoBase> batch : Iterables.partition(businessModelDaosPerTable.get(tableName), batchSize)) {
+                transactional.createBatch(tableName, batch, context);
+            }
+        }
+    }
+
+    /**
+     * Diff the rows currently stored against the freshly computed ones and only write the differences.
+     * <p>
+     * Rows are paired by table and natural key, and compared field by field (see equals): unchanged rows are left
+     * untouched, stale rows are deleted and new or modified rows are (re-)inserted.
+     *
+     * @param existingBusinessModelDaos rows currently stored for the account
+     * @param businessModelDaos         current, fully populated, rows for the account
+     * @param naturalKey                natural key of a row (e.g. item id for invoice items)
+     * @param tenantRecordId            tenant record id
+     * @param batchSize                 maximum number of rows per JDBC batch
+     * @param transactional             current transaction
+     * @param context                   call context
+     */
+    protected <M extends BusinessModelDaoBase> void updateIncrementallyInTransaction(final Iterable<? extends M> existingBusinessModelDaos,
+                                                                                      final Iterable<? extends M> businessModelDaos,
+                                                                                      final Function<M, Object> naturalKey,
+                                                                                      final Long tenantRecordId,
+                                                                                      final int batchSize,
+                                                                                      final BusinessAnalyticsSqlDao transactional,
+                                                                                      final CallContext context) {
+        final Multimap<String, M> existingBusinessModelDaosPerKey = ArrayListMultimap.<String, M>create();
+        for (final M existingBusinessModelDao : existingBusinessModelDaos) {
+            existingBusinessModelDaosPerKey.put(getTableAndNaturalKey(existingBusinessModelDao, naturalKey), existingBusinessModelDao);
+        }
+
+        final Collection<M> businessModelDaosToCreate = new LinkedList<M>();
+        for (final M businessModelDao : businessModelDaos) {
+            // Remove the matching row, if any, so that each stored row is paired at most once
+            if (!existingBusinessModelDaosPerKey.get(getTableAndNaturalKey(businessModelDao, naturalKey)).remove(businessModelDao)) {
+                businessModelDaosToCreate.add(businessModelDao);
+            }
+        }
+
+        // Whatever hasn't been paired is either stale or has been modified
+        final Multimap<String, Long> recordIdsToDeletePerTable = ArrayListMultimap.<String, Long>create();
+        for (final M staleBusinessModelDao : existingBusinessModelDaosPerKey.values()) {
+            recordIdsToDeletePerTable.put(staleBusinessModelDao.getTableName(), staleBusinessModelDao.getRecordId());
+        }
+        for (final String tableName : recordIdsToDeletePerTable.keySet()) {
+            for (final List<Long> recordIds : Iterables.partition(recordIdsToDeletePerTable.get(tableName), batchSize)) {
+                transactional.deleteByRecordIds(tableName, recordIds, tenantRecordId, context);
+            }
+        }
+
+        createInBatches(businessModelDaosToCreate, batchSize, transactional, context);
+    }
+
+    private <M extends BusinessModelDaoBase> String getTableAndNaturalKey(final M businessModelDao, final Function<M, Object> naturalKey) {
+        return businessModelDao.getTableName() + "/" + naturalKey.apply(businessModelDao);
+    }
 }
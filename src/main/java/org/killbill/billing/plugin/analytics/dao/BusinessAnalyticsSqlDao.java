@@ -18,9 +18,11 @@
 
 package org.killbill.billing.plugin.analytics.dao;
 
+import java.math.BigDecimal;
 import java.util.List;
 import java.util.UUID;
 
+import org.joda.time.LocalDate;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessAccountFieldModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessAccountModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessAccountTagModelDao;
@@ -46,12 +48,14 @@ import org.killbill.billing.plugin.analytics.dao.model.BusinessPaymentFieldModel
 import org.killbill.billing.plugin.analytics.dao.model.BusinessPaymentMethodFieldModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessPaymentPurchaseModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessPaymentRefundModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessPaymentVoidModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessSubscriptionTransitionModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessTransactionFieldModelDao;
 import org.killbill.billing.util.callcontext.CallContext;
 import org.killbill.billing.util.callcontext.TenantContext;
 import org.skife.jdbi.v2.sqlobject.Bind;
 import org.skife.jdbi.v2.sqlobject.BindBean;
+import org.skife.jdbi.v2.sqlobject.SqlBatch;
 import org.skife.jdbi.v2.sqlobject.SqlQuery;
 import org.skife.jdbi.v2.sqlobject.SqlUpdate;
 import org.skife.jdbi.v2.sqlobject.customizers.Define;
@@ -66,6 +70,12 @@ public interface BusinessAnalyticsSqlDao extends Transactional<BusinessAnalytics
                        @BindBean final BusinessModelDaoBase entity,
                        final CallContext callContext);
 
+    // Note: the table name needs to be defined explicitly for batches, as the statement is located before the entities are bound
+    @SqlBatch
+    public void createBatch(@Define("tableName") final String tableName,
+                            @BindBean final Iterable<BusinessModelDaoBase> entities,
+                            final CallContext callContext);
+
     @SqlUpdate
     public void deleteByInvoiceId(@Define("tableName") final String tableName,
                                   @Bind("invoiceId") final UUID invoiceId,
@@ -78,6 +88,12 @@ public interface BusinessAnalyticsSqlDao extends Transactional<BusinessAnalytics
                                         @Bind("tenantRecordId") final Long tenantRecordId,
                                         final CallContext callContext);
 
+    @SqlBatch
+    public void deleteByRecordIds(@Define("tableName") final String tableName,
+                                  @Bind("recordId") final Iterable<Long> recordIds,
+                                  @Bind("tenantRecordId") final Long tenantRecordId,
+                                  final CallContext callContext);
+
     @SqlQuery
     public BusinessAccountModelDao getAccountByAccountRecordId(@Bind("accountRecordId") final Long accountRecordId,
                                                                @Bind("tenantRecordId") final Long tenantRecordId,
@@ -153,6 +169,11 @@ public interface BusinessAnalyticsSqlDao extends Transactional<BusinessAnalytics
                                                                                           @Bind("tenantRecordId") final Long tenantRecordId,
                                                                                           final TenantContext tenantContext);
 
+    @SqlQuery
+    public List<BusinessPaymentVoidModelDao> getPaymentVoidsByAccountRecordId(@Bind("accountRecordId") final Long accountRecordId,
+                                                                              @Bind("tenantRecordId") final Long tenantRecordId,
+                                                                              final TenantContext tenantContext);
+
     @SqlQuery
     public List<BusinessAccountFieldModelDao> getAccountFieldsByAccountRecordId(@Bind("accountRecordId") final Long accountRecordId,
                                                                                 @Bind("tenantRecordId") final Long tenantRecordId,
@@ -207,4 +228,37 @@ public interface BusinessAnalyticsSqlDao extends Transactional<BusinessAnalytics
     public List<BusinessInvoicePaymentTagModelDao> getInvoicePaymentTagsByAccountRecordId(@Bind("accountRecordId") final Long accountRecordId,
                                                                                           @Bind("tenantRecordId") final Long tenantRecordId,
                                                                                           final TenantContext tenantContext);
+
+    @SqlQuery
+    public String getMrrDailyLastDayForUpdate(@Bind("tenantRecordId") final Long tenantRecordId);
+
+    @SqlUpdate
+    public void createMrrDailyState(@Bind("tenantRecordId") final Long tenantRecordId,
+                                    @Bind("lastDay") final LocalDate lastDay);
+
+    @SqlUpdate
+    public void updateMrrDailyState(@Bind("tenantRecordId") final Long tenantRecordId,
+                                    @Bind("lastDay") final LocalDate lastDay);
+
+    @SqlUpdate
+    public void deleteMrrDaily(@Bind("tenantRecordId") final Long tenantRecordId);
+
+    @SqlQuery
+    public String getMrrDailyFirstDay(@Bind("tenantRecordId") final Long tenantRecordId);
+
+    @SqlUpdate
+    public void createMrrDailySnapshot(@Bind("tenantRecordId") final Long tenantRecordId,
+                                       @Bind("day") final LocalDate day);
+
+    @SqlBatch
+    public int[] addToMrrDaily(@Bind("tenantRecordId") final Long tenantRecordId,
+                               @Bind("product") final Iterable<String> products,
+                               @Bind("day") final Iterable<LocalDate> days,
+                               @Bind("delta") final Iterable<BigDecimal> deltas);
+
+    @SqlBatch
+    public void createMrrDaily(@Bind("tenantRecordId") final Long tenantRecordId,
+                               @Bind("product") final Iterable<String> products,
+                               @Bind("day") final Iterable<LocalDate> days,
+                               @Bind("delta") final Iterable<BigDecimal> deltas);
 }
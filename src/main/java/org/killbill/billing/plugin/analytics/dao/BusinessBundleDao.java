@@ -24,8 +24,18 @@ import org.killbill.billing.osgi.libs.killbill.OSGIKillbillDataSource;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessBundleModelDao;
 import org.killbill.billing.util.callcontext.CallContext;
 
+import com.google.common.base.Function;
+
 public class BusinessBundleDao extends BusinessAnalyticsDaoBase {
 
+    // There is one bundle summary row per subscription
+    private static final Function<BusinessBundleModelDao, Object> BUNDLE_NATURAL_KEY = new Function<BusinessBundleModelDao, Object>() {
+        @Override
+        public Object apply(final BusinessBundleModelDao input) {
+            return input.getSubscriptionId();
+        }
+    };
+
     public BusinessBundleDao(final OSGIKillbillDataSource osgiKillbillDataSource) {
         super(osgiKillbillDataSource);
     }
@@ -33,15 +43,25 @@ public class BusinessBundleDao extends BusinessAnalyticsDaoBase {
     public void updateInTransaction(final Collection<BusinessBundleModelDao> bbss,
                                     final Long accountRecordId,
                                     final Long tenantRecordId,
+                                    final int batchSize,
+                                    final boolean incremental,
                                     final BusinessAnalyticsSqlDao transactional,
                                     final CallContext context) {
-        transactional.deleteByAccountRecordId(BusinessBundleModelDao.BUNDLES_TABLE_NAME,
-                                              accountRecordId,
-                                              tenantRecordId,
-                                              context);
+        if (incremental) {
+            updateIncrementallyInTransaction(transactional.getBundlesByAccountRecordId(accountRecordId, tenantRecordId, context),
+                                             bbss,
+                                             BUNDLE_NATURAL_KEY,
+                                             tenantRecordId,
+                                             batchSize,
+                                             transactional,
+                                             context);
+        } else {
+            transactional.deleteByAccountRecordId(BusinessBundleModelDao.BUNDLES_TABLE_NAME,
+                                                  accountRecordId,
+                                                  tenantRecordId,
+                                                  context);
 
-        for (final BusinessBundleModelDao bbs : bbss) {
-            transactional.create(bbs.getTableName(), bbs, context);
+            createInBatches(bbss, batchSize, transactional, context);
         }
 
         // The update of summary columns in BAC will be done via BST
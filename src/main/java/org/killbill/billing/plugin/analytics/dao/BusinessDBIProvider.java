@@ -42,8 +42,10 @@ import org.killbill.billing.plugin.analytics.dao.model.BusinessPaymentChargeback
 import org.killbill.billing.plugin.analytics.dao.model.BusinessPaymentCreditModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessPaymentPurchaseModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessPaymentRefundModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessPaymentVoidModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessSubscriptionTransitionModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.CurrencyConversionModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.RecordIdModelDao;
 import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao;
 import org.killbill.commons.jdbi.ReusableStringTemplate3StatementLocator;
 import org.killbill.commons.jdbi.argument.DateTimeArgumentFactory;
@@ -91,6 +93,7 @@ public class BusinessDBIProvider {
         dbi.registerMapper(new LowerToCamelBeanMapperFactory(BusinessPaymentRefundModelDao.class));
         dbi.registerMapper(new LowerToCamelBeanMapperFactory(BusinessPaymentCreditModelDao.class));
         dbi.registerMapper(new LowerToCamelBeanMapperFactory(BusinessPaymentChargebackModelDao.class));
+        dbi.registerMapper(new LowerToCamelBeanMapperFactory(BusinessPaymentVoidModelDao.class));
         dbi.registerMapper(new LowerToCamelBeanMapperFactory(BusinessInvoicePaymentTagModelDao.class));
         dbi.registerMapper(new LowerToCamelBeanMapperFactory(BusinessInvoiceTagModelDao.class));
         dbi.registerMapper(new LowerToCamelBeanMapperFactory(BusinessAccountTransitionModelDao.class));
@@ -100,6 +103,7 @@ public class BusinessDBIProvider {
         dbi.registerMapper(new LowerToCamelBeanMapperFactory(BusinessBundleTagModelDao.class));
         dbi.registerMapper(new LowerToCamelBeanMapperFactory(CurrencyConversionModelDao.class));
         dbi.registerMapper(new LowerToCamelBeanMapperFactory(ReportsConfigurationModelDao.class));
+        dbi.registerMapper(new LowerToCamelBeanMapperFactory(RecordIdModelDao.class));
 
         dbi.registerMapper(new UUIDMapper());
 
@@ -141,6 +145,15 @@ public class BusinessDBIProvider {
                 }
             }
 
+            // Rewrite createBatch to createBatchAnalyticsAccounts, createBatchAnalyticsInvoices, etc.
+            if ("createBatch".equals(name)) {
+                final Object tableName = ctx.getAttribute("tableName");
+                if (tableName != null) {
+                    final String newQueryName = name + CaseFormat.LOWER_UNDERSCORE.to(CaseFormat.UPPER_CAMEL, tableName.toString());
+                    return super.locate(newQueryName, ctx);
+                }
+            }
+
             // Inspired from org.skife.jdbi.v2.ClasspathStatementLocator to allow real SQL to be executed
             if (looksLikeSql(name)) {
                 return name;
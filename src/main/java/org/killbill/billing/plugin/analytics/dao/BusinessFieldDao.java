@@ -49,7 +49,7 @@ public class BusinessFieldDao extends BusinessAnalyticsDaoBase {
         executeInTransaction(new Transaction<Void, BusinessAnalyticsSqlDao>() {
             @Override
             public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
-                updateInTransaction(fieldModelDaos, transactional, businessContextFactory.getCallContext());
+                updateInTransaction(fieldModelDaos, businessContextFactory.getBatchSize(), transactional, businessContextFactory.getCallContext());
                 return null;
             }
         });
@@ -57,9 +57,10 @@ public class BusinessFieldDao extends BusinessAnalyticsDaoBase {
         logger.debug("Finished rebuild of Analytics custom fields for account {}", businessContextFactory.getAccountId());
     }
 
-    private void updateInTransaction(final BusinessModelDaosWithAccountAndTenantRecordId<BusinessFieldModelDao> fieldModelDaos,
-                                     final BusinessAnalyticsSqlDao transactional,
-                                     final CallContext context) {
+    void updateInTransaction(final BusinessModelDaosWithAccountAndTenantRecordId<BusinessFieldModelDao> fieldModelDaos,
+                             final int batchSize,
+                             final BusinessAnalyticsSqlDao transactional,
+                             final CallContext context) {
         for (final String tableName : BusinessFieldModelDao.ALL_FIELDS_TABLE_NAMES) {
             transactional.deleteByAccountRecordId(tableName,
                                                   fieldModelDaos.getAccountRecordId(),
@@ -67,8 +68,6 @@ public class BusinessFieldDao extends BusinessAnalyticsDaoBase {
                                                   context);
         }
 
-        for (final BusinessFieldModelDao fieldModelDao : fieldModelDaos.getBusinessModelDaos()) {
-            transactional.create(fieldModelDao.getTableName(), fieldModelDao, context);
-        }
+        createInBatches(fieldModelDaos.getBusinessModelDaos(), batchSize, transactional, context);
     }
 }
@@ -90,7 +90,17 @@ public class BusinessInvoiceAndPaymentDao extends BusinessAnalyticsDaoBase {
         executeInTransaction(new Transaction<Void, BusinessAnalyticsSqlDao>() {
             @Override
             public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
-                updateInTransaction(bac, invoices, invoiceItems, invoicePayments, transactional, businessContextFactory.getCallContext());
+                updateInTransaction(bac,
+                                    invoices,
+                                    invoiceItems,
+                                    invoicePayments,
+                                    businessContextFactory.getBatchSize(),
+                                    businessContextFactory.isIncrementalRefresh(),
+                                    transactional,
+                                    businessContextFactory.getCallContext());
+
+                // Update denormalized invoice and payment details in BAC
+                businessAccountDao.updateInTransaction(bac, transactional, businessContextFactory.getCallContext());
                 return null;
             }
         });
@@ -98,10 +108,10 @@ public class BusinessInvoiceAndPaymentDao extends BusinessAnalyticsDaoBase {
         logger.debug("Finished rebuild of Analytics invoices and payments for account {}", businessContextFactory.getAccountId());
     }
 
-    private void createBusinessPojos(final BusinessContextFactory businessContextFactory,
-                                     final Map<UUID, BusinessInvoiceModelDao> invoices,
-                                     final Multimap<UUID, BusinessInvoiceItemBaseModelDao> invoiceItems,
-                                     final Multimap<UUID, BusinessPaymentBaseModelDao> invoicePayments) throws AnalyticsRefreshException {
+    void createBusinessPojos(final BusinessContextFactory businessContextFactory,
+                             final Map<UUID, BusinessInvoiceModelDao> invoices,
+                             final Multimap<UUID, BusinessInvoiceItemBaseModelDao> invoiceItems,
+                             final Multimap<UUID, BusinessPaymentBaseModelDao> invoicePayments) throws AnalyticsRefreshException {
         // Recompute all invoices and invoice items
         final Map<BusinessInvoiceModelDao, Collection<BusinessInvoiceItemBaseModelDao>> businessInvoices = binFactory.createBusinessInvoicesAndInvoiceItems(businessContextFactory);
 
@@ -120,27 +130,29 @@ public class BusinessInvoiceAndPaymentDao extends BusinessAnalyticsDaoBase {
 
     /**
      * Refresh the records. This does not perform any logic but simply deletes existing records and inserts the current ones.
+     * The account record itself is not updated: this is left to the caller.
      *
      * @param bac             current, fully populated, BusinessAccountModelDao record
      * @param invoices        current, fully populated, mapping of invoice id -> BusinessInvoiceModelDao records
      * @param invoiceItems    current, fully populated, mapping of invoice id -> BusinessInvoiceItemBaseModelDao records
      * @param invoicePayments current, fully populated, mapping of invoice id -> BusinessInvoicePaymentBaseModelDao records
+     * @param batchSize       maximum number of rows per JDBC batch
+     * @param incremental     whether to diff the records against the existing ones
      * @param transactional   current transaction
      * @param context         call context
      */
-    private void updateInTransaction(final BusinessAccountModelDao bac,
-                                     final Map<UUID, BusinessInvoiceModelDao> invoices,
-                                     final Multimap<UUID, BusinessInvoiceItemBaseModelDao> invoiceItems,
-                                     final Multimap<UUID, BusinessPaymentBaseModelDao> invoicePayments,
-                                     final BusinessAnalyticsSqlDao transactional,
-                                     final CallContext context) {
+    void updateInTransaction(final BusinessAccountModelDao bac,
+                             final Map<UUID, BusinessInvoiceModelDao> invoices,
+                             final Multimap<UUID, BusinessInvoiceItemBaseModelDao> invoiceItems,
+                             final Multimap<UUID, BusinessPaymentBaseModelDao> invoicePayments,
+                             final int batchSize,
+                             final boolean incremental,
+                             final BusinessAnalyticsSqlDao transactional,
+                             final CallContext context) {
         // Update invoice and invoice items tables
-        businessInvoiceDao.updateInTransaction(bac, invoices, invoiceItems, transactional, context);
+        businessInvoiceDao.updateInTransaction(bac, invoices, invoiceItems, batchSize, incremental, transactional, context);
 
         // Update payment tables
-        businessPaymentDao.updateInTransaction(bac, Iterables.<BusinessPaymentBaseModelDao>concat(invoicePayments.values()), transactional, context);
-
-        // Update denormalized invoice and payment details in BAC
-        businessAccountDao.updateInTransaction(bac, transactional, context);
+        businessPaymentDao.updateInTransaction(bac, Iterables.<BusinessPaymentBaseModelDao>concat(invoicePayments.values()), batchSize, incremental, transactional, context);
     }
 }
@@ -19,6 +19,7 @@
 package org.killbill.billing.plugin.analytics.dao;
 
 import java.util.Collection;
+import java.util.LinkedList;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.UUID;
@@ -32,19 +33,35 @@ import org.killbill.billing.plugin.analytics.dao.factory.BusinessInvoiceFactory;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessAccountModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessInvoiceItemBaseModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessInvoiceModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessModelDaoBase;
 import org.killbill.billing.util.callcontext.CallContext;
 import org.skife.jdbi.v2.Transaction;
 import org.skife.jdbi.v2.TransactionStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Multimap;
 
 public class BusinessInvoiceDao extends BusinessAnalyticsDaoBase {
 
     private static final Logger logger = LoggerFactory.getLogger(BusinessInvoiceDao.class);
 
+    // Invoices are identified by invoice id, invoice items by item id
+    private static final Function<BusinessModelDaoBase, Object> INVOICE_OR_INVOICE_ITEM_NATURAL_KEY = new Function<BusinessModelDaoBase, Object>() {
+        @Override
+        public Object apply(final BusinessModelDaoBase input) {
+            if (input instanceof BusinessInvoiceItemBaseModelDao) {
+                return ((BusinessInvoiceItemBaseModelDao) input).getItemId();
+            } else {
+                return ((BusinessInvoiceModelDao) input).getInvoiceId();
+            }
+        }
+    };
+
     private final BusinessAccountDao businessAccountDao;
     private final BusinessInvoiceFactory binFactory;
     private final BusinessAccountFactory bacFactory;
@@ -74,7 +91,7 @@ public class BusinessInvoiceDao extends BusinessAnalyticsDaoBase {
             @Override
             public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
                 final Entry<BusinessInvoiceModelDao, Collection<BusinessInvoiceItemBaseModelDao>> models = businessInvoices.entrySet().iterator().next();
-                updateInTransaction(bac, models.getKey(), models.getValue(), transactional, businessContextFactory.getCallContext());
+                updateInTransaction(bac, models.getKey(), models.getValue(), businessContextFactory.getBatchSize(), transactional, businessContextFactory.getCallContext());
 
                 // Update denormalized invoice and payment details in BAC
                 businessAccountDao.updateInTransaction(bac, transactional, businessContextFactory.getCallContext());
@@ -88,40 +105,60 @@ public class BusinessInvoiceDao extends BusinessAnalyticsDaoBase {
     private void updateInTransaction(final BusinessAccountModelDao bac,
                                      final BusinessInvoiceModelDao businessInvoice,
                                      final Iterable<BusinessInvoiceItemBaseModelDao> businessInvoiceItems,
+                                     final int batchSize,
                                      final BusinessAnalyticsSqlDao transactional,
                                      final CallContext context) {
         deleteInvoiceAndInvoiceItemsInTransaction(transactional, businessInvoice.getInvoiceId(), bac.getTenantRecordId(), context);
 
         if (businessInvoiceItems != null) {
-            createInvoiceInTransaction(transactional, businessInvoice, businessInvoiceItems, context);
+            createInBatches(Iterables.<BusinessModelDaoBase>concat(ImmutableList.<BusinessModelDaoBase>of(businessInvoice), businessInvoiceItems), batchSize, transactional, context);
         }
 
         // Invoice and payment details in BAC will subsequently be updated
     }
 
     /**
-     * Delete all invoice and invoice item records and insert the specified ones as current.
+     * Delete all invoice and invoice item records and insert the specified ones as current. In incremental mode,
+     * only the records which have changed are deleted and re-inserted.
      *
      * @param bac                  current, fully populated, BusinessAccountModelDao record
      * @param businessInvoices     current, fully populated, mapping of invoice id to BusinessInvoiceModelDao records
      * @param businessInvoiceItems current, fully populated, mapping of invoice id to BusinessInvoiceItemBaseModelDao records
+     * @param batchSize            maximum number of rows per JDBC batch
+     * @param incremental          whether to diff the records against the existing ones
      * @param transactional        current transaction
      * @param context              call context
      */
     public void updateInTransaction(final BusinessAccountModelDao bac,
                                     final Map<UUID, BusinessInvoiceModelDao> businessInvoices,
                                     final Multimap<UUID, BusinessInvoiceItemBaseModelDao> businessInvoiceItems,
+                                    final int batchSize,
+                                    final boolean incremental,
                                     final BusinessAnalyticsSqlDao transactional,
                                     final CallContext context) {
-        deleteInvoicesAndInvoiceItemsForAccountInTransaction(transactional, bac.getAccountRecordId(), bac.getTenantRecordId(), context);
-
+        final Collection<BusinessModelDaoBase> invoicesAndInvoiceItems = new LinkedList<BusinessModelDaoBase>();
         for (final BusinessInvoiceModelDao businessInvoice : businessInvoices.values()) {
             final Collection<BusinessInvoiceItemBaseModelDao> invoiceItems = businessInvoiceItems.get(businessInvoice.getInvoiceId());
             if (invoiceItems != null) {
-                createInvoiceInTransaction(transactional, businessInvoice, invoiceItems, context);
+                invoicesAndInvoiceItems.add(businessInvoice);
+                invoicesAndInvoiceItems.addAll(invoiceItems);
             }
         }
 
+        if (incremental) {
+            final Iterable<BusinessModelDaoBase> existingInvoicesAndInvoiceItems = getInvoicesAndInvoiceItemsForAccountInTransaction(transactional, bac.getAccountRecordId(), bac.getTenantRecordId(), context);
+            updateIncrementallyInTransaction(existingInvoicesAndInvoiceItems,
+                                             invoicesAndInvoiceItems,
+                                             INVOICE_OR_INVOICE_ITEM_NATURAL_KEY,
+                                             bac.getTenantRecordId(),
+                                             batchSize,
+                                             transactional,
+                                             context);
+        } else {
+            deleteInvoicesAndInvoiceItemsForAccountInTransaction(transactional, bac.getAccountRecordId(), bac.getTenantRecordId(), context);
+            createInBatches(invoicesAndInvoiceItems, batchSize, transactional, context);
+        }
+
         // Invoice and payment details in BAC will subsequently be updated
     }
 
@@ -138,6 +175,17 @@ public class BusinessInvoiceDao extends BusinessAnalyticsDaoBase {
         transactional.deleteByInvoiceId(BusinessInvoiceModelDao.INVOICES_TABLE_NAME, invoiceId, tenantRecordId, context);
     }
 
+    private Iterable<BusinessModelDaoBase> getInvoicesAndInvoiceItemsForAccountInTransaction(final BusinessAnalyticsSqlDao transactional,
+                                                                                             final Long accountRecordId,
+                                                                                             final Long tenantRecordId,
+                                                                                             final CallContext context) {
+        return Iterables.<BusinessModelDaoBase>concat(transactional.getInvoicesByAccountRecordId(accountRecordId, tenantRecordId, context),
+                                                      transactional.getInvoiceAdjustmentsByAccountRecordId(accountRecordId, tenantRecordId, context),
+                                                      transactional.getInvoiceItemsByAccountRecordId(accountRecordId, tenantRecordId, context),
+                                                      transactional.getInvoiceItemAdjustmentsByAccountRecordId(accountRecordId, tenantRecordId, context),
+                                                      transactional.getInvoiceItemCreditsByAccountRecordId(accountRecordId, tenantRecordId, context));
+    }
+
     private void deleteInvoicesAndInvoiceItemsForAccountInTransaction(final BusinessAnalyticsSqlDao transactional,
                                                                       final Long accountRecordId,
                                                                       final Long tenantRecordId,
@@ -150,17 +198,4 @@ public class BusinessInvoiceDao extends BusinessAnalyticsDaoBase {
         // Delete all invoices
         transactional.deleteByAccountRecordId(BusinessInvoiceModelDao.INVOICES_TABLE_NAME, accountRecordId, tenantRecordId, context);
     }
-
-    private void createInvoiceInTransaction(final BusinessAnalyticsSqlDao transactional,
-                                            final BusinessInvoiceModelDao invoice,
-                                            final Iterable<BusinessInvoiceItemBaseModelDao> invoiceItems,
-                                            final CallContext context) {
-        // Create the invoice
-        transactional.create(invoice.getTableName(), invoice, context);
-
-        // Add associated invoice items
-        for (final BusinessInvoiceItemBaseModelDao invoiceItem : invoiceItems) {
-            transactional.create(invoiceItem.getTableName(), invoiceItem, context);
-        }
-    }
 }
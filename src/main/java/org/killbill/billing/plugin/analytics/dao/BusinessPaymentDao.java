@@ -23,32 +23,70 @@ import org.killbill.billing.plugin.analytics.dao.model.BusinessAccountModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessPaymentBaseModelDao;
 import org.killbill.billing.util.callcontext.CallContext;
 
+import com.google.common.base.Function;
+import com.google.common.collect.Iterables;
+
 public class BusinessPaymentDao extends BusinessAnalyticsDaoBase {
 
+    // Payment rows are identified by payment transaction id
+    private static final Function<BusinessPaymentBaseModelDao, Object> PAYMENT_NATURAL_KEY = new Function<BusinessPaymentBaseModelDao, Object>() {
+        @Override
+        public Object apply(final BusinessPaymentBaseModelDao input) {
+            return input.getPaymentTransactionId();
+        }
+    };
+
     public BusinessPaymentDao(final OSGIKillbillDataSource osgiKillbillDataSource) {
         super(osgiKillbillDataSource);
     }
 
     /**
-     * Delete all invoice payment records and insert the specified ones as current.
+     * Delete all invoice payment records and insert the specified ones as current. In incremental mode,
+     * only the records which have changed are deleted and re-inserted.
      *
      * @param bac                     current, fully populated, BusinessAccountModelDao record
      * @param businessInvoicePayments current, fully populated, mapping of invoice id to BusinessInvoicePaymentBaseModelDao records
+     * @param batchSize               maximum number of rows per JDBC batch
+     * @param incremental             whether to diff the records against the existing ones
      * @param transactional           current transaction
      * @param context                 call context
      */
     public void updateInTransaction(final BusinessAccountModelDao bac,
                                     final Iterable<BusinessPaymentBaseModelDao> businessInvoicePayments,
+                                    final int batchSize,
+                                    final boolean incremental,
                                     final BusinessAnalyticsSqlDao transactional,
                                     final CallContext context) {
-        for (final String tableName : BusinessPaymentBaseModelDao.ALL_PAYMENTS_TABLE_NAMES) {
-            transactional.deleteByAccountRecordId(tableName, bac.getAccountRecordId(), bac.getTenantRecordId(), context);
-        }
+        if (incremental) {
+            final Iterable<BusinessPaymentBaseModelDao> existingInvoicePayments = getPaymentsForAccountInTransaction(transactional, bac.getAccountRecordId(), bac.getTenantRecordId(), context);
+            updateIncrementallyInTransaction(existingInvoicePayments,
+                                             businessInvoicePayments,
+                                             PAYMENT_NATURAL_KEY,
+                                             bac.getTenantRecordId(),
+                                             batchSize,
+                                             transactional,
+                                             context);
+        } else {
+            for (final String tableName : BusinessPaymentBaseModelDao.ALL_PAYMENTS_TABLE_NAMES) {
+                transactional.deleteByAccountRecordId(tableName, bac.getAccountRecordId(), bac.getTenantRecordId(), context);
+            }
 
-        for (final BusinessPaymentBaseModelDao invoicePayment : businessInvoicePayments) {
-            transactional.create(invoicePayment.getTableName(), invoicePayment, context);
+            createInBatches(businessInvoicePayments, batchSize, transactional, context);
         }
 
         // Invoice and payment details in BAC will be updated by BusinessInvoiceAndInvoicePaymentDao
     }
+
+    private Iterable<BusinessPaymentBaseModelDao> getPaymentsForAccountInTransaction(final BusinessAnalyticsSqlDao transactional,
+                                                                                     final Long accountRecordId,
+                                                                                     final Long tenantRecordId,
+                                                                                     final CallContext context) {
+        return Iterables.<BusinessPaymentBaseModelDao>concat(transactional.getPaymentAuthsByAccountRecordId(accountRecordId, tenantRecordId, context),
+                                                             transactional.getPaymentCapturesByAccountRecordId(accountRecordId, tenantRecordId, context),
+                                                             transactional.getPaymentPurchasesByAccountRecordId(accountRecordId, tenantRecordId, context),
+                                                             transactional.getPaymentRefundsByAccountRecordId(accountRecordId, tenantRecordId, context),
+                                                             transactional.getPaymentCreditsByAccountRecordId(accountRecordId, tenantRecordId, context),
+                                                             transactional.getPaymentChargebacksByAccountRecordId(accountRecordId, tenantRecordId, context),
+                                                             transactional.getPaymentVoidsByAccountRecordId(accountRecordId, tenantRecordId, context));
+    }
 }
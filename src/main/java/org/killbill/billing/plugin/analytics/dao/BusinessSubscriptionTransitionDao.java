@@ -19,8 +19,12 @@
 package org.killbill.billing.plugin.analytics.dao;
 
 import java.util.Collection;
+import java.util.List;
 import java.util.concurrent.Executor;
 
+import javax.annotation.Nullable;
+
+import org.joda.time.LocalDate;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillDataSource;
 import org.killbill.billing.plugin.analytics.AnalyticsRefreshException;
 import org.killbill.billing.plugin.analytics.dao.factory.BusinessAccountFactory;
@@ -36,15 +40,26 @@ import org.skife.jdbi.v2.TransactionStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Function;
+
 public class BusinessSubscriptionTransitionDao extends BusinessAnalyticsDaoBase {
 
     private static final Logger logger = LoggerFactory.getLogger(BusinessSubscriptionTransitionDao.class);
 
+    // Subscription transitions are identified by subscription event record id
+    private static final Function<BusinessSubscriptionTransitionModelDao, Object> SUBSCRIPTION_TRANSITION_NATURAL_KEY = new Function<BusinessSubscriptionTransitionModelDao, Object>() {
+        @Override
+        public Object apply(final BusinessSubscriptionTransitionModelDao input) {
+            return input.getSubscriptionEventRecordId();
+        }
+    };
+
     private final BusinessAccountDao businessAccountDao;
     private final BusinessBundleDao businessBundleDao;
     private final BusinessAccountFactory bacFactory;
     private final BusinessBundleFactory bbsFactory;
     private final BusinessSubscriptionTransitionFactory bstFactory;
+    private final MrrDailyMaterializer mrrDailyMaterializer;
 
     public BusinessSubscriptionTransitionDao(final OSGIKillbillDataSource osgiKillbillDataSource,
                                              final BusinessAccountDao businessAccountDao,
@@ -55,6 +70,7 @@ public class BusinessSubscriptionTransitionDao extends BusinessAnalyticsDaoBase
         bacFactory = new BusinessAccountFactory();
         bbsFactory = new BusinessBundleFactory(executor);
         bstFactory = new BusinessSubscriptionTransitionFactory();
+        mrrDailyMaterializer = new MrrDailyMaterializer();
     }
 
     public void update(final BusinessContextFactory businessContextFactory) throws AnalyticsRefreshException {
@@ -71,7 +87,17 @@ public class BusinessSubscriptionTransitionDao extends BusinessAnalyticsDaoBase
         executeInTransaction(new Transaction<Void, BusinessAnalyticsSqlDao>() {
             @Override
             public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
-                updateInTransaction(bac, bbss, bsts, transactional, businessContextFactory.getCallContext());
+                updateInTransaction(bac,
+                                    bbss,
+                                    bsts,
+                                    businessContextFactory.getBatchSize(),
+                                    businessContextFactory.isIncrementalRefresh(),
+                                    businessContextFactory.getMrrDailyLastDay(),
+                                    transactional,
+                                    businessContextFactory.getCallContext());
+
+                // Update BAC
+                businessAccountDao.updateInTransaction(bac, transactional, businessContextFactory.getCallContext());
                 return null;
             }
         });
@@ -79,29 +105,60 @@ public class BusinessSubscriptionTransitionDao extends BusinessAnalyticsDaoBase
         logger.debug("Finished rebuild of Analytics subscriptions for account {}", businessContextFactory.getAccountId());
     }
 
-    private void updateInTransaction(final BusinessAccountModelDao bac,
-                                     final Collection<BusinessBundleModelDao> bbss,
-                                     final Collection<BusinessSubscriptionTransitionModelDao> bsts,
-                                     final BusinessAnalyticsSqlDao transactional,
-                                     final CallContext context) {
-        // Update the subscription transitions
-        transactional.deleteByAccountRecordId(BusinessSubscriptionTransitionModelDao.SUBSCRIPTION_TABLE_NAME,
-                                              bac.getAccountRecordId(),
-                                              bac.getTenantRecordId(),
-                                              context);
+    // To be called first in transactions updating other tables before the subscription transitions (the lock is reentrant)
+    void lockMrrDailyInTransaction(final Long tenantRecordId, @Nullable final LocalDate mrrDailyLastDay, final BusinessAnalyticsSqlDao transactional) {
+        if (mrrDailyLastDay != null) {
+            mrrDailyMaterializer.lockInTransaction(tenantRecordId, mrrDailyLastDay, transactional);
+        }
+    }
 
-        for (final BusinessSubscriptionTransitionModelDao bst : bsts) {
-            transactional.create(bst.getTableName(), bst, context);
+    // Note: the account record itself is not updated, this is left to the caller
+    // If mrrDailyLastDay is specified, report_mrr_daily is updated up to that day (see MrrDailyMaterializer)
+    void updateInTransaction(final BusinessAccountModelDao bac,
+                             final Collection<BusinessBundleModelDao> bbss,
+                             final Collection<BusinessSubscriptionTransitionModelDao> bsts,
+                             final int batchSize,
+                             final boolean incremental,
+                             @Nullable final LocalDate mrrDailyLastDay,
+                             final BusinessAnalyticsSqlDao transactional,
+                             final CallContext context) {
+        // Before the transitions are read, so that they can't be rewritten concurrently (see MrrDailyMaterializer)
+        lockMrrDailyInTransaction(bac.getTenantRecordId(), mrrDailyLastDay, transactional);
+
+        final List<BusinessSubscriptionTransitionModelDao> existingBsts = incremental || mrrDailyLastDay != null ?
+                                                                         transactional.getSubscriptionTransitionsByAccountRecordId(bac.getAccountRecordId(), bac.getTenantRecordId(), context) :
+                                                                         null;
+
+        // Before the transitions are rewritten, as they are used to compute the new days
+        if (mrrDailyLastDay != null) {
+            mrrDailyMaterializer.applyInTransaction(bac.getTenantRecordId(), existingBsts, bsts, mrrDailyLastDay, transactional);
+        }
+
+        // Update the subscription transitions
+        if (incremental) {
+            updateIncrementallyInTransaction(existingBsts,
+                                             bsts,
+                                             SUBSCRIPTION_TRANSITION_NATURAL_KEY,
+                                             bac.getTenantRecordId(),
+                                             batchSize,
+                                             transactional,
+                                             context);
+        } else {
+            transactional.deleteByAccountRecordId(BusinessSubscriptionTransitionModelDao.SUBSCRIPTION_TABLE_NAME,
+                                                  bac.getAccountRecordId(),
+                                                  bac.getTenantRecordId(),
+                                                  context);
+
+            createInBatches(bsts, batchSize, transactional, context);
         }
 
         // Update the summary table per bundle
         businessBundleDao.updateInTransaction(bbss,
                                               bac.getAccountRecordId(),
                                               bac.getTenantRecordId(),
+                                              batchSize,
+                                              incremental,
                                               transactional,
                                               context);
-
-        // Update BAC
-        businessAccountDao.updateInTransaction(bac, transactional, context);
     }
 }
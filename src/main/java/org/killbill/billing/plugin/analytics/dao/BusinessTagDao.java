@@ -49,7 +49,7 @@ public class BusinessTagDao extends BusinessAnalyticsDaoBase {
         executeInTransaction(new Transaction<Void, BusinessAnalyticsSqlDao>() {
             @Override
             public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
-                updateInTransaction(tagModelDaos, transactional, businessContextFactory.getCallContext());
+                updateInTransaction(tagModelDaos, businessContextFactory.getBatchSize(), transactional, businessContextFactory.getCallContext());
                 return null;
             }
         });
@@ -57,9 +57,10 @@ public class BusinessTagDao extends BusinessAnalyticsDaoBase {
         logger.debug("Finished rebuild of Analytics tags for account {}", businessContextFactory.getAccountId());
     }
 
-    private void updateInTransaction(final BusinessModelDaosWithAccountAndTenantRecordId<BusinessTagModelDao> tagModelDaos,
-                                     final BusinessAnalyticsSqlDao transactional,
-                                     final CallContext context) {
+    void updateInTransaction(final BusinessModelDaosWithAccountAndTenantRecordId<BusinessTagModelDao> tagModelDaos,
+                             final int batchSize,
+                             final BusinessAnalyticsSqlDao transactional,
+                             final CallContext context) {
         for (final String tableName : BusinessTagModelDao.ALL_TAGS_TABLE_NAMES) {
             transactional.deleteByAccountRecordId(tableName,
                                                   tagModelDaos.getAccountRecordId(),
@@ -67,8 +68,6 @@ public class BusinessTagDao extends BusinessAnalyticsDaoBase {
                                                   context);
         }
 
-        for (final BusinessTagModelDao tagModelDao : tagModelDaos.getBusinessModelDaos()) {
-            transactional.create(tagModelDao.getTableName(), tagModelDao, context);
-        }
+        createInBatches(tagModelDaos.getBusinessModelDaos(), batchSize, transactional, context);
     }
 }
@@ -0,0 +1,324 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.dao;
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.LocalDate;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessSubscriptionTransitionModelDao;
+import org.skife.jdbi.v2.exceptions.UnableToExecuteStatementException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+
+/**
+ * Maintains report_mrr_daily (see reports/mrr/report_mrr_daily_materialized.ddl) as subscription transitions are refreshed,
+ * instead of recomputing v_report_mrr_daily for all days and all tenants.
+ * <p/>
+ * When the transitions of an account are rewritten, the MRR of its previous transitions is subtracted, and the MRR of its new
+ * transitions is added, for each day they were active on: only the days where the two differ are updated. Transitions are
+ * compared as date ranges, so that unchanged history costs nothing. Days after the last materialized one (e.g. today on the
+ * first refresh of the day) are first computed from the transitions table.
+ * <p/>
+ * All updates for a tenant are serialized by locking its row in report_mrr_daily_state (see {@link #lockInTransaction}), which
+ * needs to happen before the previous transitions are read.
+ */
+public class MrrDailyMaterializer {
+
+    private static final Logger logger = LoggerFactory.getLogger(MrrDailyMaterializer.class);
+
+    // Same filters as v_report_mrr_daily
+    private static final String REPORT_GROUP = "default";
+    private static final String SERVICE = "entitlement-service";
+    @VisibleForTesting
+    static final String ALL_PRODUCTS = "ALL";
+
+    private static final String INITIALIZATION_SAVEPOINT = "mrr_daily_initialization";
+
+    // Lock the tenant and roll its days forward up to today. This should be the first statement of the transaction: on MySQL
+    // (REPEATABLE READ), the snapshot used by the next reads (e.g. of the previous transitions) is only taken afterwards, so that
+    // it includes the updates of the transaction which held the lock before
+    public void lockInTransaction(final Long tenantRecordId, final LocalDate today, final BusinessAnalyticsSqlDao transactional) {
+        String lastDayMaybeNull = transactional.getMrrDailyLastDayForUpdate(tenantRecordId);
+        if (lastDayMaybeNull == null && !initialize(tenantRecordId, today, transactional)) {
+            // Initialized concurrently by another node or thread: proceed as if it had been initialized before
+            lastDayMaybeNull = transactional.getMrrDailyLastDayForUpdate(tenantRecordId);
+            Preconditions.checkState(lastDayMaybeNull != null, "Daily MRR state missing for tenantRecordId %s", tenantRecordId);
+        }
+
+        if (lastDayMaybeNull != null) {
+            // Roll forward first: the new days reflect the previous transitions, which the deltas are computed against
+            final LocalDate lastDay = LocalDate.parse(lastDayMaybeNull.substring(0, 10));
+            if (lastDay.isBefore(today)) {
+                for (LocalDate day = lastDay.plusDays(1); !day.isAfter(today); day = day.plusDays(1)) {
+                    transactional.createMrrDailySnapshot(tenantRecordId, day);
+                }
+                transactional.updateMrrDailyState(tenantRecordId, today);
+            }
+        }
+    }
+
+    // Note: the tenant is expected to be locked (see lockInTransaction), and previousBsts to be the transitions currently in the database
+    public void applyInTransaction(final Long tenantRecordId,
+                                   final Iterable<BusinessSubscriptionTransitionModelDao> previousBsts,
+                                   final Iterable<BusinessSubscriptionTransitionModelDao> bsts,
+                                   final LocalDate today,
+                                   final BusinessAnalyticsSqlDao transactional) {
+        final SortedMap<MrrDailyKey, BigDecimal> deltas = computeDeltas(previousBsts, bsts, today);
+        if (deltas.isEmpty()) {
+            return;
+        }
+        logger.debug("Updating {} daily MRR entries for tenantRecordId {}", deltas.size(), tenantRecordId);
+
+        final List<String> products = new LinkedList<String>();
+        final List<LocalDate> days = new LinkedList<LocalDate>();
+        final List<BigDecimal> amounts = new LinkedList<BigDecimal>();
+        for (final Map.Entry<MrrDailyKey, BigDecimal> delta : deltas.entrySet()) {
+            products.add(delta.getKey().product);
+            days.add(delta.getKey().day);
+            amounts.add(delta.getValue());
+        }
+        final int[] nbUpdated = transactional.addToMrrDaily(tenantRecordId, products, days, amounts);
+
+        // Entries which didn't exist yet (e.g. first subscription to a product on that day)
+        final List<String> newProducts = new LinkedList<String>();
+        final List<LocalDate> newDays = new LinkedList<LocalDate>();
+        final List<BigDecimal> newAmounts = new LinkedList<BigDecimal>();
+        for (int i = 0; i < nbUpdated.length; i++) {
+            if (nbUpdated[i] == 0) {
+                newProducts.add(products.get(i));
+                newDays.add(days.get(i));
+                newAmounts.add(amounts.get(i));
+            }
+        }
+        if (!newProducts.isEmpty()) {
+            transactional.createMrrDaily(tenantRecordId, newProducts, newDays, newAmounts);
+        }
+    }
+
+    // First update for that tenant: compute all days from the transitions table. Returns false if another node or thread
+    // initialized the same tenant concurrently (in which case nothing is done)
+    private boolean initialize(final Long tenantRecordId, final LocalDate today, final BusinessAnalyticsSqlDao transactional) {
+        // Created first, to fail fast if another node or thread initializes the same tenant concurrently. The savepoint keeps
+        // the enclosing transaction usable (on PostgreSQL, a failed statement aborts the whole transaction otherwise)
+        transactional.checkpoint(INITIALIZATION_SAVEPOINT);
+        try {
+            transactional.createMrrDailyState(tenantRecordId, today);
+        } catch (final UnableToExecuteStatementException e) {
+            if (!isConstraintViolation(e)) {
+                throw e;
+            }
+            logger.info("Daily MRR for tenantRecordId {} has been initialized concurrently", tenantRecordId);
+            transactional.rollback(INITIALIZATION_SAVEPOINT);
+            return false;
+        }
+        transactional.release(INITIALIZATION_SAVEPOINT);
+
+        final String firstDayMaybeNull = transactional.getMrrDailyFirstDay(tenantRecordId);
+        final LocalDate firstDay = firstDayMaybeNull == null ? today : LocalDate.parse(firstDayMaybeNull.substring(0, 10));
+        logger.info("Initializing daily MRR for tenantRecordId {} from {}", tenantRecordId, firstDay);
+
+        transactional.deleteMrrDaily(tenantRecordId);
+        for (LocalDate day = firstDay; !day.isAfter(today); day = day.plusDays(1)) {
+            transactional.createMrrDailySnapshot(tenantRecordId, day);
+        }
+        return true;
+    }
+
+    // Integrity constraint violation (e.g. duplicate key), see the SQL standard
+    private static boolean isConstraintViolation(final UnableToExecuteStatementException e) {
+        return e.getCause() instanceof SQLException &&
+               ((SQLException) e.getCause()).getSQLState() != null &&
+               ((SQLException) e.getCause()).getSQLState().startsWith("23");
+    }
+
+    @VisibleForTesting
+    static SortedMap<MrrDailyKey, BigDecimal> computeDeltas(final Iterable<BusinessSubscriptionTransitionModelDao> previousBsts,
+                                                           final Iterable<BusinessSubscriptionTransitionModelDao> bsts,
+                                                           final LocalDate lastDay) {
+        // Most transitions are unchanged: drop the ranges present on both sides first
+        final Map<MrrRange, Integer> ranges = new HashMap<MrrRange, Integer>();
+        for (final BusinessSubscriptionTransitionModelDao previousBst : previousBsts) {
+            addRange(ranges, previousBst, lastDay, -1);
+        }
+        for (final BusinessSubscriptionTransitionModelDao bst : bsts) {
+            addRange(ranges, bst, lastDay, 1);
+        }
+
+        // Changes of the MRR per product, at the boundaries of the remaining ranges
+        final Map<String, SortedMap<LocalDate, BigDecimal>> steps = new HashMap<String, SortedMap<LocalDate, BigDecimal>>();
+        for (final Map.Entry<MrrRange, Integer> range : ranges.entrySet()) {
+            if (range.getValue() == 0) {
+                continue;
+            }
+
+            final BigDecimal amount = range.getKey().amount.multiply(BigDecimal.valueOf(range.getValue()));
+            if (range.getKey().product != null) {
+                addStep(steps, range.getKey().product, range.getKey(), amount);
+            }
+            addStep(steps, ALL_PRODUCTS, range.getKey(), amount);
+        }
+
+        // Expand the days where the MRR changed only
+        final SortedMap<MrrDailyKey, BigDecimal> deltas = new TreeMap<MrrDailyKey, BigDecimal>();
+        for (final Map.Entry<String, SortedMap<LocalDate, BigDecimal>> productSteps : steps.entrySet()) {
+            BigDecimal delta = BigDecimal.ZERO;
+            LocalDate from = null;
+            for (final Map.Entry<LocalDate, BigDecimal> step : productSteps.getValue().entrySet()) {
+                if (from != null && delta.compareTo(BigDecimal.ZERO) != 0) {
+                    for (LocalDate day = from; day.isBefore(step.getKey()); day = day.plusDays(1)) {
+                        deltas.put(new MrrDailyKey(productSteps.getKey(), day), delta);
+                    }
+                }
+                delta = delta.add(step.getValue());
+                from = step.getKey();
+            }
+        }
+        return deltas;
+    }
+
+    private static void addRange(final Map<MrrRange, Integer> ranges,
+                                 final BusinessSubscriptionTransitionModelDao bst,
+                                 final LocalDate lastDay,
+                                 final int sign) {
+        if (!REPORT_GROUP.equals(bst.getReportGroup()) ||
+            !SERVICE.equals(bst.getNextService()) ||
+            bst.getNextMrr() == null ||
+            bst.getNextMrr().compareTo(BigDecimal.ZERO) <= 0 ||
+            bst.getConvertedNextMrr() == null ||
+            bst.getNextStartDate() == null) {
+            return;
+        }
+
+        // Active from the start date, until the day before the end date (only days up to lastDay are materialized)
+        final LocalDate end = bst.getNextEndDate() == null || bst.getNextEndDate().isAfter(lastDay) ? lastDay.plusDays(1) : bst.getNextEndDate();
+        if (!bst.getNextStartDate().isBefore(end)) {
+            return;
+        }
+
+        final String product = bst.getNextProductName() != null ? bst.getNextProductName() : bst.getPrevProductName();
+        final MrrRange range = new MrrRange(product, bst.getNextStartDate(), end, bst.getConvertedNextMrr());
+        final Integer count = ranges.get(range);
+        ranges.put(range, count == null ? sign : count + sign);
+    }
+
+    private static void addStep(final Map<String, SortedMap<LocalDate, BigDecimal>> steps, final String product, final MrrRange range, final BigDecimal amount) {
+        SortedMap<LocalDate, BigDecimal> productSteps = steps.get(product);
+        if (productSteps == null) {
+            productSteps = new TreeMap<LocalDate, BigDecimal>();
+            steps.put(product, productSteps);
+        }
+        add(productSteps, range.start, amount);
+        add(productSteps, range.end, amount.negate());
+    }
+
+    private static void add(final Map<LocalDate, BigDecimal> steps, final LocalDate day, final BigDecimal amount) {
+        final BigDecimal current = steps.get(day);
+        steps.put(day, current == null ? amount : current.add(amount));
+    }
+
+    // MRR of a transition, over [start, end)
+    private static final class MrrRange {
+
+        private final String product;
+        private final LocalDate start;
+        private final LocalDate end;
+        private final BigDecimal amount;
+
+        private MrrRange(@Nullable final String product, final LocalDate start, final LocalDate end, final BigDecimal amount) {
+            this.product = product;
+            this.start = start;
+            this.end = end;
+            // The scale differs between the database and the computed amounts
+            this.amount = amount.stripTrailingZeros();
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final MrrRange that = (MrrRange) o;
+            return Objects.equal(product, that.product) &&
+                   start.equals(that.start) &&
+                   end.equals(that.end) &&
+                   amount.equals(that.amount);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(product, start, end, amount);
+        }
+    }
+
+    // Sorted, so that the rows are always locked in the same order
+    @VisibleForTesting
+    static final class MrrDailyKey implements Comparable<MrrDailyKey> {
+
+        final String product;
+        final LocalDate day;
+
+        MrrDailyKey(final String product, final LocalDate day) {
+            this.product = product;
+            this.day = day;
+        }
+
+        @Override
+        public int compareTo(final MrrDailyKey other) {
+            final int productComparison = product.compareTo(other.product);
+            return productComparison != 0 ? productComparison : day.compareTo(other.day);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
+            }
+            final MrrDailyKey that = (MrrDailyKey) o;
+            return product.equals(that.product) && day.equals(that.day);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(product, day);
+        }
+
+        @Override
+        public String toString() {
+            return product + "/" + day;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.dao;
+
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.osgi.libs.killbill.OSGIConfigPropertiesService;
+import org.killbill.billing.util.api.RecordIdApi;
+import org.killbill.billing.util.callcontext.TenantContext;
+
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+
+/**
+ * Node-wide cache of the record ids of accounts and tenants, shared by the listener, the factories and the APIs.
+ * <p/>
+ * The id -> record id mapping of an object never changes, so entries don't need to be invalidated. Unknown objects
+ * aren't cached (the lookup is retried next time).
+ */
+public class RecordIdCache {
+
+    // Maximum number of record ids kept in memory
+    private static final String ANALYTICS_RECORD_ID_CACHE_SIZE_PROPERTY = "org.killbill.billing.plugin.analytics.recordIdCacheSize";
+    private static final long DEFAULT_RECORD_ID_CACHE_SIZE = 100000;
+
+    private final Cache<String, Long> recordIdCache;
+
+    public RecordIdCache(final OSGIConfigPropertiesService osgiConfigPropertiesService) {
+        this(getCacheSize(osgiConfigPropertiesService));
+    }
+
+    public RecordIdCache(final long cacheSize) {
+        this.recordIdCache = CacheBuilder.newBuilder()
+                                         .maximumSize(cacheSize)
+                                         .recordStats()
+                                         .build();
+    }
+
+    /**
+     * Look up a record id, going to Kill Bill on a cache miss.
+     *
+     * @return the record id, null if unknown
+     */
+    public Long getRecordId(final UUID objectId, final ObjectType objectType, final RecordIdApi recordIdApi, final TenantContext context) {
+        final String cacheKey = getCacheKey(objectId, objectType);
+        Long recordId = recordIdCache.getIfPresent(cacheKey);
+        if (recordId == null) {
+            recordId = recordIdApi.getRecordId(objectId, objectType, context);
+            if (recordId != null) {
+                recordIdCache.put(cacheKey, recordId);
+            }
+        }
+        return recordId;
+    }
+
+    public Long getAccountRecordId(final UUID accountId, final RecordIdApi recordIdApi, final TenantContext context) {
+        return getRecordId(accountId, ObjectType.ACCOUNT, recordIdApi, context);
+    }
+
+    public Long getTenantRecordId(@Nullable final UUID tenantId, final RecordIdApi recordIdApi, final TenantContext context) {
+        return tenantId == null ? null : getRecordId(tenantId, ObjectType.TENANT, recordIdApi, context);
+    }
+
+    public CacheStats getStats() {
+        return recordIdCache.stats();
+    }
+
+    public long getSize() {
+        return recordIdCache.size();
+    }
+
+    private static long getCacheSize(final OSGIConfigPropertiesService osgiConfigPropertiesService) {
+        final String cacheSizeMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(ANALYTICS_RECORD_ID_CACHE_SIZE_PROPERTY));
+        return cacheSizeMaybeNull == null ? DEFAULT_RECORD_ID_CACHE_SIZE : Long.valueOf(cacheSizeMaybeNull);
+    }
+
+    private String getCacheKey(final UUID objectId, final ObjectType objectType) {
+        return objectType + "::" + objectId;
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.dao;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.osgi.libs.killbill.OSGIConfigPropertiesService;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillDataSource;
+import org.killbill.billing.plugin.analytics.dao.model.RecordIdModelDao;
+import org.skife.jdbi.v2.DBI;
+
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Resolves, in a single query, the record ids of all objects of a given type for an account.
+ * <p/>
+ * Results are cached across refreshes of the same account: the cache is bounded by the total number of record ids kept.
+ */
+public class RecordIdDao {
+
+    // Maximum number of record ids kept in memory
+    private static final String ANALYTICS_RECORD_IDS_CACHE_SIZE_PROPERTY = "org.killbill.billing.plugin.analytics.recordIdsCacheSize";
+    private static final long DEFAULT_RECORD_IDS_CACHE_SIZE = 500000;
+
+    private static final Map<ObjectType, String> TABLE_NAMES = ImmutableMap.<ObjectType, String>builder()
+                                                                            .put(ObjectType.BUNDLE, "bundles")
+                                                                            .put(ObjectType.SUBSCRIPTION_EVENT, "subscription_events")
+                                                                            .put(ObjectType.BLOCKING_STATES, "blocking_states")
+                                                                            .put(ObjectType.INVOICE, "invoices")
+                                                                            .put(ObjectType.INVOICE_ITEM, "invoice_items")
+                                                                            .put(ObjectType.INVOICE_PAYMENT, "invoice_payments")
+                                                                            .put(ObjectType.PAYMENT, "payments")
+                                                                            .put(ObjectType.CUSTOM_FIELD, "custom_fields")
+                                                                            .put(ObjectType.TAG, "tags")
+                                                                            .build();
+
+    private final RecordIdSqlDao sqlDao;
+    private final Cache<String, Map<UUID, Long>> recordIdsCache;
+
+    public RecordIdDao(final OSGIKillbillDataSource osgiKillbillDataSource, final OSGIConfigPropertiesService osgiConfigPropertiesService) {
+        final DBI dbi = BusinessDBIProvider.get(osgiKillbillDataSource.getDataSource());
+        this.sqlDao = dbi.onDemand(RecordIdSqlDao.class);
+
+        final String cacheSizeMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(ANALYTICS_RECORD_IDS_CACHE_SIZE_PROPERTY));
+        final long cacheSize = cacheSizeMaybeNull == null ? DEFAULT_RECORD_IDS_CACHE_SIZE : Long.valueOf(cacheSizeMaybeNull);
+        this.recordIdsCache = CacheBuilder.newBuilder()
+                                          .maximumWeight(cacheSize)
+                                          .weigher(new Weigher<String, Map<UUID, Long>>() {
+                                              @Override
+                                              public int weigh(final String key, final Map<UUID, Long> recordIds) {
+                                                  return recordIds.size();
+                                              }
+                                          })
+                                          .build();
+    }
+
+    public static boolean isSupported(final ObjectType objectType) {
+        return TABLE_NAMES.containsKey(objectType);
+    }
+
+    /**
+     * Look up a record id, as resolved by the last call to {@link #reloadRecordIds(ObjectType, Long, Long)}.
+     *
+     * @return the record id, null if unknown
+     */
+    public Long getCachedRecordId(final UUID objectId, final ObjectType objectType, final Long accountRecordId, final Long tenantRecordId) {
+        final Map<UUID, Long> recordIds = recordIdsCache.getIfPresent(getCacheKey(objectType, accountRecordId, tenantRecordId));
+        return recordIds == null ? null : recordIds.get(objectId);
+    }
+
+    /**
+     * Resolve all record ids of the specified type for that account in one query, and cache them.
+     *
+     * @return mapping object id -> record id, empty if the object type isn't supported
+     */
+    public Map<UUID, Long> reloadRecordIds(final ObjectType objectType, final Long accountRecordId, final Long tenantRecordId) {
+        final String tableName = TABLE_NAMES.get(objectType);
+        if (tableName == null) {
+            return ImmutableMap.<UUID, Long>of();
+        }
+
+        final Map<UUID, Long> recordIds = new HashMap<UUID, Long>();
+        for (final RecordIdModelDao recordIdModelDao : sqlDao.getRecordIdsForAccount(tableName, accountRecordId, tenantRecordId)) {
+            recordIds.put(recordIdModelDao.getId(), recordIdModelDao.getRecordId());
+        }
+        recordIdsCache.put(getCacheKey(objectType, accountRecordId, tenantRecordId), recordIds);
+
+        return recordIds;
+    }
+
+    private String getCacheKey(final ObjectType objectType, final Long accountRecordId, final Long tenantRecordId) {
+        return String.format("%s::%s::%s", tenantRecordId, accountRecordId, objectType);
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.dao;
+
+import java.util.List;
+
+import org.killbill.billing.plugin.analytics.dao.model.RecordIdModelDao;
+import org.skife.jdbi.v2.sqlobject.Bind;
+import org.skife.jdbi.v2.sqlobject.SqlQuery;
+import org.skife.jdbi.v2.sqlobject.customizers.Define;
+import org.skife.jdbi.v2.sqlobject.stringtemplate.UseStringTemplate3StatementLocator;
+
+@UseStringTemplate3StatementLocator
+public interface RecordIdSqlDao {
+
+    // Note: tableName is a Kill Bill core table (e.g. invoice_items)
+    @SqlQuery
+    public List<RecordIdModelDao> getRecordIdsForAccount(@Define("tableName") String tableName,
+                                                         @Bind("accountRecordId") Long accountRecordId,
+                                                         @Bind("tenantRecordId") Long tenantRecordId);
+}
@@ -18,13 +18,21 @@
 package org.killbill.billing.plugin.analytics.dao.factory;
 
 import java.math.BigDecimal;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
 
 import javax.annotation.Nullable;
 
+import org.joda.time.LocalDate;
 import org.killbill.billing.ObjectType;
 import org.killbill.billing.account.api.Account;
 import org.killbill.billing.catalog.api.Plan;
@@ -39,10 +47,13 @@ import org.killbill.billing.osgi.libs.killbill.OSGIConfigPropertiesService;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
 import org.killbill.billing.payment.api.Payment;
 import org.killbill.billing.payment.api.PaymentMethod;
+import org.killbill.billing.plugin.analytics.AnalyticsJobHierarchy.Group;
 import org.killbill.billing.plugin.analytics.AnalyticsRefreshException;
 import org.killbill.billing.plugin.analytics.api.core.AnalyticsConfiguration;
 import org.killbill.billing.plugin.analytics.api.core.AnalyticsConfigurationHandler;
 import org.killbill.billing.plugin.analytics.dao.CurrencyConversionDao;
+import org.killbill.billing.plugin.analytics.dao.RecordIdCache;
+import org.killbill.billing.plugin.analytics.dao.RecordIdDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessModelDaoBase;
 import org.killbill.billing.plugin.analytics.utils.CurrencyConverter;
 import org.killbill.billing.util.audit.AccountAuditLogs;
@@ -53,36 +64,65 @@ import org.killbill.billing.util.tag.Tag;
 import org.killbill.billing.util.tag.TagDefinition;
 import org.killbill.clock.Clock;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.base.Predicate;
+import com.google.common.base.Strings;
 import com.google.common.collect.Iterables;
 
 public class BusinessContextFactory extends BusinessFactoryBase {
 
+    // Maximum number of rows inserted per JDBC batch when rebuilding the analytics tables of an account
+    private static final String ANALYTICS_REFRESH_BATCH_SIZE_PROPERTY = "org.killbill.billing.plugin.analytics.refresh.batchSize";
+    private static final int DEFAULT_REFRESH_BATCH_SIZE = 500;
+    // Whether the analytics tables of an account should be diffed and updated in place, instead of being deleted and re-inserted
+    private static final String ANALYTICS_REFRESH_INCREMENTAL_PROPERTY = "org.killbill.billing.plugin.analytics.refresh.incremental";
+    // Whether a full refresh of an account should commit each group of tables separately, instead of using a single transaction
+    private static final String ANALYTICS_REFRESH_SPLIT_TRANSACTIONS_PROPERTY = "org.killbill.billing.plugin.analytics.refresh.splitTransactions";
+    // Whether report_mrr_daily should be maintained as subscription transitions are refreshed (see MrrDailyMaterializer)
+    private static final String ANALYTICS_REFRESH_MATERIALIZE_MRR_DAILY_PROPERTY = "org.killbill.billing.plugin.analytics.refresh.materializeMrrDaily";
+
     private final UUID accountId;
     private final Long accountRecordId;
     private final AccountAuditLogs accountAuditLogs;
     private final Long tenantRecordId;
-    private final BusinessModelDaoBase.ReportGroup reportGroup;
     private final CallContext callContext;
     private final AnalyticsConfigurationHandler analyticsConfigurationHandler;
+    private final RecordIdDao recordIdDao;
+    private final int batchSize;
+    private final boolean incrementalRefresh;
+    private final boolean splitTransactions;
+    private final boolean materializeMrrDaily;
+
+    // Independent Kill Bill lookups are guarded by their own lock, so that they can be pre-fetched concurrently
+    private final Object accountLock = new Object();
+    private final Object accountBalanceLock = new Object();
+    private final Object accountBundlesLock = new Object();
+    private final Object invoicesLock = new Object();
+    private final Object paymentsLock = new Object();
+    private final Object paymentMethodsLock = new Object();
+    private final Object tagsLock = new Object();
+    private final Object tagDefinitionsLock = new Object();
+    private final Object customFieldsLock = new Object();
+    private final Object catalogLock = new Object();
 
     private PluginPropertiesManager pluginPropertiesManager;
-    private CurrencyConverter currencyConverter;
-    private Account account;
-    private Account parentAccount;
-    private BigDecimal accountBalance;
+    private volatile CurrencyConverter currencyConverter;
+    private volatile Account account;
+    private volatile Account parentAccount;
+    private volatile BigDecimal accountBalance;
     // Relatively cheap lookups, should be done by account_record_id
-    private Iterable<SubscriptionBundle> accountBundles;
-    private Iterable<SubscriptionEvent> accountBlockingStates;
+    private volatile Iterable<SubscriptionBundle> accountBundles;
+    private volatile Iterable<SubscriptionEvent> accountBlockingStates;
     private Map<UUID, Invoice> invoices = new HashMap<UUID, Invoice>();
     private Map<UUID, Invoice> invoicesByInvoiceItem = new HashMap<UUID, Invoice>();
-    private Iterable<Invoice> accountInvoices;
-    private Map<UUID, List<InvoicePayment>> accountInvoicePayments;
-    private Iterable<Payment> accountPayments;
-    private Map<UUID, PaymentMethod> accountPaymentMethods;
-    private Iterable<Tag> accountTags;
-    private Iterable<CustomField> accountCustomFields;
+    private volatile Iterable<Invoice> accountInvoices;
+    private volatile Map<UUID, List<InvoicePayment>> accountInvoicePayments;
+    private volatile Iterable<Payment> accountPayments;
+    private volatile Map<UUID, PaymentMethod> accountPaymentMethods;
+    private volatile Iterable<Tag> accountTags;
+    private volatile BusinessModelDaoBase.ReportGroup reportGroup;
+    private volatile Iterable<CustomField> accountCustomFields;
     // Cheap lookups, as all audit logs have been pre-fetched
     private AuditLog accountCreationAuditLog;
     private Map<UUID, AuditLog> bundleCreationAuditLogs = new HashMap<UUID, AuditLog>();
@@ -104,28 +144,59 @@ public class BusinessContextFactory extends BusinessFactoryBase {
     private Map<UUID, Long> paymentRecordIds = new HashMap<UUID, Long>();
     private Map<UUID, Long> tagRecordIds = new HashMap<UUID, Long>();
     private Map<UUID, Long> customFieldRecordIds = new HashMap<UUID, Long>();
+    // Object types bulk resolved by the RecordIdDao during this refresh
+    private final Set<ObjectType> reloadedRecordIdObjectTypes = EnumSet.noneOf(ObjectType.class);
     // Others
     private Map<String, SubscriptionBundle> latestSubscriptionBundleForExternalKeys = new HashMap<String, SubscriptionBundle>();
-    private Map<UUID, TagDefinition> tagDefinitions = new HashMap<UUID, TagDefinition>();
-    private VersionedCatalog catalog;
+    private volatile Map<UUID, TagDefinition> tagDefinitions = new HashMap<UUID, TagDefinition>();
+    private volatile VersionedCatalog catalog;
+
+    public BusinessContextFactory(final UUID accountId,
+                                  final CallContext callContext,
+                                  final CurrencyConversionDao currencyConversionDao,
+                                  final OSGIKillbillAPI osgiKillbillAPI,
+                                  final OSGIConfigPropertiesService osgiConfigPropertiesService,
+                                  final Clock clock,
+                                  final AnalyticsConfigurationHandler analyticsConfigurationHandler) throws AnalyticsRefreshException {
+        this(accountId, callContext, currencyConversionDao, null, osgiKillbillAPI, osgiConfigPropertiesService, clock, analyticsConfigurationHandler);
+    }
+
+    public BusinessContextFactory(final UUID accountId,
+                                  final CallContext callContext,
+                                  final CurrencyConversionDao currencyConversionDao,
+                                  @Nullable final RecordIdDao recordIdDao,
+                                  final OSGIKillbillAPI osgiKillbillAPI,
+                                  final OSGIConfigPropertiesService osgiConfigPropertiesService,
+                                  final Clock clock,
+                                  final AnalyticsConfigurationHandler analyticsConfigurationHandler) throws AnalyticsRefreshException {
+        this(accountId, callContext, currencyConversionDao, recordIdDao, null, osgiKillbillAPI, osgiConfigPropertiesService, clock, analyticsConfigurationHandler);
+    }
 
     public BusinessContextFactory(final UUID accountId,
                                   final CallContext callContext,
                                   final CurrencyConversionDao currencyConversionDao,
+                                  @Nullable final RecordIdDao recordIdDao,
+                                  @Nullable final RecordIdCache recordIdCache,
                                   final OSGIKillbillAPI osgiKillbillAPI,
                                   final OSGIConfigPropertiesService osgiConfigPropertiesService,
                                   final Clock clock,
                                   final AnalyticsConfigurationHandler analyticsConfigurationHandler) throws AnalyticsRefreshException {
-        super(currencyConversionDao, osgiKillbillAPI, osgiConfigPropertiesService, clock);
+        super(currencyConversionDao, recordIdCache, osgiKillbillAPI, osgiConfigPropertiesService, clock);
         this.accountId = accountId;
         this.callContext = callContext;
+        this.recordIdDao = recordIdDao;
         this.analyticsConfigurationHandler = analyticsConfigurationHandler;
 
+        final String batchSizeMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(ANALYTICS_REFRESH_BATCH_SIZE_PROPERTY));
+        this.batchSize = batchSizeMaybeNull == null ? DEFAULT_REFRESH_BATCH_SIZE : Math.max(1, Integer.valueOf(batchSizeMaybeNull));
+        this.incrementalRefresh = Boolean.valueOf(osgiConfigPropertiesService.getString(ANALYTICS_REFRESH_INCREMENTAL_PROPERTY));
+        this.splitTransactions = Boolean.valueOf(osgiConfigPropertiesService.getString(ANALYTICS_REFRESH_SPLIT_TRANSACTIONS_PROPERTY));
+        this.materializeMrrDaily = Boolean.valueOf(osgiConfigPropertiesService.getString(ANALYTICS_REFRESH_MATERIALIZE_MRR_DAILY_PROPERTY));
+
         // Always needed
         this.accountRecordId = getAccountRecordId(accountId, callContext);
         this.accountAuditLogs = getAccountAuditLogs(accountId, callContext);
         this.tenantRecordId = getTenantRecordId(callContext);
-        this.reportGroup = getReportGroup(getAccountTags());
     }
 
     public UUID getAccountId() {
@@ -148,10 +219,137 @@ public class BusinessContextFactory extends BusinessFactoryBase {
         return callContext;
     }
 
-    public BusinessModelDaoBase.ReportGroup getReportGroup() {
+    // Derived from the account tags (see ACCOUNT_TAGS lookup)
+    public BusinessModelDaoBase.ReportGroup getReportGroup() throws AnalyticsRefreshException {
+        if (reportGroup == null) {
+            reportGroup = getReportGroup(getAccountTags());
+        }
         return reportGroup;
     }
 
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public boolean isIncrementalRefresh() {
+        return incrementalRefresh;
+    }
+
+    public boolean isSplitTransactions() {
+        return splitTransactions;
+    }
+
+    // Last day to materialize in report_mrr_daily (i.e. today), null if disabled
+    @Nullable
+    public LocalDate getMrrDailyLastDay() {
+        return materializeMrrDaily ? clock.getUTCToday() : null;
+    }
+
+    /**
+     * Fetch concurrently, on the specified executor, the Kill Bill objects needed to refresh the specified group.
+     * The lookups are independent from each other, so the latency becomes the one of the slowest lookup
+     * instead of the sum of all of them. Anything not pre-fetched is still lazily retrieved by the getters.
+     *
+     * @param group    group of analytics tables about to be refreshed
+     * @param executor executor to run the lookups on
+     * @throws AnalyticsRefreshException if any lookup fails
+     */
+    public void prefetch(final Group group, final Executor executor) throws AnalyticsRefreshException {
+        final EnumSet<Lookup> lookups = getLookups(group);
+        if (lookups.isEmpty()) {
+            return;
+        }
+
+        final CompletionService<Void> completionService = new ExecutorCompletionService<Void>(executor);
+        for (final Lookup lookup : lookups) {
+            completionService.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws Exception {
+                    fetch(lookup);
+                    return null;
+                }
+            });
+        }
+        for (final Lookup ignored : lookups) {
+            try {
+                completionService.take().get();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new AnalyticsRefreshException(e);
+            } catch (final ExecutionException e) {
+                if (e.getCause() instanceof AnalyticsRefreshException) {
+                    throw (AnalyticsRefreshException) e.getCause();
+                }
+                throw new AnalyticsRefreshException(e);
+            }
+        }
+    }
+
+    @VisibleForTesting
+    static EnumSet<Lookup> getLookups(final Group group) {
+        switch (group) {
+            case ALL:
+                return EnumSet.allOf(Lookup.class);
+            // Account tags are needed by all groups, for the report group
+            case SUBSCRIPTIONS:
+                // The account record is refreshed as well
+                return EnumSet.of(Lookup.ACCOUNT, Lookup.ACCOUNT_TAGS, Lookup.ACCOUNT_BALANCE, Lookup.ACCOUNT_BUNDLES, Lookup.INVOICES, Lookup.PAYMENTS, Lookup.CURRENCY_CONVERTER);
+            case OVERDUE:
+                return EnumSet.of(Lookup.ACCOUNT, Lookup.ACCOUNT_TAGS, Lookup.ACCOUNT_BUNDLES);
+            case INVOICES:
+                return EnumSet.of(Lookup.ACCOUNT, Lookup.ACCOUNT_TAGS, Lookup.ACCOUNT_BALANCE, Lookup.ACCOUNT_BUNDLES, Lookup.INVOICES, Lookup.PAYMENTS, Lookup.CATALOG, Lookup.CURRENCY_CONVERTER);
+            case INVOICE_AND_PAYMENTS:
+                return EnumSet.of(Lookup.ACCOUNT, Lookup.ACCOUNT_TAGS, Lookup.ACCOUNT_BALANCE, Lookup.ACCOUNT_BUNDLES, Lookup.INVOICES, Lookup.PAYMENTS, Lookup.PAYMENT_METHODS, Lookup.CATALOG, Lookup.CURRENCY_CONVERTER);
+            case FIELDS:
+                return EnumSet.of(Lookup.ACCOUNT, Lookup.ACCOUNT_TAGS, Lookup.ACCOUNT_BUNDLES, Lookup.CUSTOM_FIELDS);
+            case OTHER:
+            default:
+                return EnumSet.noneOf(Lookup.class);
+        }
+    }
+
+    private void fetch(final Lookup lookup) throws AnalyticsRefreshException {
+        switch (lookup) {
+            case ACCOUNT:
+                getAccount();
+                getParentAccount();
+                break;
+            case ACCOUNT_TAGS:
+                getReportGroup();
+                break;
+            case ACCOUNT_BALANCE:
+                getAccountBalance();
+                break;
+            case ACCOUNT_BUNDLES:
+                getAccountBundles();
+                break;
+            case INVOICES:
+                getAccountInvoices();
+                break;
+            case PAYMENTS:
+                getAccountPayments();
+                getAccountInvoicePayments();
+                break;
+            case PAYMENT_METHODS:
+                getPaymentMethod(null);
+                break;
+            case TAG_DEFINITIONS:
+                getTagDefinition(null);
+                break;
+            case CUSTOM_FIELDS:
+                getAccountCustomFields();
+                break;
+            case CATALOG:
+                getCatalog();
+                break;
+            case CURRENCY_CONVERTER:
+                getCurrencyConverter();
+                break;
+            default:
+                break;
+        }
+    }
+
     public PluginPropertiesManager getPluginPropertiesManager() {
         if (pluginPropertiesManager == null) {
             synchronized (this) {
@@ -178,7 +376,7 @@ public class BusinessContextFactory extends BusinessFactoryBase {
 
     public Account getAccount() throws AnalyticsRefreshException {
         if (account == null) {
-            synchronized (this) {
+            synchronized (accountLock) {
                 if (account == null) {
                     account = getAccount(accountId, callContext);
                 }
@@ -189,7 +387,7 @@ public class BusinessContextFactory extends BusinessFactoryBase {
 
     public Account getParentAccount() throws AnalyticsRefreshException {
         if (account != null && account.getParentAccountId() != null && parentAccount == null) {
-            synchronized (this) {
+            synchronized (accountLock) {
                 if (account != null && account.getParentAccountId() != null && parentAccount == null) {
                     parentAccount = getAccount(account.getParentAccountId(), callContext);
                 }
@@ -200,7 +398,7 @@ public class BusinessContextFactory extends BusinessFactoryBase {
 
     public BigDecimal getAccountBalance() throws AnalyticsRefreshException {
         if (accountBalance == null) {
-            synchronized (this) {
+            synchronized (accountBalanceLock) {
                 if (accountBalance == null) {
                     accountBalance = getAccountBalance(accountId, callContext);
                 }
@@ -211,7 +409,7 @@ public class BusinessContextFactory extends BusinessFactoryBase {
 
     public Iterable<SubscriptionBundle> getAccountBundles() throws AnalyticsRefreshException {
         if (accountBundles == null) {
-            synchronized (this) {
+            synchronized (accountBundlesLock) {
                 if (accountBundles == null) {
                     accountBundles = getSubscriptionBundlesForAccount(accountId, callContext);
                 }
@@ -222,7 +420,7 @@ public class BusinessContextFactory extends BusinessFactoryBase {
 
     public Iterable<SubscriptionEvent> getAccountBlockingStates() throws AnalyticsRefreshException {
         if (accountBlockingStates == null) {
-            synchronized (this) {
+            synchronized (accountBundlesLock) {
                 if (accountBlockingStates == null) {
                     // Find all subscription events for that account
                     final Iterable<SubscriptionEvent> subscriptionEvents = Iterables.<SubscriptionEvent>concat(Iterables.<SubscriptionBundle, List<SubscriptionEvent>>transform(getAccountBundles(),
@@ -260,7 +458,7 @@ public class BusinessContextFactory extends BusinessFactoryBase {
 
     public Invoice getInvoice(final UUID invoiceId) throws AnalyticsRefreshException {
         if (invoices.get(invoiceId) == null) {
-            synchronized (this) {
+            synchronized (invoicesLock) {
                 if (invoices.get(invoiceId) == null) {
                     final Invoice invoice = getInvoice(invoiceId, callContext);
                     invoices.put(invoiceId, invoice);
@@ -276,7 +474,7 @@ public class BusinessContextFactory extends BusinessFactoryBase {
 
     public Invoice getInvoiceByInvoiceItemId(final UUID invoiceItemId) throws AnalyticsRefreshException {
         if (invoicesByInvoiceItem.get(invoiceItemId) == null) {
-            synchronized (this) {
+            synchronized (invoicesLock) {
                 if (invoicesByInvoiceItem.get(invoiceItemId) == null) {
                     final Invoice invoice = getInvoiceByInvoiceItemId(invoiceItemId, callContext);
                     invoicesByInvoiceItem.put(invoiceItemId, invoice);
@@ -290,14 +488,14 @@ public class BusinessContextFactory extends BusinessFactoryBase {
 
     public Iterable<Invoice> getAccountInvoices() throws AnalyticsRefreshException {
         if (accountInvoices == null) {
-            synchronized (this) {
+            synchronized (invoicesLock) {
                 if (accountInvoices == null) {
-                    accountInvoices = getInvoicesByAccountId(accountId, callContext);
+                    final Iterable<Invoice> invoicesForAccount = getInvoicesByAccountId(accountId, callContext);
 
                     if (invoicesByInvoiceItem == null) {
                         invoicesByInvoiceItem = new HashMap<UUID, Invoice>();
                     }
-                    for (final Invoice invoice : accountInvoices) {
+                    for (final Invoice invoice : invoicesForAccount) {
                         for (final InvoiceItem invoiceItem : invoice.getInvoiceItems()) {
                             invoicesByInvoiceItem.put(invoiceItem.getId(), invoice);
                         }
@@ -306,9 +504,12 @@ public class BusinessContextFactory extends BusinessFactoryBase {
                     if (invoices == null) {
                         invoices = new HashMap<UUID, Invoice>();
                     }
-                    for (final Invoice invoice : accountInvoices) {
+                    for (final Invoice invoice : invoicesForAccount) {
                         invoices.put(invoice.getId(), invoice);
                     }
+
+                    // Only publish the invoices once the lookup maps are populated
+                    accountInvoices = invoicesForAccount;
                 }
             }
         }
@@ -317,7 +518,7 @@ public class BusinessContextFactory extends BusinessFactoryBase {
 
     public Map<UUID, List<InvoicePayment>> getAccountInvoicePayments() throws AnalyticsRefreshException {
         if (accountInvoicePayments == null) {
-            synchronized (this) {
+            synchronized (paymentsLock) {
                 if (accountInvoicePayments == null) {
                     accountInvoicePayments = getAccountInvoicePayments(getAccountPayments(), callContext);
                 }
@@ -328,7 +529,7 @@ public class BusinessContextFactory extends BusinessFactoryBase {
 
     public Iterable<Payment> getAccountPayments() throws AnalyticsRefreshException {
         if (accountPayments == null) {
-            synchronized (this) {
+            synchronized (paymentsLock) {
                 if (accountPayments == null) {
                     accountPayments = getPaymentsWithPluginInfoByAccountId(accountId, callContext);
                 }
@@ -339,12 +540,14 @@ public class BusinessContextFactory extends BusinessFactoryBase {
 
     public PaymentMethod getPaymentMethod(final UUID paymentMethodId) throws AnalyticsRefreshException {
         if (accountPaymentMethods == null) {
-            synchronized (this) {
+            synchronized (paymentMethodsLock) {
                 if (accountPaymentMethods == null) {
-                    accountPaymentMethods = new HashMap<UUID, PaymentMethod>();
+                    final Map<UUID, PaymentMethod> paymentMethods = new HashMap<UUID, PaymentMethod>();
                     for (final PaymentMethod paymentMethod : getPaymentMethodsForAccount(accountId, callContext)) {
-                        accountPaymentMethods.put(paymentMethod.getId(), paymentMethod);
+                        paymentMethods.put(paymentMethod.getId(), paymentMethod);
                     }
+                    // Only publish the map once fully populated
+                    accountPaymentMethods = paymentMethods;
                 }
             }
         }
@@ -353,7 +556,7 @@ public class BusinessContextFactory extends BusinessFactoryBase {
 
     public Iterable<Tag> getAccountTags() throws AnalyticsRefreshException {
         if (accountTags == null) {
-            synchronized (this) {
+            synchronized (tagsLock) {
                 if (accountTags == null) {
                     accountTags = getTagsForAccount(accountId, callContext);
                 }
@@ -364,7 +567,7 @@ public class BusinessContextFactory extends BusinessFactoryBase {
 
     public Iterable<CustomField> getAccountCustomFields() throws AnalyticsRefreshException {
         if (accountCustomFields == null) {
-            synchronized (this) {
+            synchronized (customFieldsLock) {
                 if (accountCustomFields == null) {
                     accountCustomFields = getFieldsForAccount(accountId, callContext);
                 }
@@ -487,7 +690,8 @@ public class BusinessContextFactory extends BusinessFactoryBase {
         if (bundleRecordIds.get(bundleId) == null) {
             synchronized (this) {
                 if (bundleRecordIds.get(bundleId) == null) {
-                    bundleRecordIds.put(bundleId, getBundleRecordId(bundleId, callContext));
+                    final Long recordId = getResolvedRecordId(bundleId, ObjectType.BUNDLE);
+                    bundleRecordIds.put(bundleId, recordId != null ? recordId : getBundleRecordId(bundleId, callContext));
                 }
             }
         }
@@ -498,7 +702,8 @@ public class BusinessContextFactory extends BusinessFactoryBase {
         if (subscriptionEventRecordIds.get(subscriptionEventId) == null) {
             synchronized (this) {
                 if (subscriptionEventRecordIds.get(subscriptionEventId) == null) {
-                    subscriptionEventRecordIds.put(subscriptionEventId, getSubscriptionEventRecordId(subscriptionEventId, objectType, callContext));
+                    final Long recordId = getResolvedRecordId(subscriptionEventId, objectType);
+                    subscriptionEventRecordIds.put(subscriptionEventId, recordId != null ? recordId : getSubscriptionEventRecordId(subscriptionEventId, objectType, callContext));
                 }
             }
         }
@@ -509,7 +714,8 @@ public class BusinessContextFactory extends BusinessFactoryBase {
         if (blockingStateRecordIds.get(blockingStateId) == null) {
             synchronized (this) {
                 if (blockingStateRecordIds.get(blockingStateId) == null) {
-                    blockingStateRecordIds.put(blockingStateId, getBlockingStateRecordId(blockingStateId, callContext));
+                    final Long recordId = getResolvedRecordId(blockingStateId, ObjectType.BLOCKING_STATES);
+                    blockingStateRecordIds.put(blockingStateId, recordId != null ? recordId : getBlockingStateRecordId(blockingStateId, callContext));
                 }
             }
         }
@@ -520,7 +726,8 @@ public class BusinessContextFactory extends BusinessFactoryBase {
         if (invoiceRecordIds.get(invoiceId) == null) {
             synchronized (this) {
                 if (invoiceRecordIds.get(invoiceId) == null) {
-                    invoiceRecordIds.put(invoiceId, getInvoiceRecordId(invoiceId, callContext));
+                    final Long recordId = getResolvedRecordId(invoiceId, ObjectType.INVOICE);
+                    invoiceRecordIds.put(invoiceId, recordId != null ? recordId : getInvoiceRecordId(invoiceId, callContext));
                 }
             }
         }
@@ -531,7 +738,8 @@ public class BusinessContextFactory extends BusinessFactoryBase {
         if (invoiceItemRecordIds.get(invoiceItemId) == null) {
             synchronized (this) {
                 if (invoiceItemRecordIds.get(invoiceItemId) == null) {
-                    invoiceItemRecordIds.put(invoiceItemId, getInvoiceItemRecordId(invoiceItemId, callContext));
+                    final Long recordId = getResolvedRecordId(invoiceItemId, ObjectType.INVOICE_ITEM);
+                    invoiceItemRecordIds.put(invoiceItemId, recordId != null ? recordId : getInvoiceItemRecordId(invoiceItemId, callContext));
                 }
             }
         }
@@ -542,7 +750,8 @@ public class BusinessContextFactory extends BusinessFactoryBase {
         if (invoicePaymentRecordIds.get(invoicePaymentId) == null) {
             synchronized (this) {
                 if (invoicePaymentRecordIds.get(invoicePaymentId) == null) {
-                    invoicePaymentRecordIds.put(invoicePaymentId, getInvoicePaymentRecordId(invoicePaymentId, callContext));
+                    final Long recordId = getResolvedRecordId(invoicePaymentId, ObjectType.INVOICE_PAYMENT);
+                    invoicePaymentRecordIds.put(invoicePaymentId, recordId != null ? recordId : getInvoicePaymentRecordId(invoicePaymentId, callContext));
                 }
             }
         }
@@ -553,7 +762,8 @@ public class BusinessContextFactory extends BusinessFactoryBase {
         if (paymentRecordIds.get(paymentId) == null) {
             synchronized (this) {
                 if (paymentRecordIds.get(paymentId) == null) {
-                    paymentRecordIds.put(paymentId, getPaymentRecordId(paymentId, callContext));
+                    final Long recordId = getResolvedRecordId(paymentId, ObjectType.PAYMENT);
+                    paymentRecordIds.put(paymentId, recordId != null ? recordId : getPaymentRecordId(paymentId, callContext));
                 }
             }
         }
@@ -564,7 +774,8 @@ public class BusinessContextFactory extends BusinessFactoryBase {
         if (tagRecordIds.get(tagId) == null) {
             synchronized (this) {
                 if (tagRecordIds.get(tagId) == null) {
-                    tagRecordIds.put(tagId, getTagRecordId(tagId, callContext));
+                    final Long recordId = getResolvedRecordId(tagId, ObjectType.TAG);
+                    tagRecordIds.put(tagId, recordId != null ? recordId : getTagRecordId(tagId, callContext));
                 }
             }
         }
@@ -575,13 +786,28 @@ public class BusinessContextFactory extends BusinessFactoryBase {
         if (customFieldRecordIds.get(customFieldId) == null) {
             synchronized (this) {
                 if (customFieldRecordIds.get(customFieldId) == null) {
-                    customFieldRecordIds.put(customFieldId, getFieldRecordId(customFieldId, callContext));
+                    final Long recordId = getResolvedRecordId(customFieldId, ObjectType.CUSTOM_FIELD);
+                    customFieldRecordIds.put(customFieldId, recordId != null ? recordId : getFieldRecordId(customFieldId, callContext));
                 }
             }
         }
         return customFieldRecordIds.get(customFieldId);
     }
 
+    // Bulk resolve the record ids for all objects of that type in the account, if possible (null otherwise)
+    private Long getResolvedRecordId(final UUID objectId, final ObjectType objectType) {
+        if (recordIdDao == null || !RecordIdDao.isSupported(objectType)) {
+            return null;
+        }
+
+        Long recordId = recordIdDao.getCachedRecordId(objectId, objectType, accountRecordId, tenantRecordId);
+        // Unknown object (e.g. created since the last refresh): reload all objects of that type, at most once per refresh
+        if (recordId == null && reloadedRecordIdObjectTypes.add(objectType)) {
+            recordId = recordIdDao.reloadRecordIds(objectType, accountRecordId, tenantRecordId).get(objectId);
+        }
+        return recordId;
+    }
+
     public SubscriptionBundle getLatestSubscriptionBundleForExternalKey(final String externalKey) throws AnalyticsRefreshException {
         if (latestSubscriptionBundleForExternalKeys.get(externalKey) == null) {
             synchronized (this) {
@@ -595,12 +821,14 @@ public class BusinessContextFactory extends BusinessFactoryBase {
 
     public TagDefinition getTagDefinition(final UUID tagDefinitionId) throws AnalyticsRefreshException {
         if (tagDefinitions.isEmpty()) {
-            synchronized (this) {
+            synchronized (tagDefinitionsLock) {
                 if (tagDefinitions.isEmpty()) {
-                    tagDefinitions = new HashMap<UUID, TagDefinition>();
+                    final Map<UUID, TagDefinition> allTagDefinitions = new HashMap<UUID, TagDefinition>();
                     for (final TagDefinition tagDefinition : getTagDefinitions(callContext)) {
-                        tagDefinitions.put(tagDefinition.getId(), tagDefinition);
+                        allTagDefinitions.put(tagDefinition.getId(), tagDefinition);
                     }
+                    // Only publish the map once fully populated
+                    tagDefinitions = allTagDefinitions;
                 }
             }
         }
@@ -619,7 +847,7 @@ public class BusinessContextFactory extends BusinessFactoryBase {
 
     private VersionedCatalog getCatalog() throws AnalyticsRefreshException {
         if (catalog == null) {
-            synchronized (this) {
+            synchronized (catalogLock) {
                 if (catalog == null) {
                     catalog = getCatalog(callContext);
                 }
@@ -627,4 +855,19 @@ public class BusinessContextFactory extends BusinessFactoryBase {
         }
         return catalog;
     }
+
+    @VisibleForTesting
+    enum Lookup {
+        ACCOUNT,
+        ACCOUNT_TAGS,
+        ACCOUNT_BALANCE,
+        ACCOUNT_BUNDLES,
+        INVOICES,
+        PAYMENTS,
+        PAYMENT_METHODS,
+        TAG_DEFINITIONS,
+        CUSTOM_FIELDS,
+        CATALOG,
+        CURRENCY_CONVERTER
+    }
 }
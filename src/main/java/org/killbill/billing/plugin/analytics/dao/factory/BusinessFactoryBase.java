@@ -25,6 +25,8 @@ import java.util.List;
 import java.util.Map;
 import java.util.UUID;
 
+import javax.annotation.Nullable;
+
 import org.joda.time.DateTime;
 import org.killbill.billing.ErrorCode;
 import org.killbill.billing.ObjectType;
@@ -55,6 +57,7 @@ import org.killbill.billing.payment.api.PaymentMethod;
 import org.killbill.billing.payment.api.PluginProperty;
 import org.killbill.billing.plugin.analytics.AnalyticsRefreshException;
 import org.killbill.billing.plugin.analytics.dao.CurrencyConversionDao;
+import org.killbill.billing.plugin.analytics.dao.RecordIdCache;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessModelDaoBase.ReportGroup;
 import org.killbill.billing.plugin.analytics.utils.CurrencyConverter;
 import org.killbill.billing.util.api.AuditLevel;
@@ -96,8 +99,17 @@ public abstract class BusinessFactoryBase {
 
     private final String referenceCurrency;
     private final CurrencyConversionDao currencyConversionDao;
+    private final RecordIdCache recordIdCache;
+
+    public BusinessFactoryBase(final CurrencyConversionDao currencyConversionDao,
+                               final OSGIKillbillAPI osgiKillbillAPI,
+                               final OSGIConfigPropertiesService osgiConfigPropertiesService,
+                               final Clock clock) {
+        this(currencyConversionDao, null, osgiKillbillAPI, osgiConfigPropertiesService, clock);
+    }
 
     public BusinessFactoryBase(final CurrencyConversionDao currencyConversionDao,
+                               @Nullable final RecordIdCache recordIdCache,
                                final OSGIKillbillAPI osgiKillbillAPI,
                                final OSGIConfigPropertiesService osgiConfigPropertiesService,
                                final Clock clock) {
@@ -105,6 +117,7 @@ public abstract class BusinessFactoryBase {
         this.clock = clock;
         this.referenceCurrency = MoreObjects.firstNonNull(Strings.emptyToNull(osgiConfigPropertiesService.getString(ANALYTICS_REFERENCE_CURRENCY_PROPERTY)), "USD");
         this.currencyConversionDao = currencyConversionDao;
+        this.recordIdCache = recordIdCache;
     }
 
     //
@@ -127,6 +140,9 @@ public abstract class BusinessFactoryBase {
             return INTERNAL_TENANT_RECORD_ID;
         } else {
             final RecordIdApi recordIdUserApi = getRecordIdUserApi();
+            if (recordIdCache != null) {
+                return recordIdCache.getTenantRecordId(context.getTenantId(), recordIdUserApi, context);
+            }
             return recordIdUserApi.getRecordId(context.getTenantId(), ObjectType.TENANT, context);
         }
     }
@@ -165,7 +181,9 @@ public abstract class BusinessFactoryBase {
 
     protected Long getAccountRecordId(final UUID accountId, final TenantContext context) throws AnalyticsRefreshException {
         final RecordIdApi recordIdUserApi = getRecordIdUserApi();
-        final Long accountRecordIdOrNull = recordIdUserApi.getRecordId(accountId, ObjectType.ACCOUNT, context);
+        final Long accountRecordIdOrNull = recordIdCache != null ?
+                                           recordIdCache.getAccountRecordId(accountId, recordIdUserApi, context) :
+                                           recordIdUserApi.getRecordId(accountId, ObjectType.ACCOUNT, context);
         // Never return null, to make sure indexes can be used (see https://github.com/killbill/killbill-analytics-plugin/issues/59)
         return accountRecordIdOrNull == null ? -1L : accountRecordIdOrNull;
     }
@@ -47,16 +47,14 @@ import org.killbill.billing.plugin.analytics.dao.model.BusinessInvoiceItemBaseMo
 import org.killbill.billing.plugin.analytics.dao.model.BusinessInvoiceModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessModelDaoBase.ReportGroup;
 import org.killbill.billing.plugin.analytics.utils.CurrencyConverter;
+import org.killbill.billing.plugin.analytics.utils.InvoiceItemsIndex;
 import org.killbill.billing.util.audit.AuditLog;
 import org.killbill.billing.util.tag.ControlTagType;
 import org.killbill.billing.util.tag.Tag;
 
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.base.Predicate;
 import com.google.common.base.Strings;
 import com.google.common.collect.ArrayListMultimap;
-import com.google.common.collect.Collections2;
-import com.google.common.collect.Iterables;
 import com.google.common.collect.Multimap;
 
 import static org.killbill.billing.plugin.analytics.utils.BusinessInvoiceUtils.isAccountCreditItem;
@@ -105,39 +103,24 @@ public class BusinessInvoiceFactory {
             }
         }
 
+        // Index the items once, to avoid scanning the invoice for each item
+        final InvoiceItemsIndex invoiceItemsIndex = new InvoiceItemsIndex(invoice.getInvoiceItems());
+
         // Create the business invoice items
         final Multimap<UUID, BusinessInvoiceItemBaseModelDao> businessInvoiceItemsForInvoiceId = ArrayListMultimap.<UUID, BusinessInvoiceItemBaseModelDao>create();
         for (final InvoiceItem invoiceItem : invoice.getInvoiceItems()) {
             final AuditLog creationAuditLog = invoiceItem.getId() != null ? businessContextFactory.getInvoiceItemCreationAuditLog(invoiceItem.getId()) : null;
             final boolean isWrittenOff = writtenOffInvoices.contains(invoiceItem.getInvoiceId());
 
-            final Collection<InvoiceItem> otherInvoiceItems = Collections2.filter(invoice.getInvoiceItems(),
-                                                                                  new Predicate<InvoiceItem>() {
-                                                                                      @Override
-                                                                                      public boolean apply(final InvoiceItem input) {
-                                                                                          return !input.getId().equals(invoiceItem.getId());
-                                                                                      }
-                                                                                  }
-                                                                                 );
-            InvoiceItem linkedInvoiceItem = null;
-            if (invoiceItem.getLinkedItemId() != null) {
-                // Try to find the linked item on that invoice first
-                linkedInvoiceItem = Iterables.tryFind(invoice.getInvoiceItems(),
-                                                      new Predicate<InvoiceItem>() {
-                                                          @Override
-                                                          public boolean apply(final InvoiceItem input) {
-                                                              return input.getId().equals(invoiceItem.getLinkedItemId());
-                                                          }
-                                                      })
-                                             .orNull();
-                if (linkedInvoiceItem == null) {
-                    // We need to go back to the database
-                    final Invoice linkedInvoice = businessContextFactory.getInvoiceByInvoiceItemId(invoiceItem.getLinkedItemId());
-                    for (final InvoiceItem invoiceItemOnLinkedInvoice : linkedInvoice.getInvoiceItems()) {
-                        if (invoiceItem.getLinkedItemId().equals(invoiceItemOnLinkedInvoice.getId())) {
-                            linkedInvoiceItem = invoiceItemOnLinkedInvoice;
-                            break;
-                        }
+            // Try to find the linked item on that invoice first
+            InvoiceItem linkedInvoiceItem = invoiceItemsIndex.getLinkedInvoiceItem(invoiceItem);
+            if (linkedInvoiceItem == null && invoiceItem.getLinkedItemId() != null) {
+                // We need to go back to the database
+                final Invoice linkedInvoice = businessContextFactory.getInvoiceByInvoiceItemId(invoiceItem.getLinkedItemId());
+                for (final InvoiceItem invoiceItemOnLinkedInvoice : linkedInvoice.getInvoiceItems()) {
+                    if (invoiceItem.getLinkedItemId().equals(invoiceItemOnLinkedInvoice.getId())) {
+                        linkedInvoiceItem = invoiceItemOnLinkedInvoice;
+                        break;
                     }
                 }
             }
@@ -146,7 +129,7 @@ public class BusinessInvoiceFactory {
                                                                                                           account,
                                                                                                           invoice,
                                                                                                           invoiceItem,
-                                                                                                          otherInvoiceItems,
+                                                                                                          invoiceItemsIndex,
                                                                                                           linkedInvoiceItem,
                                                                                                           isWrittenOff,
                                                                                                           bundles,
@@ -202,6 +185,9 @@ public class BusinessInvoiceFactory {
             allInvoiceItems.get(invoice.getId()).addAll(invoice.getInvoiceItems());
         }
 
+        // Index all items once (by id and invoice id), so that linking items is linear in the number of items
+        final InvoiceItemsIndex invoiceItemsIndex = new InvoiceItemsIndex(allInvoiceItems.values());
+
         // Lookup once all SubscriptionBundle for that account (this avoids expensive lookups for each item)
         final Iterable<SubscriptionBundle> bundlesForAccount = businessContextFactory.getAccountBundles();
         final Map<UUID, SubscriptionBundle> bundles = new LinkedHashMap<UUID, SubscriptionBundle>();
@@ -231,7 +217,7 @@ public class BusinessInvoiceFactory {
                     final boolean isWrittenOff = writtenOffInvoices.contains(invoiceItem.getInvoiceId());
                     return createBusinessInvoiceItem(businessContextFactory,
                                                      invoiceItem,
-                                                     allInvoiceItems,
+                                                     invoiceItemsIndex,
                                                      invoiceIdToInvoiceMappings,
                                                      isWrittenOff,
                                                      account,
@@ -310,7 +296,7 @@ public class BusinessInvoiceFactory {
 
     private BusinessInvoiceItemBaseModelDao createBusinessInvoiceItem(final BusinessContextFactory businessContextFactory,
                                                                       final InvoiceItem invoiceItem,
-                                                                      final Multimap<UUID, InvoiceItem> allInvoiceItemsAcrossAllInvoices,
+                                                                      final InvoiceItemsIndex invoiceItemsIndex,
                                                                       final Map<UUID, Invoice> invoiceIdToInvoiceMappings,
                                                                       final boolean isWrittenOff,
                                                                       final Account account,
@@ -321,27 +307,12 @@ public class BusinessInvoiceFactory {
                                                                       final Long tenantRecordId,
                                                                       final ReportGroup reportGroup) throws AnalyticsRefreshException {
         final Invoice invoice = invoiceIdToInvoiceMappings.get(invoiceItem.getInvoiceId());
-        final Collection<InvoiceItem> otherInvoiceItems = Collections2.filter(allInvoiceItemsAcrossAllInvoices.values(),
-                                                                              new Predicate<InvoiceItem>() {
-                                                                                  @Override
-                                                                                  public boolean apply(final InvoiceItem input) {
-                                                                                      return !input.getId().equals(invoiceItem.getId()) &&
-                                                                                             input.getInvoiceId().equals(invoiceItem.getInvoiceId());
-                                                                                  }
-                                                                              }
-                                                                             );
-        final InvoiceItem linkedInvoiceItem = Iterables.find(allInvoiceItemsAcrossAllInvoices.values(), new Predicate<InvoiceItem>() {
-            @Override
-            public boolean apply(final InvoiceItem input) {
-                return invoiceItem.getLinkedItemId() != null && invoiceItem.getLinkedItemId().equals(input.getId());
-
-            }
-        }, null);
+        final InvoiceItem linkedInvoiceItem = invoiceItemsIndex.getLinkedInvoiceItem(invoiceItem);
         return createBusinessInvoiceItem(businessContextFactory,
                                          account,
                                          invoice,
                                          invoiceItem,
-                                         otherInvoiceItems,
+                                         invoiceItemsIndex,
                                          linkedInvoiceItem,
                                          isWrittenOff,
                                          bundles,
@@ -357,7 +328,7 @@ public class BusinessInvoiceFactory {
                                                               final Account account,
                                                               final Invoice invoice,
                                                               final InvoiceItem invoiceItem,
-                                                              final Collection<InvoiceItem> otherInvoiceItems,
+                                                              final InvoiceItemsIndex invoiceItemsIndex,
                                                               // For convenience, populate empty columns using the linked item
                                                               @Nullable final InvoiceItem linkedInvoiceItem,
                                                               final boolean isWrittenOff,
@@ -397,7 +368,7 @@ public class BusinessInvoiceFactory {
         return createBusinessInvoiceItem(account,
                                          invoice,
                                          invoiceItem,
-                                         otherInvoiceItems,
+                                         invoiceItemsIndex,
                                          isWrittenOff,
                                          bundle,
                                          plan,
@@ -414,7 +385,7 @@ public class BusinessInvoiceFactory {
     BusinessInvoiceItemBaseModelDao createBusinessInvoiceItem(final Account account,
                                                               final Invoice invoice,
                                                               final InvoiceItem invoiceItem,
-                                                              final Collection<InvoiceItem> otherInvoiceItems,
+                                                              final InvoiceItemsIndex invoiceItemsIndex,
                                                               final boolean isWrittenOff,
                                                               @Nullable final SubscriptionBundle bundle,
                                                               @Nullable final Plan plan,
@@ -432,14 +403,14 @@ public class BusinessInvoiceFactory {
             businessInvoiceItemType = BusinessInvoiceItemType.ACCOUNT_CREDIT;
         } else if (isInvoiceItemAdjustmentItem(invoiceItem)) {
             businessInvoiceItemType = BusinessInvoiceItemType.INVOICE_ITEM_ADJUSTMENT;
-        } else if (isInvoiceAdjustmentItem(invoiceItem, otherInvoiceItems)) {
+        } else if (isInvoiceAdjustmentItem(invoiceItem, invoiceItemsIndex)) {
             businessInvoiceItemType = BusinessInvoiceItemType.INVOICE_ADJUSTMENT;
         } else {
             // We don't care
             return null;
         }
 
-        final ItemSource itemSource = getItemSource(invoiceItem, otherInvoiceItems, businessInvoiceItemType);
+        final ItemSource itemSource = getItemSource(invoiceItem, invoiceItemsIndex, businessInvoiceItemType);
 
         // Unused for now
         final Long secondInvoiceItemRecordId = null;
@@ -462,9 +433,9 @@ public class BusinessInvoiceFactory {
                                                       reportGroup);
     }
 
-    private ItemSource getItemSource(final InvoiceItem invoiceItem, final Collection<InvoiceItem> otherInvoiceItems, final BusinessInvoiceItemType businessInvoiceItemType) {
+    private ItemSource getItemSource(final InvoiceItem invoiceItem, final InvoiceItemsIndex invoiceItemsIndex, final BusinessInvoiceItemType businessInvoiceItemType) {
         final ItemSource itemSource;
-        if (BusinessInvoiceItemType.ACCOUNT_CREDIT.equals(businessInvoiceItemType) && !isRevenueRecognizable(invoiceItem, otherInvoiceItems)) {
+        if (BusinessInvoiceItemType.ACCOUNT_CREDIT.equals(businessInvoiceItemType) && !isRevenueRecognizable(invoiceItem, invoiceItemsIndex)) {
             // Non recognizable account credits
             itemSource = ItemSource.user;
         } else if (BusinessInvoiceItemType.INVOICE_ADJUSTMENT.equals(businessInvoiceItemType)) {
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.dao.model;
+
+import java.util.UUID;
+
+public class RecordIdModelDao {
+
+    private UUID id;
+    private Long recordId;
+
+    public RecordIdModelDao() { /* When reading from the database */ }
+
+    public RecordIdModelDao(final UUID id, final Long recordId) {
+        this.id = id;
+        this.recordId = recordId;
+    }
+
+    public UUID getId() {
+        return id;
+    }
+
+    public Long getRecordId() {
+        return recordId;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("RecordIdModelDao{");
+        sb.append("id=").append(id);
+        sb.append(", recordId=").append(recordId);
+        sb.append('}');
+        return sb.toString();
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        final RecordIdModelDao that = (RecordIdModelDao) o;
+
+        if (id != null ? !id.equals(that.id) : that.id != null) {
+            return false;
+        }
+        if (recordId != null ? !recordId.equals(that.recordId) : that.recordId != null) {
+            return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = id != null ? id.hashCode() : 0;
+        result = 31 * result + (recordId != null ? recordId.hashCode() : 0);
+        return result;
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.killbill.billing.plugin.analytics.json.Chart;
+import org.killbill.billing.plugin.analytics.reports.ReportDataWriter;
+
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Writes the charts in the same CSV format as {@link ReportsResource#writeAsCSV(Iterable, OutputStream)}, one line at a time.
+ */
+public class CsvReportDataWriter implements ReportDataWriter {
+
+    private static final ObjectWriter csvMapper = ObjectMapperProvider.getCsvWriter();
+
+    private final OutputStream out;
+
+    public CsvReportDataWriter(final OutputStream out) {
+        this.out = out;
+    }
+
+    @Override
+    public void writeChart(final Chart chart) throws IOException {
+        ReportsResource.writeAsCSV(ImmutableList.<Chart>of(chart), out);
+    }
+
+    @Override
+    public void startTable(final String title, final String tableName, final List<String> header) throws IOException {
+        out.write(csvMapper.writeValueAsBytes(header));
+    }
+
+    @Override
+    public void writeTableRow(final List<Object> row) throws IOException {
+        out.write(csvMapper.writeValueAsBytes(row));
+    }
+
+    @Override
+    public void endTable() throws IOException {
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+
+    @Override
+    public void abort() throws IOException {
+        // No way to flag the truncation in CSV
+        out.close();
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+
+import org.killbill.billing.plugin.analytics.json.Chart;
+import org.killbill.billing.plugin.analytics.reports.ReportDataWriter;
+import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao.ReportType;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Writes the charts with the Jackson streaming API, using the same layout as the materialized List&lt;Chart&gt;.
+ * <p/>
+ * Open JSON objects and arrays are never closed implicitly: an aborted report results in an invalid document.
+ */
+public class JsonReportDataWriter implements ReportDataWriter {
+
+    private final OutputStream out;
+    private final JsonGenerator generator;
+
+    public JsonReportDataWriter(final OutputStream out) throws IOException {
+        this.out = out;
+        this.generator = ObjectMapperProvider.getJsonMapper().getFactory().createGenerator(out, JsonEncoding.UTF8);
+        generator.disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+        generator.writeStartArray();
+    }
+
+    @Override
+    public void writeChart(final Chart chart) throws IOException {
+        generator.writeObject(chart);
+    }
+
+    @Override
+    public void startTable(final String title, final String tableName, final List<String> header) throws IOException {
+        // See Chart and TableDataSeries
+        generator.writeStartObject();
+        generator.writeObjectField("type", ReportType.TABLE);
+        generator.writeStringField("title", title);
+        generator.writeArrayFieldStart("data");
+        generator.writeStartObject();
+        generator.writeStringField("name", tableName);
+        generator.writeObjectField("header", header);
+        generator.writeArrayFieldStart("values");
+    }
+
+    @Override
+    public void writeTableRow(final List<Object> row) throws IOException {
+        generator.writeObject(row);
+    }
+
+    @Override
+    public void endTable() throws IOException {
+        generator.writeEndArray();
+        generator.writeEndObject();
+        generator.writeEndArray();
+        generator.writeEndObject();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            generator.writeEndArray();
+        } finally {
+            closeOutput();
+        }
+    }
+
+    @Override
+    public void abort() throws IOException {
+        closeOutput();
+    }
+
+    private void closeOutput() throws IOException {
+        try {
+            generator.close();
+        } finally {
+            // In case the generator couldn't flush its buffer
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.http;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.jooby.Result;
+import org.jooby.Results;
+import org.jooby.Status;
+import org.jooby.mvc.GET;
+import org.jooby.mvc.Path;
+import org.killbill.billing.osgi.libs.killbill.OSGIKillbillClock;
+import org.killbill.billing.plugin.analytics.api.user.AnalyticsUserApi;
+import org.killbill.billing.plugin.analytics.reports.ReportsUserApi;
+
+@Singleton
+// Handle /plugins/killbill-analytics/reports/jobs
+@Path("/reports/jobs")
+public class ReportsJobsResource extends BaseResource {
+
+    @Inject
+    public ReportsJobsResource(final AnalyticsUserApi analyticsUserApi, final ReportsUserApi reportsUserApi, final OSGIKillbillClock osgiKillbillClock) {
+        super(analyticsUserApi, reportsUserApi, osgiKillbillClock);
+    }
+
+    @GET
+    public Result doGet() {
+        return Results.with(reportsUserApi.getReportJobs(), Status.OK);
+    }
+}
@@ -21,10 +21,13 @@ package org.killbill.billing.plugin.analytics.http;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
 import java.nio.charset.Charset;
 import java.sql.SQLException;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.inject.Inject;
 import javax.inject.Named;
@@ -55,7 +58,9 @@ import org.killbill.billing.plugin.analytics.json.DataMarker;
 import org.killbill.billing.plugin.analytics.json.NamedXYTimeSeries;
 import org.killbill.billing.plugin.analytics.json.ReportConfigurationJson;
 import org.killbill.billing.plugin.analytics.json.TableDataSeries;
-import org.killbill.billing.plugin.analytics.json.XY;
+import org.killbill.billing.plugin.analytics.json.TimeSeries;
+import org.killbill.billing.plugin.analytics.reports.ReportDataWriter;
+import org.killbill.billing.plugin.analytics.reports.ReportsQueryTimeoutException;
 import org.killbill.billing.plugin.analytics.reports.ReportsUserApi;
 import org.killbill.billing.plugin.analytics.reports.analysis.Smoother;
 import org.killbill.billing.plugin.analytics.reports.analysis.Smoother.SmootherType;
@@ -88,6 +93,10 @@ public class ReportsResource extends BaseResource {
     private static final String REPORTS_SMOOTHER_NAME = "smooth";
     private static final String REPORTS_DATA_FORMAT = "format";
     private static final String REPORT_QUERY_SQL_ONLY = "sqlOnly";
+    private static final String REPORTS_STREAM = "stream";
+
+    // Size of the buffer between the thread reading the database and the one writing the response
+    private static final int STREAMING_BUFFER_SIZE = 64 * 1024;
 
     @Inject
     public ReportsResource(final AnalyticsUserApi analyticsUserApi, final ReportsUserApi reportsUserApi, final OSGIKillbillClock osgiKillbillClock) {
@@ -101,8 +110,10 @@ public class ReportsResource extends BaseResource {
                 case TIMELINE:
                     for (final DataMarker marker : cur.getData()) {
                         final NamedXYTimeSeries namedXYTimeSeries = (NamedXYTimeSeries) marker;
-                        for (final XY value : namedXYTimeSeries.getValues()) {
-                            out.write(csvMapper.writeValueAsBytes(new CSVNamedXYTimeSeries(namedXYTimeSeries.getName(), value)));
+                        final TimeSeries values = namedXYTimeSeries.getValues();
+                        for (int i = 0; i < values.size(); i++) {
+                            final Float y = Float.isNaN(values.getY(i)) ? null : values.getY(i);
+                            out.write(csvMapper.writeValueAsBytes(new CSVNamedXYTimeSeries(namedXYTimeSeries.getName(), values.formatX(i), y)));
                         }
                     }
                     break;
@@ -128,6 +139,7 @@ public class ReportsResource extends BaseResource {
                         @Named(REPORTS_SMOOTHER_NAME) final Optional<String> smoother,
                         @Named(REPORTS_DATA_FORMAT) final Optional<String> formatter,
                         @Named(REPORT_QUERY_SQL_ONLY) final Optional<Boolean> sqlOnly,
+                        @Named(REPORTS_STREAM) final Optional<Boolean> stream,
                         @Local @Named("killbill_tenant") final Tenant tenant) throws IOException {
         final TenantContext context = new PluginTenantContext(null, tenant.getId());
 
@@ -167,15 +179,43 @@ public class ReportsResource extends BaseResource {
                 out.write(("\n" + sql + "\n").getBytes(Charset.forName("UTF-8")));
             }
             return Results.with(out, Status.OK).header("Content-Type", "text/plain");
+        } else if (stream.orElse(false)) {
+            final SmootherType smootherType = Smoother.fromString(smoother.orElse(null));
+            final boolean csv = CSV_DATA_FORMAT.equals(formatter.orElse(JSON_DATA_FORMAT));
+
+            final PipedInputStream in = new PipedInputStream(STREAMING_BUFFER_SIZE);
+            final OutputStream out = new PipedOutputStream(in);
+            final ReportDataWriter writer = csv ? new CsvReportDataWriter(out) : new JsonReportDataWriter(out);
+            try {
+                reportsUserApi.streamDataForReport(rawReportNames.get(),
+                                                   startDate,
+                                                   endDate,
+                                                   smootherType,
+                                                   context,
+                                                   writer);
+            } catch (final RejectedExecutionException e) {
+                out.close();
+                in.close();
+                return Results.with(Status.SERVICE_UNAVAILABLE);
+            }
+
+            return Results.with(in, Status.OK).header("Content-Type", csv ? "text/csv" : "application/json");
         } else {
             final SmootherType smootherType = Smoother.fromString(smoother.orElse(null));
 
-            // TODO PIERRE Switch to an equivalent of StreamingOutputStream?
-            final List<Chart> results = reportsUserApi.getDataForReport(rawReportNames.get(),
-                                                                        startDate,
-                                                                        endDate,
-                                                                        smootherType,
-                                                                        context);
+            // See stream=true for large reports
+            final List<Chart> results;
+            try {
+                results = reportsUserApi.getDataForReport(rawReportNames.get(),
+                                                          startDate,
+                                                          endDate,
+                                                          smootherType,
+                                                          context);
+            } catch (final RejectedExecutionException e) {
+                return Results.with(Status.SERVICE_UNAVAILABLE);
+            } catch (final ReportsQueryTimeoutException e) {
+                return Results.with(Status.GATEWAY_TIMEOUT);
+            }
 
             final String format = formatter.orElse(JSON_DATA_FORMAT);
             if (CSV_DATA_FORMAT.equals(format)) {
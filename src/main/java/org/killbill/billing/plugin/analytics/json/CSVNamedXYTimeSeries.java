@@ -27,9 +27,13 @@ public class CSVNamedXYTimeSeries implements DataMarker {
     private final Float y;
 
     public CSVNamedXYTimeSeries(final String name, final XY value) {
+        this(name, value.getX(), value.getY());
+    }
+
+    public CSVNamedXYTimeSeries(final String name, final String x, final Float y) {
         this.name = name;
-        this.x = value.getX();
-        this.y = value.getY();
+        this.x = x;
+        this.y = y;
     }
 
     public String getName() {
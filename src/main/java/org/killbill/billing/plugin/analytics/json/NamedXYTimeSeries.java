@@ -25,19 +25,23 @@ import com.fasterxml.jackson.annotation.JsonProperty;
 public class NamedXYTimeSeries implements DataMarker {
 
     private final String name;
-    private final List<XY> values;
+    private final TimeSeries values;
 
     @JsonCreator
-    public NamedXYTimeSeries(@JsonProperty("name") final String name, @JsonProperty("values") final List<XY> values) {
+    public NamedXYTimeSeries(@JsonProperty("name") final String name, @JsonProperty("values") final TimeSeries values) {
         this.name = name;
         this.values = values;
     }
 
+    public NamedXYTimeSeries(final String name, final List<XY> values) {
+        this(name, TimeSeries.fromXYs(values));
+    }
+
     public String getName() {
         return name;
     }
 
-    public List<XY> getValues() {
+    public TimeSeries getValues() {
         return values;
     }
 }
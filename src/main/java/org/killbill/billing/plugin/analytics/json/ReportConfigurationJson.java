@@ -36,6 +36,14 @@ public class ReportConfigurationJson {
     private final String refreshProcedureName;
     private final Frequency refreshFrequency;
     private final Integer refreshHourOfDayGmt;
+    private final String refreshWatermarkColumn;
+    private final Integer refreshWindowDays;
+    private final Integer refreshPriority;
+    private final String refreshDependencies;
+    private final Integer refreshIntervalMinutes;
+    private final String refreshCron;
+    private final String refreshTimeZone;
+    private final Integer refreshJitterSeconds;
     private final SchemaJson schema;
 
     public ReportConfigurationJson(final ReportsConfigurationModelDao reportsConfigurationModelDao, @Nullable final TableMetadata table) {
@@ -47,6 +55,14 @@ public class ReportConfigurationJson {
              reportsConfigurationModelDao.getRefreshProcedureName(),
              reportsConfigurationModelDao.getRefreshFrequency(),
              reportsConfigurationModelDao.getRefreshHourOfDayGmt(),
+             reportsConfigurationModelDao.getRefreshWatermarkColumn(),
+             reportsConfigurationModelDao.getRefreshWindowDays(),
+             reportsConfigurationModelDao.getRefreshPriority(),
+             reportsConfigurationModelDao.getRefreshDependencies(),
+             reportsConfigurationModelDao.getRefreshIntervalMinutes(),
+             reportsConfigurationModelDao.getRefreshCron(),
+             reportsConfigurationModelDao.getRefreshTimeZone(),
+             reportsConfigurationModelDao.getRefreshJitterSeconds(),
              new SchemaJson(table));
     }
 
@@ -58,6 +74,14 @@ public class ReportConfigurationJson {
                                    @JsonProperty("refreshProcedureName") final String refreshProcedureName,
                                    @JsonProperty("refreshFrequency") final Frequency refreshFrequency,
                                    @JsonProperty("refreshHourOfDayGmt") final Integer refreshHourOfDayGmt,
+                                   @JsonProperty("refreshWatermarkColumn") final String refreshWatermarkColumn,
+                                   @JsonProperty("refreshWindowDays") final Integer refreshWindowDays,
+                                   @JsonProperty("refreshPriority") final Integer refreshPriority,
+                                   @JsonProperty("refreshDependencies") final String refreshDependencies,
+                                   @JsonProperty("refreshIntervalMinutes") final Integer refreshIntervalMinutes,
+                                   @JsonProperty("refreshCron") final String refreshCron,
+                                   @JsonProperty("refreshTimeZone") final String refreshTimeZone,
+                                   @JsonProperty("refreshJitterSeconds") final Integer refreshJitterSeconds,
                                    @JsonProperty("schema") final SchemaJson schema) {
         this.recordId = recordId;
         this.reportName = reportName;
@@ -67,6 +91,14 @@ public class ReportConfigurationJson {
         this.refreshProcedureName = refreshProcedureName;
         this.refreshFrequency = refreshFrequency;
         this.refreshHourOfDayGmt = refreshHourOfDayGmt;
+        this.refreshWatermarkColumn = refreshWatermarkColumn;
+        this.refreshWindowDays = refreshWindowDays;
+        this.refreshPriority = refreshPriority;
+        this.refreshDependencies = refreshDependencies;
+        this.refreshIntervalMinutes = refreshIntervalMinutes;
+        this.refreshCron = refreshCron;
+        this.refreshTimeZone = refreshTimeZone;
+        this.refreshJitterSeconds = refreshJitterSeconds;
         this.schema = schema;
     }
 
@@ -98,6 +130,38 @@ public class ReportConfigurationJson {
         return refreshHourOfDayGmt;
     }
 
+    public String getRefreshWatermarkColumn() {
+        return refreshWatermarkColumn;
+    }
+
+    public Integer getRefreshWindowDays() {
+        return refreshWindowDays;
+    }
+
+    public Integer getRefreshPriority() {
+        return refreshPriority;
+    }
+
+    public String getRefreshDependencies() {
+        return refreshDependencies;
+    }
+
+    public Integer getRefreshIntervalMinutes() {
+        return refreshIntervalMinutes;
+    }
+
+    public String getRefreshCron() {
+        return refreshCron;
+    }
+
+    public String getRefreshTimeZone() {
+        return refreshTimeZone;
+    }
+
+    public Integer getRefreshJitterSeconds() {
+        return refreshJitterSeconds;
+    }
+
     public ReportType getReportType() {
         return reportType;
     }
@@ -117,6 +181,14 @@ public class ReportConfigurationJson {
         sb.append(", refreshProcedureName='").append(refreshProcedureName).append('\'');
         sb.append(", refreshFrequency=").append(refreshFrequency);
         sb.append(", refreshHourOfDayGmt=").append(refreshHourOfDayGmt);
+        sb.append(", refreshWatermarkColumn='").append(refreshWatermarkColumn).append('\'');
+        sb.append(", refreshWindowDays=").append(refreshWindowDays);
+        sb.append(", refreshPriority=").append(refreshPriority);
+        sb.append(", refreshDependencies='").append(refreshDependencies).append('\'');
+        sb.append(", refreshIntervalMinutes=").append(refreshIntervalMinutes);
+        sb.append(", refreshCron='").append(refreshCron).append('\'');
+        sb.append(", refreshTimeZone='").append(refreshTimeZone).append('\'');
+        sb.append(", refreshJitterSeconds=").append(refreshJitterSeconds);
         sb.append(", schema=").append(schema);
         sb.append('}');
         return sb.toString();
@@ -154,6 +226,30 @@ public class ReportConfigurationJson {
         if (reportType != that.reportType) {
             return false;
         }
+        if (refreshWatermarkColumn != null ? !refreshWatermarkColumn.equals(that.refreshWatermarkColumn) : that.refreshWatermarkColumn != null) {
+            return false;
+        }
+        if (refreshWindowDays != null ? !refreshWindowDays.equals(that.refreshWindowDays) : that.refreshWindowDays != null) {
+            return false;
+        }
+        if (refreshPriority != null ? !refreshPriority.equals(that.refreshPriority) : that.refreshPriority != null) {
+            return false;
+        }
+        if (refreshDependencies != null ? !refreshDependencies.equals(that.refreshDependencies) : that.refreshDependencies != null) {
+            return false;
+        }
+        if (refreshIntervalMinutes != null ? !refreshIntervalMinutes.equals(that.refreshIntervalMinutes) : that.refreshIntervalMinutes != null) {
+            return false;
+        }
+        if (refreshCron != null ? !refreshCron.equals(that.refreshCron) : that.refreshCron != null) {
+            return false;
+        }
+        if (refreshTimeZone != null ? !refreshTimeZone.equals(that.refreshTimeZone) : that.refreshTimeZone != null) {
+            return false;
+        }
+        if (refreshJitterSeconds != null ? !refreshJitterSeconds.equals(that.refreshJitterSeconds) : that.refreshJitterSeconds != null) {
+            return false;
+        }
         if (schema != null ? !schema.equals(that.schema) : that.schema != null) {
             return false;
         }
@@ -174,6 +270,14 @@ public class ReportConfigurationJson {
         result = 31 * result + (refreshProcedureName != null ? refreshProcedureName.hashCode() : 0);
         result = 31 * result + (refreshFrequency != null ? refreshFrequency.hashCode() : 0);
         result = 31 * result + (refreshHourOfDayGmt != null ? refreshHourOfDayGmt.hashCode() : 0);
+        result = 31 * result + (refreshWatermarkColumn != null ? refreshWatermarkColumn.hashCode() : 0);
+        result = 31 * result + (refreshWindowDays != null ? refreshWindowDays.hashCode() : 0);
+        result = 31 * result + (refreshPriority != null ? refreshPriority.hashCode() : 0);
+        result = 31 * result + (refreshDependencies != null ? refreshDependencies.hashCode() : 0);
+        result = 31 * result + (refreshIntervalMinutes != null ? refreshIntervalMinutes.hashCode() : 0);
+        result = 31 * result + (refreshCron != null ? refreshCron.hashCode() : 0);
+        result = 31 * result + (refreshTimeZone != null ? refreshTimeZone.hashCode() : 0);
+        result = 31 * result + (refreshJitterSeconds != null ? refreshJitterSeconds.hashCode() : 0);
         result = 31 * result + (schema != null ? schema.hashCode() : 0);
         return result;
     }
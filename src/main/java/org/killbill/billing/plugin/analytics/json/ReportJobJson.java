@@ -0,0 +1,189 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.json;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao.Frequency;
+
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+// Refresh status of a report, see /reports/jobs
+public class ReportJobJson {
+
+    private final String reportName;
+    private final Frequency refreshFrequency;
+    private final DateTime lastSuccessDate;
+    private final Boolean stale;
+    private final Long nbRuns;
+    private final Long nbFailures;
+    private final Long meanDurationMs;
+    private final Long p95DurationMs;
+    private final Long maxDurationMs;
+    private final Long lastDurationMs;
+    private final Integer lastRowsWritten;
+
+    public ReportJobJson(@JsonProperty("reportName") final String reportName,
+                         @JsonProperty("refreshFrequency") final Frequency refreshFrequency,
+                         @JsonProperty("lastSuccessDate") final DateTime lastSuccessDate,
+                         @JsonProperty("stale") final Boolean stale,
+                         @JsonProperty("nbRuns") final Long nbRuns,
+                         @JsonProperty("nbFailures") final Long nbFailures,
+                         @JsonProperty("meanDurationMs") final Long meanDurationMs,
+                         @JsonProperty("p95DurationMs") final Long p95DurationMs,
+                         @JsonProperty("maxDurationMs") final Long maxDurationMs,
+                         @JsonProperty("lastDurationMs") final Long lastDurationMs,
+                         @JsonProperty("lastRowsWritten") final Integer lastRowsWritten) {
+        this.reportName = reportName;
+        this.refreshFrequency = refreshFrequency;
+        this.lastSuccessDate = lastSuccessDate;
+        this.stale = stale;
+        this.nbRuns = nbRuns;
+        this.nbFailures = nbFailures;
+        this.meanDurationMs = meanDurationMs;
+        this.p95DurationMs = p95DurationMs;
+        this.maxDurationMs = maxDurationMs;
+        this.lastDurationMs = lastDurationMs;
+        this.lastRowsWritten = lastRowsWritten;
+    }
+
+    public String getReportName() {
+        return reportName;
+    }
+
+    public Frequency getRefreshFrequency() {
+        return refreshFrequency;
+    }
+
+    public DateTime getLastSuccessDate() {
+        return lastSuccessDate;
+    }
+
+    public Boolean getStale() {
+        return stale;
+    }
+
+    public Long getNbRuns() {
+        return nbRuns;
+    }
+
+    public Long getNbFailures() {
+        return nbFailures;
+    }
+
+    public Long getMeanDurationMs() {
+        return meanDurationMs;
+    }
+
+    public Long getP95DurationMs() {
+        return p95DurationMs;
+    }
+
+    public Long getMaxDurationMs() {
+        return maxDurationMs;
+    }
+
+    public Long getLastDurationMs() {
+        return lastDurationMs;
+    }
+
+    public Integer getLastRowsWritten() {
+        return lastRowsWritten;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder("ReportJobJson{");
+        sb.append("reportName='").append(reportName).append('\'');
+        sb.append(", refreshFrequency=").append(refreshFrequency);
+        sb.append(", lastSuccessDate=").append(lastSuccessDate);
+        sb.append(", stale=").append(stale);
+        sb.append(", nbRuns=").append(nbRuns);
+        sb.append(", nbFailures=").append(nbFailures);
+        sb.append(", meanDurationMs=").append(meanDurationMs);
+        sb.append(", p95DurationMs=").append(p95DurationMs);
+        sb.append(", maxDurationMs=").append(maxDurationMs);
+        sb.append(", lastDurationMs=").append(lastDurationMs);
+        sb.append(", lastRowsWritten=").append(lastRowsWritten);
+        sb.append('}');
+        return sb.toString();
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+
+        final ReportJobJson that = (ReportJobJson) o;
+
+        if (reportName != null ? !reportName.equals(that.reportName) : that.reportName != null) {
+            return false;
+        }
+        if (refreshFrequency != that.refreshFrequency) {
+            return false;
+        }
+        if (lastSuccessDate != null ? lastSuccessDate.compareTo(that.lastSuccessDate) != 0 : that.lastSuccessDate != null) {
+            return false;
+        }
+        if (stale != null ? !stale.equals(that.stale) : that.stale != null) {
+            return false;
+        }
+        if (nbRuns != null ? !nbRuns.equals(that.nbRuns) : that.nbRuns != null) {
+            return false;
+        }
+        if (nbFailures != null ? !nbFailures.equals(that.nbFailures) : that.nbFailures != null) {
+            return false;
+        }
+        if (meanDurationMs != null ? !meanDurationMs.equals(that.meanDurationMs) : that.meanDurationMs != null) {
+            return false;
+        }
+        if (p95DurationMs != null ? !p95DurationMs.equals(that.p95DurationMs) : that.p95DurationMs != null) {
+            return false;
+        }
+        if (maxDurationMs != null ? !maxDurationMs.equals(that.maxDurationMs) : that.maxDurationMs != null) {
+            return false;
+        }
+        if (lastDurationMs != null ? !lastDurationMs.equals(that.lastDurationMs) : that.lastDurationMs != null) {
+            return false;
+        }
+        if (lastRowsWritten != null ? !lastRowsWritten.equals(that.lastRowsWritten) : that.lastRowsWritten != null) {
+            return false;
+        }
+
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = reportName != null ? reportName.hashCode() : 0;
+        result = 31 * result + (refreshFrequency != null ? refreshFrequency.hashCode() : 0);
+        result = 31 * result + (lastSuccessDate != null ? lastSuccessDate.hashCode() : 0);
+        result = 31 * result + (stale != null ? stale.hashCode() : 0);
+        result = 31 * result + (nbRuns != null ? nbRuns.hashCode() : 0);
+        result = 31 * result + (nbFailures != null ? nbFailures.hashCode() : 0);
+        result = 31 * result + (meanDurationMs != null ? meanDurationMs.hashCode() : 0);
+        result = 31 * result + (p95DurationMs != null ? p95DurationMs.hashCode() : 0);
+        result = 31 * result + (maxDurationMs != null ? maxDurationMs.hashCode() : 0);
+        result = 31 * result + (lastDurationMs != null ? lastDurationMs.hashCode() : 0);
+        result = 31 * result + (lastRowsWritten != null ? lastRowsWritten.hashCode() : 0);
+        return result;
+    }
+}
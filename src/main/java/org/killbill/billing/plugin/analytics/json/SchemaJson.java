@@ -35,7 +35,7 @@ public class SchemaJson {
 
     public SchemaJson(@Nullable final TableMetadata table) {
         this(table == null ? ImmutableList.<FieldJson>of()
-                           : ImmutableList.<FieldJson>copyOf(Iterables.<Field<?>, FieldJson>transform(ImmutableList.<Field<?>>copyOf(table.getTable().recordType().fields()),
+                           : ImmutableList.<FieldJson>copyOf(Iterables.<Field<?>, FieldJson>transform(table.getFields(),
                                                                                                       new Function<Field<?>, FieldJson>() {
                                                                                                           @Override
                                                                                                           public FieldJson apply(final Field<?> input) {
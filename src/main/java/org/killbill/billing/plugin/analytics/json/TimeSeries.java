@@ -0,0 +1,310 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.json;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+import org.joda.time.LocalDate;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.DeserializationContext;
+import com.fasterxml.jackson.databind.JsonDeserializer;
+import com.fasterxml.jackson.databind.JsonSerializer;
+import com.fasterxml.jackson.databind.SerializerProvider;
+import com.fasterxml.jackson.databind.annotation.JsonDeserialize;
+import com.fasterxml.jackson.databind.annotation.JsonSerialize;
+
+/**
+ * Columnar time series: one primitive array for the x values, one for the y values.
+ * <p/>
+ * X values are either days since 1970-01-01 (series by day, formatted as yyyy-MM-dd) or epoch millis (formatted as ISO date times).
+ * The series is serialized as a list of {@link XY}, i.e. [{"x":"2013-01-01","y":11.0},...]. Null y values are stored as NaN.
+ */
+@JsonSerialize(using = TimeSeries.TimeSeriesSerializer.class)
+@JsonDeserialize(using = TimeSeries.TimeSeriesDeserializer.class)
+public class TimeSeries {
+
+    public static final long NOT_A_DAY = Long.MIN_VALUE;
+
+    private final boolean byDay;
+    private final long[] xValues;
+    private final float[] yValues;
+    private final int size;
+
+    // Note: the arrays aren't copied
+    public TimeSeries(final boolean byDay, final long[] xValues, final float[] yValues, final int size) {
+        this.byDay = byDay;
+        this.xValues = xValues;
+        this.yValues = yValues;
+        this.size = size;
+    }
+
+    public static TimeSeries fromXYs(final Iterable<XY> values) {
+        final Builder builder = new Builder();
+        for (final XY xy : values) {
+            builder.add(xy.getX(), xy.getY() == null ? Float.NaN : xy.getY());
+        }
+        return builder.build();
+    }
+
+    public boolean isByDay() {
+        return byDay;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Day or epoch millis, see isByDay()
+    public long getX(final int i) {
+        return xValues[i];
+    }
+
+    public float getY(final int i) {
+        return yValues[i];
+    }
+
+    public long getMillis(final int i) {
+        return byDay ? dayToMillis(xValues[i]) : xValues[i];
+    }
+
+    public String formatX(final int i) {
+        return byDay ? formatDay(xValues[i]) : new DateTime(xValues[i]).toString();
+    }
+
+    public List<XY> toXYs() {
+        final List<XY> xys = new ArrayList<XY>(size);
+        for (int i = 0; i < size; i++) {
+            xys.add(new XY(formatX(i), Float.isNaN(yValues[i]) ? null : yValues[i]));
+        }
+        return xys;
+    }
+
+    // Stable sort by x values
+    public TimeSeries sorted() {
+        boolean isSorted = true;
+        for (int i = 1; i < size && isSorted; i++) {
+            isSorted = xValues[i - 1] <= xValues[i];
+        }
+        if (isSorted) {
+            return this;
+        }
+
+        final Integer[] indexes = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            indexes[i] = i;
+        }
+        Arrays.sort(indexes, new Comparator<Integer>() {
+            @Override
+            public int compare(final Integer o1, final Integer o2) {
+                return Long.compare(xValues[o1], xValues[o2]);
+            }
+        });
+
+        final long[] sortedXValues = new long[size];
+        final float[] sortedYValues = new float[size];
+        for (int i = 0; i < size; i++) {
+            sortedXValues[i] = xValues[indexes[i]];
+            sortedYValues[i] = yValues[indexes[i]];
+        }
+        return new TimeSeries(byDay, sortedXValues, sortedYValues, size);
+    }
+
+    // Days since 1970-01-01 for yyyy-MM-dd strings, NOT_A_DAY otherwise
+    public static long parseDay(@Nullable final String x) {
+        if (x == null || x.length() != 10 || x.charAt(4) != '-' || x.charAt(7) != '-') {
+            return NOT_A_DAY;
+        }
+
+        final int year = parseDigits(x, 0, 4);
+        final int month = parseDigits(x, 5, 7);
+        final int day = parseDigits(x, 8, 10);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > 31) {
+            return NOT_A_DAY;
+        }
+        return toDay(year, month, day);
+    }
+
+    // Proleptic Gregorian calendar, see http://howardhinnant.github.io/date_algorithms.html#days_from_civil
+    public static long toDay(final int year, final int month, final int day) {
+        final long y = month <= 2 ? year - 1 : year;
+        final long era = (y >= 0 ? y : y - 399) / 400;
+        final long yearOfEra = y - era * 400;
+        final long dayOfYear = (153 * (month > 2 ? month - 3 : month + 9) + 2) / 5 + day - 1;
+        final long dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    // Inverse of toDay, see http://howardhinnant.github.io/date_algorithms.html#civil_from_days
+    public static int[] fromDay(final long epochDay) {
+        final long z = epochDay + 719468;
+        final long era = (z >= 0 ? z : z - 146096) / 146097;
+        final long dayOfEra = z - era * 146097;
+        final long yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        final long dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        final long mp = (5 * dayOfYear + 2) / 153;
+        final int day = (int) (dayOfYear - (153 * mp + 2) / 5 + 1);
+        final int month = (int) (mp < 10 ? mp + 3 : mp - 9);
+        final int year = (int) (yearOfEra + era * 400 + (month <= 2 ? 1 : 0));
+        return new int[]{year, month, day};
+    }
+
+    public static String formatDay(final long epochDay) {
+        final int[] date = fromDay(epochDay);
+        final char[] chars = new char[10];
+        writeDigits(chars, 0, 4, date[0]);
+        chars[4] = '-';
+        writeDigits(chars, 5, 7, date[1]);
+        chars[7] = '-';
+        writeDigits(chars, 8, 10, date[2]);
+        return new String(chars);
+    }
+
+    // Same as new DateTime("yyyy-MM-dd").getMillis()
+    public static long dayToMillis(final long epochDay) {
+        final int[] date = fromDay(epochDay);
+        return new LocalDate(date[0], date[1], date[2]).toDateTimeAtStartOfDay().getMillis();
+    }
+
+    private static int parseDigits(final String x, final int start, final int end) {
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            final char c = x.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+
+    private static void writeDigits(final char[] chars, final int start, final int end, final int value) {
+        int remainder = value;
+        for (int i = end - 1; i >= start; i--) {
+            chars[i] = (char) ('0' + remainder % 10);
+            remainder /= 10;
+        }
+    }
+
+    /**
+     * Accumulates values in primitive arrays. The series is by day as long as all x values are formatted as yyyy-MM-dd.
+     */
+    public static class Builder {
+
+        private boolean byDay = true;
+        private long[] xValues = new long[16];
+        private float[] yValues = new float[16];
+        private int size = 0;
+
+        public Builder add(final String x, final float y) {
+            final long day = parseDay(x);
+            if (byDay && day != NOT_A_DAY) {
+                return append(day, y);
+            }
+
+            switchToMillis();
+            return append(day != NOT_A_DAY ? dayToMillis(day) : new DateTime(x).getMillis(), y);
+        }
+
+        public Builder add(final DateTime x, final float y) {
+            switchToMillis();
+            return append(x.getMillis(), y);
+        }
+
+        public TimeSeries build() {
+            return new TimeSeries(byDay, xValues, yValues, size);
+        }
+
+        private void switchToMillis() {
+            if (byDay) {
+                for (int i = 0; i < size; i++) {
+                    xValues[i] = dayToMillis(xValues[i]);
+                }
+                byDay = false;
+            }
+        }
+
+        private Builder append(final long x, final float y) {
+            if (size == xValues.length) {
+                xValues = Arrays.copyOf(xValues, size * 2);
+                yValues = Arrays.copyOf(yValues, size * 2);
+            }
+            xValues[size] = x;
+            yValues[size] = y;
+            size++;
+            return this;
+        }
+    }
+
+    public static class TimeSeriesSerializer extends JsonSerializer<TimeSeries> {
+
+        @Override
+        public void serialize(final TimeSeries value, final JsonGenerator generator, final SerializerProvider serializers) throws IOException {
+            generator.writeStartArray();
+            for (int i = 0; i < value.size(); i++) {
+                generator.writeStartObject();
+                generator.writeStringField("x", value.formatX(i));
+                if (Float.isNaN(value.getY(i))) {
+                    generator.writeNullField("y");
+                } else {
+                    generator.writeNumberField("y", value.getY(i));
+                }
+                generator.writeEndObject();
+            }
+            generator.writeEndArray();
+        }
+    }
+
+    public static class TimeSeriesDeserializer extends JsonDeserializer<TimeSeries> {
+
+        @Override
+        public TimeSeries deserialize(final JsonParser parser, final DeserializationContext context) throws IOException {
+            if (parser.getCurrentToken() != JsonToken.START_ARRAY) {
+                throw context.mappingException(TimeSeries.class);
+            }
+
+            final Builder builder = new Builder();
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                String x = null;
+                float y = Float.NaN;
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    final String fieldName = parser.getCurrentName();
+                    final JsonToken token = parser.nextToken();
+                    if ("x".equals(fieldName)) {
+                        x = parser.getValueAsString();
+                    } else if ("y".equals(fieldName) && token != JsonToken.VALUE_NULL) {
+                        y = parser.getFloatValue();
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+                builder.add(x, y);
+            }
+            return builder.build();
+        }
+    }
+}
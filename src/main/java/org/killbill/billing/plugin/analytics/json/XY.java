@@ -29,13 +29,13 @@ public class XY {
     private final String x;
     private final Float y;
 
-    private final DateTime xDate;
+    // Lazily parsed (not needed to serialize the value)
+    private DateTime xDate;
 
     @JsonCreator
     public XY(@JsonProperty("x") final String x, @JsonProperty("y") final Float y) {
         this.x = x;
         this.y = y;
-        this.xDate = new DateTime(x);
     }
 
     public XY(final String x, final Integer y) {
@@ -54,6 +54,10 @@ public class XY {
 
     @JsonIgnore
     public DateTime getxDate() {
+        // Benign race: DateTime is immutable
+        if (xDate == null) {
+            xDate = new DateTime(x);
+        }
         return xDate;
     }
 
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+import org.killbill.billing.plugin.analytics.json.Chart;
+
+/**
+ * Sink for streamed report data: TABLE reports are written row by row, other charts as a whole.
+ */
+public interface ReportDataWriter extends Closeable {
+
+    void writeChart(Chart chart) throws IOException;
+
+    void startTable(String title, String tableName, List<String> header) throws IOException;
+
+    void writeTableRow(List<Object> row) throws IOException;
+
+    void endTable() throws IOException;
+
+    /**
+     * Close the output without completing the document (e.g. the JSON array isn't terminated), so that clients can tell
+     * a truncated report apart from a complete one. Called instead of {@link #close()} when the report cannot be fully written.
+     */
+    void abort() throws IOException;
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports;
+
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.util.List;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * SQL of a TIMELINE report, where the start and end dates (and optionally the values of the filters and the tenant record id)
+ * are positional parameters (see {@link SqlReportDataExtractor#toQueryTemplate(boolean)}).
+ */
+public class ReportQueryTemplate {
+
+    // Parameters bound to the dates of the request
+    public enum DateParameter {
+        START_DATE,
+        END_DATE
+    }
+
+    private final String sql;
+    // In order: either a DateParameter or the value itself
+    private final List<Object> parameters;
+    private final boolean startDateIsDay;
+    private final boolean endDateIsDay;
+    private final boolean smoothedInSql;
+
+    public ReportQueryTemplate(final String sql,
+                               final List<Object> parameters,
+                               final boolean startDateIsDay,
+                               final boolean endDateIsDay,
+                               final boolean smoothedInSql) {
+        this.sql = sql;
+        this.parameters = ImmutableList.<Object>copyOf(parameters);
+        this.startDateIsDay = startDateIsDay;
+        this.endDateIsDay = endDateIsDay;
+        this.smoothedInSql = smoothedInSql;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    public boolean isSmoothedInSql() {
+        return smoothedInSql;
+    }
+
+    /**
+     * @return the values of the parameters, in order. The dates must be of the same kind (day or timestamp, see {@link SqlReportDataExtractor#isDay(DateTime)}) as the ones the template was built with.
+     */
+    public Object[] bind(@Nullable final DateTime startDate, @Nullable final DateTime endDate) {
+        final Object[] values = new Object[parameters.size()];
+        for (int i = 0; i < values.length; i++) {
+            final Object parameter = parameters.get(i);
+            if (parameter == DateParameter.START_DATE) {
+                values[i] = toSqlValue(startDate, startDateIsDay);
+            } else if (parameter == DateParameter.END_DATE) {
+                values[i] = toSqlValue(endDate, endDateIsDay);
+            } else {
+                values[i] = parameter;
+            }
+        }
+        return values;
+    }
+
+    private static Object toSqlValue(final DateTime date, final boolean isDay) {
+        if (isDay) {
+            return Date.valueOf(date.toLocalDate().toString());
+        } else {
+            return new Timestamp(date.getMillis());
+        }
+    }
+}
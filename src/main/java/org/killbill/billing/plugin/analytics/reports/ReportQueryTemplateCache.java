@@ -0,0 +1,130 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.osgi.libs.killbill.OSGIConfigPropertiesService;
+import org.killbill.billing.plugin.analytics.reports.analysis.Smoother.SmootherType;
+import org.killbill.commons.embeddeddb.EmbeddedDB;
+
+import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Parsed report specifications and generated SQL, so that dashboard requests don't go through the filter, case and metric
+ * parsers and the jOOQ rendering each time. The least recently used entries are evicted first.
+ */
+public class ReportQueryTemplateCache {
+
+    // Maximum number of report specifications and query templates kept
+    private static final String ANALYTICS_REPORTS_QUERY_TEMPLATE_CACHE_SIZE_PROPERTY = "org.killbill.billing.plugin.analytics.dashboard.queryTemplateCacheSize";
+    // Whether the values of the filters and the tenant record id are bound as well (the dates always are)
+    private static final String ANALYTICS_REPORTS_BIND_VARIABLES_PROPERTY = "org.killbill.billing.plugin.analytics.dashboard.bindVariables";
+
+    private final boolean bindVariables;
+    private final EmbeddedDB.DBEngine dbEngine;
+    private final Cache<String, ReportSpecification> reportSpecifications;
+    private final Cache<String, ReportQueryTemplate> queryTemplates;
+
+    public ReportQueryTemplateCache(final OSGIConfigPropertiesService osgiConfigPropertiesService, final EmbeddedDB.DBEngine dbEngine) {
+        this(getCacheSize(osgiConfigPropertiesService), Boolean.valueOf(osgiConfigPropertiesService.getString(ANALYTICS_REPORTS_BIND_VARIABLES_PROPERTY)), dbEngine);
+    }
+
+    public ReportQueryTemplateCache(final long cacheSize, final EmbeddedDB.DBEngine dbEngine) {
+        this(cacheSize, false, dbEngine);
+    }
+
+    public ReportQueryTemplateCache(final long cacheSize, final boolean bindVariables, final EmbeddedDB.DBEngine dbEngine) {
+        this.bindVariables = bindVariables;
+        this.dbEngine = dbEngine;
+        this.reportSpecifications = CacheBuilder.newBuilder().maximumSize(cacheSize).build();
+        this.queryTemplates = CacheBuilder.newBuilder().maximumSize(cacheSize).build();
+    }
+
+    // Specifications are shared across callers and must not be modified
+    public ReportSpecification getReportSpecification(final String rawReportName) {
+        return get(reportSpecifications,
+                   rawReportName,
+                   new Callable<ReportSpecification>() {
+                       @Override
+                       public ReportSpecification call() {
+                           return new ReportSpecification(rawReportName);
+                       }
+                   });
+    }
+
+    public ReportQueryTemplate getQueryTemplate(final String tableName,
+                                                final String rawReportName,
+                                                @Nullable final DateTime startDate,
+                                                @Nullable final DateTime endDate,
+                                                @Nullable final SmootherType smootherType,
+                                                final Long tenantRecordId) {
+        // The dates themselves are parameters: only their kind matters
+        final String cacheKey = tenantRecordId + "::" + tableName + "::" + smootherType + "::" + getDateKind(startDate) + "::" + getDateKind(endDate) + "::" + rawReportName;
+        return get(queryTemplates,
+                   cacheKey,
+                   new Callable<ReportQueryTemplate>() {
+                       @Override
+                       public ReportQueryTemplate call() {
+                           return new SqlReportDataExtractor(tableName,
+                                                             getReportSpecification(rawReportName),
+                                                             startDate,
+                                                             endDate,
+                                                             smootherType,
+                                                             dbEngine,
+                                                             tenantRecordId).toQueryTemplate(bindVariables);
+                       }
+                   });
+    }
+
+    public void invalidateAll() {
+        reportSpecifications.invalidateAll();
+        queryTemplates.invalidateAll();
+    }
+
+    private static String getDateKind(@Nullable final DateTime date) {
+        if (date == null) {
+            return "none";
+        } else {
+            return SqlReportDataExtractor.isDay(date) ? "day" : "ts";
+        }
+    }
+
+    private static <T> T get(final Cache<String, T> cache, final String key, final Callable<T> loader) {
+        try {
+            return cache.get(key, loader);
+        } catch (final ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        } catch (final UncheckedExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    private static long getCacheSize(final OSGIConfigPropertiesService osgiConfigPropertiesService) {
+        final String cacheSizeMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(ANALYTICS_REPORTS_QUERY_TEMPLATE_CACHE_SIZE_PROPERTY));
+        return cacheSizeMaybeNull == null ? 1000 : Long.valueOf(cacheSizeMaybeNull);
+    }
+}
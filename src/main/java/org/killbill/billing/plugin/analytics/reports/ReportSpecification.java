@@ -67,6 +67,10 @@ public class ReportSpecification {
         parseRawReportName();
     }
 
+    public String getRawReportName() {
+        return rawReportName;
+    }
+
     public String getReportName() {
         return reportName;
     }
@@ -50,7 +50,7 @@ public class ReportsConfiguration {
             public Void executeCallback(Connection connection, ReportsConfigurationSqlDao transactional) {
                 transactional.addReportConfiguration(report);
 
-                if (report.getRefreshFrequency() != null && report.getRefreshProcedureName() != null) {
+                if (report.isRefreshable()) {
                     // Re-read the record to optimize the schedule creation path
                     final ReportsConfigurationModelDao reportWithRecordId = transactional.getReportConfigurationForReport(report.getReportName());
                     scheduler.schedule(reportWithRecordId, connection);
@@ -66,7 +66,7 @@ public class ReportsConfiguration {
             public Void executeCallback(Connection connection, ReportsConfigurationSqlDao transactional) {
                 transactional.updateReportConfiguration(report);
 
-                if (report.getRefreshFrequency() != null && report.getRefreshProcedureName() != null) {
+                if (report.isRefreshable()) {
                     // Re-read the record to optimize the schedule creation path
                     final ReportsConfigurationModelDao reportWithRecordId = transactional.getReportConfigurationForReport(report.getReportName());
                     scheduler.unSchedule(reportWithRecordId, connection);
@@ -0,0 +1,348 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports;
+
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.killbill.billing.osgi.libs.killbill.OSGIConfigPropertiesService;
+import org.killbill.billing.plugin.analytics.BoundedThreadPerTaskExecutor;
+import org.killbill.billing.plugin.analytics.BusinessExecutor;
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.tweak.BaseStatementCustomizer;
+import org.skife.jdbi.v2.tweak.StatementCustomizer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
+
+/**
+ * Runs the dashboard queries.
+ * <p/>
+ * The pool has a fixed number of threads and a bounded queue, and each tenant can only have a limited number of queries
+ * queued or running: when the limits are reached, a RejectedExecutionException is thrown instead of running the queries in the
+ * (server) caller thread. Queries of a request share a deadline: once it is reached, the remaining ones are cancelled, including
+ * the JDBC statements being executed.
+ * <p/>
+ * When virtual threads are enabled, each query runs on its own virtual thread and
+ * org.killbill.billing.plugin.analytics.virtualThreads.maxRunningTasks replaces the number of threads.
+ */
+public class ReportsQueryExecutor {
+
+    private static final Logger logger = LoggerFactory.getLogger(ReportsQueryExecutor.class);
+
+    private static final String EXECUTOR_NAME = "osgi-analytics-dashboard";
+
+    private static final String ANALYTICS_REPORTS_NB_THREADS_PROPERTY = "org.killbill.billing.plugin.analytics.dashboard.nbThreads";
+    // Maximum number of queries waiting for a thread
+    private static final String ANALYTICS_REPORTS_QUEUE_SIZE_PROPERTY = "org.killbill.billing.plugin.analytics.dashboard.queueSize";
+    // Maximum number of queries queued or running for a tenant
+    private static final String ANALYTICS_REPORTS_MAX_QUERIES_PER_TENANT_PROPERTY = "org.killbill.billing.plugin.analytics.dashboard.maxQueriesPerTenant";
+    // Maximum duration of a dashboard request
+    private static final String ANALYTICS_REPORTS_TIMEOUT_SECONDS_PROPERTY = "org.killbill.billing.plugin.analytics.dashboard.timeoutSeconds";
+
+    private final ExecutorService executor;
+    private final int maxQueriesPerTenant;
+    private final long timeoutMillis;
+    private final ConcurrentMap<Long, Semaphore> permitsPerTenant = new ConcurrentHashMap<Long, Semaphore>();
+    private final AtomicLong nbRejected = new AtomicLong();
+    private final AtomicLong nbTimeouts = new AtomicLong();
+
+    public ReportsQueryExecutor(final OSGIConfigPropertiesService osgiConfigPropertiesService) {
+        this(newExecutor(osgiConfigPropertiesService),
+             getIntProperty(osgiConfigPropertiesService, ANALYTICS_REPORTS_MAX_QUERIES_PER_TENANT_PROPERTY, 20),
+             TimeUnit.SECONDS.toMillis(getIntProperty(osgiConfigPropertiesService, ANALYTICS_REPORTS_TIMEOUT_SECONDS_PROPERTY, 120)));
+    }
+
+    public ReportsQueryExecutor(final int nbThreads, final int queueSize, final int maxQueriesPerTenant, final long timeoutMillis) {
+        this(BusinessExecutor.newBoundedThreadPool(nbThreads, queueSize, EXECUTOR_NAME), maxQueriesPerTenant, timeoutMillis);
+    }
+
+    public ReportsQueryExecutor(final ExecutorService executor, final int maxQueriesPerTenant, final long timeoutMillis) {
+        this.executor = executor;
+        this.maxQueriesPerTenant = maxQueriesPerTenant;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    private static ExecutorService newExecutor(final OSGIConfigPropertiesService osgiConfigPropertiesService) {
+        final int queueSize = getIntProperty(osgiConfigPropertiesService, ANALYTICS_REPORTS_QUEUE_SIZE_PROPERTY, 100);
+        final ExecutorService virtualThreadsExecutor = BusinessExecutor.newVirtualThreadsExecutorIfEnabled(osgiConfigPropertiesService, queueSize, EXECUTOR_NAME);
+        if (virtualThreadsExecutor != null) {
+            return virtualThreadsExecutor;
+        }
+
+        final int nbThreads = getIntProperty(osgiConfigPropertiesService, ANALYTICS_REPORTS_NB_THREADS_PROPERTY, 10);
+        return BusinessExecutor.newBoundedThreadPool(nbThreads, queueSize, EXECUTOR_NAME);
+    }
+
+    public QueryRequest newRequest(final Long tenantRecordId) {
+        return new QueryRequest(tenantRecordId, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+    }
+
+    public void shutdownNow() {
+        executor.shutdownNow();
+    }
+
+    public long getNbActiveQueries() {
+        if (executor instanceof BoundedThreadPerTaskExecutor) {
+            return ((BoundedThreadPerTaskExecutor) executor).getActiveCount();
+        } else {
+            return ((ThreadPoolExecutor) executor).getActiveCount();
+        }
+    }
+
+    public long getNbQueuedQueries() {
+        if (executor instanceof BoundedThreadPerTaskExecutor) {
+            return ((BoundedThreadPerTaskExecutor) executor).getQueueSize();
+        } else {
+            return ((ThreadPoolExecutor) executor).getQueue().size();
+        }
+    }
+
+    public long getNbRejected() {
+        return nbRejected.get();
+    }
+
+    public long getNbTimeouts() {
+        return nbTimeouts.get();
+    }
+
+    private Semaphore getPermits(final Long tenantRecordId) {
+        Semaphore permits = permitsPerTenant.get(tenantRecordId);
+        if (permits == null) {
+            permitsPerTenant.putIfAbsent(tenantRecordId, new Semaphore(maxQueriesPerTenant));
+            permits = permitsPerTenant.get(tenantRecordId);
+        }
+        return permits;
+    }
+
+    private static int getIntProperty(final OSGIConfigPropertiesService osgiConfigPropertiesService, final String propertyName, final int defaultValue) {
+        final String valueMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(propertyName));
+        return valueMaybeNull == null ? defaultValue : Integer.valueOf(valueMaybeNull);
+    }
+
+    /**
+     * Holds a permit until the query has completed: the permit is released once, by the task itself once the query (including
+     * its JDBC statement) has returned, or on cancellation if the task never started.
+     */
+    private final class QueryTask<T> extends FutureTask<T> {
+
+        private final Semaphore permits;
+        private final AtomicBoolean started;
+
+        private QueryTask(final Callable<T> query, final Semaphore permits) {
+            this(query, permits, new AtomicBoolean(false));
+        }
+
+        private QueryTask(final Callable<T> query, final Semaphore permits, final AtomicBoolean started) {
+            super(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    if (!started.compareAndSet(false, true)) {
+                        // Cancelled, the permit has already been released
+                        throw new CancellationException();
+                    }
+
+                    try {
+                        return query.call();
+                    } finally {
+                        permits.release();
+                    }
+                }
+            });
+            this.permits = permits;
+            this.started = started;
+        }
+
+        @Override
+        protected void done() {
+            // Cancelled before it ran: the permit would never be released otherwise
+            releasePermitIfNotStarted();
+        }
+
+        private void releasePermitIfNotStarted() {
+            if (started.compareAndSet(false, true)) {
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * Queries of a single dashboard request. Not thread-safe: the request is driven by the caller thread.
+     */
+    public final class QueryRequest {
+
+        private final Long tenantRecordId;
+        private final long deadlineNanos;
+        private final List<Future<?>> futures = new LinkedList<Future<?>>();
+        private final Set<Statement> runningStatements = Collections.newSetFromMap(new ConcurrentHashMap<Statement, Boolean>());
+        private final StatementCustomizer statementCustomizer = new BaseStatementCustomizer() {
+            @Override
+            public void beforeExecution(final PreparedStatement stmt, final StatementContext ctx) throws SQLException {
+                register(stmt);
+            }
+
+            @Override
+            public void afterExecution(final PreparedStatement stmt, final StatementContext ctx) throws SQLException {
+                unregister(stmt);
+            }
+        };
+
+        private QueryRequest(final Long tenantRecordId, final long deadlineNanos) {
+            this.tenantRecordId = tenantRecordId;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        public <T> Future<T> submit(final Callable<T> query) {
+            final Semaphore permits = getPermits(tenantRecordId);
+            // Don't hold the (server) caller thread: reject right away if the tenant is already at its limit
+            if (!permits.tryAcquire()) {
+                nbRejected.incrementAndGet();
+                cancel();
+                throw new RejectedExecutionException("Too many concurrent dashboard queries for tenantRecordId " + tenantRecordId);
+            }
+
+            final QueryTask<T> future = new QueryTask<T>(new Callable<T>() {
+                @Override
+                public T call() throws Exception {
+                    if (getRemainingNanos() <= 0) {
+                        throw new TimeoutException("Deadline reached before the query started");
+                    }
+                    return query.call();
+                }
+            }, permits);
+            try {
+                executor.execute(future);
+            } catch (final RejectedExecutionException e) {
+                future.releasePermitIfNotStarted();
+                nbRejected.incrementAndGet();
+                cancel();
+                throw e;
+            }
+            futures.add(future);
+            return future;
+        }
+
+        /**
+         * Run a query in the caller thread, within the limits of the request (e.g. for streamed results, which must be written
+         * by the caller). Statements need to be registered (see {@link #register(Statement)}) so that they can be cancelled,
+         * and long-running queries should call {@link #checkDeadline()} as they go.
+         */
+        public <T> T run(final Callable<T> query) {
+            final Semaphore permits = getPermits(tenantRecordId);
+            if (!permits.tryAcquire()) {
+                nbRejected.incrementAndGet();
+                throw new RejectedExecutionException("Too many concurrent dashboard queries for tenantRecordId " + tenantRecordId);
+            }
+
+            try {
+                checkDeadline();
+                return query.call();
+            } catch (final Exception e) {
+                throw Throwables.propagate(e);
+            } finally {
+                permits.release();
+            }
+        }
+
+        public void checkDeadline() {
+            if (getRemainingNanos() <= 0) {
+                nbTimeouts.incrementAndGet();
+                cancel();
+                throw new ReportsQueryTimeoutException("Dashboard queries for tenantRecordId " + tenantRecordId + " didn't complete within " + timeoutMillis + "ms");
+            }
+        }
+
+        public void register(final Statement statement) throws SQLException {
+            // Enforced by the driver as well, in case the statement cannot be cancelled from another thread
+            statement.setQueryTimeout(getQueryTimeoutSeconds());
+            runningStatements.add(statement);
+        }
+
+        public void unregister(final Statement statement) {
+            runningStatements.remove(statement);
+        }
+
+        /**
+         * Wait for a query submitted by this request, until the deadline. On timeout or failure, all queries of the request are cancelled.
+         */
+        public <T> T get(final Future<T> future) {
+            try {
+                return future.get(Math.max(0, getRemainingNanos()), TimeUnit.NANOSECONDS);
+            } catch (final TimeoutException e) {
+                nbTimeouts.incrementAndGet();
+                cancel();
+                throw new ReportsQueryTimeoutException("Dashboard queries for tenantRecordId " + tenantRecordId + " didn't complete within " + timeoutMillis + "ms");
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancel();
+                throw new RuntimeException(e);
+            } catch (final ExecutionException e) {
+                cancel();
+                throw Throwables.propagate(e.getCause());
+            }
+        }
+
+        public void cancel() {
+            for (final Future<?> future : futures) {
+                future.cancel(true);
+            }
+            for (final Statement statement : runningStatements) {
+                try {
+                    statement.cancel();
+                } catch (final SQLException e) {
+                    logger.warn("Unable to cancel dashboard query", e);
+                }
+            }
+        }
+
+        // To register on the JDBI statements, so that they can be cancelled
+        public StatementCustomizer getStatementCustomizer() {
+            return statementCustomizer;
+        }
+
+        private int getQueryTimeoutSeconds() {
+            return (int) Math.max(1, TimeUnit.NANOSECONDS.toSeconds(getRemainingNanos()) + 1);
+        }
+
+        private long getRemainingNanos() {
+            return deadlineNanos - System.nanoTime();
+        }
+    }
+}
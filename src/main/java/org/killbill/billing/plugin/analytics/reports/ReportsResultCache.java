@@ -0,0 +1,176 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.osgi.libs.killbill.OSGIConfigPropertiesService;
+import org.killbill.billing.plugin.analytics.json.TableDataSeries;
+import org.killbill.billing.plugin.analytics.json.TimeSeries;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Strings;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Results of the dashboard queries, keyed by tenant, generated SQL and refresh generation.
+ * <p/>
+ * Report tables only change when a refresh procedure runs: the generation is bumped by the {@link org.killbill.billing.plugin.analytics.reports.scheduler.JobsScheduler}
+ * once the procedure completes, so that entries computed before are never served again. Because refreshes triggered on other nodes
+ * aren't visible here, entries also expire after a configurable delay.
+ * <p/>
+ * The cache is bounded by the estimated memory footprint of the results and is disabled by default.
+ */
+public class ReportsResultCache {
+
+    // Maximum (estimated) size in bytes of the cached results, 0 to disable the cache
+    private static final String ANALYTICS_REPORTS_RESULT_CACHE_MAX_BYTES_PROPERTY = "org.killbill.billing.plugin.analytics.dashboard.resultCacheMaxBytes";
+    // Maximum age of an entry, to pick up refreshes done by other nodes
+    private static final String ANALYTICS_REPORTS_RESULT_CACHE_TTL_SECONDS_PROPERTY = "org.killbill.billing.plugin.analytics.dashboard.resultCacheTTLSeconds";
+    private static final long DEFAULT_RESULT_CACHE_TTL_SECONDS = 3600;
+
+    private final Cache<String, CachedResult> resultCache;
+
+    public ReportsResultCache(final OSGIConfigPropertiesService osgiConfigPropertiesService) {
+        this(getLongProperty(osgiConfigPropertiesService, ANALYTICS_REPORTS_RESULT_CACHE_MAX_BYTES_PROPERTY, 0),
+             getLongProperty(osgiConfigPropertiesService, ANALYTICS_REPORTS_RESULT_CACHE_TTL_SECONDS_PROPERTY, DEFAULT_RESULT_CACHE_TTL_SECONDS));
+    }
+
+    public ReportsResultCache(final long maxBytes, final long ttlSeconds) {
+        if (maxBytes <= 0) {
+            this.resultCache = null;
+        } else {
+            this.resultCache = CacheBuilder.newBuilder()
+                                           .maximumWeight(maxBytes)
+                                           .weigher(new Weigher<String, CachedResult>() {
+                                               @Override
+                                               public int weigh(final String key, final CachedResult value) {
+                                                   return value.weight;
+                                               }
+                                           })
+                                           .expireAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                                           .recordStats()
+                                           .build();
+        }
+    }
+
+    /**
+     * Look up the result of a query, running it on a cache miss. Concurrent lookups of the same query wait for a single run.
+     * <p/>
+     * Results are shared across callers and must not be modified.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(final Long tenantRecordId, final String sql, final long generation, final Callable<T> loader) {
+        if (resultCache == null) {
+            return call(loader);
+        }
+
+        try {
+            return (T) resultCache.get(getCacheKey(tenantRecordId, sql, generation),
+                                       new Callable<CachedResult>() {
+                                           @Override
+                                           public CachedResult call() throws Exception {
+                                               final T result = loader.call();
+                                               return new CachedResult(result, (int) Math.min((long) weigh(sql) + weigh(result), Integer.MAX_VALUE));
+                                           }
+                                       }).value;
+        } catch (final ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        } catch (final UncheckedExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        }
+    }
+
+    public void invalidateAll() {
+        if (resultCache != null) {
+            resultCache.invalidateAll();
+        }
+    }
+
+    public CacheStats getStats() {
+        return resultCache == null ? new CacheStats(0, 0, 0, 0, 0, 0) : resultCache.stats();
+    }
+
+    public long getSize() {
+        return resultCache == null ? 0 : resultCache.size();
+    }
+
+    // Rough estimate of the heap used by a result (2 bytes per char, 4 per float, 8 per long or reference, plus headers)
+    @VisibleForTesting
+    static int weigh(final Object result) {
+        long weight = 16;
+        if (result instanceof Map) {
+            for (final Object entry : ((Map<?, ?>) result).entrySet()) {
+                final Map.Entry<?, ?> mapEntry = (Map.Entry<?, ?>) entry;
+                weight += 48 + weigh(mapEntry.getKey()) + weigh(mapEntry.getValue());
+            }
+        } else if (result instanceof List) {
+            for (final Object element : (List<?>) result) {
+                weight += 8 + weigh(element);
+            }
+        } else if (result instanceof TimeSeries) {
+            weight += 32 + ((TimeSeries) result).size() * 12L;
+        } else if (result instanceof TableDataSeries) {
+            final TableDataSeries tableDataSeries = (TableDataSeries) result;
+            weight += weigh(tableDataSeries.getHeader()) + weigh(tableDataSeries.getValues());
+        } else if (result instanceof String) {
+            weight += 24 + ((String) result).length() * 2L;
+        } else {
+            // Boxed values, dates, counters, etc.
+            weight += 32;
+        }
+        return (int) Math.min(weight, Integer.MAX_VALUE);
+    }
+
+    private static <T> T call(final Callable<T> loader) {
+        try {
+            return loader.call();
+        } catch (final Exception e) {
+            throw Throwables.propagate(e);
+        }
+    }
+
+    private static String getCacheKey(final Long tenantRecordId, final String sql, final long generation) {
+        return tenantRecordId + "::" + generation + "::" + sql;
+    }
+
+    private static long getLongProperty(final OSGIConfigPropertiesService osgiConfigPropertiesService, final String propertyName, final long defaultValue) {
+        final String valueMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(propertyName));
+        return valueMaybeNull == null ? defaultValue : Long.valueOf(valueMaybeNull);
+    }
+
+    private static final class CachedResult {
+
+        private final Object value;
+        private final int weight;
+
+        private CachedResult(final Object value, final int weight) {
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+}
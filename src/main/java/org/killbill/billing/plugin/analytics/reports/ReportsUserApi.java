@@ -18,39 +18,49 @@
 
 package org.killbill.billing.plugin.analytics.reports;
 
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Types;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 
 import javax.annotation.Nullable;
 
 import org.joda.time.DateTime;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
-import org.killbill.billing.ObjectType;
 import org.killbill.billing.osgi.libs.killbill.OSGIConfigPropertiesService;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillAPI;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillDataSource;
 import org.killbill.billing.plugin.analytics.BusinessExecutor;
 import org.killbill.billing.plugin.analytics.dao.BusinessDBIProvider;
+import org.killbill.billing.plugin.analytics.dao.RecordIdCache;
 import org.killbill.billing.plugin.analytics.json.Chart;
 import org.killbill.billing.plugin.analytics.json.CounterChart;
 import org.killbill.billing.plugin.analytics.json.DataMarker;
 import org.killbill.billing.plugin.analytics.json.NamedXYTimeSeries;
 import org.killbill.billing.plugin.analytics.json.ReportConfigurationJson;
+import org.killbill.billing.plugin.analytics.json.ReportJobJson;
 import org.killbill.billing.plugin.analytics.json.TableDataSeries;
-import org.killbill.billing.plugin.analytics.json.XY;
+import org.killbill.billing.plugin.analytics.json.TimeSeries;
+import org.killbill.billing.plugin.analytics.reports.ReportsQueryExecutor.QueryRequest;
 import org.killbill.billing.plugin.analytics.reports.analysis.Smoother;
 import org.killbill.billing.plugin.analytics.reports.analysis.Smoother.SmootherType;
+import org.killbill.billing.plugin.analytics.reports.analysis.TimeSeriesNormalizer;
 import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao;
 import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao.ReportType;
 import org.killbill.billing.plugin.analytics.reports.scheduler.JobsScheduler;
@@ -61,13 +71,17 @@ import org.killbill.billing.util.callcontext.TenantContext;
 import org.killbill.commons.embeddeddb.EmbeddedDB;
 import org.skife.jdbi.v2.Handle;
 import org.skife.jdbi.v2.IDBI;
+import org.skife.jdbi.v2.Query;
+import org.skife.jdbi.v2.StatementContext;
+import org.skife.jdbi.v2.TransactionCallback;
+import org.skife.jdbi.v2.TransactionStatus;
+import org.skife.jdbi.v2.tweak.Argument;
 import org.skife.jdbi.v2.tweak.HandleCallback;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.common.base.Function;
 import com.google.common.base.MoreObjects;
-import com.google.common.base.Predicate;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
@@ -79,7 +93,14 @@ public class ReportsUserApi {
 
     private static final Logger logger = LoggerFactory.getLogger(ReportsUserApi.class);
 
-    private static final String ANALYTICS_REPORTS_NB_THREADS_PROPERTY = "org.killbill.billing.plugin.analytics.dashboard.nbThreads";
+    // Maximum number of reports being streamed concurrently
+    private static final String ANALYTICS_REPORTS_NB_STREAMING_THREADS_PROPERTY = "org.killbill.billing.plugin.analytics.dashboard.nbStreamingThreads";
+    // JDBC fetch size when streaming TABLE reports (ignored for MySQL, where rows are always streamed one by one)
+    private static final String ANALYTICS_REPORTS_FETCH_SIZE_PROPERTY = "org.killbill.billing.plugin.analytics.dashboard.fetchSize";
+    // Max number of concurrent distinct values queries
+    private static final String ANALYTICS_REPORTS_METADATA_NB_THREADS_PROPERTY = "org.killbill.billing.plugin.analytics.dashboard.metadataNbThreads";
+    // Tables metadata are refreshed in the background after that delay
+    private static final String ANALYTICS_REPORTS_METADATA_TTL_SECONDS_PROPERTY = "org.killbill.billing.plugin.analytics.dashboard.metadataTTLSeconds";
 
     // Part of the public API
     public static final String DAY_COLUMN_NAME = "day";
@@ -91,10 +112,15 @@ public class ReportsUserApi {
     private final OSGIKillbillAPI killbillAPI;
     private final IDBI dbi;
     private final EmbeddedDB.DBEngine dbEngine;
-    private final ExecutorService dbiThreadsExecutor;
+    private final ReportsQueryExecutor queryExecutor;
+    private final ExecutorService streamingExecutor;
+    private final int fetchSize;
     private final ReportsConfiguration reportsConfiguration;
     private final JobsScheduler jobsScheduler;
     private final Metadata sqlMetadata;
+    private final RecordIdCache recordIdCache;
+    private final ReportsResultCache reportsResultCache;
+    private final ReportQueryTemplateCache queryTemplateCache;
 
     public ReportsUserApi(final OSGIKillbillAPI killbillAPI,
                           final OSGIKillbillDataSource osgiKillbillDataSource,
@@ -102,15 +128,34 @@ public class ReportsUserApi {
                           final EmbeddedDB.DBEngine dbEngine,
                           final ReportsConfiguration reportsConfiguration,
                           final JobsScheduler jobsScheduler) {
+        this(killbillAPI, osgiKillbillDataSource, osgiConfigPropertiesService, dbEngine, reportsConfiguration, jobsScheduler, new RecordIdCache(osgiConfigPropertiesService));
+    }
+
+    public ReportsUserApi(final OSGIKillbillAPI killbillAPI,
+                          final OSGIKillbillDataSource osgiKillbillDataSource,
+                          final OSGIConfigPropertiesService osgiConfigPropertiesService,
+                          final EmbeddedDB.DBEngine dbEngine,
+                          final ReportsConfiguration reportsConfiguration,
+                          final JobsScheduler jobsScheduler,
+                          final RecordIdCache recordIdCache) {
         this.killbillAPI = killbillAPI;
+        this.recordIdCache = recordIdCache;
         this.dbEngine = dbEngine;
         this.reportsConfiguration = reportsConfiguration;
         this.jobsScheduler = jobsScheduler;
         dbi = BusinessDBIProvider.get(osgiKillbillDataSource.getDataSource());
 
-        final String nbThreadsMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(ANALYTICS_REPORTS_NB_THREADS_PROPERTY));
-        this.dbiThreadsExecutor = BusinessExecutor.newCachedThreadPool(nbThreadsMaybeNull == null ? 10 : Integer.valueOf(nbThreadsMaybeNull), "osgi-analytics-dashboard");
-
+        this.queryExecutor = new ReportsQueryExecutor(osgiConfigPropertiesService);
+        final String nbStreamingThreadsMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(ANALYTICS_REPORTS_NB_STREAMING_THREADS_PROPERTY));
+        this.streamingExecutor = BusinessExecutor.newBoundedCachedThreadPool(nbStreamingThreadsMaybeNull == null ? 5 : Integer.valueOf(nbStreamingThreadsMaybeNull), "osgi-analytics-dashboard-streaming");
+        final String fetchSizeMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(ANALYTICS_REPORTS_FETCH_SIZE_PROPERTY));
+        // See https://dev.mysql.com/doc/connector-j/5.1/en/connector-j-reference-implementation-notes.html
+        this.fetchSize = dbEngine == EmbeddedDB.DBEngine.MYSQL ? Integer.MIN_VALUE : (fetchSizeMaybeNull == null ? 1000 : Integer.valueOf(fetchSizeMaybeNull));
+        this.reportsResultCache = new ReportsResultCache(osgiConfigPropertiesService);
+        this.queryTemplateCache = new ReportQueryTemplateCache(osgiConfigPropertiesService, dbEngine);
+
+        final String metadataNbThreadsMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(ANALYTICS_REPORTS_METADATA_NB_THREADS_PROPERTY));
+        final String metadataTTLSecondsMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(ANALYTICS_REPORTS_METADATA_TTL_SECONDS_PROPERTY));
         this.sqlMetadata = new Metadata(Sets.<String>newHashSet(Iterables.transform(reportsConfiguration.getAllReportConfigurations(null).values(),
                                                                                     new Function<ReportsConfigurationModelDao, String>() {
                                                                                         @Override
@@ -119,23 +164,34 @@ public class ReportsUserApi {
                                                                                         }
                                                                                     }
                                                                                    )),
-                                        osgiKillbillDataSource.getDataSource());
+                                        osgiKillbillDataSource.getDataSource(),
+                                        SqlReportDataExtractor.SQLDialectFromDBEngine(dbEngine),
+                                        metadataNbThreadsMaybeNull == null ? 3 : Integer.valueOf(metadataNbThreadsMaybeNull),
+                                        metadataTTLSecondsMaybeNull == null ? 3600 : Long.valueOf(metadataTTLSecondsMaybeNull));
     }
 
     public void shutdownNow() {
-        dbiThreadsExecutor.shutdownNow();
+        queryExecutor.shutdownNow();
+        streamingExecutor.shutdownNow();
+        sqlMetadata.shutdownNow();
+    }
+
+    public ReportsQueryExecutor getQueryExecutor() {
+        return queryExecutor;
     }
 
-    // TODO Cache per tenant
     public void clearCaches(final CallContext context) {
-        sqlMetadata.clearCaches();
+        final Long tenantRecordId = getTenantRecordId(context);
+        sqlMetadata.clearCaches(tenantRecordId);
+        reportsResultCache.invalidateAll();
+        queryTemplateCache.invalidateAll();
     }
 
     public ReportConfigurationJson getReportConfiguration(final String reportName, final TenantContext context) throws SQLException {
         final Long tenantRecordId = getTenantRecordId(context);
         final ReportsConfigurationModelDao reportsConfigurationModelDao = reportsConfiguration.getReportConfigurationForReport(reportName, tenantRecordId);
         if (reportsConfigurationModelDao != null) {
-            return new ReportConfigurationJson(reportsConfigurationModelDao, sqlMetadata.getTable(reportsConfigurationModelDao.getSourceTableName()));
+            return new ReportConfigurationJson(reportsConfigurationModelDao, sqlMetadata.getTable(reportsConfigurationModelDao.getSourceTableName(), tenantRecordId));
         } else {
             return null;
         }
@@ -165,6 +221,11 @@ public class ReportsUserApi {
         jobsScheduler.scheduleNow(reportsConfigurationModelDao);
     }
 
+    // The refresh jobs are shared by all tenants
+    public List<ReportJobJson> getReportJobs() {
+        return jobsScheduler.getReportJobs();
+    }
+
     public List<ReportConfigurationJson> getReports(final TenantContext context) {
         final Long tenantRecordId = getTenantRecordId(context);
         final List<ReportsConfigurationModelDao> reports = Ordering.natural()
@@ -182,7 +243,7 @@ public class ReportsUserApi {
                                                                                           @Override
                                                                                           public ReportConfigurationJson apply(final ReportsConfigurationModelDao input) {
                                                                                               try {
-                                                                                                  return new ReportConfigurationJson(input, sqlMetadata.getTable(input.getSourceTableName()));
+                                                                                                  return new ReportConfigurationJson(input, sqlMetadata.getTable(input.getSourceTableName(), tenantRecordId));
                                                                                               } catch (SQLException e) {
                                                                                                   throw new RuntimeException(e);
                                                                                               }
@@ -217,6 +278,10 @@ public class ReportsUserApi {
         return sqlQueries;
     }
 
+    /**
+     * @throws RejectedExecutionException   if too many dashboard queries are queued or running
+     * @throws ReportsQueryTimeoutException if the queries didn't complete in time
+     */
     public List<Chart> getDataForReport(final Iterable<String> rawReportNames,
                                         @Nullable final DateTime startDate,
                                         @Nullable final DateTime endDate,
@@ -224,19 +289,19 @@ public class ReportsUserApi {
                                         final TenantContext context) {
         final Long tenantRecordId = getTenantRecordId(context);
 
-        final List<Chart> result = new LinkedList<Chart>();
-        final Map<String, Map<String, List<XY>>> timeSeriesData = new ConcurrentHashMap<String, Map<String, List<XY>>>();
+        final Map<String, Map<String, TimeSeries>> timeSeriesData = new ConcurrentHashMap<String, Map<String, TimeSeries>>();
 
         // Parse the reports
         final List<ReportSpecification> reportSpecifications = new ArrayList<ReportSpecification>();
         for (final String rawReportName : rawReportNames) {
-            reportSpecifications.add(new ReportSpecification(rawReportName));
+            reportSpecifications.add(queryTemplateCache.getReportSpecification(rawReportName));
         }
 
         // Fetch the latest reports configurations
         final Map<String, ReportsConfigurationModelDao> reportsConfigurations = reportsConfiguration.getAllReportConfigurations(tenantRecordId);
 
-        final List<Future> jobs = new LinkedList<Future>();
+        final QueryRequest queryRequest = queryExecutor.newRequest(tenantRecordId);
+        final List<Future<Chart>> jobs = new LinkedList<Future<Chart>>();
         for (final ReportSpecification reportSpecification : reportSpecifications) {
             final String reportName = reportSpecification.getReportName();
             final ReportsConfigurationModelDao reportConfiguration = getReportConfiguration(reportName, reportsConfigurations);
@@ -244,24 +309,22 @@ public class ReportsUserApi {
             final String prettyName = reportConfiguration.getReportPrettyName();
             final ReportType reportType = reportConfiguration.getReportType();
 
-            jobs.add(dbiThreadsExecutor.submit(new Runnable() {
+            jobs.add(queryRequest.submit(new Callable<Chart>() {
                 @Override
-                public void run() {
+                public Chart call() {
                     switch (reportType) {
                         case COUNTERS:
-                            List<DataMarker> counters = getCountersData(tableName, tenantRecordId);
-                            result.add(new Chart(ReportType.COUNTERS, prettyName, counters));
-                            break;
+                            final List<DataMarker> counters = getCountersData(tableName, tenantRecordId, queryRequest);
+                            return new Chart(ReportType.COUNTERS, prettyName, counters);
 
                         case TIMELINE:
-                            final Map<String, List<XY>> data = getTimeSeriesData(tableName, reportSpecification, reportConfiguration, startDate, endDate, tenantRecordId);
+                            final Map<String, TimeSeries> data = getTimeSeriesData(tableName, reportSpecification, reportConfiguration, startDate, endDate, smootherType, tenantRecordId, queryRequest);
                             timeSeriesData.put(reportName, data);
-                            break;
+                            return null;
 
                         case TABLE:
-                            List<DataMarker> tables = getTablesData(tableName, tenantRecordId);
-                            result.add(new Chart(ReportType.TABLE, prettyName, tables));
-                            break;
+                            final List<DataMarker> tables = getTablesData(tableName, tenantRecordId, queryRequest);
+                            return new Chart(ReportType.TABLE, prettyName, tables);
 
                         default:
                             throw new RuntimeException("Unknown reportType " + reportType);
@@ -269,13 +332,21 @@ public class ReportsUserApi {
                 }
             }));
         }
-        waitForJobCompletion(jobs);
+
+        // Results are collected by the caller thread, in the order of the reports
+        final List<Chart> result = new LinkedList<Chart>();
+        for (final Future<Chart> job : jobs) {
+            final Chart chart = queryRequest.get(job);
+            if (chart != null) {
+                result.add(chart);
+            }
+        }
 
         //
         // Normalization and smoothing of time series if needed
         //
         if (!timeSeriesData.isEmpty()) {
-            normalizeAndSortXValues(timeSeriesData, startDate, endDate);
+            TimeSeriesNormalizer.normalizeAndSortXValues(timeSeriesData, startDate, endDate);
             if (smootherType != null) {
                 final Smoother smoother = smootherType.createSmoother(timeSeriesData);
                 smoother.smooth();
@@ -288,103 +359,141 @@ public class ReportsUserApi {
         return result;
     }
 
-    private List<Chart> buildNamedXYTimeSeries(final Map<String, Map<String, List<XY>>> dataForReports, final Map<String, ReportsConfigurationModelDao> reportsConfigurations) {
-        final List<Chart> results = new LinkedList<Chart>();
-        final List<DataMarker> timeSeries = new LinkedList<DataMarker>();
-        for (final String reportName : dataForReports.keySet()) {
-            final ReportsConfigurationModelDao reportConfiguration = getReportConfiguration(reportName, reportsConfigurations);
+    /**
+     * Asynchronously write the data for these reports. Rows of TABLE reports are read with a forward-only cursor
+     * and handed to the writer one at a time, so that the heap usage doesn't depend on the size of the report.
+     * TIMELINE reports need to be normalized as a whole and are still computed in memory (these are aggregated by day).
+     * <p/>
+     * The writer is closed once all the data has been written. On error, it is aborted instead (the output is left incomplete,
+     * so that clients don't mistake it for the full report). Queries are subject to the same limits and deadline as dashboard
+     * requests (see {@link ReportsQueryExecutor}).
+     *
+     * @throws RejectedExecutionException if too many reports are being streamed already
+     */
+    public Future<?> streamDataForReport(final Iterable<String> rawReportNames,
+                                         @Nullable final DateTime startDate,
+                                         @Nullable final DateTime endDate,
+                                         @Nullable final SmootherType smootherType,
+                                         final TenantContext context,
+                                         final ReportDataWriter writer) {
+        final Long tenantRecordId = getTenantRecordId(context);
 
-            // Sort the pivots by name for a consistent display in the dashboard
-            for (final String timeSeriesName : Ordering.natural().sortedCopy(dataForReports.get(reportName).keySet())) {
-                final List<XY> dataForReport = dataForReports.get(reportName).get(timeSeriesName);
-                timeSeries.add(new NamedXYTimeSeries(timeSeriesName, dataForReport));
+        return streamingExecutor.submit(new Runnable() {
+            @Override
+            public void run() {
+                boolean completed = false;
+                try {
+                    writeDataForReport(rawReportNames, startDate, endDate, smootherType, context, tenantRecordId, writer);
+                    completed = true;
+                } catch (final IOException e) {
+                    // Most likely, the client went away
+                    logger.warn("Unable to stream reports {}", rawReportNames, e);
+                } catch (final RuntimeException e) {
+                    logger.warn("Unable to stream reports {}", rawReportNames, e);
+                } finally {
+                    try {
+                        if (completed) {
+                            writer.close();
+                        } else {
+                            writer.abort();
+                        }
+                    } catch (final IOException e) {
+                        logger.debug("Unable to close writer", e);
+                    }
+                }
             }
-            results.add(new Chart(ReportType.TIMELINE, reportConfiguration.getReportPrettyName(), timeSeries));
-        }
-        return results;
+        });
     }
 
-    // TODO PIERRE Naive implementation
-    private void normalizeAndSortXValues(final Map<String, Map<String, List<XY>>> dataForReports, @Nullable final DateTime startDate, @Nullable final DateTime endDate) {
-        DateTime minDate = null;
-        if (startDate != null) {
-            minDate = startDate;
-        }
+    private void writeDataForReport(final Iterable<String> rawReportNames,
+                                    @Nullable final DateTime startDate,
+                                    @Nullable final DateTime endDate,
+                                    @Nullable final SmootherType smootherType,
+                                    final TenantContext context,
+                                    final Long tenantRecordId,
+                                    final ReportDataWriter writer) throws IOException {
+        final Map<String, ReportsConfigurationModelDao> reportsConfigurations = reportsConfiguration.getAllReportConfigurations(tenantRecordId);
 
-        DateTime maxDate = null;
-        if (endDate != null) {
-            maxDate = endDate;
-        }
+        final QueryRequest queryRequest = queryExecutor.newRequest(tenantRecordId);
+        final List<String> rawTimelineReportNames = new LinkedList<String>();
+        for (final String rawReportName : rawReportNames) {
+            final ReportSpecification reportSpecification = queryTemplateCache.getReportSpecification(rawReportName);
+            final ReportsConfigurationModelDao reportConfiguration = getReportConfiguration(reportSpecification.getReportName(), reportsConfigurations);
+            final String tableName = reportConfiguration.getSourceTableName();
+            final String prettyName = reportConfiguration.getReportPrettyName();
 
-        // If no min and/or max was specified, infer them from the data
-        if (minDate == null || maxDate == null) {
-            for (final Map<String, List<XY>> dataForReport : dataForReports.values()) {
-                for (final List<XY> dataForPivot : dataForReport.values()) {
-                    for (final XY xy : dataForPivot) {
-                        if (minDate == null || xy.getxDate().isBefore(minDate)) {
-                            minDate = xy.getxDate();
+            switch (reportConfiguration.getReportType()) {
+                case COUNTERS:
+                    final List<DataMarker> counters = queryRequest.get(queryRequest.submit(new Callable<List<DataMarker>>() {
+                        @Override
+                        public List<DataMarker> call() {
+                            return getCountersData(tableName, tenantRecordId, queryRequest);
                         }
-                        if (maxDate == null || xy.getxDate().isAfter(maxDate)) {
-                            maxDate = xy.getxDate();
+                    }));
+                    writer.writeChart(new Chart(ReportType.COUNTERS, prettyName, counters));
+                    break;
+
+                case TIMELINE:
+                    rawTimelineReportNames.add(rawReportName);
+                    break;
+
+                case TABLE:
+                    // Rows are written as they are read, by this thread
+                    queryRequest.run(new Callable<Void>() {
+                        @Override
+                        public Void call() {
+                            streamTablesData(tableName, prettyName, tenantRecordId, writer, queryRequest);
+                            return null;
                         }
-                    }
-                }
-            }
-        }
-
-        if (minDate == null || maxDate == null) {
-            throw new IllegalStateException(String.format("minDate and maxDate shouldn't be null! minDate=%s, maxDate=%s, dataForReports=%s", minDate, maxDate, dataForReports));
-        }
+                    });
+                    break;
 
-        // Add 0 for missing days
-        DateTime curDate = minDate;
-        while (!curDate.isAfter(maxDate)) {
-            for (final Map<String, List<XY>> dataForReport : dataForReports.values()) {
-                for (final List<XY> dataForPivot : dataForReport.values()) {
-                    addMissingValueForDateIfNeeded(curDate, dataForPivot);
-                }
+                default:
+                    throw new RuntimeException("Unknown reportType " + reportConfiguration.getReportType());
             }
-            curDate = curDate.plusDays(1);
         }
 
-        // Sort the data for the dashboard
-        for (final String reportName : dataForReports.keySet()) {
-            for (final String pivotName : dataForReports.get(reportName).keySet()) {
-                Collections.sort(dataForReports.get(reportName).get(pivotName),
-                                 new Comparator<XY>() {
-                                     @Override
-                                     public int compare(final XY o1, final XY o2) {
-                                         return o1.getxDate().compareTo(o2.getxDate());
-                                     }
-                                 }
-                                );
+        if (!rawTimelineReportNames.isEmpty()) {
+            for (final Chart chart : getDataForReport(rawTimelineReportNames, startDate, endDate, smootherType, context)) {
+                writer.writeChart(chart);
             }
         }
     }
 
-    private void addMissingValueForDateIfNeeded(final DateTime curDate, final List<XY> dataForPivot) {
-        final XY valueForCurrentDate = Iterables.tryFind(dataForPivot, new Predicate<XY>() {
-            @Override
-            public boolean apply(final XY xy) {
-                return xy.getxDate().compareTo(curDate) == 0;
-            }
+    private List<Chart> buildNamedXYTimeSeries(final Map<String, Map<String, TimeSeries>> dataForReports, final Map<String, ReportsConfigurationModelDao> reportsConfigurations) {
+        final List<Chart> results = new LinkedList<Chart>();
+        final List<DataMarker> timeSeries = new LinkedList<DataMarker>();
+        for (final String reportName : dataForReports.keySet()) {
+            final ReportsConfigurationModelDao reportConfiguration = getReportConfiguration(reportName, reportsConfigurations);
 
-            @Override
-            public boolean test(@Nullable final XY input) {
-                return apply(input);
+            // Sort the pivots by name for a consistent display in the dashboard
+            for (final String timeSeriesName : Ordering.natural().sortedCopy(dataForReports.get(reportName).keySet())) {
+                final TimeSeries dataForReport = dataForReports.get(reportName).get(timeSeriesName);
+                timeSeries.add(new NamedXYTimeSeries(timeSeriesName, dataForReport));
             }
-        }).orNull();
-
-        if (valueForCurrentDate == null) {
-            dataForPivot.add(new XY(curDate, (float) 0));
+            results.add(new Chart(ReportType.TIMELINE, reportConfiguration.getReportPrettyName(), timeSeries));
         }
+        return results;
+    }
+
+    private List<DataMarker> getCountersData(final String tableName, final Long tenantRecordId, @Nullable final QueryRequest queryRequest) {
+        final String sql = "select * from " + tableName + " where tenant_record_id = ?";
+        return reportsResultCache.get(tenantRecordId,
+                                      "counters::" + sql,
+                                      jobsScheduler.getRefreshGeneration(),
+                                      new Callable<List<DataMarker>>() {
+                                          @Override
+                                          public List<DataMarker> call() {
+                                              return fetchCountersData(sql, tenantRecordId, queryRequest);
+                                          }
+                                      });
     }
 
-    private List<DataMarker> getCountersData(final String tableName, final Long tenantRecordId) {
+    private List<DataMarker> fetchCountersData(final String sql, final Long tenantRecordId, @Nullable final QueryRequest queryRequest) {
         return dbi.withHandle(new HandleCallback<List<DataMarker>>() {
             @Override
             public List<DataMarker> withHandle(final Handle handle) throws Exception {
-                final List<Map<String, Object>> results = handle.select("select * from " + tableName + " where tenant_record_id = " + tenantRecordId);
+                final List<Map<String, Object>> results = select(handle, sql, new Object[]{tenantRecordId}, queryRequest);
                 if (results.size() == 0) {
                     return Collections.emptyList();
                 }
@@ -408,11 +517,24 @@ public class ReportsUserApi {
         });
     }
 
-    private List<DataMarker> getTablesData(final String tableName, final Long tenantRecordId) {
+    private List<DataMarker> getTablesData(final String tableName, final Long tenantRecordId, @Nullable final QueryRequest queryRequest) {
+        final String sql = "select * from " + tableName + " where tenant_record_id = ?";
+        return reportsResultCache.get(tenantRecordId,
+                                      "tables::" + sql,
+                                      jobsScheduler.getRefreshGeneration(),
+                                      new Callable<List<DataMarker>>() {
+                                          @Override
+                                          public List<DataMarker> call() {
+                                              return fetchTablesData(tableName, sql, tenantRecordId, queryRequest);
+                                          }
+                                      });
+    }
+
+    private List<DataMarker> fetchTablesData(final String tableName, final String sql, final Long tenantRecordId, @Nullable final QueryRequest queryRequest) {
         return dbi.withHandle(new HandleCallback<List<DataMarker>>() {
             @Override
             public List<DataMarker> withHandle(final Handle handle) throws Exception {
-                final List<Map<String, Object>> results = handle.select("select * from " + tableName + " where tenant_record_id = " + tenantRecordId);
+                final List<Map<String, Object>> results = select(handle, sql, new Object[]{tenantRecordId}, queryRequest);
                 if (results.size() == 0) {
                     return Collections.emptyList();
                 }
@@ -437,39 +559,109 @@ public class ReportsUserApi {
         });
     }
 
-    private Map<String, List<XY>> getTimeSeriesData(final String tableName,
-                                                    final ReportSpecification reportSpecification,
-                                                    final ReportsConfigurationModelDao reportsConfiguration,
-                                                    @Nullable final DateTime startDate,
-                                                    @Nullable final DateTime endDate,
-                                                    final Long tenantRecordId) {
-        final SqlReportDataExtractor sqlReportDataExtractor = new SqlReportDataExtractor(tableName,
-                                                                                         reportSpecification,
-                                                                                         startDate,
-                                                                                         endDate,
-                                                                                         dbEngine,
-                                                                                         tenantRecordId);
-        return dbi.withHandle(new HandleCallback<Map<String, List<XY>>>() {
+    private void streamTablesData(final String tableName, final String prettyName, final Long tenantRecordId, final ReportDataWriter writer, final QueryRequest queryRequest) {
+        // Cursors require a transaction on PostgreSQL
+        dbi.inTransaction(new TransactionCallback<Void>() {
             @Override
-            public Map<String, List<XY>> withHandle(final Handle handle) throws Exception {
-                final List<Map<String, Object>> results = handle.select(sqlReportDataExtractor.toString());
+            public Void inTransaction(final Handle handle, final TransactionStatus status) throws Exception {
+                final PreparedStatement statement = handle.getConnection().prepareStatement("select * from " + tableName + " where tenant_record_id = ?", ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                try {
+                    statement.setFetchSize(fetchSize);
+                    statement.setLong(1, tenantRecordId);
+                    queryRequest.register(statement);
+                    final ResultSet resultSet = statement.executeQuery();
+                    try {
+                        if (!resultSet.next()) {
+                            writer.writeChart(new Chart(ReportType.TABLE, prettyName, ImmutableList.<DataMarker>of()));
+                            return null;
+                        }
+
+                        // Keep the original ordering of the view
+                        final ResultSetMetaData metaData = resultSet.getMetaData();
+                        final int nbColumns = metaData.getColumnCount();
+                        final List<String> header = new ArrayList<String>(nbColumns);
+                        for (int i = 1; i <= nbColumns; i++) {
+                            header.add(metaData.getColumnLabel(i));
+                        }
+
+                        writer.startTable(prettyName, tableName, header);
+                        do {
+                            final List<Object> tableRow = new ArrayList<Object>(nbColumns);
+                            for (int i = 1; i <= nbColumns; i++) {
+                                tableRow.add(resultSet.getObject(i));
+                            }
+                            writer.writeTableRow(tableRow);
+                            // The query timeout doesn't cover fetching the rows
+                            queryRequest.checkDeadline();
+                        } while (resultSet.next());
+                        writer.endTable();
+                    } finally {
+                        resultSet.close();
+                    }
+                } finally {
+                    queryRequest.unregister(statement);
+                    statement.close();
+                }
+                return null;
+            }
+        });
+    }
+
+    private Map<String, TimeSeries> getTimeSeriesData(final String tableName,
+                                                      final ReportSpecification reportSpecification,
+                                                      final ReportsConfigurationModelDao reportsConfiguration,
+                                                      @Nullable final DateTime startDate,
+                                                      @Nullable final DateTime endDate,
+                                                      @Nullable final SmootherType smootherType,
+                                                      final Long tenantRecordId,
+                                                      @Nullable final QueryRequest queryRequest) {
+        final ReportQueryTemplate queryTemplate = queryTemplateCache.getQueryTemplate(tableName,
+                                                                                      reportSpecification.getRawReportName(),
+                                                                                      startDate,
+                                                                                      endDate,
+                                                                                      smootherType,
+                                                                                      tenantRecordId);
+        final String sql = queryTemplate.getSql();
+        final Object[] parameters = queryTemplate.bind(startDate, endDate);
+        // When smoothed by the database, the first period may start before the requested range: move it to the start of the range,
+        // so that the point is in the same period for the Java smoother and the average is computed over the days in the range
+        final String firstDay = queryTemplate.isSmoothedInSql() && startDate != null ? startDate.toLocalDate().toString() : null;
+        final Map<String, TimeSeries> timeSeries = reportsResultCache.get(tenantRecordId,
+                                                                          "timeline::" + sql + "::" + Arrays.toString(parameters),
+                                                                          jobsScheduler.getRefreshGeneration(),
+                                                                          new Callable<Map<String, TimeSeries>>() {
+                                                                              @Override
+                                                                              public Map<String, TimeSeries> call() {
+                                                                                  return fetchTimeSeriesData(sql, parameters, reportSpecification, firstDay, queryRequest);
+                                                                              }
+                                                                          });
+        // The series are replaced in place during normalization and smoothing
+        return new LinkedHashMap<String, TimeSeries>(timeSeries);
+    }
+
+    private Map<String, TimeSeries> fetchTimeSeriesData(final String sql, final Object[] parameters, final ReportSpecification reportSpecification, @Nullable final String firstDay, @Nullable final QueryRequest queryRequest) {
+        return dbi.withHandle(new HandleCallback<Map<String, TimeSeries>>() {
+            @Override
+            public Map<String, TimeSeries> withHandle(final Handle handle) throws Exception {
+                final List<Map<String, Object>> results = select(handle, sql, parameters, queryRequest);
                 if (results.size() == 0) {
                     Collections.emptyMap();
                 }
 
-                final Map<String, List<XY>> timeSeries = new LinkedHashMap<String, List<XY>>();
+                final Map<String, TimeSeries.Builder> timeSeries = new LinkedHashMap<String, TimeSeries.Builder>();
                 for (final Map<String, Object> row : results) {
                     // Day
-                    Object dateObject = row.get(DAY_COLUMN_NAME);
-                    if (dateObject == null) {
+                    final Object dayObject = row.get(DAY_COLUMN_NAME);
+                    final String day = dayObject == null ? null : (firstDay != null && dayObject.toString().compareTo(firstDay) < 0 ? firstDay : dayObject.toString());
+                    DateTime timestamp = null;
+                    if (dayObject == null) {
                         // Timestamp
-                        dateObject = row.get(TS_COLUMN_NAME);
-                        if (dateObject == null) {
+                        final Object timestampObject = row.get(TS_COLUMN_NAME);
+                        if (timestampObject == null) {
                             continue;
                         }
-                        dateObject = DATE_TIME_FORMATTER.parseDateTime(dateObject.toString()).toString();
+                        timestamp = DATE_TIME_FORMATTER.parseDateTime(timestampObject.toString());
                     }
-                    final String date = dateObject.toString();
 
                     final String legendWithDimensions = createLegendWithDimensionsForSeries(row, reportSpecification);
                     for (final String column : row.keySet()) {
@@ -477,17 +669,25 @@ public class ReportsUserApi {
                             // Create a unique name for that result set
                             final String seriesName = MoreObjects.firstNonNull(reportSpecification.getLegend(), column) + (legendWithDimensions == null ? "" : (": " + legendWithDimensions));
                             if (timeSeries.get(seriesName) == null) {
-                                timeSeries.put(seriesName, new LinkedList<XY>());
+                                timeSeries.put(seriesName, new TimeSeries.Builder());
                             }
 
                             final Object value = row.get(column);
-                            final Float valueAsFloat = value == null ? 0f : Float.valueOf(value.toString());
-                            timeSeries.get(seriesName).add(new XY(date, valueAsFloat));
+                            final float valueAsFloat = value == null ? 0f : Float.valueOf(value.toString());
+                            if (timestamp == null) {
+                                timeSeries.get(seriesName).add(day, valueAsFloat);
+                            } else {
+                                timeSeries.get(seriesName).add(timestamp, valueAsFloat);
+                            }
                         }
                     }
                 }
 
-                return timeSeries;
+                final Map<String, TimeSeries> builtTimeSeries = new LinkedHashMap<String, TimeSeries>();
+                for (final Entry<String, TimeSeries.Builder> entry : timeSeries.entrySet()) {
+                    builtTimeSeries.put(entry.getKey(), entry.getValue().build());
+                }
+                return builtTimeSeries;
             }
         });
     }
@@ -553,16 +753,27 @@ public class ReportsUserApi {
         return reportConfiguration;
     }
 
-    private void waitForJobCompletion(final List<Future> jobs) {
-        for (final Future job : jobs) {
-            try {
-                job.get();
-            } catch (InterruptedException e) {
-                throw new RuntimeException(e);
-            } catch (ExecutionException e) {
-                throw new RuntimeException(e);
+    // When part of a request, the statement is registered on it, so that it can be cancelled when the deadline is reached
+    private List<Map<String, Object>> select(final Handle handle, final String sql, final Object[] parameters, @Nullable final QueryRequest queryRequest) {
+        final Query<Map<String, Object>> query = handle.createQuery(sql);
+        for (int i = 0; i < parameters.length; i++) {
+            final Object parameter = parameters[i];
+            if (parameter instanceof String && dbEngine == EmbeddedDB.DBEngine.POSTGRESQL) {
+                // Filter values: let PostgreSQL infer the type from the column, as for a literal (varchar cannot be compared with numeric columns)
+                query.bind(i, new Argument() {
+                    @Override
+                    public void apply(final int position, final PreparedStatement statement, final StatementContext ctx) throws SQLException {
+                        statement.setObject(position, parameter, Types.OTHER);
+                    }
+                });
+            } else {
+                query.bind(i, parameter);
             }
         }
+        if (queryRequest != null) {
+            query.addStatementCustomizer(queryRequest.getStatementCustomizer());
+        }
+        return query.list();
     }
 
     private Long getTenantRecordId(final TenantContext context) {
@@ -571,7 +782,7 @@ public class ReportsUserApi {
             return 0L;
         } else {
             final RecordIdApi recordIdApi = killbillAPI.getRecordIdApi();
-            return recordIdApi.getRecordId(context.getTenantId(), ObjectType.TENANT, context);
+            return recordIdCache.getTenantRecordId(context.getTenantId(), recordIdApi, context);
         }
     }
 }
@@ -18,8 +18,15 @@
 
 package org.killbill.billing.plugin.analytics.reports;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import javax.annotation.Nullable;
 
@@ -36,14 +43,19 @@ import org.jooq.conf.RenderNameStyle;
 import org.jooq.conf.Settings;
 import org.jooq.conf.StatementType;
 import org.jooq.impl.DSL;
+import org.jooq.impl.SQLDataType;
+import org.killbill.billing.plugin.analytics.reports.analysis.DateGranularity;
+import org.killbill.billing.plugin.analytics.reports.analysis.Smoother.SmootherType;
 import org.killbill.billing.plugin.analytics.reports.sql.Cases;
 import org.killbill.billing.plugin.analytics.reports.sql.Filters;
+import org.killbill.billing.plugin.analytics.reports.sql.Granularities;
 import org.killbill.billing.plugin.analytics.reports.sql.MetricExpressionParser;
 import org.killbill.commons.embeddeddb.EmbeddedDB;
 
 import com.bpodgursky.jbool_expressions.And;
 import com.bpodgursky.jbool_expressions.Expression;
 import com.bpodgursky.jbool_expressions.Variable;
+import com.google.common.base.Function;
 import com.google.common.collect.ImmutableList;
 
 import static org.killbill.billing.plugin.analytics.reports.ReportsUserApi.DAY_COLUMN_NAME;
@@ -51,26 +63,44 @@ import static org.killbill.billing.plugin.analytics.reports.ReportsUserApi.TS_CO
 
 public class SqlReportDataExtractor {
 
+    // Metrics which can be summed across the days of a period: sum(column), count(column) or a plain column
+    private static final Pattern ADDITIVE_METRIC_REGEXP = Pattern.compile("^\\s*((sum|count)\\(\\s*[a-zA-Z0-9_]+\\s*\\)|[a-zA-Z_][a-zA-Z0-9_]*)\\s*$", Pattern.CASE_INSENSITIVE);
+    private static final Pattern PLAIN_COLUMN_REGEXP = Pattern.compile("^\\s*[a-zA-Z_][a-zA-Z0-9_]*\\s*$");
+
     private final String tableName;
     private final ReportSpecification reportSpecification;
     private final DateTime startDate;
     private final DateTime endDate;
+    private final SQLDialect sqlDialect;
+    private final SmootherType smootherType;
     private final DSLContext context;
     private final Long tenantRecordId;
 
     private Collection<Field<Object>> dimensions = ImmutableList.<Field<Object>>of();
+    private Collection<Field<Object>> groupByFields = ImmutableList.<Field<Object>>of();
     private Collection<Field<Object>> metrics = ImmutableList.<Field<Object>>of();
     private Expression<String> filters = null;
     private Condition condition = null;
     private boolean shouldGroupBy = false;
+    private boolean smoothedInSql = false;
+
+    public SqlReportDataExtractor(final String tableName,
+                                  final ReportSpecification reportSpecification,
+                                  @Nullable final DateTime startDate,
+                                  @Nullable final DateTime endDate,
+                                  final EmbeddedDB.DBEngine dbEngine,
+                                  final Long tenantRecordId) {
+        this(tableName, reportSpecification, startDate, endDate, null, dbEngine, tenantRecordId);
+    }
 
     public SqlReportDataExtractor(final String tableName,
                                   final ReportSpecification reportSpecification,
                                   @Nullable final DateTime startDate,
                                   @Nullable final DateTime endDate,
+                                  @Nullable final SmootherType smootherType,
                                   final EmbeddedDB.DBEngine dbEngine,
                                   final Long tenantRecordId) {
-        this(tableName, reportSpecification, startDate, endDate, SQLDialectFromDBEngine(dbEngine), tenantRecordId);
+        this(tableName, reportSpecification, startDate, endDate, smootherType, SQLDialectFromDBEngine(dbEngine), tenantRecordId);
     }
 
     public SqlReportDataExtractor(final String tableName,
@@ -79,10 +109,25 @@ public class SqlReportDataExtractor {
                                   @Nullable final DateTime endDate,
                                   final SQLDialect sqlDialect,
                                   final Long tenantRecordId) {
+        this(tableName, reportSpecification, startDate, endDate, null, sqlDialect, tenantRecordId);
+    }
+
+    /**
+     * @param smootherType if specified and supported by the report, the rows are aggregated per period by the database (see {@link #isSmoothedInSql()})
+     */
+    public SqlReportDataExtractor(final String tableName,
+                                  final ReportSpecification reportSpecification,
+                                  @Nullable final DateTime startDate,
+                                  @Nullable final DateTime endDate,
+                                  @Nullable final SmootherType smootherType,
+                                  final SQLDialect sqlDialect,
+                                  final Long tenantRecordId) {
         this.tableName = tableName;
         this.reportSpecification = reportSpecification;
         this.startDate = startDate;
         this.endDate = endDate;
+        this.smootherType = smootherType;
+        this.sqlDialect = sqlDialect;
         this.tenantRecordId = tenantRecordId;
 
         final Settings settings = new Settings();
@@ -98,6 +143,46 @@ public class SqlReportDataExtractor {
 
     @Override
     public String toString() {
+        return render(null);
+    }
+
+    /**
+     * Same query as {@link #toString()}, with the start and end dates as positional parameters. The template only depends on the
+     * report specification and on whether the dates are days or timestamps (see {@link #isDay(DateTime)}): it can be reused across requests.
+     */
+    public ReportQueryTemplate toQueryTemplate() {
+        return toQueryTemplate(false);
+    }
+
+    /**
+     * @param bindValues whether the values of the filters and the tenant record id are positional parameters as well
+     */
+    public ReportQueryTemplate toQueryTemplate(final boolean bindValues) {
+        final Placeholders placeholders = new Placeholders(bindValues);
+        final String sqlWithPlaceholders = render(placeholders);
+
+        // Parameters are listed in the order of their placeholders in the statement
+        final StringBuffer sql = new StringBuffer();
+        final List<Object> parameters = new ArrayList<Object>();
+        final Matcher matcher = placeholders.quotedPlaceholderPattern.matcher(sqlWithPlaceholders);
+        while (matcher.find()) {
+            parameters.add(placeholders.values.get(Integer.valueOf(matcher.group(1))));
+            matcher.appendReplacement(sql, "?");
+        }
+        matcher.appendTail(sql);
+
+        return new ReportQueryTemplate(sql.toString(), parameters, isDayFilter(startDate), isDayFilter(endDate), smoothedInSql);
+    }
+
+    // Whether the date is at midnight UTC, in which case it is compared to the day column (unless the report is by timestamp)
+    public static boolean isDay(final DateTime date) {
+        return date.compareTo(date.toLocalDate().toDateTimeAtStartOfDay(DateTimeZone.UTC)) == 0;
+    }
+
+    private String render(@Nullable final Placeholders placeholders) {
+        final Expression<String> filters = buildFilters(placeholders);
+        final boolean bindValues = placeholders != null && placeholders.bindValues;
+
         // Generate "select *" if no dimension or metric is precised
         final SelectSelectStep<? extends Record> initialSelect = dimensions.size() == 1 && metrics.isEmpty() ? context.select()
                                                                                                              : context.select(dimensions)
@@ -108,40 +193,74 @@ public class SqlReportDataExtractor {
 
 
         if (filters != null) {
-            statement = statement.and(Filters.of(filters));
+            statement = statement.and(Filters.of(filters, bindValues ? placeholders : null));
         }
         if (condition != null) {
             statement = statement.and(condition);
         }
 
-        statement.and(DSL.fieldByName("tenant_record_id").eq(tenantRecordId));
+        statement.and(DSL.fieldByName("tenant_record_id").eq(bindValues ? placeholders.apply(tenantRecordId) : tenantRecordId));
 
         if (shouldGroupBy) {
-            return statement.groupBy(dimensions)
+            return statement.groupBy(groupByFields)
                             .getSQL();
         } else {
             return statement.getSQL();
         }
     }
 
+    /**
+     * Whether the rows are already aggregated per period (one row per period start and dimensions), as per the smoother type.
+     * <p/>
+     * The periods of the smoother are preserved, so the smoother can still be applied on the result: summing (or averaging over the
+     * days of the period) yields the same values as smoothing the daily rows.
+     */
+    public boolean isSmoothedInSql() {
+        return smoothedInSql;
+    }
+
     private void setup() {
+        smoothedInSql = canSmoothInSql();
         setupDimensions();
         setupMetrics();
         setupFilters();
     }
 
+    private boolean canSmoothInSql() {
+        if (smootherType == null || reportSpecification.getMetrics().isEmpty()) {
+            return false;
+        }
+        for (final String metric : reportSpecification.getMetrics()) {
+            if (!ADDITIVE_METRIC_REGEXP.matcher(metric).matches()) {
+                return false;
+            }
+        }
+
+        final DateGranularity dateGranularity = smootherType.getDateGranularity();
+        if (reportSpecification.getDimensions().contains(TS_COLUMN_NAME)) {
+            // Reports by timestamp: only the sums can be computed per hour (the averages depend on the number of rows in the hour)
+            return DateGranularity.HOURLY.equals(dateGranularity) && smootherType.isSum() && reportSpecification.getDimensionsWithGrouping().contains(TS_COLUMN_NAME);
+        } else if (reportSpecification.getDimensions().contains(DAY_COLUMN_NAME) || DateGranularity.HOURLY.equals(dateGranularity)) {
+            return false;
+        } else {
+            // The averages are computed over the days in the period and the range, which needs to be bounded
+            return smootherType.isSum() || startDate != null;
+        }
+    }
+
     private void setupDimensions() {
         dimensions = new LinkedList<Field<Object>>();
+        groupByFields = new LinkedList<Field<Object>>();
 
         // Add the special "day" column if needed
         if (!reportSpecification.getDimensions().contains(DAY_COLUMN_NAME) && !reportSpecification.getDimensions().contains(TS_COLUMN_NAME)) {
-            dimensions.add(DSL.fieldByName(DAY_COLUMN_NAME));
+            addDimension(DSL.fieldByName(DAY_COLUMN_NAME), DAY_COLUMN_NAME);
         }
 
         // Add all other dimensions, potential building case statements as we go
         for (final String dimensionWithGrouping : reportSpecification.getDimensionsWithGrouping()) {
             final Cases.FieldWithMetadata fieldWithMetadata = Cases.of(dimensionWithGrouping);
-            dimensions.add(fieldWithMetadata.getField());
+            addDimension(fieldWithMetadata.getField(), dimensionWithGrouping);
 
             if (fieldWithMetadata.getCondition() != null) {
                 condition = condition == null ? fieldWithMetadata.getCondition() : condition.and(fieldWithMetadata.getCondition());
@@ -149,40 +268,102 @@ public class SqlReportDataExtractor {
         }
     }
 
+    private void addDimension(final Field<Object> field, final String dimensionWithGrouping) {
+        if (smoothedInSql && (DAY_COLUMN_NAME.equals(dimensionWithGrouping) || TS_COLUMN_NAME.equals(dimensionWithGrouping))) {
+            // Group by the expression itself: its alias is ambiguous with the column name
+            final Field<Object> periodStart = Granularities.truncate(field, smootherType.getDateGranularity(), sqlDialect);
+            dimensions.add(periodStart.as(dimensionWithGrouping));
+            groupByFields.add(periodStart);
+        } else {
+            dimensions.add(field);
+            groupByFields.add(field);
+        }
+    }
+
     private void setupMetrics() {
         metrics = new LinkedList<Field<Object>>();
         for (final String metric : reportSpecification.getMetrics()) {
             final MetricExpressionParser.FieldWithMetadata fieldWithMetadata = MetricExpressionParser.parse(metric);
-            metrics.add(fieldWithMetadata.getField());
-            shouldGroupBy = shouldGroupBy || fieldWithMetadata.hasAggregateFunction();
+            if (smoothedInSql && PLAIN_COLUMN_REGEXP.matcher(metric).matches()) {
+                // Daily value: sum it over the period, keeping the column name
+                final Field sum = DSL.sum(DSL.fieldByName(SQLDataType.NUMERIC, metric.trim())).as(metric.trim());
+                metrics.add(sum);
+            } else {
+                metrics.add(fieldWithMetadata.getField());
+            }
+            shouldGroupBy = shouldGroupBy || smoothedInSql || fieldWithMetadata.hasAggregateFunction();
         }
     }
 
     private void setupFilters() {
         filters = reportSpecification.getFilterExpression();
+    }
 
-        // Deal with dates (as yet another, specific, filter)
+    // Deal with dates (as yet another, specific, filter)
+    private Expression<String> buildFilters(@Nullable final Placeholders placeholders) {
+        Expression<String> allFilters = filters;
         if (startDate != null) {
             final Variable<String> dateCheck;
-            if (!reportSpecification.getDimensions().contains(TS_COLUMN_NAME) && startDate.compareTo(startDate.toLocalDate().toDateTimeAtStartOfDay(DateTimeZone.UTC)) == 0) {
-                dateCheck = Variable.of(String.format("%s>=%s", DAY_COLUMN_NAME, startDate.toLocalDate()));
+            if (isDayFilter(startDate)) {
+                dateCheck = Variable.of(String.format("%s>=%s", DAY_COLUMN_NAME, placeholders != null ? placeholders.newDatePlaceholder(ReportQueryTemplate.DateParameter.START_DATE) : startDate.toLocalDate()));
             } else {
-                dateCheck = Variable.of(String.format("%s>=%s", TS_COLUMN_NAME, startDate));
+                dateCheck = Variable.of(String.format("%s>=%s", TS_COLUMN_NAME, placeholders != null ? placeholders.newDatePlaceholder(ReportQueryTemplate.DateParameter.START_DATE) : startDate));
             }
-            filters = filters == null ? dateCheck : And.of(filters, dateCheck);
+            allFilters = allFilters == null ? dateCheck : And.of(allFilters, dateCheck);
         }
         if (endDate != null) {
             final Variable<String> dateCheck;
-            if (!reportSpecification.getDimensions().contains(TS_COLUMN_NAME) && endDate.compareTo(endDate.toLocalDate().toDateTimeAtStartOfDay(DateTimeZone.UTC)) == 0) {
-                dateCheck = Variable.of(String.format("%s<=%s", DAY_COLUMN_NAME, endDate.toLocalDate()));
+            if (isDayFilter(endDate)) {
+                dateCheck = Variable.of(String.format("%s<=%s", DAY_COLUMN_NAME, placeholders != null ? placeholders.newDatePlaceholder(ReportQueryTemplate.DateParameter.END_DATE) : endDate.toLocalDate()));
             } else {
-                dateCheck = Variable.of(String.format("%s<=%s", TS_COLUMN_NAME, endDate));
+                dateCheck = Variable.of(String.format("%s<=%s", TS_COLUMN_NAME, placeholders != null ? placeholders.newDatePlaceholder(ReportQueryTemplate.DateParameter.END_DATE) : endDate));
             }
-            filters = filters == null ? dateCheck : And.of(filters, dateCheck);
+            allFilters = allFilters == null ? dateCheck : And.of(allFilters, dateCheck);
+        }
+        return allFilters;
+    }
+
+    private boolean isDayFilter(@Nullable final DateTime date) {
+        return date != null && !reportSpecification.getDimensions().contains(TS_COLUMN_NAME) && isDay(date);
+    }
+
+    // Values rendered as string literals and replaced by positional parameters, see toQueryTemplate()
+    private static final class Placeholders implements Function<Object, String> {
+
+        private final boolean bindValues;
+        // Random, so that the values of the filters can't be mistaken for placeholders
+        private final String placeholderPrefix = "__analytics_param_" + UUID.randomUUID().toString().replace("-", "") + "_";
+        private final Pattern quotedPlaceholderPattern = Pattern.compile("'" + placeholderPrefix + "([0-9]+)__'");
+        // Values of the parameters, by placeholder index
+        private final List<Object> values = new ArrayList<Object>();
+        // The date placeholders are part of the filters expression, and come back here as filter values
+        private final Set<String> datePlaceholders = new HashSet<String>();
+
+        private Placeholders(final boolean bindValues) {
+            this.bindValues = bindValues;
+        }
+
+        private String newDatePlaceholder(final ReportQueryTemplate.DateParameter dateParameter) {
+            final String datePlaceholder = newPlaceholder(dateParameter);
+            datePlaceholders.add(datePlaceholder);
+            return datePlaceholder;
+        }
+
+        @Override
+        public String apply(final Object value) {
+            if (datePlaceholders.contains(value)) {
+                return (String) value;
+            }
+            return newPlaceholder(value);
+        }
+
+        private String newPlaceholder(final Object value) {
+            values.add(value);
+            return placeholderPrefix + (values.size() - 1) + "__";
         }
     }
 
-    private static SQLDialect SQLDialectFromDBEngine(final EmbeddedDB.DBEngine dbEngine) {
+    static SQLDialect SQLDialectFromDBEngine(final EmbeddedDB.DBEngine dbEngine) {
         switch (dbEngine) {
             case H2:
                 return SQLDialect.H2;
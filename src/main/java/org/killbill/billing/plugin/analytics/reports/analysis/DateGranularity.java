@@ -18,6 +18,10 @@
 package org.killbill.billing.plugin.analytics.reports.analysis;
 
 public enum DateGranularity {
+    // Only meaningful for reports by timestamp (ts column)
+    HOURLY,
     WEEKLY,
-    MONTHLY
+    MONTHLY,
+    QUARTERLY,
+    YEARLY
 }
@@ -18,42 +18,54 @@
 
 package org.killbill.billing.plugin.analytics.reports.analysis;
 
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
 
 import javax.annotation.Nullable;
 
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeConstants;
-import org.killbill.billing.plugin.analytics.json.XY;
+import org.killbill.billing.plugin.analytics.json.TimeSeries;
 
-import com.google.common.base.Function;
 import com.google.common.base.Strings;
 
 public abstract class Smoother {
 
-    private final Map<String, Map<String, List<XY>>> dataForReports;
+    private final Map<String, Map<String, TimeSeries>> dataForReports;
     private final DateGranularity dateGranularity;
 
     public static enum SmootherType {
-        AVERAGE_WEEKLY,
-        AVERAGE_MONTHLY,
-        SUM_WEEKLY,
-        SUM_MONTHLY;
-
-        public Smoother createSmoother(final Map<String, Map<String, List<XY>>> dataForReports) {
-            switch (this) {
-                case AVERAGE_WEEKLY:
-                    return new AverageSmoother(dataForReports, DateGranularity.WEEKLY);
-                case AVERAGE_MONTHLY:
-                    return new AverageSmoother(dataForReports, DateGranularity.MONTHLY);
-                case SUM_WEEKLY:
-                    return new SummingSmoother(dataForReports, DateGranularity.WEEKLY);
-                case SUM_MONTHLY:
-                    return new SummingSmoother(dataForReports, DateGranularity.MONTHLY);
-                default:
-                    return null;
+        AVERAGE_HOURLY(DateGranularity.HOURLY, false),
+        AVERAGE_WEEKLY(DateGranularity.WEEKLY, false),
+        AVERAGE_MONTHLY(DateGranularity.MONTHLY, false),
+        AVERAGE_QUARTERLY(DateGranularity.QUARTERLY, false),
+        AVERAGE_YEARLY(DateGranularity.YEARLY, false),
+        SUM_HOURLY(DateGranularity.HOURLY, true),
+        SUM_WEEKLY(DateGranularity.WEEKLY, true),
+        SUM_MONTHLY(DateGranularity.MONTHLY, true),
+        SUM_QUARTERLY(DateGranularity.QUARTERLY, true),
+        SUM_YEARLY(DateGranularity.YEARLY, true);
+
+        private final DateGranularity dateGranularity;
+        private final boolean isSum;
+
+        SmootherType(final DateGranularity dateGranularity, final boolean isSum) {
+            this.dateGranularity = dateGranularity;
+            this.isSum = isSum;
+        }
+
+        public DateGranularity getDateGranularity() {
+            return dateGranularity;
+        }
+
+        public boolean isSum() {
+            return isSum;
+        }
+
+        public Smoother createSmoother(final Map<String, Map<String, TimeSeries>> dataForReports) {
+            if (isSum) {
+                return new SummingSmoother(dataForReports, dateGranularity);
+            } else {
+                return new AverageSmoother(dataForReports, dateGranularity);
             }
         }
     }
@@ -66,7 +78,7 @@ public abstract class Smoother {
         }
     }
 
-    public Smoother(final Map<String, Map<String, List<XY>>> dataForReports, final DateGranularity dateGranularity) {
+    public Smoother(final Map<String, Map<String, TimeSeries>> dataForReports, final DateGranularity dateGranularity) {
         this.dataForReports = dataForReports;
         this.dateGranularity = dateGranularity;
     }
@@ -75,64 +87,85 @@ public abstract class Smoother {
 
     // Assume the data is already sorted
     public void smooth() {
-        for (final Map<String, List<XY>> dataForReport : dataForReports.values()) {
+        for (final Map<String, TimeSeries> dataForReport : dataForReports.values()) {
             for (final String pivotName : dataForReport.keySet()) {
-                final List<XY> dataForPivot = dataForReport.get(pivotName);
-                final List<XY> smoothedData = smooth(dataForPivot);
+                final TimeSeries dataForPivot = dataForReport.get(pivotName);
+                final TimeSeries smoothedData = smooth(dataForPivot);
                 dataForReport.put(pivotName, smoothedData);
             }
         }
     }
 
-    public Map<String, Map<String, List<XY>>> getDataForReports() {
+    public Map<String, Map<String, TimeSeries>> getDataForReports() {
         return dataForReports;
     }
 
-    private List<XY> smooth(final List<XY> inputData) {
-        switch (dateGranularity) {
-            case WEEKLY:
-                return smooth(inputData,
-                              new Function<XY, DateTime>() {
-                                  @Override
-                                  public DateTime apply(final XY input) {
-                                      return input.getxDate().withDayOfWeek(DateTimeConstants.MONDAY);
-                                  }
-                              }
-                             );
-            case MONTHLY:
-                return smooth(inputData,
-                              new Function<XY, DateTime>() {
-                                  @Override
-                                  public DateTime apply(final XY input) {
-                                      return input.getxDate().withDayOfMonth(1);
-                                  }
-                              }
-                             );
-            default:
-                return inputData;
+    private TimeSeries smooth(final TimeSeries inputData) {
+        if (inputData.size() == 0) {
+            return inputData;
         }
-    }
 
-    private List<XY> smooth(final List<XY> inputData, final Function<XY, DateTime> truncator) {
-        final List<XY> smoothedData = new LinkedList<XY>();
+        final long[] xValues = new long[inputData.size()];
+        final float[] yValues = new float[inputData.size()];
+        int size = 0;
 
-        DateTime currentTruncatedDate = truncator.apply(inputData.get(0));
-        Float accumulator = (float) 0;
+        long currentTruncatedX = truncate(inputData, 0);
+        float accumulator = (float) 0;
         int accumulatorSize = 0;
-        for (final XY xy : inputData) {
-            final DateTime zeTruncatedDate = truncator.apply(xy);
-            //noinspection ConstantConditions
-            if (zeTruncatedDate.compareTo(currentTruncatedDate) != 0) {
-                smoothedData.add(new XY(currentTruncatedDate, computeSmoothedValue(accumulator, accumulatorSize)));
+        for (int i = 0; i < inputData.size(); i++) {
+            final long zeTruncatedX = truncate(inputData, i);
+            if (zeTruncatedX != currentTruncatedX) {
+                xValues[size] = currentTruncatedX;
+                yValues[size] = computeSmoothedValue(accumulator, accumulatorSize);
+                size++;
                 accumulator = (float) 0;
                 accumulatorSize = 0;
             }
 
-            accumulator += xy.getY();
+            accumulator += inputData.getY(i);
             accumulatorSize++;
-            currentTruncatedDate = zeTruncatedDate;
+            currentTruncatedX = zeTruncatedX;
         }
 
-        return smoothedData;
+        return new TimeSeries(inputData.isByDay(), xValues, yValues, size);
+    }
+
+    // Start of the period (weeks start on Monday), in the unit of the series
+    private long truncate(final TimeSeries inputData, final int i) {
+        final long x = inputData.getX(i);
+        if (inputData.isByDay()) {
+            switch (dateGranularity) {
+                case WEEKLY:
+                    // 1970-01-01 was a Thursday
+                    return x - (((x + 3) % 7) + 7) % 7;
+                case MONTHLY:
+                    final int[] date = TimeSeries.fromDay(x);
+                    return TimeSeries.toDay(date[0], date[1], 1);
+                case QUARTERLY:
+                    final int[] dateInQuarter = TimeSeries.fromDay(x);
+                    return TimeSeries.toDay(dateInQuarter[0], ((dateInQuarter[1] - 1) / 3) * 3 + 1, 1);
+                case YEARLY:
+                    return TimeSeries.toDay(TimeSeries.fromDay(x)[0], 1, 1);
+                default:
+                    // Series by day have no finer granularity
+                    return x;
+            }
+        } else {
+            final DateTime dateTime = new DateTime(x);
+            switch (dateGranularity) {
+                case HOURLY:
+                    return dateTime.hourOfDay().roundFloorCopy().getMillis();
+                case WEEKLY:
+                    return dateTime.withDayOfWeek(DateTimeConstants.MONDAY).getMillis();
+                case MONTHLY:
+                    return dateTime.withDayOfMonth(1).getMillis();
+                case QUARTERLY:
+                    return dateTime.withMonthOfYear(((dateTime.getMonthOfYear() - 1) / 3) * 3 + 1).withDayOfMonth(1).getMillis();
+                case YEARLY:
+                    return dateTime.withDayOfYear(1).getMillis();
+                default:
+                    return x;
+            }
+        }
     }
 }
@@ -17,14 +17,13 @@
 
 package org.killbill.billing.plugin.analytics.reports.analysis;
 
-import java.util.List;
 import java.util.Map;
 
-import org.killbill.billing.plugin.analytics.json.XY;
+import org.killbill.billing.plugin.analytics.json.TimeSeries;
 
 public class SummingSmoother extends Smoother {
 
-    public SummingSmoother(final Map<String, Map<String, List<XY>>> dataForReports, final DateGranularity dateGranularity) {
+    public SummingSmoother(final Map<String, Map<String, TimeSeries>> dataForReports, final DateGranularity dateGranularity) {
         super(dataForReports, dateGranularity);
     }
 
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports.analysis;
+
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+import org.killbill.billing.plugin.analytics.json.TimeSeries;
+
+/**
+ * Adds 0 for missing days in the time series and sorts them, for the dashboard.
+ * <p/>
+ * Series by day (x values formatted as yyyy-MM-dd, i.e. the day column of the reports) are indexed by day in a dense array,
+ * in a single pass. Other series (e.g. by timestamp) are sorted and merged with the days instead.
+ */
+public class TimeSeriesNormalizer {
+
+    private static final long NOT_A_DAY = TimeSeries.NOT_A_DAY;
+
+    private TimeSeriesNormalizer() {}
+
+    public static void normalizeAndSortXValues(final Map<String, Map<String, TimeSeries>> dataForReports, @Nullable final DateTime startDate, @Nullable final DateTime endDate) {
+        DateTime minDate = startDate;
+        DateTime maxDate = endDate;
+
+        // If no min and/or max was specified, infer them from the data
+        if (minDate == null || maxDate == null) {
+            long minDay = NOT_A_DAY;
+            long maxDay = NOT_A_DAY;
+            long minMillis = Long.MAX_VALUE;
+            long maxMillis = Long.MIN_VALUE;
+            for (final Map<String, TimeSeries> dataForReport : dataForReports.values()) {
+                for (final TimeSeries dataForPivot : dataForReport.values()) {
+                    for (int i = 0; i < dataForPivot.size(); i++) {
+                        final long x = dataForPivot.getX(i);
+                        if (dataForPivot.isByDay()) {
+                            minDay = minDay == NOT_A_DAY ? x : Math.min(minDay, x);
+                            maxDay = maxDay == NOT_A_DAY ? x : Math.max(maxDay, x);
+                        } else {
+                            minMillis = Math.min(minMillis, x);
+                            maxMillis = Math.max(maxMillis, x);
+                        }
+                    }
+                }
+            }
+
+            if (minDate == null) {
+                minDate = earliest(toDateTime(minDay), minMillis == Long.MAX_VALUE ? null : new DateTime(minMillis));
+            }
+            if (maxDate == null) {
+                maxDate = latest(toDateTime(maxDay), maxMillis == Long.MIN_VALUE ? null : new DateTime(maxMillis));
+            }
+        }
+
+        if (minDate == null || maxDate == null) {
+            throw new IllegalStateException(String.format("minDate and maxDate shouldn't be null! minDate=%s, maxDate=%s, dataForReports=%s", minDate, maxDate, dataForReports));
+        }
+
+        int nbDays = 0;
+        DateTime curDate = minDate;
+        while (!curDate.isAfter(maxDate)) {
+            nbDays++;
+            curDate = curDate.plusDays(1);
+        }
+        final long firstDay = TimeSeries.toDay(minDate.getYear(), minDate.getMonthOfYear(), minDate.getDayOfMonth());
+
+        // Instants of the missing days, only needed for series which aren't by day
+        long[] zeroMillis = null;
+
+        for (final Map<String, TimeSeries> dataForReport : dataForReports.values()) {
+            for (final Entry<String, TimeSeries> entry : dataForReport.entrySet()) {
+                final TimeSeries dataForPivot = entry.getValue();
+                TimeSeries normalizedData;
+                if (dataForPivot.isByDay()) {
+                    normalizedData = fillByDay(dataForPivot, firstDay, nbDays);
+                    if (normalizedData == null) {
+                        normalizedData = fillAndSort(dataForPivot, firstDay, nbDays);
+                    }
+                } else {
+                    if (zeroMillis == null) {
+                        zeroMillis = new long[nbDays];
+                        for (int i = 0; i < nbDays; i++) {
+                            zeroMillis[i] = minDate.plusDays(i).getMillis();
+                        }
+                    }
+                    normalizedData = fillAndSort(dataForPivot, zeroMillis);
+                }
+                entry.setValue(normalizedData);
+            }
+        }
+    }
+
+    // Returns null if the series cannot be indexed densely (multiple values for a day or days outside of the range)
+    private static TimeSeries fillByDay(final TimeSeries dataForPivot, final long firstDay, final int nbDays) {
+        final float[] valuesByDay = new float[nbDays];
+        final boolean[] isSet = new boolean[nbDays];
+        for (int i = 0; i < dataForPivot.size(); i++) {
+            final long offset = dataForPivot.getX(i) - firstDay;
+            if (offset < 0 || offset >= nbDays || isSet[(int) offset]) {
+                return null;
+            }
+            valuesByDay[(int) offset] = dataForPivot.getY(i);
+            isSet[(int) offset] = true;
+        }
+
+        final long[] days = new long[nbDays];
+        for (int i = 0; i < nbDays; i++) {
+            days[i] = firstDay + i;
+        }
+        return new TimeSeries(true, days, valuesByDay, nbDays);
+    }
+
+    private static TimeSeries fillAndSort(final TimeSeries dataForPivot, final long firstDay, final int nbDays) {
+        final long[] zeroDays = new long[nbDays];
+        for (int i = 0; i < nbDays; i++) {
+            zeroDays[i] = firstDay + i;
+        }
+        return fillAndSort(dataForPivot, zeroDays);
+    }
+
+    // Merges the sorted series with the zeros (x values in the same unit), points are kept as is
+    private static TimeSeries fillAndSort(final TimeSeries dataForPivot, final long[] zeros) {
+        final TimeSeries sortedData = dataForPivot.sorted();
+
+        final long[] xValues = new long[sortedData.size() + zeros.length];
+        final float[] yValues = new float[xValues.length];
+        int size = 0;
+        int i = 0;
+        for (final long zero : zeros) {
+            while (i < sortedData.size() && sortedData.getX(i) <= zero) {
+                xValues[size] = sortedData.getX(i);
+                yValues[size] = sortedData.getY(i);
+                size++;
+                i++;
+            }
+            if (size == 0 || xValues[size - 1] != zero) {
+                xValues[size] = zero;
+                yValues[size] = 0f;
+                size++;
+            }
+        }
+        while (i < sortedData.size()) {
+            xValues[size] = sortedData.getX(i);
+            yValues[size] = sortedData.getY(i);
+            size++;
+            i++;
+        }
+        return new TimeSeries(sortedData.isByDay(), xValues, yValues, size);
+    }
+
+    // Same as new DateTime("yyyy-MM-dd")
+    private static DateTime toDateTime(final long epochDay) {
+        return epochDay == NOT_A_DAY ? null : new DateTime(TimeSeries.dayToMillis(epochDay));
+    }
+
+    private static DateTime earliest(@Nullable final DateTime date1, @Nullable final DateTime date2) {
+        if (date1 == null || date2 == null) {
+            return date1 == null ? date2 : date1;
+        }
+        return date1.isBefore(date2) ? date1 : date2;
+    }
+
+    private static DateTime latest(@Nullable final DateTime date1, @Nullable final DateTime date2) {
+        if (date1 == null || date2 == null) {
+            return date1 == null ? date2 : date1;
+        }
+        return date1.isAfter(date2) ? date1 : date2;
+    }
+}
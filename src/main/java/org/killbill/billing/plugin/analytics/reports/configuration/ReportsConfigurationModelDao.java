@@ -17,17 +17,28 @@
 
 package org.killbill.billing.plugin.analytics.reports.configuration;
 
+import java.util.regex.Pattern;
+
 import javax.annotation.Nullable;
 
+import org.joda.time.DateTime;
 import org.killbill.billing.plugin.analytics.json.ReportConfigurationJson;
 
 import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
 
 public class ReportsConfigurationModelDao {
 
+    // The watermark column ends up in the incremental refresh queries
+    private static final Pattern IDENTIFIER_PATTERN = Pattern.compile("[A-Za-z_][A-Za-z0-9_]{0,63}");
+
     public static enum Frequency {
+        // Every refreshIntervalMinutes minutes
+        MINUTELY,
         HOURLY,
-        DAILY
+        DAILY,
+        // As specified by refreshCron
+        CRON
     }
 
     public static enum ReportType {
@@ -45,6 +56,24 @@ public class ReportsConfigurationModelDao {
     private String refreshProcedureName;
     private Frequency refreshFrequency;
     private Integer refreshHourOfDayGmt;
+    // For incremental refreshes: column (e.g. day) of the source table used as a watermark
+    private String refreshWatermarkColumn;
+    // For incremental refreshes: number of days before the watermark which are recomputed at each run
+    private Integer refreshWindowDays;
+    // Reports with a higher priority are refreshed first, when refreshes are queued
+    private Integer refreshPriority;
+    // Comma-separated names of the reports whose pending refreshes need to complete first
+    private String refreshDependencies;
+    // For MINUTELY refreshes
+    private Integer refreshIntervalMinutes;
+    // For CRON refreshes: minute hour day-of-month month day-of-week (e.g. 30 2 * * 1-5)
+    private String refreshCron;
+    // Time zone of refreshCron (GMT by default)
+    private String refreshTimeZone;
+    // Overrides org.killbill.billing.plugin.analytics.refresh.jitterSeconds
+    private Integer refreshJitterSeconds;
+    // Set by the refresh jobs, not part of the configuration (read-only)
+    private DateTime refreshLastSuccessDate;
 
     public ReportsConfigurationModelDao() { /* When reading from the database */ }
 
@@ -56,7 +85,15 @@ public class ReportsConfigurationModelDao {
              reportConfigurationJson.getSourceTableName(),
              reportConfigurationJson.getRefreshProcedureName(),
              reportConfigurationJson.getRefreshFrequency(),
-             reportConfigurationJson.getRefreshHourOfDayGmt());
+             reportConfigurationJson.getRefreshHourOfDayGmt(),
+             reportConfigurationJson.getRefreshWatermarkColumn(),
+             reportConfigurationJson.getRefreshWindowDays(),
+             reportConfigurationJson.getRefreshPriority(),
+             reportConfigurationJson.getRefreshDependencies(),
+             reportConfigurationJson.getRefreshIntervalMinutes(),
+             reportConfigurationJson.getRefreshCron(),
+             reportConfigurationJson.getRefreshTimeZone(),
+             reportConfigurationJson.getRefreshJitterSeconds());
     }
 
     public ReportsConfigurationModelDao(final ReportConfigurationJson reportConfigurationJson, final ReportsConfigurationModelDao currentReportsConfigurationModelDao) {
@@ -67,16 +104,47 @@ public class ReportsConfigurationModelDao {
              MoreObjects.firstNonNull(reportConfigurationJson.getSourceTableName(), currentReportsConfigurationModelDao.getSourceTableName()),
              reportConfigurationJson.getRefreshProcedureName() != null ? reportConfigurationJson.getRefreshProcedureName() : currentReportsConfigurationModelDao.getRefreshProcedureName(),
              reportConfigurationJson.getRefreshFrequency() != null ? reportConfigurationJson.getRefreshFrequency() : currentReportsConfigurationModelDao.getRefreshFrequency(),
-             reportConfigurationJson.getRefreshHourOfDayGmt() != null ? reportConfigurationJson.getRefreshHourOfDayGmt() : currentReportsConfigurationModelDao.getRefreshHourOfDayGmt());
+             reportConfigurationJson.getRefreshHourOfDayGmt() != null ? reportConfigurationJson.getRefreshHourOfDayGmt() : currentReportsConfigurationModelDao.getRefreshHourOfDayGmt(),
+             reportConfigurationJson.getRefreshWatermarkColumn() != null ? reportConfigurationJson.getRefreshWatermarkColumn() : currentReportsConfigurationModelDao.getRefreshWatermarkColumn(),
+             reportConfigurationJson.getRefreshWindowDays() != null ? reportConfigurationJson.getRefreshWindowDays() : currentReportsConfigurationModelDao.getRefreshWindowDays(),
+             reportConfigurationJson.getRefreshPriority() != null ? reportConfigurationJson.getRefreshPriority() : currentReportsConfigurationModelDao.getRefreshPriority(),
+             reportConfigurationJson.getRefreshDependencies() != null ? reportConfigurationJson.getRefreshDependencies() : currentReportsConfigurationModelDao.getRefreshDependencies(),
+             reportConfigurationJson.getRefreshIntervalMinutes() != null ? reportConfigurationJson.getRefreshIntervalMinutes() : currentReportsConfigurationModelDao.getRefreshIntervalMinutes(),
+             reportConfigurationJson.getRefreshCron() != null ? reportConfigurationJson.getRefreshCron() : currentReportsConfigurationModelDao.getRefreshCron(),
+             reportConfigurationJson.getRefreshTimeZone() != null ? reportConfigurationJson.getRefreshTimeZone() : currentReportsConfigurationModelDao.getRefreshTimeZone(),
+             reportConfigurationJson.getRefreshJitterSeconds() != null ? reportConfigurationJson.getRefreshJitterSeconds() : currentReportsConfigurationModelDao.getRefreshJitterSeconds());
     }
 
     public ReportsConfigurationModelDao(final String reportName, final String reportPrettyName, final ReportType type, final String sourceTableName,
                                         final String refreshProcedureName, final Frequency refreshFrequency, final Integer refreshHourOfDayGmt) {
-        this(null, reportName, reportPrettyName, type, sourceTableName, refreshProcedureName, refreshFrequency, refreshHourOfDayGmt);
+        this(null, reportName, reportPrettyName, type, sourceTableName, refreshProcedureName, refreshFrequency, refreshHourOfDayGmt, null, null);
     }
 
     public ReportsConfigurationModelDao(@Nullable final Integer recordId, final String reportName, final String reportPrettyName, final ReportType type, final String sourceTableName,
                                         final String refreshProcedureName, final Frequency refreshFrequency, final Integer refreshHourOfDayGmt) {
+        this(recordId, reportName, reportPrettyName, type, sourceTableName, refreshProcedureName, refreshFrequency, refreshHourOfDayGmt, null, null);
+    }
+
+    public ReportsConfigurationModelDao(@Nullable final Integer recordId, final String reportName, final String reportPrettyName, final ReportType type, final String sourceTableName,
+                                        final String refreshProcedureName, final Frequency refreshFrequency, final Integer refreshHourOfDayGmt,
+                                        @Nullable final String refreshWatermarkColumn, @Nullable final Integer refreshWindowDays) {
+        this(recordId, reportName, reportPrettyName, type, sourceTableName, refreshProcedureName, refreshFrequency, refreshHourOfDayGmt, refreshWatermarkColumn, refreshWindowDays, null, null);
+    }
+
+    public ReportsConfigurationModelDao(@Nullable final Integer recordId, final String reportName, final String reportPrettyName, final ReportType type, final String sourceTableName,
+                                        final String refreshProcedureName, final Frequency refreshFrequency, final Integer refreshHourOfDayGmt,
+                                        @Nullable final String refreshWatermarkColumn, @Nullable final Integer refreshWindowDays,
+                                        @Nullable final Integer refreshPriority, @Nullable final String refreshDependencies) {
+        this(recordId, reportName, reportPrettyName, type, sourceTableName, refreshProcedureName, refreshFrequency, refreshHourOfDayGmt, refreshWatermarkColumn, refreshWindowDays,
+             refreshPriority, refreshDependencies, null, null, null, null);
+    }
+
+    public ReportsConfigurationModelDao(@Nullable final Integer recordId, final String reportName, final String reportPrettyName, final ReportType type, final String sourceTableName,
+                                        final String refreshProcedureName, final Frequency refreshFrequency, final Integer refreshHourOfDayGmt,
+                                        @Nullable final String refreshWatermarkColumn, @Nullable final Integer refreshWindowDays,
+                                        @Nullable final Integer refreshPriority, @Nullable final String refreshDependencies,
+                                        @Nullable final Integer refreshIntervalMinutes, @Nullable final String refreshCron,
+                                        @Nullable final String refreshTimeZone, @Nullable final Integer refreshJitterSeconds) {
         this.recordId = recordId;
         this.reportName = reportName;
         this.reportPrettyName = reportPrettyName;
@@ -85,6 +153,14 @@ public class ReportsConfigurationModelDao {
         this.refreshProcedureName = refreshProcedureName;
         this.refreshFrequency = refreshFrequency;
         this.refreshHourOfDayGmt = refreshHourOfDayGmt;
+        this.refreshWatermarkColumn = checkRefreshWatermarkColumn(refreshWatermarkColumn);
+        this.refreshWindowDays = refreshWindowDays;
+        this.refreshPriority = refreshPriority;
+        this.refreshDependencies = refreshDependencies;
+        this.refreshIntervalMinutes = refreshIntervalMinutes;
+        this.refreshCron = refreshCron;
+        this.refreshTimeZone = refreshTimeZone;
+        this.refreshJitterSeconds = refreshJitterSeconds;
     }
 
     public Integer getRecordId() {
@@ -119,6 +195,53 @@ public class ReportsConfigurationModelDao {
         return reportType;
     }
 
+    public String getRefreshWatermarkColumn() {
+        return refreshWatermarkColumn;
+    }
+
+    public Integer getRefreshWindowDays() {
+        return refreshWindowDays;
+    }
+
+    public Integer getRefreshPriority() {
+        return refreshPriority;
+    }
+
+    public String getRefreshDependencies() {
+        return refreshDependencies;
+    }
+
+    public Integer getRefreshIntervalMinutes() {
+        return refreshIntervalMinutes;
+    }
+
+    public String getRefreshCron() {
+        return refreshCron;
+    }
+
+    public String getRefreshTimeZone() {
+        return refreshTimeZone;
+    }
+
+    public Integer getRefreshJitterSeconds() {
+        return refreshJitterSeconds;
+    }
+
+    public DateTime getRefreshLastSuccessDate() {
+        return refreshLastSuccessDate;
+    }
+
+    public static String checkRefreshWatermarkColumn(@Nullable final String refreshWatermarkColumn) {
+        Preconditions.checkArgument(refreshWatermarkColumn == null || IDENTIFIER_PATTERN.matcher(refreshWatermarkColumn).matches(),
+                                    "Invalid refreshWatermarkColumn %s: expecting a column name", refreshWatermarkColumn);
+        return refreshWatermarkColumn;
+    }
+
+    // Whether the report tables are refreshed periodically, either by a stored procedure or incrementally
+    public boolean isRefreshable() {
+        return refreshFrequency != null && (refreshProcedureName != null || refreshWatermarkColumn != null);
+    }
+
     @Override
     public String toString() {
         final StringBuilder sb = new StringBuilder("ReportsConfigurationModelDao{");
@@ -130,6 +253,15 @@ public class ReportsConfigurationModelDao {
         sb.append(", refreshProcedureName='").append(refreshProcedureName).append('\'');
         sb.append(", refreshFrequency=").append(refreshFrequency);
         sb.append(", refreshHourOfDayGmt=").append(refreshHourOfDayGmt);
+        sb.append(", refreshWatermarkColumn='").append(refreshWatermarkColumn).append('\'');
+        sb.append(", refreshWindowDays=").append(refreshWindowDays);
+        sb.append(", refreshPriority=").append(refreshPriority);
+        sb.append(", refreshDependencies='").append(refreshDependencies).append('\'');
+        sb.append(", refreshIntervalMinutes=").append(refreshIntervalMinutes);
+        sb.append(", refreshCron='").append(refreshCron).append('\'');
+        sb.append(", refreshTimeZone='").append(refreshTimeZone).append('\'');
+        sb.append(", refreshJitterSeconds=").append(refreshJitterSeconds);
+        sb.append(", refreshLastSuccessDate=").append(refreshLastSuccessDate);
         sb.append('}');
         return sb.toString();
     }
@@ -174,6 +306,30 @@ public class ReportsConfigurationModelDao {
         if (reportType != null ? !reportType.equals(that.reportType) : that.reportType != null) {
             return false;
         }
+        if (refreshWatermarkColumn != null ? !refreshWatermarkColumn.equals(that.refreshWatermarkColumn) : that.refreshWatermarkColumn != null) {
+            return false;
+        }
+        if (refreshWindowDays != null ? !refreshWindowDays.equals(that.refreshWindowDays) : that.refreshWindowDays != null) {
+            return false;
+        }
+        if (refreshPriority != null ? !refreshPriority.equals(that.refreshPriority) : that.refreshPriority != null) {
+            return false;
+        }
+        if (refreshDependencies != null ? !refreshDependencies.equals(that.refreshDependencies) : that.refreshDependencies != null) {
+            return false;
+        }
+        if (refreshIntervalMinutes != null ? !refreshIntervalMinutes.equals(that.refreshIntervalMinutes) : that.refreshIntervalMinutes != null) {
+            return false;
+        }
+        if (refreshCron != null ? !refreshCron.equals(that.refreshCron) : that.refreshCron != null) {
+            return false;
+        }
+        if (refreshTimeZone != null ? !refreshTimeZone.equals(that.refreshTimeZone) : that.refreshTimeZone != null) {
+            return false;
+        }
+        if (refreshJitterSeconds != null ? !refreshJitterSeconds.equals(that.refreshJitterSeconds) : that.refreshJitterSeconds != null) {
+            return false;
+        }
         return true;
     }
 
@@ -187,6 +343,14 @@ public class ReportsConfigurationModelDao {
         result = 31 * result + (refreshProcedureName != null ? refreshProcedureName.hashCode() : 0);
         result = 31 * result + (refreshFrequency != null ? refreshFrequency.hashCode() : 0);
         result = 31 * result + (refreshHourOfDayGmt != null ? refreshHourOfDayGmt.hashCode() : 0);
+        result = 31 * result + (refreshWatermarkColumn != null ? refreshWatermarkColumn.hashCode() : 0);
+        result = 31 * result + (refreshWindowDays != null ? refreshWindowDays.hashCode() : 0);
+        result = 31 * result + (refreshPriority != null ? refreshPriority.hashCode() : 0);
+        result = 31 * result + (refreshDependencies != null ? refreshDependencies.hashCode() : 0);
+        result = 31 * result + (refreshIntervalMinutes != null ? refreshIntervalMinutes.hashCode() : 0);
+        result = 31 * result + (refreshCron != null ? refreshCron.hashCode() : 0);
+        result = 31 * result + (refreshTimeZone != null ? refreshTimeZone.hashCode() : 0);
+        result = 31 * result + (refreshJitterSeconds != null ? refreshJitterSeconds.hashCode() : 0);
         return result;
     }
 }
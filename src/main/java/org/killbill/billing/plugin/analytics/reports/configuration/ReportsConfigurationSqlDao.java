@@ -19,6 +19,7 @@ package org.killbill.billing.plugin.analytics.reports.configuration;
 
 import java.util.List;
 
+import org.joda.time.DateTime;
 import org.skife.jdbi.v2.sqlobject.Bind;
 import org.skife.jdbi.v2.sqlobject.BindBean;
 import org.skife.jdbi.v2.sqlobject.SqlQuery;
@@ -41,6 +42,15 @@ public interface ReportsConfigurationSqlDao extends Transactional<ReportsConfigu
     @SqlUpdate
     void updateReportConfiguration(@BindBean final ReportsConfigurationModelDao report);
 
+    @SqlQuery
+    String getRefreshLastWatermark(@Bind("reportName") final String reportName);
+
+    @SqlUpdate
+    void updateRefreshLastWatermark(@Bind("reportName") final String reportName, @Bind("refreshLastWatermark") final String refreshLastWatermark);
+
+    @SqlUpdate
+    void updateRefreshLastSuccessDate(@Bind("reportName") final String reportName, @Bind("refreshLastSuccessDate") final DateTime refreshLastSuccessDate);
+
     @SqlUpdate
     void deleteReportConfiguration(@Bind("reportName") final String reportName);
 }
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports.scheduler;
+
+import java.util.BitSet;
+import java.util.List;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDateTime;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+
+/**
+ * Standard 5-field cron expression: minute (0-59) hour (0-23) day-of-month (1-31) month (1-12) day-of-week (0-7, 0 and 7 being Sunday).
+ * <p/>
+ * Each field supports *, single values, ranges (1-5), lists (1,15) and steps (*&#47;15, 8-18/2). As with cron,
+ * when both the day-of-month and the day-of-week are restricted, either of them needs to match.
+ * <p/>
+ * Expressions are evaluated in local time. On daylight saving time transitions, local times which don't exist
+ * (e.g. 02:30 when clocks go from 02:00 to 03:00) run at the first valid instant after the gap, and local times
+ * which occur twice (e.g. 02:30 when clocks go back from 03:00 to 02:00) only run the first time.
+ */
+class CronExpression {
+
+    private static final Splitter FIELDS_SPLITTER = Splitter.on(' ').trimResults().omitEmptyStrings();
+    private static final Splitter VALUES_SPLITTER = Splitter.on(',');
+
+    // Bounds the search for expressions which never match (e.g. 0 0 30 2 *)
+    private static final int MAX_YEARS_AHEAD = 5;
+
+    private final String expression;
+    private final BitSet minutes;
+    private final BitSet hours;
+    private final BitSet daysOfMonth;
+    private final BitSet months;
+    private final BitSet daysOfWeek;
+    private final boolean daysOfMonthRestricted;
+    private final boolean daysOfWeekRestricted;
+
+    CronExpression(final String expression) {
+        final List<String> fields = FIELDS_SPLITTER.splitToList(expression);
+        Preconditions.checkArgument(fields.size() == 5, "Invalid cron expression %s: expected 5 fields", expression);
+
+        this.expression = expression;
+        this.minutes = parseField(fields.get(0), 0, 59, expression);
+        this.hours = parseField(fields.get(1), 0, 23, expression);
+        this.daysOfMonth = parseField(fields.get(2), 1, 31, expression);
+        this.months = parseField(fields.get(3), 1, 12, expression);
+        this.daysOfWeek = parseField(fields.get(4), 0, 7, expression);
+        // Sunday is both 0 and 7
+        if (daysOfWeek.get(7)) {
+            daysOfWeek.set(0);
+        }
+        this.daysOfMonthRestricted = !"*".equals(fields.get(2));
+        this.daysOfWeekRestricted = !"*".equals(fields.get(4));
+    }
+
+    // First matching minute strictly after the specified time
+    DateTime nextAfter(final DateTime after, final DateTimeZone timeZone) {
+        LocalDateTime next = after.withZone(timeZone).toLocalDateTime().withSecondOfMinute(0).withMillisOfSecond(0).plusMinutes(1);
+        final int maxYear = next.getYear() + MAX_YEARS_AHEAD;
+
+        while (next.getYear() <= maxYear) {
+            if (!months.get(next.getMonthOfYear())) {
+                next = next.plusMonths(1).withDayOfMonth(1).withMillisOfDay(0);
+            } else if (!matchesDay(next)) {
+                next = next.plusDays(1).withMillisOfDay(0);
+            } else if (!hours.get(next.getHourOfDay())) {
+                next = next.plusHours(1).withMinuteOfHour(0);
+            } else if (!minutes.get(next.getMinuteOfHour())) {
+                next = next.plusMinutes(1);
+            } else {
+                final DateTime nextRun = toDateTime(next, timeZone);
+                // Second occurrence of a repeated local time (its first occurrence is before the specified time)
+                if (nextRun.isAfter(after)) {
+                    return nextRun;
+                }
+                next = next.plusMinutes(1);
+            }
+        }
+
+        throw new IllegalArgumentException("Cron expression " + expression + " never matches");
+    }
+
+    // First occurrence of the local time, or the end of the gap if the local time is skipped
+    private static DateTime toDateTime(final LocalDateTime localDateTime, final DateTimeZone timeZone) {
+        final long localMillis = localDateTime.toDateTime(DateTimeZone.UTC).getMillis();
+        // In a gap, this is the offset before the transition, i.e. an instant after the transition
+        final long instant = localMillis - timeZone.getOffsetFromLocal(localMillis);
+        if (timeZone.isLocalDateTimeGap(localDateTime)) {
+            // previousTransition returns the last millisecond before the transition
+            return new DateTime(timeZone.previousTransition(instant) + 1, timeZone);
+        } else {
+            return new DateTime(instant, timeZone);
+        }
+    }
+
+    private boolean matchesDay(final LocalDateTime dateTime) {
+        final boolean dayOfMonthMatches = daysOfMonth.get(dateTime.getDayOfMonth());
+        // Joda-Time days of the week go from 1 (Monday) to 7 (Sunday)
+        final boolean dayOfWeekMatches = daysOfWeek.get(dateTime.getDayOfWeek() % 7);
+        if (daysOfMonthRestricted && daysOfWeekRestricted) {
+            return dayOfMonthMatches || dayOfWeekMatches;
+        } else {
+            return dayOfMonthMatches && dayOfWeekMatches;
+        }
+    }
+
+    private static BitSet parseField(final String field, final int min, final int max, final String expression) {
+        final BitSet values = new BitSet(max + 1);
+        for (final String value : VALUES_SPLITTER.split(field)) {
+            final int stepIndex = value.indexOf('/');
+            final String range = stepIndex == -1 ? value : value.substring(0, stepIndex);
+            final int step = stepIndex == -1 ? 1 : parseValue(value.substring(stepIndex + 1), 1, max, expression);
+
+            final int from;
+            final int to;
+            if ("*".equals(range)) {
+                from = min;
+                to = max;
+            } else {
+                final int rangeIndex = range.indexOf('-');
+                if (rangeIndex == -1) {
+                    from = parseValue(range, min, max, expression);
+                    // 5/10 means from 5 to the end of the range
+                    to = stepIndex == -1 ? from : max;
+                } else {
+                    from = parseValue(range.substring(0, rangeIndex), min, max, expression);
+                    to = parseValue(range.substring(rangeIndex + 1), min, max, expression);
+                }
+            }
+            Preconditions.checkArgument(from <= to, "Invalid cron expression %s: invalid range %s", expression, value);
+
+            for (int i = from; i <= to; i += step) {
+                values.set(i);
+            }
+        }
+        return values;
+    }
+
+    private static int parseValue(final String value, final int min, final int max, final String expression) {
+        final int parsedValue;
+        try {
+            parsedValue = Integer.parseInt(value);
+        } catch (final NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid cron expression " + expression + ": invalid value " + value);
+        }
+        Preconditions.checkArgument(parsedValue >= min && parsedValue <= max, "Invalid cron expression %s: %s isn't between %s and %s", expression, parsedValue, min, max);
+        return parsedValue;
+    }
+}
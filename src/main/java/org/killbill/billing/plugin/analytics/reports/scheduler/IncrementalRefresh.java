@@ -0,0 +1,123 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports.scheduler;
+
+import java.sql.SQLException;
+import java.util.Map;
+
+import org.joda.time.LocalDate;
+import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao;
+import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationSqlDao;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.IDBI;
+import org.skife.jdbi.v2.TransactionCallback;
+import org.skife.jdbi.v2.TransactionIsolationLevel;
+import org.skife.jdbi.v2.TransactionStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.MoreObjects;
+import com.google.common.base.Preconditions;
+
+/**
+ * Refresh of a report table from its view (e.g. report_mrr_daily from v_report_mrr_daily), without recomputing the whole history.
+ * <p/>
+ * The rows starting a few days (refreshWindowDays) before the last refreshed watermark are deleted and re-inserted from the view,
+ * in a single transaction. The first run (or a run after the watermark has been reset) does a full refresh.
+ */
+class IncrementalRefresh {
+
+    private static final Logger logger = LoggerFactory.getLogger(IncrementalRefresh.class);
+
+    // Naming convention for the view backing a report table
+    static final String VIEW_PREFIX = "v_";
+    // The current day changes until it's over: by default, recompute it and the previous one
+    static final int DEFAULT_REFRESH_WINDOW_DAYS = 1;
+
+    private final IDBI dbi;
+
+    IncrementalRefresh(final IDBI dbi) {
+        this.dbi = dbi;
+    }
+
+    // Returns the number of rows inserted
+    int refresh(final AnalyticsReportJob job) {
+        Preconditions.checkArgument(job.getRefreshWatermarkColumn() != null, "refreshWatermarkColumn isn't set for report %s", job.getReportName());
+        // Validated when the report is configured, but the configuration could predate the check
+        ReportsConfigurationModelDao.checkRefreshWatermarkColumn(job.getRefreshWatermarkColumn());
+
+        // As for the refresh procedures, don't lock the analytics tables while the view is evaluated
+        return dbi.inTransaction(TransactionIsolationLevel.READ_UNCOMMITTED,
+                                 new TransactionCallback<Integer>() {
+                                     @Override
+                                     public Integer inTransaction(final Handle handle, final TransactionStatus status) throws Exception {
+                                         return refresh(handle, job);
+                                     }
+                                 });
+    }
+
+    private int refresh(final Handle handle, final AnalyticsReportJob job) throws SQLException {
+        final ReportsConfigurationSqlDao sqlDao = handle.attach(ReportsConfigurationSqlDao.class);
+
+        final String tableName = job.getSourceTableName();
+        final String viewName = VIEW_PREFIX + tableName;
+        final String watermarkColumn = quoteIdentifier(handle, job.getRefreshWatermarkColumn());
+
+        final String lastWatermark = sqlDao.getRefreshLastWatermark(job.getReportName());
+        final int rowsInserted;
+        if (lastWatermark == null) {
+            logger.info("Full refresh of table {} from {}", tableName, viewName);
+            handle.execute("delete from " + tableName);
+            rowsInserted = handle.execute("insert into " + tableName + " select * from " + viewName);
+        } else {
+            final int refreshWindowDays = MoreObjects.firstNonNull(job.getRefreshWindowDays(), DEFAULT_REFRESH_WINDOW_DAYS);
+            final LocalDate refreshFrom = toWatermark(lastWatermark).minusDays(refreshWindowDays);
+            logger.info("Incremental refresh of table {} from {} for {} >= {}", tableName, viewName, watermarkColumn, refreshFrom);
+
+            // The date is inlined (it is validated by toWatermark) so that it is compared as a literal against the column type
+            final String condition = watermarkColumn + " >= '" + refreshFrom + "'";
+            handle.execute("delete from " + tableName + " where " + condition);
+            rowsInserted = handle.execute("insert into " + tableName + " select * from " + viewName + " where " + condition);
+        }
+
+        final Map<String, Object> maxWatermark = handle.createQuery("select max(" + watermarkColumn + ") as watermark from " + tableName).first();
+        final Object newWatermark = maxWatermark == null || maxWatermark.isEmpty() ? null : maxWatermark.values().iterator().next();
+        if (newWatermark != null) {
+            // Committed with the new rows
+            sqlDao.updateRefreshLastWatermark(job.getReportName(), toWatermark(newWatermark).toString());
+        }
+
+        return rowsInserted;
+    }
+
+    // E.g. `day` on MySQL, "day" on PostgreSQL
+    private static String quoteIdentifier(final Handle handle, final String identifier) throws SQLException {
+        final String quote = handle.getConnection().getMetaData().getIdentifierQuoteString();
+        // A space means that quoting isn't supported
+        return " ".equals(quote) ? identifier : quote + identifier + quote;
+    }
+
+    // The watermark column can be a date, a datetime or a yyyy-MM-dd string (e.g. date_format in the views)
+    @VisibleForTesting
+    static LocalDate toWatermark(final Object value) {
+        final String valueAsString = String.valueOf(value);
+        Preconditions.checkArgument(valueAsString.length() >= 10, "Invalid watermark %s", valueAsString);
+        return LocalDate.parse(valueAsString.substring(0, 10));
+    }
+}
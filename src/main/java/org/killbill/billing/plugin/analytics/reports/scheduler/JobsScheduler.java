@@ -20,20 +20,32 @@ package org.killbill.billing.plugin.analytics.reports.scheduler;
 
 import java.io.IOException;
 import java.sql.Connection;
+import java.util.Collection;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nullable;
 
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.osgi.libs.killbill.OSGIConfigPropertiesService;
 import org.killbill.billing.osgi.libs.killbill.OSGIKillbillDataSource;
 import org.killbill.billing.plugin.analytics.dao.BusinessDBIProvider;
+import org.killbill.billing.plugin.analytics.json.ReportJobJson;
 import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao;
 import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao.Frequency;
+import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationSqlDao;
+import org.killbill.billing.plugin.analytics.reports.scheduler.RefreshMetrics.RefreshRun;
 import org.killbill.clock.Clock;
 import org.killbill.commons.concurrent.Executors;
 import org.killbill.notificationq.DefaultNotificationQueueService;
@@ -48,11 +60,17 @@ import org.skife.jdbi.v2.IDBI;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Snapshot;
+import com.codahale.metrics.Timer;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.MoreObjects;
+import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Ordering;
 
@@ -62,6 +80,13 @@ public class JobsScheduler {
 
     private static final Logger logger = LoggerFactory.getLogger(JobsScheduler.class);
 
+    private static final String ANALYTICS_REFRESH_MAX_CONCURRENT_REFRESHES_PROPERTY = "org.killbill.billing.plugin.analytics.refresh.maxConcurrentRefreshes";
+    private static final String ANALYTICS_REFRESH_JITTER_SECONDS_PROPERTY = "org.killbill.billing.plugin.analytics.refresh.jitterSeconds";
+
+    private static final int DEFAULT_MAX_CONCURRENT_REFRESHES = 3;
+    private static final int DEFAULT_JITTER_SECONDS = 0;
+    private static final int DEFAULT_REFRESH_INTERVAL_MINUTES = 5;
+
     // Current version of the jobs in the notification queue
     // This is useful to retrieve all currently scheduled ones
     private static final Long JOBS_SCHEDULER_VERSION = 1L;
@@ -76,15 +101,60 @@ public class JobsScheduler {
     private final IDBI dbi;
     private final Clock clock;
     private final NotificationQueue jobQueue;
+    private final IncrementalRefresh incrementalRefresh;
+    private final RefreshMetrics refreshMetrics;
+    private final int maxConcurrentRefreshes;
+    private final int jitterSeconds;
+    // Bumped each time a refresh procedure completes, i.e. when the report tables may have changed
+    private final AtomicLong refreshGeneration = new AtomicLong();
 
     private ExecutorService proceduresService;
+    private RefreshRunner refreshRunner;
+    private volatile DateTime startDate;
 
     public JobsScheduler(final OSGIKillbillDataSource osgiKillbillDataSource,
                          final Clock clock,
                          final DefaultNotificationQueueService notificationQueueService) throws NotificationQueueAlreadyExists {
+        this(osgiKillbillDataSource, clock, notificationQueueService, DEFAULT_MAX_CONCURRENT_REFRESHES, DEFAULT_JITTER_SECONDS);
+    }
+
+    public JobsScheduler(final OSGIKillbillDataSource osgiKillbillDataSource,
+                         final Clock clock,
+                         final DefaultNotificationQueueService notificationQueueService,
+                         final OSGIConfigPropertiesService osgiConfigPropertiesService,
+                         final MetricRegistry metricRegistry) throws NotificationQueueAlreadyExists {
+        this(osgiKillbillDataSource,
+             clock,
+             notificationQueueService,
+             getIntProperty(osgiConfigPropertiesService, ANALYTICS_REFRESH_MAX_CONCURRENT_REFRESHES_PROPERTY, DEFAULT_MAX_CONCURRENT_REFRESHES),
+             getIntProperty(osgiConfigPropertiesService, ANALYTICS_REFRESH_JITTER_SECONDS_PROPERTY, DEFAULT_JITTER_SECONDS),
+             metricRegistry);
+    }
+
+    @VisibleForTesting
+    JobsScheduler(final OSGIKillbillDataSource osgiKillbillDataSource,
+                  final Clock clock,
+                  final DefaultNotificationQueueService notificationQueueService,
+                  final int maxConcurrentRefreshes,
+                  final int jitterSeconds) throws NotificationQueueAlreadyExists {
+        this(osgiKillbillDataSource, clock, notificationQueueService, maxConcurrentRefreshes, jitterSeconds, new MetricRegistry());
+    }
+
+    private JobsScheduler(final OSGIKillbillDataSource osgiKillbillDataSource,
+                          final Clock clock,
+                          final DefaultNotificationQueueService notificationQueueService,
+                          final int maxConcurrentRefreshes,
+                          final int jitterSeconds,
+                          final MetricRegistry metricRegistry) throws NotificationQueueAlreadyExists {
+        Preconditions.checkArgument(maxConcurrentRefreshes > 0, "maxConcurrentRefreshes should be positive");
+        Preconditions.checkArgument(jitterSeconds >= 0, "jitterSeconds should be positive or zero");
         this.clock = clock;
+        this.maxConcurrentRefreshes = maxConcurrentRefreshes;
+        this.jitterSeconds = jitterSeconds;
+        this.refreshMetrics = new RefreshMetrics(metricRegistry);
 
         dbi = BusinessDBIProvider.get(osgiKillbillDataSource.getDataSource());
+        incrementalRefresh = new IncrementalRefresh(dbi);
         final NotificationQueueHandler notificationQueueHandler = new NotificationQueueHandler() {
 
             @Override
@@ -97,7 +167,7 @@ public class JobsScheduler {
                 final AnalyticsReportJob job = (AnalyticsReportJob) eventJson;
 
                 try {
-                    callStoredProcedure(job.getRefreshProcedureName());
+                    refresh(job, eventDateTime);
                 } finally {
                     schedule(job, null);
                 }
@@ -109,7 +179,9 @@ public class JobsScheduler {
     }
 
     public synchronized void start() {
+        startDate = clock.getUTCNow();
         proceduresService = Executors.newCachedThreadPool("proceduresService");
+        refreshRunner = new RefreshRunner(proceduresService, maxConcurrentRefreshes);
         jobQueue.startQueue();
     }
 
@@ -117,6 +189,7 @@ public class JobsScheduler {
         if (proceduresService != null) {
             proceduresService.shutdownNow();
             proceduresService = null;
+            refreshRunner = null;
         }
         jobQueue.stopQueue();
     }
@@ -125,6 +198,10 @@ public class JobsScheduler {
         return jobQueue.isStarted();
     }
 
+    public long getRefreshGeneration() {
+        return refreshGeneration.get();
+    }
+
     public void scheduleNow(final ReportsConfigurationModelDao report) {
         final AnalyticsReportJob eventJson = new AnalyticsReportJob(report);
         schedule(eventJson, clock.getUTCNow(), null);
@@ -137,6 +214,9 @@ public class JobsScheduler {
 
     public void unSchedule(final ReportsConfigurationModelDao report, final Connection connection) {
         final AnalyticsReportJob eventJson = new AnalyticsReportJob(report);
+        // Its dependents shouldn't wait for its next refresh anymore
+        cancelDueDates(report.getReportName());
+
         final Iterator<NotificationEventWithMetadata<AnalyticsReportJob>> iterator = getFutureNotificationsForReportJob(eventJson, connection).iterator();
         try {
             while (iterator.hasNext()) {
@@ -227,34 +307,203 @@ public class JobsScheduler {
 
     @VisibleForTesting
     DateTime computeNextRun(final AnalyticsReportJob report) {
+        return computeNextRun(report, clock.getUTCNow());
+    }
 
-        final DateTime now = clock.getUTCNow();
-
-        if (Frequency.HOURLY.equals(report.getRefreshFrequency())) {
+    // First run strictly after now (unless the report isn't scheduled periodically)
+    private DateTime computeNextRun(final AnalyticsReportJob report, final DateTime now) {
+        // Spread the reports sharing the same schedule, to avoid starting all the refreshes at once
+        final int jitter = computeJitterSeconds(report);
+
+        if (Frequency.MINUTELY.equals(report.getRefreshFrequency())) {
+            final int intervalMinutes = MoreObjects.firstNonNull(report.getRefreshIntervalMinutes(), DEFAULT_REFRESH_INTERVAL_MINUTES);
+            Preconditions.checkArgument(intervalMinutes > 0, "refreshIntervalMinutes should be positive for report %s", report.getReportName());
+            // Fixed slots (e.g. :00, :05, :10, etc. every 5') to avoid drifts, the jitter being kept within the interval
+            final long intervalMillis = intervalMinutes * 60 * 1000L;
+            final long jitterMillis = (jitter % (intervalMinutes * 60)) * 1000L;
+            final long currentSlot = (now.getMillis() - jitterMillis) / intervalMillis;
+            return new DateTime((currentSlot + 1) * intervalMillis + jitterMillis, DateTimeZone.UTC);
+        } else if (Frequency.HOURLY.equals(report.getRefreshFrequency())) {
             // 5' past the hour (fixed to avoid drifts)
-            return now.plusHours(1).withMinuteOfHour(5).withSecondOfMinute(0).withMillisOfSecond(0);
+            return now.plusHours(1).withMinuteOfHour(5).withSecondOfMinute(0).withMillisOfSecond(0).plusSeconds(jitter);
         } else if (Frequency.DAILY.equals(report.getRefreshFrequency())) {
             // 6am GMT by default
             final Integer hourOfTheDayGMT = MoreObjects.firstNonNull(report.getRefreshHourOfDayGmt(), 6);
-            final DateTime boundaryTime = now.withHourOfDay(hourOfTheDayGMT).withMinuteOfHour(0).withSecondOfMinute(0).withMillisOfSecond(0);
+            final DateTime boundaryTime = now.withHourOfDay(hourOfTheDayGMT).withMinuteOfHour(0).withSecondOfMinute(0).withMillisOfSecond(0).plusSeconds(jitter);
             return now.compareTo(boundaryTime) >= 0 ? boundaryTime.plusDays(1) : boundaryTime;
+        } else if (Frequency.CRON.equals(report.getRefreshFrequency())) {
+            Preconditions.checkArgument(report.getRefreshCron() != null, "refreshCron isn't set for report %s", report.getReportName());
+            final DateTimeZone timeZone = report.getRefreshTimeZone() == null ? DateTimeZone.UTC : DateTimeZone.forID(report.getRefreshTimeZone());
+            // Cron times are shifted by the jitter: a cron time after now - jitter runs after now
+            return new CronExpression(report.getRefreshCron()).nextAfter(now.minusSeconds(jitter), timeZone)
+                                                              .plusSeconds(jitter)
+                                                              .withZone(DateTimeZone.UTC);
         } else {
             // Run now
             return now;
         }
     }
 
-    private void callStoredProcedure(final String storedProcedureName) {
-        if (Strings.isNullOrEmpty(storedProcedureName)) {
-            return;
+    // Deterministic, so that the schedule of a report doesn't drift from one run to the next
+    @VisibleForTesting
+    int computeJitterSeconds(final AnalyticsReportJob report) {
+        final int reportJitterSeconds = MoreObjects.firstNonNull(report.getRefreshJitterSeconds(), jitterSeconds);
+        if (reportJitterSeconds <= 0 || report.getReportName() == null) {
+            return 0;
+        }
+        return (report.getReportName().hashCode() & Integer.MAX_VALUE) % reportJitterSeconds;
+    }
+
+    // Due date of the refreshes of the dependencies sharing the schedule of the report, in the slot of the report's due date,
+    // which aren't due before the report (because of the jitter): their notifications may be processed after the report's one
+    @VisibleForTesting
+    Map<String, DateTime> computeDependenciesDueDates(final AnalyticsReportJob job, final DateTime dueDate, final Collection<AnalyticsReportJob> dependencies) {
+        final DateTime slot = dueDate.minusSeconds(computeSlotJitterSeconds(job));
+        if (!isSlot(job, slot)) {
+            // E.g. refresh triggered manually
+            return ImmutableMap.<String, DateTime>of();
         }
 
-        Preconditions.checkState(proceduresService != null, "proceduresService isn't started yet");
+        final Map<String, DateTime> dependenciesDueDates = new HashMap<String, DateTime>();
+        for (final AnalyticsReportJob dependency : dependencies) {
+            if (!hasSameSchedule(job, dependency) || !hasRefresh(dependency)) {
+                continue;
+            }
+            final DateTime dependencyDueDate = slot.plusSeconds(computeSlotJitterSeconds(dependency));
+            if (!dependencyDueDate.isBefore(dueDate)) {
+                dependenciesDueDates.put(dependency.getReportName(), dependencyDueDate);
+            }
+        }
+        return dependenciesDueDates;
+    }
+
+    private Map<String, DateTime> computeDependenciesDueDates(final AnalyticsReportJob job, final DateTime dueDate) {
+        final Set<String> dependencyNames = RefreshRunner.splitDependencies(job.getRefreshDependencies());
+        if (dependencyNames.isEmpty()) {
+            return ImmutableMap.<String, DateTime>of();
+        }
+
+        final ReportsConfigurationSqlDao reportsConfigurationSqlDao = dbi.onDemand(ReportsConfigurationSqlDao.class);
+        final Collection<AnalyticsReportJob> dependencies = new LinkedList<AnalyticsReportJob>();
+        for (final String dependencyName : dependencyNames) {
+            final ReportsConfigurationModelDao dependency = reportsConfigurationSqlDao.getReportConfigurationForReport(dependencyName);
+            if (dependency != null && !dependencyName.equals(job.getReportName())) {
+                dependencies.add(new AnalyticsReportJob(dependency));
+            }
+        }
+        return computeDependenciesDueDates(job, dueDate, dependencies);
+    }
+
+    // Jitter actually applied by computeNextRun
+    private int computeSlotJitterSeconds(final AnalyticsReportJob report) {
+        final int jitter = computeJitterSeconds(report);
+        if (Frequency.MINUTELY.equals(report.getRefreshFrequency())) {
+            return jitter % (MoreObjects.firstNonNull(report.getRefreshIntervalMinutes(), DEFAULT_REFRESH_INTERVAL_MINUTES) * 60);
+        }
+        return jitter;
+    }
+
+    private boolean isSlot(final AnalyticsReportJob report, final DateTime date) {
+        final DateTime utcDate = date.withZone(DateTimeZone.UTC);
+        if (utcDate.getSecondOfMinute() != 0 || utcDate.getMillisOfSecond() != 0) {
+            return false;
+        } else if (Frequency.MINUTELY.equals(report.getRefreshFrequency())) {
+            final int intervalMinutes = MoreObjects.firstNonNull(report.getRefreshIntervalMinutes(), DEFAULT_REFRESH_INTERVAL_MINUTES);
+            return intervalMinutes > 0 && utcDate.getMillis() % (intervalMinutes * 60 * 1000L) == 0;
+        } else if (Frequency.HOURLY.equals(report.getRefreshFrequency())) {
+            return utcDate.getMinuteOfHour() == 5;
+        } else if (Frequency.DAILY.equals(report.getRefreshFrequency())) {
+            return utcDate.getMinuteOfHour() == 0 && utcDate.getHourOfDay() == MoreObjects.firstNonNull(report.getRefreshHourOfDayGmt(), 6);
+        } else if (Frequency.CRON.equals(report.getRefreshFrequency()) && report.getRefreshCron() != null) {
+            final DateTimeZone timeZone = report.getRefreshTimeZone() == null ? DateTimeZone.UTC : DateTimeZone.forID(report.getRefreshTimeZone());
+            return new CronExpression(report.getRefreshCron()).nextAfter(utcDate.minusMinutes(1), timeZone).isEqual(utcDate);
+        } else {
+            return false;
+        }
+    }
+
+    private boolean hasSameSchedule(final AnalyticsReportJob report, final AnalyticsReportJob other) {
+        if (report.getRefreshFrequency() == null || !report.getRefreshFrequency().equals(other.getRefreshFrequency())) {
+            return false;
+        } else if (Frequency.MINUTELY.equals(report.getRefreshFrequency())) {
+            return MoreObjects.firstNonNull(report.getRefreshIntervalMinutes(), DEFAULT_REFRESH_INTERVAL_MINUTES).equals(MoreObjects.firstNonNull(other.getRefreshIntervalMinutes(), DEFAULT_REFRESH_INTERVAL_MINUTES));
+        } else if (Frequency.DAILY.equals(report.getRefreshFrequency())) {
+            return MoreObjects.firstNonNull(report.getRefreshHourOfDayGmt(), 6).equals(MoreObjects.firstNonNull(other.getRefreshHourOfDayGmt(), 6));
+        } else if (Frequency.CRON.equals(report.getRefreshFrequency())) {
+            return Objects.equal(report.getRefreshCron(), other.getRefreshCron()) && Objects.equal(report.getRefreshTimeZone(), other.getRefreshTimeZone());
+        } else {
+            return Frequency.HOURLY.equals(report.getRefreshFrequency());
+        }
+    }
+
+    // See refresh
+    private boolean hasRefresh(final AnalyticsReportJob report) {
+        return !Strings.isNullOrEmpty(report.getRefreshWatermarkColumn()) || !Strings.isNullOrEmpty(report.getRefreshProcedureName());
+    }
+
+    private void refresh(final AnalyticsReportJob job, final DateTime dueDate) {
+        // Don't start before the dependencies due in the same slot, even if they are scheduled after the report
+        final Map<String, DateTime> dependenciesDueDates = computeDependenciesDueDates(job, dueDate);
+        if (!Strings.isNullOrEmpty(job.getRefreshWatermarkColumn())) {
+            refreshIncrementally(job, dueDate, dependenciesDueDates);
+        } else {
+            callStoredProcedure(job, dueDate, dependenciesDueDates);
+        }
+    }
+
+    private synchronized void cancelDueDates(final String reportName) {
+        if (refreshRunner != null) {
+            refreshRunner.cancelDueDates(reportName);
+        }
+    }
+
+    private synchronized void submitRefresh(final AnalyticsReportJob job, final DateTime dueDate, final Map<String, DateTime> dependenciesDueDates, final Callable<Integer> refresh) {
+        Preconditions.checkState(refreshRunner != null, "proceduresService isn't started yet");
 
         // Execute the refresh in the background, to avoid having other notifications threads "steal" the IN_PROCESSING entry
-        proceduresService.execute(new Runnable() {
+        refreshRunner.submit(job.getReportName(), job.getRefreshPriority(), job.getRefreshDependencies(), dueDate, dependenciesDueDates, new Runnable() {
             @Override
             public void run() {
+                final long startNanos = System.nanoTime();
+                final Integer rowsWritten;
+                try {
+                    rowsWritten = refresh.call();
+                } catch (final Exception e) {
+                    refreshMetrics.recordFailure(job.getReportName(), System.nanoTime() - startNanos);
+                    logger.warn("Refresh failed for report {}", job.getReportName(), e);
+                    return;
+                }
+
+                final DateTime now = clock.getUTCNow();
+                refreshMetrics.recordSuccess(job.getReportName(), System.nanoTime() - startNanos, rowsWritten, now.getMillis());
+                dbi.onDemand(ReportsConfigurationSqlDao.class).updateRefreshLastSuccessDate(job.getReportName(), now);
+            }
+        });
+    }
+
+    private void refreshIncrementally(final AnalyticsReportJob job, final DateTime dueDate, final Map<String, DateTime> dependenciesDueDates) {
+        submitRefresh(job, dueDate, dependenciesDueDates, new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                logger.info("Starting incremental refresh for {}", job.getReportName());
+                // Single transaction: the tables are left untouched on failure
+                final int rowsWritten = incrementalRefresh.refresh(job);
+                refreshGeneration.incrementAndGet();
+                logger.info("Ending incremental refresh for {}, {} rows written", job.getReportName(), rowsWritten);
+                return rowsWritten;
+            }
+        });
+    }
+
+    private void callStoredProcedure(final AnalyticsReportJob job, final DateTime dueDate, final Map<String, DateTime> dependenciesDueDates) {
+        final String storedProcedureName = job.getRefreshProcedureName();
+        if (Strings.isNullOrEmpty(storedProcedureName)) {
+            return;
+        }
+
+        submitRefresh(job, dueDate, dependenciesDueDates, new Callable<Integer>() {
+            @Override
+            public Integer call() {
                 logger.info("Starting job for {}", storedProcedureName);
                 Handle handle = null;
                 try {
@@ -262,12 +511,74 @@ public class JobsScheduler {
                     final Call call = handle.createCall("call " + storedProcedureName);
                     call.invoke();
                     logger.info("Ending job for {}", storedProcedureName);
+                    // The procedures don't report the number of rows they write
+                    return null;
                 } finally {
                     if (handle != null) {
                         handle.close();
                     }
+                    // Even on failure, as the procedure may have partially updated the tables
+                    refreshGeneration.incrementAndGet();
                 }
             }
         });
     }
+
+    public List<ReportJobJson> getReportJobs() {
+        final DateTime now = clock.getUTCNow();
+        final List<ReportJobJson> reportJobs = new LinkedList<ReportJobJson>();
+        for (final ReportsConfigurationModelDao report : dbi.onDemand(ReportsConfigurationSqlDao.class).getAllReportsConfigurations()) {
+            if (!report.isRefreshable()) {
+                continue;
+            }
+
+            final String reportName = report.getReportName();
+            final Timer duration = refreshMetrics.getExistingDuration(reportName);
+            final Counter failures = refreshMetrics.getExistingFailures(reportName);
+            final Snapshot durations = duration == null ? null : duration.getSnapshot();
+            final RefreshRun lastRun = refreshMetrics.getLastRun(reportName);
+            reportJobs.add(new ReportJobJson(reportName,
+                                             report.getRefreshFrequency(),
+                                             report.getRefreshLastSuccessDate(),
+                                             isStale(new AnalyticsReportJob(report), report.getRefreshLastSuccessDate(), now),
+                                             duration == null ? 0L : duration.getCount(),
+                                             failures == null ? 0L : failures.getCount(),
+                                             durations == null ? 0L : TimeUnit.NANOSECONDS.toMillis((long) durations.getMean()),
+                                             durations == null ? 0L : TimeUnit.NANOSECONDS.toMillis((long) durations.get95thPercentile()),
+                                             durations == null ? 0L : TimeUnit.NANOSECONDS.toMillis(durations.getMax()),
+                                             lastRun == null ? null : lastRun.getDurationMs(),
+                                             lastRun == null ? null : lastRun.getRowsWritten()));
+        }
+        return reportJobs;
+    }
+
+    public List<String> getStaleReports() {
+        final List<String> staleReports = new LinkedList<String>();
+        for (final ReportJobJson reportJob : getReportJobs()) {
+            if (Boolean.TRUE.equals(reportJob.getStale())) {
+                staleReports.add(reportJob.getReportName());
+            }
+        }
+        return staleReports;
+    }
+
+    // A report is stale when it hasn't been refreshed successfully (on any node) for two scheduled runs
+    @VisibleForTesting
+    boolean isStale(final AnalyticsReportJob report, @Nullable final DateTime lastSuccessDate, final DateTime now) {
+        if (report.getRefreshFrequency() == null) {
+            return false;
+        }
+
+        // Never refreshed since the column was added (or since the report was created): start counting from the scheduler start
+        final DateTime reference = lastSuccessDate != null ? lastSuccessDate : startDate;
+        if (reference == null) {
+            return false;
+        }
+        return computeNextRun(report, computeNextRun(report, reference)).isBefore(now);
+    }
+
+    private static int getIntProperty(final OSGIConfigPropertiesService osgiConfigPropertiesService, final String propertyName, final int defaultValue) {
+        final String valueMaybeNull = Strings.emptyToNull(osgiConfigPropertiesService.getString(propertyName));
+        return valueMaybeNull == null ? defaultValue : Integer.valueOf(valueMaybeNull);
+    }
 }
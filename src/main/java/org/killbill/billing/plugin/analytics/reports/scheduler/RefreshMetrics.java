@@ -0,0 +1,144 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports.scheduler;
+
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+/**
+ * Metrics of the report refreshes run on this node, registered as JobsScheduler.[reportName].*:
+ * duration (timer, including failed runs), failures (counter), rowsWritten (histogram, incremental refreshes only),
+ * lastDurationMs and lastSuccess (gauges, epoch millis).
+ */
+class RefreshMetrics {
+
+    private final MetricRegistry metricRegistry;
+    private final Map<String, RefreshRun> lastRuns = new ConcurrentHashMap<String, RefreshRun>();
+    private final Map<String, Long> lastSuccesses = new ConcurrentHashMap<String, Long>();
+    private final Set<String> registeredGauges = new HashSet<String>();
+
+    RefreshMetrics(final MetricRegistry metricRegistry) {
+        this.metricRegistry = metricRegistry;
+    }
+
+    void recordSuccess(final String reportName, final long durationNanos, @Nullable final Integer rowsWritten, final long nowMillis) {
+        getDuration(reportName).update(durationNanos, TimeUnit.NANOSECONDS);
+        if (rowsWritten != null) {
+            getRowsWritten(reportName).update(rowsWritten);
+        }
+        lastRuns.put(reportName, new RefreshRun(TimeUnit.NANOSECONDS.toMillis(durationNanos), rowsWritten));
+        lastSuccesses.put(reportName, nowMillis);
+        registerGauges(reportName);
+    }
+
+    void recordFailure(final String reportName, final long durationNanos) {
+        getDuration(reportName).update(durationNanos, TimeUnit.NANOSECONDS);
+        getFailures(reportName).inc();
+        lastRuns.put(reportName, new RefreshRun(TimeUnit.NANOSECONDS.toMillis(durationNanos), null));
+        registerGauges(reportName);
+    }
+
+    Timer getDuration(final String reportName) {
+        return metricRegistry.timer(MetricRegistry.name(JobsScheduler.class, reportName, "duration"));
+    }
+
+    Counter getFailures(final String reportName) {
+        return metricRegistry.counter(MetricRegistry.name(JobsScheduler.class, reportName, "failures"));
+    }
+
+    // Lookups for the jobs status: these don't register the metrics of reports which haven't been refreshed on this node
+
+    @Nullable
+    Timer getExistingDuration(final String reportName) {
+        final Metric duration = metricRegistry.getMetrics().get(MetricRegistry.name(JobsScheduler.class, reportName, "duration"));
+        return duration instanceof Timer ? (Timer) duration : null;
+    }
+
+    @Nullable
+    Counter getExistingFailures(final String reportName) {
+        final Metric failures = metricRegistry.getMetrics().get(MetricRegistry.name(JobsScheduler.class, reportName, "failures"));
+        return failures instanceof Counter ? (Counter) failures : null;
+    }
+
+    Histogram getRowsWritten(final String reportName) {
+        return metricRegistry.histogram(MetricRegistry.name(JobsScheduler.class, reportName, "rowsWritten"));
+    }
+
+    @Nullable
+    RefreshRun getLastRun(final String reportName) {
+        return lastRuns.get(reportName);
+    }
+
+    private void registerGauges(final String reportName) {
+        registerGauge(MetricRegistry.name(JobsScheduler.class, reportName, "lastDurationMs"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                final RefreshRun lastRun = lastRuns.get(reportName);
+                return lastRun == null ? null : lastRun.getDurationMs();
+            }
+        });
+        registerGauge(MetricRegistry.name(JobsScheduler.class, reportName, "lastSuccess"), new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return lastSuccesses.get(reportName);
+            }
+        });
+    }
+
+    private void registerGauge(final String name, final Gauge<Long> gauge) {
+        synchronized (registeredGauges) {
+            if (registeredGauges.add(name)) {
+                // In case the plugin is restarted
+                metricRegistry.remove(name);
+                metricRegistry.register(name, gauge);
+            }
+        }
+    }
+
+    static final class RefreshRun {
+
+        private final long durationMs;
+        private final Integer rowsWritten;
+
+        RefreshRun(final long durationMs, @Nullable final Integer rowsWritten) {
+            this.durationMs = durationMs;
+            this.rowsWritten = rowsWritten;
+        }
+
+        long getDurationMs() {
+            return durationMs;
+        }
+
+        @Nullable
+        Integer getRowsWritten() {
+            return rowsWritten;
+        }
+    }
+}
@@ -0,0 +1,283 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports.scheduler;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import javax.annotation.Nullable;
+
+import org.joda.time.DateTime;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Ordering;
+
+/**
+ * Runs the report refreshes, at most maxConcurrentRefreshes at a time.
+ * <p/>
+ * Queued refreshes are started by decreasing priority (then in submission order), once none of the
+ * reports they depend on has a refresh queued or running. A refresh can also wait for the refreshes of its
+ * dependencies due at a given date (e.g. in the same schedule slot, but later because of the jitter), until they
+ * have been submitted. A report isn't refreshed on behalf of its dependents though.
+ * <p/>
+ * A report never runs concurrently with itself, and has at most one refresh queued: a refresh submitted while
+ * another one is queued for the same report is coalesced with it (e.g. when a refresh takes longer than its interval).
+ */
+class RefreshRunner {
+
+    private static final Logger logger = LoggerFactory.getLogger(RefreshRunner.class);
+
+    private static final Splitter DEPENDENCIES_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+
+    private static final Ordering<RefreshTask> REFRESH_TASK_ORDERING = Ordering.from(new Comparator<RefreshTask>() {
+        @Override
+        public int compare(final RefreshTask o1, final RefreshTask o2) {
+            final int byPriority = Integer.compare(o2.priority, o1.priority);
+            return byPriority != 0 ? byPriority : Long.compare(o1.sequence, o2.sequence);
+        }
+    });
+
+    private final Executor executor;
+    private final int maxConcurrentRefreshes;
+
+    // Guarded by this
+    private final List<RefreshTask> pending = new LinkedList<RefreshTask>();
+    private final List<RefreshTask> running = new LinkedList<RefreshTask>();
+    // Due date of the latest refresh submitted for each report
+    private final Map<String, DateTime> lastDueDates = new HashMap<String, DateTime>();
+    private long sequence = 0;
+
+    RefreshRunner(final Executor executor, final int maxConcurrentRefreshes) {
+        Preconditions.checkArgument(maxConcurrentRefreshes > 0, "maxConcurrentRefreshes should be positive");
+        this.executor = executor;
+        this.maxConcurrentRefreshes = maxConcurrentRefreshes;
+    }
+
+    /**
+     * @return false if the refresh was coalesced with a refresh already queued for that report
+     */
+    synchronized boolean submit(@Nullable final String reportName,
+                                @Nullable final Integer priority,
+                                @Nullable final String dependencies,
+                                final Runnable refresh) {
+        return submit(reportName, priority, dependencies, null, ImmutableMap.<String, DateTime>of(), refresh);
+    }
+
+    /**
+     * @param dueDate               due date of that refresh, if scheduled
+     * @param dependenciesDueDates  due dates of the refreshes of the dependencies to wait for, until they are submitted
+     * @return false if the refresh was coalesced with a refresh already queued for that report
+     */
+    synchronized boolean submit(@Nullable final String reportName,
+                                @Nullable final Integer priority,
+                                @Nullable final String dependencies,
+                                @Nullable final DateTime dueDate,
+                                final Map<String, DateTime> dependenciesDueDates,
+                                final Runnable refresh) {
+        if (reportName != null && dueDate != null) {
+            final DateTime lastDueDate = lastDueDates.get(reportName);
+            if (lastDueDate == null || lastDueDate.isBefore(dueDate)) {
+                lastDueDates.put(reportName, dueDate);
+            }
+        }
+
+        final RefreshTask queuedTask = reportName == null ? null : findTask(pending, reportName);
+        if (queuedTask != null) {
+            logger.info("Refresh already queued for report {}, skipping", reportName);
+            // Don't wait forever for a dependency which was never submitted (e.g. unscheduled meanwhile)
+            queuedTask.dependenciesDueDates.clear();
+            dispatch();
+            return false;
+        }
+
+        pending.add(new RefreshTask(reportName, priority, dependencies, dependenciesDueDates, sequence++, refresh));
+        dispatch();
+        return true;
+    }
+
+    /**
+     * Stop waiting for the refreshes of that report (e.g. when it isn't scheduled anymore)
+     */
+    synchronized void cancelDueDates(final String reportName) {
+        lastDueDates.remove(reportName);
+        for (final RefreshTask task : pending) {
+            task.dependenciesDueDates.remove(reportName);
+        }
+        dispatch();
+    }
+
+    synchronized int getNbPending() {
+        return pending.size();
+    }
+
+    synchronized int getNbRunning() {
+        return running.size();
+    }
+
+    private synchronized void complete(final RefreshTask task) {
+        running.remove(task);
+        dispatch();
+    }
+
+    private void dispatch() {
+        while (running.size() < maxConcurrentRefreshes) {
+            final RefreshTask task = nextTask();
+            if (task == null) {
+                return;
+            }
+
+            pending.remove(task);
+            running.add(task);
+            try {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            task.refresh.run();
+                        } finally {
+                            complete(task);
+                        }
+                    }
+                });
+            } catch (final RuntimeException e) {
+                // E.g. the executor has been shut down
+                running.remove(task);
+                throw e;
+            }
+        }
+    }
+
+    @Nullable
+    private RefreshTask nextTask() {
+        if (pending.isEmpty()) {
+            return null;
+        }
+
+        final Set<String> busyReports = new HashSet<String>();
+        for (final RefreshTask task : pending) {
+            busyReports.add(task.reportName);
+        }
+        for (final RefreshTask task : running) {
+            busyReports.add(task.reportName);
+        }
+
+        final List<RefreshTask> candidates = new LinkedList<RefreshTask>();
+        for (final RefreshTask task : REFRESH_TASK_ORDERING.sortedCopy(pending)) {
+            // Wait for the next submissions
+            if (!isWaitingForSubmissions(task)) {
+                candidates.add(task);
+            }
+        }
+        if (candidates.isEmpty()) {
+            return null;
+        }
+
+        for (final RefreshTask candidate : candidates) {
+            if (!candidate.dependsOnAny(busyReports) && !isRunning(candidate)) {
+                return candidate;
+            }
+        }
+
+        if (running.isEmpty()) {
+            // Circular dependencies: nothing would ever complete otherwise
+            final RefreshTask task = candidates.get(0);
+            logger.warn("Circular refresh dependencies detected for report {}, ignoring them", task.reportName);
+            return task;
+        }
+
+        // Wait for a running refresh to complete
+        return null;
+    }
+
+    // The refreshes of the dependencies due at these dates need to be submitted first
+    private boolean isWaitingForSubmissions(final RefreshTask task) {
+        for (final Entry<String, DateTime> dependencyDueDate : task.dependenciesDueDates.entrySet()) {
+            final DateTime lastDueDate = lastDueDates.get(dependencyDueDate.getKey());
+            if (!dependencyDueDate.getKey().equals(task.reportName) && (lastDueDate == null || lastDueDate.isBefore(dependencyDueDate.getValue()))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The previous refresh of that report needs to complete first
+    private boolean isRunning(final RefreshTask task) {
+        return task.reportName != null && findTask(running, task.reportName) != null;
+    }
+
+    @Nullable
+    private static RefreshTask findTask(final Iterable<RefreshTask> tasks, final String reportName) {
+        for (final RefreshTask task : tasks) {
+            if (reportName.equals(task.reportName)) {
+                return task;
+            }
+        }
+        return null;
+    }
+
+    static Set<String> splitDependencies(@Nullable final String dependencies) {
+        return dependencies == null ? ImmutableSet.<String>of() : ImmutableSet.<String>copyOf(DEPENDENCIES_SPLITTER.split(dependencies));
+    }
+
+    private static final class RefreshTask {
+
+        private final String reportName;
+        private final int priority;
+        private final Set<String> dependencies;
+        // Guarded by the runner
+        private final Map<String, DateTime> dependenciesDueDates;
+        private final long sequence;
+        private final Runnable refresh;
+
+        private RefreshTask(@Nullable final String reportName,
+                            @Nullable final Integer priority,
+                            @Nullable final String dependencies,
+                            final Map<String, DateTime> dependenciesDueDates,
+                            final long sequence,
+                            final Runnable refresh) {
+            this.reportName = reportName;
+            this.priority = priority == null ? 0 : priority;
+            this.dependencies = splitDependencies(dependencies);
+            this.dependenciesDueDates = new HashMap<String, DateTime>(dependenciesDueDates);
+            this.sequence = sequence;
+            this.refresh = refresh;
+        }
+
+        private boolean dependsOnAny(final Set<String> reportNames) {
+            for (final String dependency : dependencies) {
+                // A report can't wait for itself
+                if (!dependency.equals(reportName) && reportNames.contains(dependency)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+}
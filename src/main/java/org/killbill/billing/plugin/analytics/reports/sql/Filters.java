@@ -19,6 +19,8 @@ package org.killbill.billing.plugin.analytics.reports.sql;
 
 import java.util.List;
 
+import javax.annotation.Nullable;
+
 import org.jooq.Condition;
 import org.jooq.Field;
 import org.jooq.impl.DSL;
@@ -30,13 +32,21 @@ import com.bpodgursky.jbool_expressions.Not;
 import com.bpodgursky.jbool_expressions.Or;
 import com.bpodgursky.jbool_expressions.Variable;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Function;
 import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
 
 public abstract class Filters {
 
     public static Condition of(final Expression<String> expression) {
-        return buildConditionFromExpression(expression);
+        return of(expression, null);
+    }
+
+    /**
+     * @param valueMapper if specified, function applied to the values of the filters before rendering them (e.g. to replace them with parameter placeholders)
+     */
+    public static Condition of(final Expression<String> expression, @Nullable final Function<Object, String> valueMapper) {
+        return buildConditionFromExpression(expression, valueMapper);
     }
 
     private enum SqlMapping {
@@ -67,7 +77,7 @@ public abstract class Filters {
         }
     }
 
-    private static Condition buildConditionFromVariable(final Variable<String> input) {
+    private static Condition buildConditionFromVariable(final Variable<String> input, @Nullable final Function<Object, String> valueMapper) {
         SqlMapping sqlOp = null;
         String column = null;
         String expression = null;
@@ -89,6 +99,9 @@ public abstract class Filters {
             // Un-quote the expression if needed (to avoid double quoting)
             expression = expression.replaceFirst("^[\"']", "");
             expression = expression.replaceFirst("[\"']$", "");
+            if (valueMapper != null) {
+                expression = valueMapper.apply(expression);
+            }
 
             final Field<Object> field = DSL.fieldByName(column);
             switch (sqlOp) {
@@ -118,10 +131,14 @@ public abstract class Filters {
 
     @VisibleForTesting
     static Condition buildConditionFromExpression(final Expression<String> expression) {
+        return buildConditionFromExpression(expression, null);
+    }
+
+    private static Condition buildConditionFromExpression(final Expression<String> expression, @Nullable final Function<Object, String> valueMapper) {
         if (expression instanceof And) {
             Condition condition = null;
             for (final Expression<String> childExpression : ((And<String>) expression).getChildren()) {
-                final Condition newCondition = buildConditionFromExpression(childExpression);
+                final Condition newCondition = buildConditionFromExpression(childExpression, valueMapper);
                 condition = condition == null ? newCondition : condition.and(newCondition);
             }
             return condition;
@@ -133,16 +150,16 @@ public abstract class Filters {
                 return DSL.falseCondition();
             }
         } else if (expression instanceof Not) {
-            return DSL.trueCondition().andNot(buildConditionFromExpression(((Not<String>) expression).getE()));
+            return DSL.trueCondition().andNot(buildConditionFromExpression(((Not<String>) expression).getE(), valueMapper));
         } else if (expression instanceof Or) {
             Condition condition = null;
             for (final Expression<String> childExpression : ((Or<String>) expression).getChildren()) {
-                final Condition newCondition = buildConditionFromExpression(childExpression);
+                final Condition newCondition = buildConditionFromExpression(childExpression, valueMapper);
                 condition = condition == null ? newCondition : condition.or(newCondition);
             }
             return condition;
         } else if (expression instanceof Variable) {
-            return buildConditionFromVariable((Variable<String>) expression);
+            return buildConditionFromVariable((Variable<String>) expression, valueMapper);
         } else {
             throw new IllegalStateException();
         }
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2010-2014 Ning, Inc.
+ * Copyright 2014 The Billing Project, LLC
+ *
+ * Ning licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports.sql;
+
+import org.jooq.Field;
+import org.jooq.SQLDialect;
+import org.jooq.impl.DSL;
+import org.killbill.billing.plugin.analytics.reports.analysis.DateGranularity;
+
+/**
+ * Truncation of the day (or ts) column to the start of a period, so that smoothing can be done by the database (group by).
+ * <p/>
+ * Periods match the ones of {@link org.killbill.billing.plugin.analytics.reports.analysis.Smoother}: weeks start on Monday,
+ * days are returned as dates and hours as timestamps.
+ */
+public abstract class Granularities {
+
+    public static Field<Object> truncate(final Field<Object> column, final DateGranularity dateGranularity, final SQLDialect sqlDialect) {
+        return DSL.field(getTemplate(dateGranularity, sqlDialect), Object.class, column);
+    }
+
+    private static String getTemplate(final DateGranularity dateGranularity, final SQLDialect sqlDialect) {
+        switch (sqlDialect) {
+            case MARIADB:
+            case MYSQL:
+                switch (dateGranularity) {
+                    case HOURLY:
+                        return "cast(date_format({0}, '%Y-%m-%d %H:00:00') as datetime)";
+                    case WEEKLY:
+                        return "date(date_sub({0}, interval weekday({0}) day))";
+                    case MONTHLY:
+                        return "date(date_sub({0}, interval dayofmonth({0}) - 1 day))";
+                    case QUARTERLY:
+                        return "date(makedate(year({0}), 1) + interval (quarter({0}) - 1) quarter)";
+                    case YEARLY:
+                        return "makedate(year({0}), 1)";
+                    default:
+                        break;
+                }
+                break;
+            case POSTGRES:
+                switch (dateGranularity) {
+                    case HOURLY:
+                        return "date_trunc('hour', {0})";
+                    case WEEKLY:
+                        return "cast(date_trunc('week', {0}) as date)";
+                    case MONTHLY:
+                        return "cast(date_trunc('month', {0}) as date)";
+                    case QUARTERLY:
+                        return "cast(date_trunc('quarter', {0}) as date)";
+                    case YEARLY:
+                        return "cast(date_trunc('year', {0}) as date)";
+                    default:
+                        break;
+                }
+                break;
+            case H2:
+                switch (dateGranularity) {
+                    case HOURLY:
+                        return "parsedatetime(formatdatetime({0}, 'yyyy-MM-dd HH'), 'yyyy-MM-dd HH')";
+                    case WEEKLY:
+                        return "cast(dateadd('DAY', 1 - iso_day_of_week({0}), {0}) as date)";
+                    case MONTHLY:
+                        return "cast(dateadd('DAY', 1 - day_of_month({0}), {0}) as date)";
+                    case QUARTERLY:
+                        return "cast(dateadd('MONTH', -mod(month({0}) - 1, 3), dateadd('DAY', 1 - day_of_month({0}), {0})) as date)";
+                    case YEARLY:
+                        return "cast(dateadd('DAY', 1 - day_of_year({0}), {0}) as date)";
+                    default:
+                        break;
+                }
+                break;
+            default:
+                break;
+        }
+        throw new IllegalArgumentException("Unsupported granularity " + dateGranularity + " for " + sqlDialect);
+    }
+}
@@ -18,187 +18,325 @@
 
 package org.killbill.billing.plugin.analytics.reports.sql;
 
-import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.AbstractMap.SimpleImmutableEntry;
 import java.util.Comparator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.annotation.Nullable;
 import javax.sql.DataSource;
 
-import org.jooq.ConnectionCallable;
+import org.jooq.Condition;
 import org.jooq.DSLContext;
 import org.jooq.Field;
-import org.jooq.Meta;
 import org.jooq.Record;
 import org.jooq.Result;
 import org.jooq.SQLDialect;
-import org.jooq.Schema;
-import org.jooq.Table;
 import org.jooq.exception.DataAccessException;
 import org.jooq.impl.DSL;
+import org.killbill.billing.plugin.analytics.BusinessExecutor;
 import org.killbill.billing.plugin.analytics.reports.ReportsUserApi;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Objects;
+import com.google.common.base.Throwables;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Ordering;
-
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+/**
+ * Columns and distinct values (for the dashboard filters) of the reports tables.
+ * <p/>
+ * Tables are looked up on demand, one at a time. The distinct values are computed per tenant, in the background:
+ * tables are returned without distinct values until these are available. A single loader thread computes them,
+ * with a bounded number of concurrent queries, and loads are dropped (and retried on the next lookup) when too many
+ * are pending. Entries older than the TTL are refreshed in the background: the previous values are returned in the
+ * meantime.
+ */
 public class Metadata {
 
     private static final Logger logger = LoggerFactory.getLogger(Metadata.class);
 
     private static final int MAX_NUMBER_OF_DISTINCT_ITEMS_TO_FETCH = 6;
     private static final int QUERY_TIMEOUT_SECONDS = 30;
+    private static final int DEFAULT_NB_THREADS = 3;
+    private static final long DEFAULT_TTL_SECONDS = 3600;
+    private static final long MAX_NB_CACHED_TABLES = 10000;
+    private static final int MAX_NB_PENDING_LOADS = 100;
 
     private final Set<String> reportsTables;
     private final DSLContext context;
-
-    private String schemaName = null;
-    private final Map<String, Table> tablesCache = new ConcurrentHashMap<String, Table>();
-    private final Map<String, Map<String, List<Object>>> distinctValuesCache = new ConcurrentHashMap<String, Map<String, List<Object>>>();
+    private final ExecutorService distinctValuesExecutor;
+    private final ExecutorService loaderExecutor;
+    // Distinct values being loaded in the background
+    private final Set<TableKey> pendingDistinctValuesLoads = Sets.<TableKey>newConcurrentHashSet();
+    // Columns, by table name (empty if the table doesn't exist)
+    private final LoadingCache<String, List<Field<?>>> fieldsCache;
+    // Distinct values per column, by tenant and table name
+    private final LoadingCache<TableKey, Map<String, List<Object>>> distinctValuesCache;
 
     public Metadata(final Set<String> reportsTables, final DataSource dataSource) {
         this(reportsTables, dataSource, SQLDialect.MYSQL);
     }
 
     public Metadata(final Set<String> reportsTables, final DataSource dataSource, final SQLDialect sqlDialect) {
+        this(reportsTables, dataSource, sqlDialect, DEFAULT_NB_THREADS, DEFAULT_TTL_SECONDS);
+    }
+
+    public Metadata(final Set<String> reportsTables, final DataSource dataSource, final SQLDialect sqlDialect, final int nbThreads, final long ttlSeconds) {
         this.reportsTables = reportsTables;
         this.context = DSL.using(dataSource, sqlDialect);
-        primeCaches();
+        // Only the loader thread submits queries here, so at most nbThreads + 1 queries run concurrently
+        this.distinctValuesExecutor = BusinessExecutor.newCachedThreadPool(nbThreads, "osgi-analytics-metadata");
+        // Initial loads and refreshes of both caches
+        this.loaderExecutor = BusinessExecutor.newBoundedThreadPool(1, MAX_NB_PENDING_LOADS, "osgi-analytics-metadata-loader");
+
+        this.fieldsCache = CacheBuilder.newBuilder()
+                                       .maximumSize(MAX_NB_CACHED_TABLES)
+                                       .refreshAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                                       .build(CacheLoader.asyncReloading(new CacheLoader<String, List<Field<?>>>() {
+                                                                             @Override
+                                                                             public List<Field<?>> load(final String tableName) {
+                                                                                 return fetchFields(tableName);
+                                                                             }
+                                                                         },
+                                                                         loaderExecutor));
+        this.distinctValuesCache = CacheBuilder.newBuilder()
+                                               .maximumSize(MAX_NB_CACHED_TABLES)
+                                               .refreshAfterWrite(ttlSeconds, TimeUnit.SECONDS)
+                                               .build(CacheLoader.asyncReloading(new CacheLoader<TableKey, Map<String, List<Object>>>() {
+                                                                                     @Override
+                                                                                     public Map<String, List<Object>> load(final TableKey tableKey) throws Exception {
+                                                                                         return fetchDistinctValues(tableKey, getFields(tableKey.tableName));
+                                                                                     }
+                                                                                 },
+                                                                                 loaderExecutor));
     }
 
-    public synchronized void clearCaches() {
-        tablesCache.clear();
+    public void clearCaches() {
+        fieldsCache.invalidateAll();
+        distinctValuesCache.invalidateAll();
     }
 
-    public synchronized TableMetadata getTable(final String tableName) throws SQLException {
-        final String schemaName = getSchemaName();
-        final Table table = getTable(schemaName, tableName);
-        return table == null ? null : new TableMetadata(table, distinctValuesCache.get(tableName));
+    // The columns are shared across tenants and are refreshed as well
+    public void clearCaches(@Nullable final Long tenantRecordId) {
+        fieldsCache.invalidateAll();
+        for (final TableKey tableKey : distinctValuesCache.asMap().keySet()) {
+            if (Objects.equal(tableKey.tenantRecordId, tenantRecordId)) {
+                distinctValuesCache.invalidate(tableKey);
+            }
+        }
     }
 
-    private Table getTable(final String schemaName, final String tableName) throws SQLException {
-        if (!tablesCache.isEmpty()) {
-            return tablesCache.get(tableName);
-        }
+    public void shutdownNow() {
+        loaderExecutor.shutdownNow();
+        distinctValuesExecutor.shutdownNow();
+    }
 
-        final Meta meta = context.meta();
+    // Distinct values across all tenants
+    public TableMetadata getTable(final String tableName) throws SQLException {
+        return getTable(tableName, null);
+    }
 
-        Schema analyticsSchema = null;
-        for (final Schema schema : meta.getSchemas()) {
-            if (schemaName.equalsIgnoreCase(schema.getName())) {
-                analyticsSchema = schema;
-                break;
-            }
+    public TableMetadata getTable(final String tableName, @Nullable final Long tenantRecordId) throws SQLException {
+        // Skip all but reports tables (e.g. skip Kill Bill tables if the database is shared)
+        if (!reportsTables.contains(tableName)) {
+            return null;
         }
 
-        if (analyticsSchema == null) {
+        final List<Field<?>> fields = getFields(tableName);
+        if (fields.isEmpty()) {
             return null;
         }
+        return new TableMetadata(tableName, fields, getDistinctValuesIfLoaded(new TableKey(tenantRecordId, tableName)));
+    }
 
-        for (final Table foundTable : analyticsSchema.getTables()) {
-            // Skip all but reports tables (e.g. skip Kill Bill tables if the database is shared)
-            if (reportsTables.contains(foundTable.getName())) {
-                logger.info("Caching metadata for table {}", foundTable.getName());
-                tablesCache.put(foundTable.getName(), foundTable);
-                cacheDistinctValues(foundTable);
-            }
+    // Null until the distinct values have been computed (the load is triggered by the first lookup)
+    private Map<String, List<Object>> getDistinctValuesIfLoaded(final TableKey tableKey) {
+        final Map<String, List<Object>> distinctValues = distinctValuesCache.getIfPresent(tableKey);
+        if (distinctValues != null || !pendingDistinctValuesLoads.add(tableKey)) {
+            return distinctValues;
         }
 
-        return tablesCache.get(tableName);
+        try {
+            loaderExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        distinctValuesCache.getUnchecked(tableKey);
+                    } catch (final RuntimeException e) {
+                        logger.warn("Unable to cache distinct values for table {} (tenantRecordId={})", tableKey.tableName, tableKey.tenantRecordId, e);
+                    } finally {
+                        pendingDistinctValuesLoads.remove(tableKey);
+                    }
+                }
+            });
+        } catch (final RejectedExecutionException e) {
+            pendingDistinctValuesLoads.remove(tableKey);
+            logger.debug("Too many pending loads, not caching distinct values for table {} (tenantRecordId={}) yet", tableKey.tableName, tableKey.tenantRecordId);
+        }
+        return null;
+    }
+
+    private List<Field<?>> getFields(final String tableName) {
+        return get(fieldsCache, tableName);
+    }
+
+    private List<Field<?>> fetchFields(final String tableName) {
+        logger.info("Caching metadata for table {}", tableName);
+
+        try {
+            // Only the result set metadata is needed
+            final Result<Record> result = context.select()
+                                                 .from(DSL.tableByName(tableName))
+                                                 .where(DSL.falseCondition())
+                                                 .queryTimeout(QUERY_TIMEOUT_SECONDS)
+                                                 .fetch();
+            return ImmutableList.<Field<?>>copyOf(result.fields());
+        } catch (final DataAccessException e) {
+            logger.info("Skipping table {}: {}", tableName, e.getLocalizedMessage());
+            return ImmutableList.<Field<?>>of();
+        }
     }
 
-    private void cacheDistinctValues(final Table table) {
-        for (final Field field : table.recordType().fields()) {
+    private Map<String, List<Object>> fetchDistinctValues(final TableKey tableKey, final List<Field<?>> fields) throws InterruptedException, TimeoutException {
+        final CompletionService<Map.Entry<String, List<Object>>> completionService = new ExecutorCompletionService<Map.Entry<String, List<Object>>>(distinctValuesExecutor);
+        int nbColumns = 0;
+        for (final Field<?> field : fields) {
             // Skip columns we likely don't want to group/filter on
             if (!ReportsUserApi.DAY_COLUMN_NAME.equals(field.getName()) &&
-                !ReportsUserApi.COUNT_COLUMN_NAME.equals(field.getName())) {
-                cacheDistinctValues(field.getName(), table.getName());
+                !ReportsUserApi.COUNT_COLUMN_NAME.equals(field.getName()) &&
+                !"tenant_record_id".equals(field.getName())) {
+                completionService.submit(new Callable<Map.Entry<String, List<Object>>>() {
+                    @Override
+                    public Map.Entry<String, List<Object>> call() {
+                        return new SimpleImmutableEntry<String, List<Object>>(field.getName(), fetchDistinctValues(tableKey, field.getName()));
+                    }
+                });
+                nbColumns++;
             }
         }
-    }
 
-    private void cacheDistinctValues(final String columnName, final String tableName) {
-        logger.info("Caching distinct values for column {}.{}", tableName, columnName);
+        final Map<String, List<Object>> distinctValues = new LinkedHashMap<String, List<Object>>();
+        for (int i = 0; i < nbColumns; i++) {
+            // Don't wait forever if the task has been dropped (e.g. on shutdown)
+            final Future<Map.Entry<String, List<Object>>> future = completionService.poll(2 * QUERY_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (future == null) {
+                // Don't cache partial values: the previous ones (if any) are kept, and the load is retried on the next lookup
+                throw new TimeoutException(String.format("Timeout while caching distinct values for table %s (tenantRecordId=%s)", tableKey.tableName, tableKey.tenantRecordId));
+            }
 
-        if (distinctValuesCache.get(tableName) == null) {
-            distinctValuesCache.put(tableName, new ConcurrentHashMap<String, List<Object>>());
+            try {
+                final Map.Entry<String, List<Object>> columnDistinctValues = future.get();
+                if (columnDistinctValues.getValue() != null) {
+                    distinctValues.put(columnDistinctValues.getKey(), columnDistinctValues.getValue());
+                }
+            } catch (final ExecutionException e) {
+                throw Throwables.propagate(e.getCause());
+            }
         }
+        return ImmutableMap.<String, List<Object>>copyOf(distinctValues);
+    }
+
+    // Null if there are too many values
+    private List<Object> fetchDistinctValues(final TableKey tableKey, final String columnName) {
+        logger.info("Caching distinct values for column {}.{} (tenantRecordId={})", tableKey.tableName, columnName, tableKey.tenantRecordId);
 
+        final Condition condition = tableKey.tenantRecordId == null ? DSL.trueCondition() : DSL.fieldByName("tenant_record_id").eq(tableKey.tenantRecordId);
         try {
             final Result<?> results = context.selectDistinct(DSL.fieldByName(columnName))
-                                             .from(tableName)
+                                             .from(tableKey.tableName)
+                                             .where(condition)
                                              .limit(MAX_NUMBER_OF_DISTINCT_ITEMS_TO_FETCH + 1)
                                              .queryTimeout(QUERY_TIMEOUT_SECONDS)
                                              .fetch();
 
             // If we have too many values, ignore
-            if (results.size() <= MAX_NUMBER_OF_DISTINCT_ITEMS_TO_FETCH) {
-                if (distinctValuesCache.get(tableName).get(columnName) == null) {
-                    distinctValuesCache.get(tableName).put(columnName, new LinkedList<Object>());
-                }
+            if (results.size() > MAX_NUMBER_OF_DISTINCT_ITEMS_TO_FETCH) {
+                return null;
+            }
 
-                // Sort results in-memory
-                final List<? extends Record> sortedResults = Ordering.from(new Comparator<Record>() {
-                    @Override
-                    public int compare(final Record r1, final Record r2) {
-                        if (r1 == null || r1.getValue(0) == null) {
-                            return -1;
-                        } else if (r2 == null || r2.getValue(0) == null) {
-                            return 1;
-                        } else {
-                            return r1.getValue(0).toString().compareTo(r2.getValue(0).toString());
-                        }
+            // Sort results in-memory
+            final List<? extends Record> sortedResults = Ordering.from(new Comparator<Record>() {
+                @Override
+                public int compare(final Record r1, final Record r2) {
+                    if (r1 == null || r1.getValue(0) == null) {
+                        return -1;
+                    } else if (r2 == null || r2.getValue(0) == null) {
+                        return 1;
+                    } else {
+                        return r1.getValue(0).toString().compareTo(r2.getValue(0).toString());
                     }
-                }).immutableSortedCopy(results);
-
-                for (final Record result : sortedResults) {
-                    distinctValuesCache.get(tableName).get(columnName).add(result.getValue(0));
                 }
+            }).immutableSortedCopy(results);
+
+            final List<Object> distinctValues = new LinkedList<Object>();
+            for (final Record result : sortedResults) {
+                distinctValues.add(result.getValue(0));
             }
+            return distinctValues;
         } catch (final DataAccessException e) {
             // Maybe com.mysql.jdbc.exceptions.MySQLTimeoutException?
             logger.info("Skipping column: {}", e.getLocalizedMessage());
-            logger.debug("Got exception trying to cache column {}.{}", tableName, columnName, e);
+            logger.debug("Got exception trying to cache column {}.{}", tableKey.tableName, columnName, e);
+            return null;
         }
     }
 
-    private String getSchemaName() {
-        if (schemaName == null) {
-            schemaName = context.connectionResult(new ConnectionCallable<String>() {
-                @Override
-                public String run(final Connection connection) throws Exception {
-                    return connection.getCatalog();
-                }
-            });
+    private static <K, V> V get(final LoadingCache<K, V> cache, final K key) {
+        try {
+            return cache.get(key);
+        } catch (final ExecutionException e) {
+            throw Throwables.propagate(e.getCause());
+        } catch (final UncheckedExecutionException e) {
+            throw Throwables.propagate(e.getCause());
         }
-
-        return schemaName;
     }
 
-    private void primeCaches() {
-        final Thread t = new Thread() {
-            @Override
-            public void run() {
-                final long startTime = System.currentTimeMillis();
-
-                logger.info("Started priming caches...");
-                try {
-                    // Retrieving one table will load the full catalog
-                    getTable("DoesNotMatter");
-
-                    final long secondsToStart = (System.currentTimeMillis() - startTime) / 1000;
-                    logger.info(String.format("Primed caches in %d:%02d", secondsToStart / 60, secondsToStart % 60));
-                } catch (final SQLException e) {
-                    // Ignored
-                    logger.warn("Error while priming caches", e);
-                }
+    private static final class TableKey {
+
+        private final Long tenantRecordId;
+        private final String tableName;
+
+        private TableKey(@Nullable final Long tenantRecordId, final String tableName) {
+            this.tenantRecordId = tenantRecordId;
+            this.tableName = tableName;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || getClass() != o.getClass()) {
+                return false;
             }
-        };
-        t.setDaemon(true);
-        t.start();
+            final TableKey tableKey = (TableKey) o;
+            return Objects.equal(tenantRecordId, tableKey.tenantRecordId) && tableName.equals(tableKey.tableName);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(tenantRecordId, tableName);
+        }
     }
 }
@@ -22,20 +22,26 @@ import java.util.Map;
 
 import javax.annotation.Nullable;
 
-import org.jooq.Table;
+import org.jooq.Field;
 
 public class TableMetadata {
 
-    private final Table table;
+    private final String tableName;
+    private final List<Field<?>> fields;
     private final Map<String, List<Object>> distinctValues;
 
-    public TableMetadata(final Table table, @Nullable final Map<String, List<Object>> distinctValues) {
-        this.table = table;
+    public TableMetadata(final String tableName, final List<Field<?>> fields, @Nullable final Map<String, List<Object>> distinctValues) {
+        this.tableName = tableName;
+        this.fields = fields;
         this.distinctValues = distinctValues;
     }
 
-    public Table getTable() {
-        return table;
+    public String getTableName() {
+        return tableName;
+    }
+
+    public List<Field<?>> getFields() {
+        return fields;
     }
 
     public Map<String, List<Object>> getDistinctValues() {
@@ -20,6 +20,7 @@ package org.killbill.billing.plugin.analytics.utils;
 
 import java.math.BigDecimal;
 import java.util.Collection;
+import java.util.Iterator;
 
 import javax.annotation.Nullable;
 
@@ -31,33 +32,57 @@ import org.killbill.billing.invoice.api.InvoicePayment;
 import org.killbill.billing.invoice.api.InvoicePaymentType;
 import org.killbill.billing.plugin.util.KillBillMoney;
 
-import com.google.common.base.Predicate;
-import com.google.common.collect.Collections2;
-import com.google.common.collect.Iterables;
-
 /**
  * Utilities to manipulate invoice and invoice items (mostly copied over from Kill Bill).
  */
 public class BusinessInvoiceUtils {
 
     public static boolean isRevenueRecognizable(final InvoiceItem invoiceItem, final Collection<InvoiceItem> otherInvoiceItems) {
+        return isRevenueRecognizable(invoiceItem, getSingleInvoiceItem(otherInvoiceItems));
+    }
+
+    public static boolean isRevenueRecognizable(final InvoiceItem invoiceItem, final InvoiceItemsIndex invoiceItemsIndex) {
+        return isRevenueRecognizable(invoiceItem, invoiceItemsIndex.getSingleOtherInvoiceItem(invoiceItem));
+    }
+
+    private static boolean isRevenueRecognizable(final InvoiceItem invoiceItem, @Nullable final InvoiceItem singleOtherInvoiceItem) {
         // All items are recognizable except user generated credit (CBA_ADJ and CREDIT_ADJ on their own invoice)
         return !(InvoiceItemType.CBA_ADJ.equals(invoiceItem.getInvoiceItemType()) &&
-                 (otherInvoiceItems.size() == 1 &&
-                  InvoiceItemType.CREDIT_ADJ.equals(otherInvoiceItems.iterator().next().getInvoiceItemType()) &&
-                  otherInvoiceItems.iterator().next().getInvoiceId().equals(invoiceItem.getInvoiceId()) &&
-                  otherInvoiceItems.iterator().next().getAmount().compareTo(invoiceItem.getAmount().negate()) == 0));
+                 isOffsetBySingleItem(invoiceItem, singleOtherInvoiceItem, InvoiceItemType.CREDIT_ADJ));
     }
 
     // Invoice adjustments
     public static boolean isInvoiceAdjustmentItem(final InvoiceItem invoiceItem, final Iterable<InvoiceItem> otherInvoiceItems) {
+        return isInvoiceAdjustmentItem(invoiceItem, getSingleInvoiceItem(otherInvoiceItems));
+    }
+
+    public static boolean isInvoiceAdjustmentItem(final InvoiceItem invoiceItem, final InvoiceItemsIndex invoiceItemsIndex) {
+        return isInvoiceAdjustmentItem(invoiceItem, invoiceItemsIndex.getSingleOtherInvoiceItem(invoiceItem));
+    }
+
+    private static boolean isInvoiceAdjustmentItem(final InvoiceItem invoiceItem, @Nullable final InvoiceItem singleOtherInvoiceItem) {
         // Invoice level credit, i.e. credit adj, but NOT on its on own invoice
         // Note: the negative credit adj items (internal generation of account level credits) doesn't figure in analytics
         return (InvoiceItemType.CREDIT_ADJ.equals(invoiceItem.getInvoiceItemType()) &&
-                !(Iterables.size(otherInvoiceItems) == 1 &&
-                  InvoiceItemType.CBA_ADJ.equals(otherInvoiceItems.iterator().next().getInvoiceItemType()) &&
-                  otherInvoiceItems.iterator().next().getInvoiceId().equals(invoiceItem.getInvoiceId()) &&
-                  otherInvoiceItems.iterator().next().getAmount().compareTo(invoiceItem.getAmount().negate()) == 0));
+                !isOffsetBySingleItem(invoiceItem, singleOtherInvoiceItem, InvoiceItemType.CBA_ADJ));
+    }
+
+    // Is the item the counterpart of the only other item on the invoice (e.g. CREDIT_ADJ and CBA_ADJ on their own invoice)?
+    private static boolean isOffsetBySingleItem(final InvoiceItem invoiceItem, @Nullable final InvoiceItem singleOtherInvoiceItem, final InvoiceItemType otherInvoiceItemType) {
+        return singleOtherInvoiceItem != null &&
+               otherInvoiceItemType.equals(singleOtherInvoiceItem.getInvoiceItemType()) &&
+               singleOtherInvoiceItem.getInvoiceId().equals(invoiceItem.getInvoiceId()) &&
+               singleOtherInvoiceItem.getAmount().compareTo(invoiceItem.getAmount().negate()) == 0;
+    }
+
+    // Return the only item, without iterating through all of them (these are often filtered views)
+    private static InvoiceItem getSingleInvoiceItem(final Iterable<InvoiceItem> invoiceItems) {
+        final Iterator<InvoiceItem> iterator = invoiceItems.iterator();
+        if (!iterator.hasNext()) {
+            return null;
+        }
+        final InvoiceItem invoiceItem = iterator.next();
+        return iterator.hasNext() ? null : invoiceItem;
     }
 
     // Item adjustments
@@ -107,19 +132,10 @@ public class BusinessInvoiceUtils {
             return KillBillMoney.of(amountAdjusted, currency);
         }
 
+        final InvoiceItemsIndex invoiceItemsIndex = new InvoiceItemsIndex(invoiceItems);
         for (final InvoiceItem invoiceItem : invoiceItems) {
-            final Iterable<InvoiceItem> otherInvoiceItems = Iterables.filter(invoiceItems, new Predicate<InvoiceItem>() {
-                @Override
-                public boolean apply(final InvoiceItem input) {
-                    return !input.getId().equals(invoiceItem.getId());
-                }
-            });
-
             if (InvoiceItemType.CREDIT_ADJ.equals(invoiceItem.getInvoiceItemType()) &&
-                (Iterables.size(otherInvoiceItems) == 1 &&
-                 InvoiceItemType.CBA_ADJ.equals(otherInvoiceItems.iterator().next().getInvoiceItemType()) &&
-                 otherInvoiceItems.iterator().next().getInvoiceId().equals(invoiceItem.getInvoiceId()) &&
-                 otherInvoiceItems.iterator().next().getAmount().compareTo(invoiceItem.getAmount().negate()) == 0)) {
+                isOffsetBySingleItem(invoiceItem, invoiceItemsIndex.getSingleOtherInvoiceItem(invoiceItem), InvoiceItemType.CBA_ADJ)) {
                 amountAdjusted = amountAdjusted.add(invoiceItem.getAmount());
             }
         }
@@ -133,16 +149,10 @@ public class BusinessInvoiceUtils {
             return KillBillMoney.of(amountCharged, currency);
         }
 
+        final InvoiceItemsIndex invoiceItemsIndex = new InvoiceItemsIndex(invoiceItems);
         for (final InvoiceItem invoiceItem : invoiceItems) {
-            final Collection<InvoiceItem> otherInvoiceItems = Collections2.<InvoiceItem>filter(invoiceItems, new Predicate<InvoiceItem>() {
-                @Override
-                public boolean apply(final InvoiceItem input) {
-                    return !input.getId().equals(invoiceItem.getId());
-                }
-            });
-
             if (isCharge(invoiceItem) ||
-                isInvoiceAdjustmentItem(invoiceItem, otherInvoiceItems) ||
+                isInvoiceAdjustmentItem(invoiceItem, invoiceItemsIndex) ||
                 isInvoiceItemAdjustmentItem(invoiceItem) ||
                 isParentSummaryItem(invoiceItem)) {
                 amountCharged = amountCharged.add(invoiceItem.getAmount());
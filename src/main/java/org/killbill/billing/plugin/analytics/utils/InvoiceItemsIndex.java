@@ -0,0 +1,90 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.utils;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.annotation.Nullable;
+
+import org.killbill.billing.invoice.api.InvoiceItem;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+
+/**
+ * Lookup tables over a set of invoice items (typically all items of an account), built once per refresh.
+ * <p/>
+ * This avoids scanning all items each time we need the items on the same invoice or the linked item.
+ * It is not modified once built, so it can be shared across threads.
+ */
+public class InvoiceItemsIndex {
+
+    private final Map<UUID, InvoiceItem> invoiceItemsById = new HashMap<UUID, InvoiceItem>();
+    private final ListMultimap<UUID, InvoiceItem> invoiceItemsByInvoiceId = ArrayListMultimap.<UUID, InvoiceItem>create();
+
+    public InvoiceItemsIndex(final Iterable<InvoiceItem> invoiceItems) {
+        for (final InvoiceItem invoiceItem : invoiceItems) {
+            if (invoiceItem.getId() != null) {
+                invoiceItemsById.put(invoiceItem.getId(), invoiceItem);
+            }
+            invoiceItemsByInvoiceId.put(invoiceItem.getInvoiceId(), invoiceItem);
+        }
+    }
+
+    public InvoiceItem getInvoiceItem(@Nullable final UUID invoiceItemId) {
+        return invoiceItemId == null ? null : invoiceItemsById.get(invoiceItemId);
+    }
+
+    public InvoiceItem getLinkedInvoiceItem(final InvoiceItem invoiceItem) {
+        return getInvoiceItem(invoiceItem.getLinkedItemId());
+    }
+
+    public List<InvoiceItem> getInvoiceItems(final UUID invoiceId) {
+        return invoiceItemsByInvoiceId.get(invoiceId);
+    }
+
+    /**
+     * @return the only other item on the same invoice, null if there are none or more than one
+     */
+    public InvoiceItem getSingleOtherInvoiceItem(final InvoiceItem invoiceItem) {
+        final List<InvoiceItem> invoiceItemsOnInvoice = getInvoiceItems(invoiceItem.getInvoiceId());
+        // The item itself is normally part of the index
+        if (invoiceItemsOnInvoice.size() > 2) {
+            return null;
+        }
+
+        InvoiceItem singleOtherInvoiceItem = null;
+        for (final InvoiceItem invoiceItemOnInvoice : invoiceItemsOnInvoice) {
+            if (isSameInvoiceItem(invoiceItemOnInvoice, invoiceItem)) {
+                continue;
+            }
+            if (singleOtherInvoiceItem != null) {
+                return null;
+            }
+            singleOtherInvoiceItem = invoiceItemOnInvoice;
+        }
+        return singleOtherInvoiceItem;
+    }
+
+    private static boolean isSameInvoiceItem(final InvoiceItem first, final InvoiceItem second) {
+        return first == second || (first.getId() != null && first.getId().equals(second.getId()));
+    }
+}
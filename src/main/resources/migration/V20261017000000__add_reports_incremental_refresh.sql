@@ -0,0 +1,3 @@
+alter table analytics_reports add refresh_watermark_column varchar(256) default null after refresh_hour_of_day_gmt;
+alter table analytics_reports add refresh_window_days smallint default null after refresh_watermark_column;
+alter table analytics_reports add refresh_last_watermark varchar(50) default null after refresh_window_days;
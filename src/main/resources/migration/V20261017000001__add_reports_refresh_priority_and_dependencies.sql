@@ -0,0 +1,2 @@
+alter table analytics_reports add refresh_priority smallint default null after refresh_last_watermark;
+alter table analytics_reports add refresh_dependencies varchar(1024) default null after refresh_priority;
@@ -0,0 +1 @@
+alter table analytics_reports add refresh_last_success_date datetime default null after refresh_dependencies;
@@ -0,0 +1,4 @@
+alter table analytics_reports add refresh_interval_minutes smallint default null after refresh_last_success_date;
+alter table analytics_reports add refresh_cron varchar(256) default null after refresh_interval_minutes;
+alter table analytics_reports add refresh_time_zone varchar(64) default null after refresh_cron;
+alter table analytics_reports add refresh_jitter_seconds int default null after refresh_time_zone;
@@ -1434,6 +1434,16 @@ create table analytics_reports (
 , refresh_procedure_name varchar(256) default null
 , refresh_frequency varchar(50) default null
 , refresh_hour_of_day_gmt smallint default null
+, refresh_watermark_column varchar(256) default null
+, refresh_window_days smallint default null
+, refresh_last_watermark varchar(50) default null
+, refresh_priority smallint default null
+, refresh_dependencies varchar(1024) default null
+, refresh_last_success_date datetime default null
+, refresh_interval_minutes smallint default null
+, refresh_cron varchar(256) default null
+, refresh_time_zone varchar(64) default null
+, refresh_jitter_seconds int default null
 , primary key(record_id)
 ) /*! CHARACTER SET utf8 COLLATE utf8_bin */;
 create unique index analytics_reports_report_name on analytics_reports(report_name);
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics;
+
+import java.util.List;
+import java.util.UUID;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.notification.plugin.api.ExtBusEventType;
+import org.killbill.billing.plugin.analytics.AnalyticsJobHierarchy.Group;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class TestAnalyticsJobsBuffer extends AnalyticsTestSuiteNoDB {
+
+    private final DateTime now = new DateTime(2019, 3, 1, 0, 0, 0, DateTimeZone.UTC);
+
+    @Test(groups = "fast")
+    public void testDebounce() throws Exception {
+        final AnalyticsJobsBuffer jobsBuffer = new AnalyticsJobsBuffer(10);
+        final UUID accountId = UUID.randomUUID();
+
+        final AnalyticsJob subscriptionCreation = createJob(ExtBusEventType.SUBSCRIPTION_CREATION, accountId, UUID.randomUUID());
+        Assert.assertTrue(jobsBuffer.add(subscriptionCreation, now));
+        // Same group, later in the window
+        Assert.assertFalse(jobsBuffer.add(createJob(ExtBusEventType.SUBSCRIPTION_PHASE, accountId, UUID.randomUUID()), now.plusSeconds(5)));
+        // Other group
+        final AnalyticsJob customFieldCreation = createJob(ExtBusEventType.CUSTOM_FIELD_CREATION, accountId, UUID.randomUUID());
+        Assert.assertTrue(jobsBuffer.add(customFieldCreation, now.plusSeconds(5)));
+        // Other account
+        final AnalyticsJob otherAccountJob = createJob(ExtBusEventType.SUBSCRIPTION_CREATION, UUID.randomUUID(), UUID.randomUUID());
+        Assert.assertTrue(jobsBuffer.add(otherAccountJob, now.plusSeconds(1)));
+        Assert.assertEquals(jobsBuffer.size(), 3);
+
+        Assert.assertTrue(jobsBuffer.drainReadyJobs(now.plusSeconds(9)).isEmpty());
+        Assert.assertEquals(jobsBuffer.drainReadyJobs(now.plusSeconds(11)), ImmutableList.<AnalyticsJob>of(subscriptionCreation, otherAccountJob));
+        Assert.assertEquals(jobsBuffer.drainReadyJobs(now.plusSeconds(15)), ImmutableList.<AnalyticsJob>of(customFieldCreation));
+        Assert.assertEquals(jobsBuffer.size(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testFullRefreshAbsorbsNarrowerGroups() throws Exception {
+        final AnalyticsJobsBuffer jobsBuffer = new AnalyticsJobsBuffer(10);
+        final UUID accountId = UUID.randomUUID();
+
+        Assert.assertTrue(jobsBuffer.add(createJob(ExtBusEventType.SUBSCRIPTION_CREATION, accountId, UUID.randomUUID()), now));
+        Assert.assertTrue(jobsBuffer.add(createJob(ExtBusEventType.PAYMENT_SUCCESS, accountId, UUID.randomUUID()), now.plusSeconds(1)));
+        final AnalyticsJob accountChange = createJob(ExtBusEventType.ACCOUNT_CHANGE, accountId, accountId);
+        Assert.assertTrue(jobsBuffer.add(accountChange, now.plusSeconds(5)));
+        Assert.assertEquals(jobsBuffer.size(), 1);
+
+        // Absorbed by the full refresh
+        Assert.assertFalse(jobsBuffer.add(createJob(ExtBusEventType.INVOICE_CREATION, accountId, UUID.randomUUID()), now.plusSeconds(6)));
+
+        // The full refresh isn't delayed past the window of the first absorbed job
+        Assert.assertEquals(jobsBuffer.drainReadyJobs(now.plusSeconds(10)), ImmutableList.<AnalyticsJob>of(accountChange));
+    }
+
+    @Test(groups = "fast")
+    public void testInvoices() throws Exception {
+        final AnalyticsJobsBuffer jobsBuffer = new AnalyticsJobsBuffer(10);
+        final UUID accountId = UUID.randomUUID();
+        final UUID invoiceId = UUID.randomUUID();
+
+        final AnalyticsJob invoiceCreation = createJob(ExtBusEventType.INVOICE_CREATION, accountId, invoiceId);
+        Assert.assertTrue(jobsBuffer.add(invoiceCreation, now));
+        Assert.assertFalse(jobsBuffer.add(createJob(ExtBusEventType.INVOICE_ADJUSTMENT, accountId, invoiceId), now.plusSeconds(1)));
+        Assert.assertEquals(jobsBuffer.drainReadyJobs(now.plusSeconds(10)), ImmutableList.<AnalyticsJob>of(invoiceCreation));
+
+        // Two different invoices: all invoices are refreshed
+        Assert.assertTrue(jobsBuffer.add(createJob(ExtBusEventType.INVOICE_CREATION, accountId, UUID.randomUUID()), now));
+        Assert.assertTrue(jobsBuffer.add(createJob(ExtBusEventType.INVOICE_CREATION, accountId, UUID.randomUUID()), now.plusSeconds(1)));
+        Assert.assertFalse(jobsBuffer.add(createJob(ExtBusEventType.INVOICE_ADJUSTMENT, accountId, UUID.randomUUID()), now.plusSeconds(2)));
+        final List<AnalyticsJob> readyJobs = jobsBuffer.drainReadyJobs(now.plusSeconds(10));
+        Assert.assertEquals(readyJobs.size(), 1);
+        Assert.assertEquals(AnalyticsJobHierarchy.fromEventType(readyJobs.get(0)), Group.INVOICE_AND_PAYMENTS);
+        Assert.assertEquals(readyJobs.get(0).getAccountId(), accountId);
+    }
+
+    private AnalyticsJob createJob(final ExtBusEventType eventType, final UUID accountId, final UUID objectId) {
+        return new AnalyticsJob(eventType, ObjectType.ACCOUNT, objectId, accountId, callContext.getTenantId());
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.notification.plugin.api.ExtBusEventType;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class TestAnalyticsRefreshDispatcher extends AnalyticsTestSuiteNoDB {
+
+    @Test(groups = "fast")
+    public void testCovers() throws Exception {
+        final UUID accountId = UUID.randomUUID();
+        final UUID invoiceId = UUID.randomUUID();
+
+        final AnalyticsJob accountChange = createJob(ExtBusEventType.ACCOUNT_CHANGE, accountId, accountId);
+        final AnalyticsJob subscriptionChange = createJob(ExtBusEventType.SUBSCRIPTION_CHANGE, accountId, UUID.randomUUID());
+        final AnalyticsJob invoiceCreation = createJob(ExtBusEventType.INVOICE_CREATION, accountId, invoiceId);
+
+        // Full refresh
+        Assert.assertTrue(AnalyticsRefreshDispatcher.covers(accountChange, subscriptionChange));
+        Assert.assertFalse(AnalyticsRefreshDispatcher.covers(subscriptionChange, accountChange));
+        // Same group
+        Assert.assertTrue(AnalyticsRefreshDispatcher.covers(subscriptionChange, createJob(ExtBusEventType.SUBSCRIPTION_CANCEL, accountId, UUID.randomUUID())));
+        Assert.assertFalse(AnalyticsRefreshDispatcher.covers(subscriptionChange, invoiceCreation));
+        // Only the same invoice
+        Assert.assertTrue(AnalyticsRefreshDispatcher.covers(invoiceCreation, createJob(ExtBusEventType.INVOICE_ADJUSTMENT, accountId, invoiceId)));
+        Assert.assertFalse(AnalyticsRefreshDispatcher.covers(invoiceCreation, createJob(ExtBusEventType.INVOICE_CREATION, accountId, UUID.randomUUID())));
+        // Other account
+        Assert.assertFalse(AnalyticsRefreshDispatcher.covers(accountChange, createJob(ExtBusEventType.SUBSCRIPTION_CHANGE, UUID.randomUUID(), UUID.randomUUID())));
+    }
+
+    @Test(groups = "fast")
+    public void testOrderingAndCoalescingPerAccount() throws Exception {
+        final UUID accountId1 = UUID.randomUUID();
+        final UUID accountId2 = UUID.randomUUID();
+
+        final CountDownLatch firstJobStarted = new CountDownLatch(1);
+        final CountDownLatch unblockFirstJob = new CountDownLatch(1);
+        final CountDownLatch account2Refreshed = new CountDownLatch(1);
+        final CountDownLatch account1Refreshed = new CountDownLatch(3);
+        final List<AnalyticsJob> account1Jobs = new LinkedList<AnalyticsJob>();
+        final AnalyticsRefreshDispatcher dispatcher = new AnalyticsRefreshDispatcher(2,
+                                                                                     10,
+                                                                                     new AnalyticsRefreshDispatcher.AnalyticsJobHandler() {
+                                                                                         @Override
+                                                                                         public void handle(final AnalyticsJob job) {
+                                                                                             if (accountId2.equals(job.getAccountId())) {
+                                                                                                 account2Refreshed.countDown();
+                                                                                                 return;
+                                                                                             }
+
+                                                                                             synchronized (account1Jobs) {
+                                                                                                 account1Jobs.add(job);
+                                                                                             }
+                                                                                             firstJobStarted.countDown();
+                                                                                             try {
+                                                                                                 unblockFirstJob.await();
+                                                                                             } catch (final InterruptedException e) {
+                                                                                                 Thread.currentThread().interrupt();
+                                                                                             }
+                                                                                             account1Refreshed.countDown();
+                                                                                         }
+                                                                                     });
+        try {
+            // Record ids 1 and 2 are on different lanes
+            Assert.assertNotEquals(dispatcher.getLane(createJob(ExtBusEventType.ACCOUNT_CHANGE, accountId1, accountId1), 1L),
+                                   dispatcher.getLane(createJob(ExtBusEventType.ACCOUNT_CHANGE, accountId2, accountId2), 2L));
+
+            final AnalyticsJob subscriptionCreation = createJob(ExtBusEventType.SUBSCRIPTION_CREATION, accountId1, UUID.randomUUID());
+            Assert.assertTrue(dispatcher.dispatch(subscriptionCreation, 1L));
+            Assert.assertTrue(firstJobStarted.await(5, TimeUnit.SECONDS));
+
+            // Queued behind the running job
+            final UUID invoiceId = UUID.randomUUID();
+            final AnalyticsJob invoiceCreation = createJob(ExtBusEventType.INVOICE_CREATION, accountId1, invoiceId);
+            Assert.assertTrue(dispatcher.dispatch(invoiceCreation, 1L));
+            Assert.assertFalse(dispatcher.dispatch(createJob(ExtBusEventType.INVOICE_ADJUSTMENT, accountId1, invoiceId), 1L));
+            final AnalyticsJob subscriptionChange = createJob(ExtBusEventType.SUBSCRIPTION_CHANGE, accountId1, UUID.randomUUID());
+            Assert.assertTrue(dispatcher.dispatch(subscriptionChange, 1L));
+            Assert.assertEquals(dispatcher.getNbPendingJobs(), 2);
+
+            // The other account isn't blocked
+            Assert.assertTrue(dispatcher.dispatch(createJob(ExtBusEventType.ACCOUNT_CHANGE, accountId2, accountId2), 2L));
+            Assert.assertTrue(account2Refreshed.await(5, TimeUnit.SECONDS));
+
+            unblockFirstJob.countDown();
+            Assert.assertTrue(account1Refreshed.await(5, TimeUnit.SECONDS));
+            synchronized (account1Jobs) {
+                Assert.assertEquals(account1Jobs, ImmutableList.<AnalyticsJob>of(subscriptionCreation, invoiceCreation, subscriptionChange));
+            }
+            Assert.assertEquals(dispatcher.getNbPendingJobs(), 0);
+        } finally {
+            dispatcher.shutdownNow();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testFullRefreshSupersedesPendingJobs() throws Exception {
+        final UUID accountId = UUID.randomUUID();
+        final CountDownLatch firstJobStarted = new CountDownLatch(1);
+        final CountDownLatch unblockFirstJob = new CountDownLatch(1);
+        final AnalyticsRefreshDispatcher dispatcher = new AnalyticsRefreshDispatcher(1,
+                                                                                     10,
+                                                                                     new AnalyticsRefreshDispatcher.AnalyticsJobHandler() {
+                                                                                         @Override
+                                                                                         public void handle(final AnalyticsJob job) {
+                                                                                             firstJobStarted.countDown();
+                                                                                             try {
+                                                                                                 unblockFirstJob.await();
+                                                                                             } catch (final InterruptedException e) {
+                                                                                                 Thread.currentThread().interrupt();
+                                                                                             }
+                                                                                         }
+                                                                                     });
+        try {
+            Assert.assertTrue(dispatcher.dispatch(createJob(ExtBusEventType.PAYMENT_SUCCESS, accountId, UUID.randomUUID()), null));
+            Assert.assertTrue(firstJobStarted.await(5, TimeUnit.SECONDS));
+
+            Assert.assertTrue(dispatcher.dispatch(createJob(ExtBusEventType.SUBSCRIPTION_CHANGE, accountId, UUID.randomUUID()), null));
+            Assert.assertTrue(dispatcher.dispatch(createJob(ExtBusEventType.CUSTOM_FIELD_CREATION, accountId, UUID.randomUUID()), null));
+            Assert.assertTrue(dispatcher.dispatch(createJob(ExtBusEventType.SUBSCRIPTION_CHANGE, UUID.randomUUID(), UUID.randomUUID()), null));
+            Assert.assertEquals(dispatcher.getNbPendingJobs(), 3);
+
+            Assert.assertTrue(dispatcher.dispatch(createJob(ExtBusEventType.TAG_CREATION, accountId, UUID.randomUUID()), null));
+            // Only the full refresh and the job for the other account are left
+            Assert.assertEquals(dispatcher.getNbPendingJobs(), 2);
+        } finally {
+            unblockFirstJob.countDown();
+            dispatcher.shutdownNow();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testShutdownHandsBackUnprocessedJobs() throws Exception {
+        final UUID accountId = UUID.randomUUID();
+        final CountDownLatch firstJobStarted = new CountDownLatch(1);
+        final AnalyticsRefreshDispatcher dispatcher = new AnalyticsRefreshDispatcher(1,
+                                                                                     10,
+                                                                                     new AnalyticsRefreshDispatcher.AnalyticsJobHandler() {
+                                                                                         @Override
+                                                                                         public void handle(final AnalyticsJob job) {
+                                                                                             firstJobStarted.countDown();
+                                                                                             try {
+                                                                                                 new CountDownLatch(1).await();
+                                                                                             } catch (final InterruptedException e) {
+                                                                                                 Thread.currentThread().interrupt();
+                                                                                             }
+                                                                                         }
+                                                                                     });
+
+        final AnalyticsJob runningJob = createJob(ExtBusEventType.PAYMENT_SUCCESS, accountId, UUID.randomUUID());
+        Assert.assertTrue(dispatcher.dispatch(runningJob, 1L, 2L));
+        Assert.assertTrue(firstJobStarted.await(5, TimeUnit.SECONDS));
+        final AnalyticsJob pendingJob = createJob(ExtBusEventType.SUBSCRIPTION_CHANGE, accountId, UUID.randomUUID());
+        Assert.assertTrue(dispatcher.dispatch(pendingJob, 1L, 2L));
+
+        // Both the in-flight and the pending jobs are handed back, with their search keys
+        final List<AnalyticsRefreshDispatcher.DispatchedJob> unprocessedJobs = dispatcher.shutdownNow();
+        Assert.assertEquals(unprocessedJobs.size(), 2);
+        Assert.assertEquals(unprocessedJobs.get(0).getJob(), runningJob);
+        Assert.assertEquals(unprocessedJobs.get(1).getJob(), pendingJob);
+        Assert.assertEquals(unprocessedJobs.get(1).getAccountRecordId(), (Long) 1L);
+        Assert.assertEquals(unprocessedJobs.get(1).getTenantRecordId(), (Long) 2L);
+        Assert.assertEquals(dispatcher.getNbPendingJobs(), 0);
+
+        try {
+            dispatcher.dispatch(pendingJob, 1L, 2L);
+            Assert.fail("Dispatcher is shut down");
+        } catch (final RejectedExecutionException e) {
+            // Expected
+        }
+    }
+
+    private AnalyticsJob createJob(final ExtBusEventType eventType, final UUID accountId, final UUID objectId) {
+        return new AnalyticsJob(eventType, ObjectType.ACCOUNT, objectId, accountId, callContext.getTenantId());
+    }
+}
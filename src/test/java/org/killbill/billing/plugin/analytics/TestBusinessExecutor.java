@@ -18,10 +18,17 @@
 package org.killbill.billing.plugin.analytics;
 
 import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.CompletionService;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.testng.Assert;
@@ -62,4 +69,110 @@ public class TestBusinessExecutor extends AnalyticsTestSuiteNoDB {
         Assert.assertEquals(taskCounter.get(), 0);
         Assert.assertEquals(results, totalTasksSize);
     }
+
+    @Test(groups = "fast")
+    public void testBoundedThreadPerTaskExecutor() throws Exception {
+        final BoundedThreadPerTaskExecutor executor = new BoundedThreadPerTaskExecutor(Executors.newCachedThreadPool(), 2, 3);
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicInteger maxRunningTasks = new AtomicInteger();
+        final AtomicInteger runningTasks = new AtomicInteger();
+        try {
+            final Future<?>[] futures = new Future<?>[5];
+            for (int i = 0; i < 5; i++) {
+                futures[i] = executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        final int running = runningTasks.incrementAndGet();
+                        synchronized (maxRunningTasks) {
+                            maxRunningTasks.set(Math.max(maxRunningTasks.get(), running));
+                        }
+                        latch.await();
+                        runningTasks.decrementAndGet();
+                        return 1;
+                    }
+                });
+            }
+
+            // 2 running and 3 waiting tasks
+            try {
+                executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        return 1;
+                    }
+                });
+                Assert.fail();
+            } catch (final RejectedExecutionException e) {
+                // Expected
+            }
+
+            latch.countDown();
+            for (final Future<?> future : futures) {
+                Assert.assertEquals(future.get(), 1);
+            }
+            Assert.assertEquals(maxRunningTasks.get(), 2);
+        } finally {
+            latch.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testInterruptedWhileWaitingForPermit() throws Exception {
+        final BoundedThreadPerTaskExecutor executor = new BoundedThreadPerTaskExecutor(Executors.newCachedThreadPool(), 1, null);
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch latch = new CountDownLatch(1);
+        try {
+            executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    started.countDown();
+                    latch.await();
+                    return 1;
+                }
+            });
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+
+            // Waits for the permit
+            final Future<Integer> waiting = executor.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    return 2;
+                }
+            });
+
+            // Interrupts both threads
+            executor.shutdownNow();
+            try {
+                waiting.get(5, TimeUnit.SECONDS);
+                Assert.fail();
+            } catch (final CancellationException e) {
+                // Expected
+            }
+        } finally {
+            latch.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testVirtualThreadPerTaskExecutor() throws Exception {
+        final ExecutorService executor = BusinessExecutor.newVirtualThreadPerTaskExecutor("osgi-analytics-test");
+        if (executor == null) {
+            // JDK without virtual threads
+            return;
+        }
+
+        try {
+            final String threadName = executor.submit(new Callable<String>() {
+                @Override
+                public String call() throws Exception {
+                    return Thread.currentThread().getName();
+                }
+            }).get();
+            Assert.assertTrue(threadName.startsWith("osgi-analytics-test-"));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 }
@@ -19,6 +19,16 @@
 package org.killbill.billing.plugin.analytics.dao;
 
 import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.joda.time.LocalDate;
 import org.killbill.billing.catalog.api.Currency;
@@ -38,6 +48,7 @@ import org.killbill.billing.plugin.analytics.dao.model.BusinessInvoiceModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessInvoicePaymentFieldModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessInvoicePaymentTagModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessInvoiceTagModelDao;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessModelDaoBase;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessPaymentBaseModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessPaymentPurchaseModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessSubscription;
@@ -45,9 +56,17 @@ import org.killbill.billing.plugin.analytics.dao.model.BusinessSubscriptionEvent
 import org.killbill.billing.plugin.analytics.dao.model.BusinessSubscriptionTransitionModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessTagModelDao;
 import org.mockito.Mockito;
+import org.skife.jdbi.v2.Handle;
+import org.skife.jdbi.v2.Transaction;
+import org.skife.jdbi.v2.TransactionStatus;
+import org.skife.jdbi.v2.tweak.HandleCallback;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Resources;
+
 public class TestBusinessAnalyticsSqlDao extends AnalyticsTestSuiteWithEmbeddedDB {
 
     @Test(groups = "slow")
@@ -199,6 +218,40 @@ public class TestBusinessAnalyticsSqlDao extends AnalyticsTestSuiteWithEmbeddedD
         Assert.assertEquals(analyticsSqlDao.getInvoicesByAccountRecordId(accountRecordId, tenantRecordId, callContext).size(), 0);
     }
 
+    @Test(groups = "slow")
+    public void testSqlDaoForInvoiceBatch() throws Exception {
+        final BusinessInvoiceModelDao businessInvoiceModelDao = new BusinessInvoiceModelDao(account,
+                                                                                            accountRecordId,
+                                                                                            invoice,
+                                                                                            true,
+                                                                                            invoiceRecordId,
+                                                                                            currencyConverter,
+                                                                                            auditLog,
+                                                                                            tenantRecordId,
+                                                                                            reportGroup);
+        final BusinessInvoiceModelDao secondBusinessInvoiceModelDao = new BusinessInvoiceModelDao(account,
+                                                                                                  accountRecordId,
+                                                                                                  invoice,
+                                                                                                  true,
+                                                                                                  invoiceRecordId + 100,
+                                                                                                  currencyConverter,
+                                                                                                  auditLog,
+                                                                                                  tenantRecordId,
+                                                                                                  reportGroup);
+        // Check the records don't exist yet
+        Assert.assertEquals(analyticsSqlDao.getInvoicesByAccountRecordId(accountRecordId, tenantRecordId, callContext).size(), 0);
+
+        // Create both records in a single batch and check we can retrieve them
+        analyticsSqlDao.createBatch(businessInvoiceModelDao.getTableName(),
+                                    ImmutableList.<BusinessModelDaoBase>of(businessInvoiceModelDao, secondBusinessInvoiceModelDao),
+                                    callContext);
+        Assert.assertEquals(analyticsSqlDao.getInvoicesByAccountRecordId(accountRecordId, tenantRecordId, callContext).size(), 2);
+
+        // Delete and verify they don't exist anymore
+        analyticsSqlDao.deleteByAccountRecordId(businessInvoiceModelDao.getTableName(), accountRecordId, tenantRecordId, callContext);
+        Assert.assertEquals(analyticsSqlDao.getInvoicesByAccountRecordId(accountRecordId, tenantRecordId, callContext).size(), 0);
+    }
+
     @Test(groups = "slow")
     public void testSqlDaoForInvoiceItem() throws Exception {
         final BusinessInvoiceItemBaseModelDao businessInvoiceItemModelDao = BusinessInvoiceItemBaseModelDao.create(account,
@@ -483,4 +536,177 @@ public class TestBusinessAnalyticsSqlDao extends AnalyticsTestSuiteWithEmbeddedD
         analyticsSqlDao.deleteByAccountRecordId(businessTagModelDao.getTableName(), accountRecordId, tenantRecordId, callContext);
         Assert.assertEquals(analyticsSqlDao.getInvoicePaymentTagsByAccountRecordId(accountRecordId, tenantRecordId, callContext).size(), 0);
     }
+
+    @Test(groups = "slow")
+    public void testSqlDaoForMrrDaily() throws Exception {
+        embeddedDB.executeScript("drop table if exists report_mrr_daily;" +
+                                 "drop table if exists report_mrr_daily_state;" +
+                                 Resources.toString(Resources.getResource("reports/mrr/report_mrr_daily_materialized.ddl"), Charsets.UTF_8));
+        embeddedDB.executeScript(String.format("insert into analytics_subscription_transitions (next_product_name, next_mrr, converted_next_mrr, next_service, next_start_date, next_end_date, account_record_id, tenant_record_id, report_group) values " +
+                                               "('gold', 10, 10, 'entitlement-service', '2013-01-01', null, %1$s, %2$s, 'default')," +
+                                               "('silver', 5, 5, 'entitlement-service', '2013-01-03', '2013-01-05', %1$s, %2$s, 'default')," +
+                                               // Not a base subscription
+                                               "('bronze', 1, 1, 'billing-service', '2013-01-01', null, %1$s, %2$s, 'default');",
+                                               accountRecordId,
+                                               tenantRecordId));
+        final List<BusinessSubscriptionTransitionModelDao> existingBsts = analyticsSqlDao.getSubscriptionTransitionsByAccountRecordId(accountRecordId, tenantRecordId, callContext);
+        Assert.assertEquals(existingBsts.size(), 3);
+
+        // First update: all days are computed from the transitions table
+        updateMrrDaily(existingBsts, existingBsts, new LocalDate(2013, 1, 6));
+        Assert.assertEquals(analyticsSqlDao.getMrrDailyLastDayForUpdate(tenantRecordId).substring(0, 10), "2013-01-06");
+        final Map<String, String> expected = new HashMap<String, String>();
+        for (int day = 1; day <= 6; day++) {
+            expected.put("gold/2013-01-0" + day, "10");
+            expected.put("ALL/2013-01-0" + day, day == 3 || day == 4 ? "15" : "10");
+        }
+        expected.put("silver/2013-01-03", "5");
+        expected.put("silver/2013-01-04", "5");
+        Assert.assertEquals(getMrrDaily(), expected);
+
+        // Next day: gold is cancelled as of the 6th, and a new bronze subscription starts on the 7th
+        final BusinessSubscriptionTransitionModelDao cancelledGold = createMrrTransition("gold", new LocalDate(2013, 1, 1), new LocalDate(2013, 1, 6), "10");
+        final BusinessSubscriptionTransitionModelDao bronze = createMrrTransition("bronze", new LocalDate(2013, 1, 7), null, "1");
+        final List<BusinessSubscriptionTransitionModelDao> bsts = new LinkedList<BusinessSubscriptionTransitionModelDao>();
+        for (final BusinessSubscriptionTransitionModelDao existingBst : existingBsts) {
+            if (!"gold".equals(existingBst.getNextProductName())) {
+                bsts.add(existingBst);
+            }
+        }
+        bsts.add(cancelledGold);
+        bsts.add(bronze);
+
+        // The 7th is rolled forward from the previous transitions (createMrrDailySnapshot), then the deltas are applied
+        // on existing (addToMrrDaily) and new (createMrrDaily) entries
+        updateMrrDaily(existingBsts, bsts, new LocalDate(2013, 1, 7));
+        Assert.assertEquals(analyticsSqlDao.getMrrDailyLastDayForUpdate(tenantRecordId).substring(0, 10), "2013-01-07");
+        expected.put("gold/2013-01-06", "0");
+        expected.put("gold/2013-01-07", "0");
+        expected.put("ALL/2013-01-06", "0");
+        expected.put("ALL/2013-01-07", "1");
+        expected.put("bronze/2013-01-07", "1");
+        Assert.assertEquals(getMrrDaily(), expected);
+    }
+
+    @Test(groups = "slow")
+    public void testOverlappingMrrDailyUpdatesForAccount() throws Exception {
+        embeddedDB.executeScript("drop table if exists report_mrr_daily;" +
+                                 "drop table if exists report_mrr_daily_state;" +
+                                 Resources.toString(Resources.getResource("reports/mrr/report_mrr_daily_materialized.ddl"), Charsets.UTF_8));
+        embeddedDB.executeScript(String.format("insert into analytics_subscription_transitions (next_product_name, next_mrr, converted_next_mrr, next_service, next_start_date, next_end_date, account_record_id, tenant_record_id, report_group) values " +
+                                               "('gold', 10, 10, 'entitlement-service', '2013-01-01', null, %1$s, %2$s, 'default')," +
+                                               "('silver', 5, 5, 'entitlement-service', '2013-01-03', '2013-01-05', %1$s, %2$s, 'default');",
+                                               accountRecordId,
+                                               tenantRecordId));
+        final List<BusinessSubscriptionTransitionModelDao> existingBsts = analyticsSqlDao.getSubscriptionTransitionsByAccountRecordId(accountRecordId, tenantRecordId, callContext);
+        final List<BusinessSubscriptionTransitionModelDao> bstsWithoutSilver = new LinkedList<BusinessSubscriptionTransitionModelDao>();
+        final List<BusinessSubscriptionTransitionModelDao> bstsWithoutGold = new LinkedList<BusinessSubscriptionTransitionModelDao>();
+        for (final BusinessSubscriptionTransitionModelDao existingBst : existingBsts) {
+            if ("silver".equals(existingBst.getNextProductName())) {
+                bstsWithoutGold.add(existingBst);
+            } else {
+                bstsWithoutSilver.add(existingBst);
+            }
+        }
+
+        final BusinessAccountModelDao bac = Mockito.mock(BusinessAccountModelDao.class);
+        Mockito.when(bac.getAccountRecordId()).thenReturn(accountRecordId);
+        Mockito.when(bac.getTenantRecordId()).thenReturn(tenantRecordId);
+        final BusinessSubscriptionTransitionDao bstDao = new BusinessSubscriptionTransitionDao(killbillDataSource, new BusinessAccountDao(killbillDataSource), executor);
+        final LocalDate today = new LocalDate(2013, 1, 6);
+
+        // First update: all days are computed from the transitions table
+        updateSubscriptionTransitions(bstDao, bac, existingBsts, today);
+
+        // Two refreshes of the account overlap: the second one starts before the first one commits
+        final ExecutorService concurrentUpdateExecutor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<Void> concurrentUpdate = analyticsSqlDao.inTransaction(new Transaction<Future<Void>, BusinessAnalyticsSqlDao>() {
+                @Override
+                public Future<Void> inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
+                    bstDao.updateInTransaction(bac, ImmutableList.<BusinessBundleModelDao>of(), bstsWithoutSilver, 100, false, today, transactional, callContext);
+
+                    final Future<Void> concurrentUpdate = concurrentUpdateExecutor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            updateSubscriptionTransitions(bstDao, bac, bstsWithoutGold, today);
+                            return null;
+                        }
+                    });
+                    // Let the second refresh wait for the lock
+                    Thread.sleep(200);
+                    return concurrentUpdate;
+                }
+            });
+            concurrentUpdate.get(10, TimeUnit.SECONDS);
+        } finally {
+            concurrentUpdateExecutor.shutdownNow();
+        }
+
+        // The second refresh computed its deltas against the transitions written by the first one
+        Assert.assertEquals(analyticsSqlDao.getSubscriptionTransitionsByAccountRecordId(accountRecordId, tenantRecordId, callContext).size(), 1);
+        final Map<String, String> expected = new HashMap<String, String>();
+        for (int day = 1; day <= 6; day++) {
+            expected.put("gold/2013-01-0" + day, "0");
+            expected.put("ALL/2013-01-0" + day, day == 3 || day == 4 ? "5" : "0");
+        }
+        expected.put("silver/2013-01-03", "5");
+        expected.put("silver/2013-01-04", "5");
+        Assert.assertEquals(getMrrDaily(), expected);
+    }
+
+    private void updateSubscriptionTransitions(final BusinessSubscriptionTransitionDao bstDao,
+                                               final BusinessAccountModelDao bac,
+                                               final Collection<BusinessSubscriptionTransitionModelDao> bsts,
+                                               final LocalDate today) {
+        analyticsSqlDao.inTransaction(new Transaction<Void, BusinessAnalyticsSqlDao>() {
+            @Override
+            public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
+                bstDao.updateInTransaction(bac, ImmutableList.<BusinessBundleModelDao>of(), bsts, 100, false, today, transactional, callContext);
+                return null;
+            }
+        });
+    }
+
+    private void updateMrrDaily(final Iterable<BusinessSubscriptionTransitionModelDao> previousBsts,
+                                final Iterable<BusinessSubscriptionTransitionModelDao> bsts,
+                                final LocalDate today) {
+        analyticsSqlDao.inTransaction(new Transaction<Void, BusinessAnalyticsSqlDao>() {
+            @Override
+            public Void inTransaction(final BusinessAnalyticsSqlDao transactional, final TransactionStatus status) throws Exception {
+                final MrrDailyMaterializer mrrDailyMaterializer = new MrrDailyMaterializer();
+                mrrDailyMaterializer.lockInTransaction(tenantRecordId, today, transactional);
+                mrrDailyMaterializer.applyInTransaction(tenantRecordId, previousBsts, bsts, today, transactional);
+                return null;
+            }
+        });
+    }
+
+    // product/day -> count
+    private Map<String, String> getMrrDaily() {
+        return dbi.withHandle(new HandleCallback<Map<String, String>>() {
+            @Override
+            public Map<String, String> withHandle(final Handle handle) throws Exception {
+                final Map<String, String> mrrDaily = new HashMap<String, String>();
+                for (final Map<String, Object> row : handle.select("select product, day, count from report_mrr_daily where tenant_record_id = ?", tenantRecordId)) {
+                    final BigDecimal count = new BigDecimal(row.get("count").toString());
+                    mrrDaily.put(row.get("product") + "/" + row.get("day").toString().substring(0, 10),
+                                 count.compareTo(BigDecimal.ZERO) == 0 ? "0" : count.stripTrailingZeros().toPlainString());
+                }
+                return mrrDaily;
+            }
+        });
+    }
+
+    private BusinessSubscriptionTransitionModelDao createMrrTransition(final String productName, final LocalDate startDate, final LocalDate endDate, final String mrr) {
+        final BusinessSubscriptionTransitionModelDao bst = Mockito.mock(BusinessSubscriptionTransitionModelDao.class);
+        Mockito.when(bst.getReportGroup()).thenReturn("default");
+        Mockito.when(bst.getNextService()).thenReturn("entitlement-service");
+        Mockito.when(bst.getNextProductName()).thenReturn(productName);
+        Mockito.when(bst.getNextStartDate()).thenReturn(startDate);
+        Mockito.when(bst.getNextEndDate()).thenReturn(endDate);
+        Mockito.when(bst.getNextMrr()).thenReturn(new BigDecimal(mrr));
+        Mockito.when(bst.getConvertedNextMrr()).thenReturn(new BigDecimal(mrr));
+        return bst;
+    }
 }
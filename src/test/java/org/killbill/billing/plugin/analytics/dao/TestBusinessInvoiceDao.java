@@ -171,4 +171,42 @@ public class TestBusinessInvoiceDao extends AnalyticsTestSuiteWithEmbeddedDB {
             }
         }
     }
+
+    @Test(groups = "slow")
+    public void testIncrementalUpdate() throws AnalyticsRefreshException {
+        System.setProperty("org.killbill.billing.plugin.analytics.refresh.incremental", "true");
+        try {
+            // Re-create the context to pick up the property
+            businessContextFactory = new BusinessContextFactory(account.getId(),
+                                                                callContext,
+                                                                currencyConversionDao,
+                                                                killbillAPI,
+                                                                osgiConfigPropertiesService,
+                                                                clock,
+                                                                analyticsConfigurationHandler);
+            Assert.assertTrue(businessContextFactory.isIncrementalRefresh());
+
+            // Initial full invoices and payments refresh
+            businessInvoiceAndPaymentDao.update(businessContextFactory);
+
+            final Long binRecordId1 = analyticsSqlDao.getInvoicesByAccountRecordId(accountRecordId, tenantRecordId, callContext).get(0).getRecordId();
+            final List<BusinessInvoiceItemModelDao> invoiceItemsModelDao1 = analyticsSqlDao.getInvoiceItemsByAccountRecordId(accountRecordId, tenantRecordId, callContext);
+            Assert.assertEquals(invoiceItemsModelDao1.size(), 2);
+
+            // Refresh again: nothing has changed, so the rows should have been left untouched
+            businessInvoiceAndPaymentDao.update(businessContextFactory);
+
+            final List<BusinessInvoiceModelDao> invoicesModelDao2 = analyticsSqlDao.getInvoicesByAccountRecordId(accountRecordId, tenantRecordId, callContext);
+            Assert.assertEquals(invoicesModelDao2.size(), 1);
+            Assert.assertEquals(invoicesModelDao2.get(0).getRecordId(), binRecordId1);
+            final List<BusinessInvoiceItemModelDao> invoiceItemsModelDao2 = analyticsSqlDao.getInvoiceItemsByAccountRecordId(accountRecordId, tenantRecordId, callContext);
+            Assert.assertEqualsNoOrder(invoiceItemsModelDao2.toArray(), invoiceItemsModelDao1.toArray());
+            for (final BusinessInvoiceItemModelDao businessInvoiceItemModelDao : invoiceItemsModelDao2) {
+                Assert.assertTrue(businessInvoiceItemModelDao.getRecordId().equals(invoiceItemsModelDao1.get(0).getRecordId()) ||
+                                  businessInvoiceItemModelDao.getRecordId().equals(invoiceItemsModelDao1.get(1).getRecordId()));
+            }
+        } finally {
+            System.clearProperty("org.killbill.billing.plugin.analytics.refresh.incremental");
+        }
+    }
 }
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.dao;
+
+import java.math.BigDecimal;
+import java.sql.SQLException;
+import java.util.SortedMap;
+
+import org.joda.time.LocalDate;
+import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
+import org.killbill.billing.plugin.analytics.dao.MrrDailyMaterializer.MrrDailyKey;
+import org.killbill.billing.plugin.analytics.dao.model.BusinessSubscriptionTransitionModelDao;
+import org.mockito.Mockito;
+import org.skife.jdbi.v2.exceptions.UnableToExecuteStatementException;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class TestMrrDailyMaterializer extends AnalyticsTestSuiteNoDB {
+
+    @Test(groups = "fast")
+    public void testComputeDeltas() throws Exception {
+        final LocalDate today = new LocalDate(2013, 1, 10);
+
+        // Unchanged transition
+        final BusinessSubscriptionTransitionModelDao unchanged = createTransition("gold", new LocalDate(2013, 1, 1), null, "10");
+        // Price change on the 5th, backdated to the 3rd
+        final BusinessSubscriptionTransitionModelDao previousSilver = createTransition("silver", new LocalDate(2013, 1, 2), new LocalDate(2013, 1, 5), "5");
+        final BusinessSubscriptionTransitionModelDao silver = createTransition("silver", new LocalDate(2013, 1, 2), new LocalDate(2013, 1, 3), "5");
+        final BusinessSubscriptionTransitionModelDao newSilver = createTransition("silver", new LocalDate(2013, 1, 3), null, "7");
+        // Future subscription
+        final BusinessSubscriptionTransitionModelDao future = createTransition("bronze", new LocalDate(2013, 1, 11), null, "1");
+
+        final SortedMap<MrrDailyKey, BigDecimal> deltas = MrrDailyMaterializer.computeDeltas(ImmutableList.<BusinessSubscriptionTransitionModelDao>of(unchanged, previousSilver),
+                                                                                             ImmutableList.<BusinessSubscriptionTransitionModelDao>of(unchanged, silver, newSilver, future),
+                                                                                             today);
+
+        // Days 3 and 4 change from 5 to 7, days 5 to 10 from 0 to 7
+        Assert.assertEquals(deltas.size(), 16);
+        for (final LocalDate day : ImmutableList.<LocalDate>of(new LocalDate(2013, 1, 3), new LocalDate(2013, 1, 4))) {
+            Assert.assertEquals(deltas.get(new MrrDailyKey("silver", day)).compareTo(new BigDecimal("2")), 0);
+            Assert.assertEquals(deltas.get(new MrrDailyKey(MrrDailyMaterializer.ALL_PRODUCTS, day)).compareTo(new BigDecimal("2")), 0);
+        }
+        for (LocalDate day = new LocalDate(2013, 1, 5); !day.isAfter(today); day = day.plusDays(1)) {
+            Assert.assertEquals(deltas.get(new MrrDailyKey("silver", day)).compareTo(new BigDecimal("7")), 0);
+            Assert.assertEquals(deltas.get(new MrrDailyKey(MrrDailyMaterializer.ALL_PRODUCTS, day)).compareTo(new BigDecimal("7")), 0);
+        }
+        Assert.assertEquals(deltas.firstKey(), new MrrDailyKey(MrrDailyMaterializer.ALL_PRODUCTS, new LocalDate(2013, 1, 3)));
+    }
+
+    @Test(groups = "fast")
+    public void testComputeDeltasIgnoredTransitions() throws Exception {
+        final BusinessSubscriptionTransitionModelDao addOnService = createTransition("gold", new LocalDate(2013, 1, 1), null, "10");
+        Mockito.when(addOnService.getNextService()).thenReturn("billing-service");
+        final BusinessSubscriptionTransitionModelDao testAccount = createTransition("gold", new LocalDate(2013, 1, 1), null, "10");
+        Mockito.when(testAccount.getReportGroup()).thenReturn("test");
+        final BusinessSubscriptionTransitionModelDao noMrr = createTransition("gold", new LocalDate(2013, 1, 1), null, "0");
+
+        Assert.assertTrue(MrrDailyMaterializer.computeDeltas(ImmutableList.<BusinessSubscriptionTransitionModelDao>of(),
+                                                             ImmutableList.<BusinessSubscriptionTransitionModelDao>of(addOnService, testAccount, noMrr),
+                                                             new LocalDate(2013, 1, 10)).isEmpty());
+    }
+
+    @Test(groups = "fast")
+    public void testComputeDeltasOnlyExpandsChangedRanges() throws Exception {
+        final LocalDate today = new LocalDate(2013, 1, 10);
+
+        // Years of unchanged history (the scale of the amounts read from the database differs)
+        final BusinessSubscriptionTransitionModelDao history = createTransition("gold", new LocalDate(2003, 1, 1), new LocalDate(2013, 1, 1), "10.0000");
+        final BusinessSubscriptionTransitionModelDao newHistory = createTransition("gold", new LocalDate(2003, 1, 1), new LocalDate(2013, 1, 1), "10");
+        // Cancellation on the 8th
+        final BusinessSubscriptionTransitionModelDao previousGold = createTransition("gold", new LocalDate(2013, 1, 1), null, "12");
+        final BusinessSubscriptionTransitionModelDao gold = createTransition("gold", new LocalDate(2013, 1, 1), new LocalDate(2013, 1, 8), "12");
+
+        final SortedMap<MrrDailyKey, BigDecimal> deltas = MrrDailyMaterializer.computeDeltas(ImmutableList.<BusinessSubscriptionTransitionModelDao>of(history, previousGold),
+                                                                                             ImmutableList.<BusinessSubscriptionTransitionModelDao>of(newHistory, gold),
+                                                                                             today);
+
+        // Days 8 to 10 only
+        Assert.assertEquals(deltas.size(), 6);
+        for (LocalDate day = new LocalDate(2013, 1, 8); !day.isAfter(today); day = day.plusDays(1)) {
+            Assert.assertEquals(deltas.get(new MrrDailyKey("gold", day)).compareTo(new BigDecimal("-12")), 0);
+            Assert.assertEquals(deltas.get(new MrrDailyKey(MrrDailyMaterializer.ALL_PRODUCTS, day)).compareTo(new BigDecimal("-12")), 0);
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testConcurrentInitialization() throws Exception {
+        final Long tenantRecordId = 12L;
+        final LocalDate today = new LocalDate(2013, 1, 10);
+        final BusinessAnalyticsSqlDao transactional = Mockito.mock(BusinessAnalyticsSqlDao.class);
+        // The state row is created by another transaction in the meantime
+        Mockito.when(transactional.getMrrDailyLastDayForUpdate(tenantRecordId)).thenReturn(null, "2013-01-10");
+        Mockito.doThrow(new UnableToExecuteStatementException(new SQLException("Duplicate entry", "23000"), null))
+               .when(transactional).createMrrDailyState(tenantRecordId, today);
+        Mockito.when(transactional.addToMrrDaily(Mockito.eq(tenantRecordId), Mockito.<Iterable<String>>any(), Mockito.<Iterable<LocalDate>>any(), Mockito.<Iterable<BigDecimal>>any()))
+               .thenReturn(new int[]{1, 1});
+
+        final BusinessSubscriptionTransitionModelDao gold = createTransition("gold", today, null, "10");
+        final MrrDailyMaterializer mrrDailyMaterializer = new MrrDailyMaterializer();
+        mrrDailyMaterializer.lockInTransaction(tenantRecordId, today, transactional);
+        mrrDailyMaterializer.applyInTransaction(tenantRecordId,
+                                                ImmutableList.<BusinessSubscriptionTransitionModelDao>of(),
+                                                ImmutableList.<BusinessSubscriptionTransitionModelDao>of(gold),
+                                                today,
+                                                transactional);
+
+        // The other initialization is kept, and the transition is applied on top of it
+        Mockito.verify(transactional).rollback(Mockito.anyString());
+        Mockito.verify(transactional, Mockito.never()).deleteMrrDaily(tenantRecordId);
+        Mockito.verify(transactional, Mockito.never()).createMrrDailySnapshot(Mockito.eq(tenantRecordId), Mockito.<LocalDate>any());
+        Mockito.verify(transactional).addToMrrDaily(Mockito.eq(tenantRecordId), Mockito.<Iterable<String>>any(), Mockito.<Iterable<LocalDate>>any(), Mockito.<Iterable<BigDecimal>>any());
+    }
+
+    private BusinessSubscriptionTransitionModelDao createTransition(final String productName, final LocalDate startDate, final LocalDate endDate, final String mrr) {
+        final BusinessSubscriptionTransitionModelDao bst = Mockito.mock(BusinessSubscriptionTransitionModelDao.class);
+        Mockito.when(bst.getReportGroup()).thenReturn("default");
+        Mockito.when(bst.getNextService()).thenReturn("entitlement-service");
+        Mockito.when(bst.getNextProductName()).thenReturn(productName);
+        Mockito.when(bst.getNextStartDate()).thenReturn(startDate);
+        Mockito.when(bst.getNextEndDate()).thenReturn(endDate);
+        Mockito.when(bst.getNextMrr()).thenReturn(new BigDecimal(mrr));
+        Mockito.when(bst.getConvertedNextMrr()).thenReturn(new BigDecimal(mrr));
+        return bst;
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.dao;
+
+import java.util.UUID;
+
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
+import org.killbill.billing.util.api.RecordIdApi;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestRecordIdCache extends AnalyticsTestSuiteNoDB {
+
+    @Test(groups = "fast")
+    public void testCacheHitsAndMisses() throws Exception {
+        final UUID accountId = UUID.randomUUID();
+        final UUID tenantId = UUID.randomUUID();
+        final UUID unknownAccountId = UUID.randomUUID();
+
+        final RecordIdApi recordIdApi = Mockito.mock(RecordIdApi.class);
+        Mockito.when(recordIdApi.getRecordId(Mockito.eq(accountId), Mockito.eq(ObjectType.ACCOUNT), Mockito.<TenantContext>any())).thenReturn(12L);
+        Mockito.when(recordIdApi.getRecordId(Mockito.eq(tenantId), Mockito.eq(ObjectType.TENANT), Mockito.<TenantContext>any())).thenReturn(3L);
+
+        final RecordIdCache recordIdCache = new RecordIdCache(10);
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(recordIdCache.getAccountRecordId(accountId, recordIdApi, callContext), (Long) 12L);
+            Assert.assertEquals(recordIdCache.getTenantRecordId(tenantId, recordIdApi, callContext), (Long) 3L);
+            // Unknown objects aren't cached
+            Assert.assertNull(recordIdCache.getAccountRecordId(unknownAccountId, recordIdApi, callContext));
+        }
+        Assert.assertNull(recordIdCache.getTenantRecordId(null, recordIdApi, callContext));
+
+        Mockito.verify(recordIdApi, Mockito.times(1)).getRecordId(Mockito.eq(accountId), Mockito.eq(ObjectType.ACCOUNT), Mockito.<TenantContext>any());
+        Mockito.verify(recordIdApi, Mockito.times(1)).getRecordId(Mockito.eq(tenantId), Mockito.eq(ObjectType.TENANT), Mockito.<TenantContext>any());
+        Mockito.verify(recordIdApi, Mockito.times(3)).getRecordId(Mockito.eq(unknownAccountId), Mockito.eq(ObjectType.ACCOUNT), Mockito.<TenantContext>any());
+
+        Assert.assertEquals(recordIdCache.getStats().hitCount(), 4);
+        Assert.assertEquals(recordIdCache.getStats().missCount(), 5);
+        Assert.assertEquals(recordIdCache.getSize(), 2);
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.dao.factory;
+
+import java.util.UUID;
+
+import org.killbill.billing.ObjectType;
+import org.killbill.billing.plugin.analytics.AnalyticsJobHierarchy.Group;
+import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
+import org.killbill.billing.plugin.analytics.dao.RecordIdDao;
+import org.killbill.billing.util.callcontext.TenantContext;
+import org.mockito.Mockito;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+public class TestBusinessContextFactory extends AnalyticsTestSuiteNoDB {
+
+    @Test(groups = "fast")
+    public void testLookupsPerGroup() throws Exception {
+        Assert.assertTrue(BusinessContextFactory.getLookups(Group.OTHER).isEmpty());
+        Assert.assertEquals(BusinessContextFactory.getLookups(Group.ALL).size(), BusinessContextFactory.Lookup.values().length);
+        for (final Group group : Group.values()) {
+            if (group != Group.OTHER) {
+                Assert.assertTrue(BusinessContextFactory.getLookups(group).contains(BusinessContextFactory.Lookup.ACCOUNT));
+                Assert.assertTrue(BusinessContextFactory.getLookups(group).contains(BusinessContextFactory.Lookup.ACCOUNT_TAGS));
+            }
+        }
+        Assert.assertTrue(BusinessContextFactory.getLookups(Group.FIELDS).contains(BusinessContextFactory.Lookup.CUSTOM_FIELDS));
+        Assert.assertFalse(BusinessContextFactory.getLookups(Group.FIELDS).contains(BusinessContextFactory.Lookup.INVOICES));
+    }
+
+    @Test(groups = "fast")
+    public void testPrefetch() throws Exception {
+        final BusinessContextFactory businessContextFactory = new BusinessContextFactory(account.getId(), callContext, currencyConversionDao, killbillAPI, osgiConfigPropertiesService, clock, analyticsConfigurationHandler);
+        // Account tags (for the report group) are part of the lookups
+        Mockito.verify(killbillAPI.getTagUserApi(), Mockito.never()).getTagsForAccount(Mockito.<UUID>any(), Mockito.anyBoolean(), Mockito.<TenantContext>any());
+        businessContextFactory.prefetch(Group.ALL, executor);
+
+        // Everything has been fetched already
+        Assert.assertEquals(businessContextFactory.getAccount(), account);
+        Assert.assertEquals(ImmutableList.copyOf(businessContextFactory.getAccountBundles()), ImmutableList.of(bundle));
+        Assert.assertEquals(ImmutableList.copyOf(businessContextFactory.getAccountInvoices()), ImmutableList.of(invoice));
+        Assert.assertEquals(ImmutableList.copyOf(businessContextFactory.getAccountPayments()), ImmutableList.of(payment));
+        Assert.assertEquals(businessContextFactory.getPaymentMethod(paymentMethod.getId()), paymentMethod);
+        Assert.assertEquals(ImmutableList.copyOf(businessContextFactory.getAccountCustomFields()), ImmutableList.of(customField));
+
+        // Each lookup went only once to Kill Bill
+        // No test nor partner tag on the account
+        Assert.assertNull(businessContextFactory.getReportGroup());
+        Mockito.verify(killbillAPI.getAccountUserApi(), Mockito.times(1)).getAccountById(Mockito.eq(account.getId()), Mockito.<TenantContext>any());
+        Mockito.verify(killbillAPI.getTagUserApi(), Mockito.times(1)).getTagsForAccount(Mockito.eq(account.getId()), Mockito.anyBoolean(), Mockito.<TenantContext>any());
+        Mockito.verify(killbillAPI.getSubscriptionApi(), Mockito.times(1)).getSubscriptionBundlesForAccountId(Mockito.eq(account.getId()), Mockito.<TenantContext>any());
+        Mockito.verify(killbillAPI.getInvoiceUserApi(), Mockito.times(1)).getInvoicesByAccount(Mockito.eq(account.getId()),
+                                                                                              Mockito.anyBoolean(),
+                                                                                              Mockito.anyBoolean(),
+                                                                                              Mockito.any(TenantContext.class));
+    }
+
+    @Test(groups = "fast")
+    public void testPrefetchNothing() throws Exception {
+        final BusinessContextFactory businessContextFactory = new BusinessContextFactory(account.getId(), callContext, currencyConversionDao, killbillAPI, osgiConfigPropertiesService, clock, analyticsConfigurationHandler);
+        businessContextFactory.prefetch(Group.OTHER, executor);
+
+        Mockito.verify(killbillAPI.getAccountUserApi(), Mockito.never()).getAccountById(Mockito.<UUID>any(), Mockito.<TenantContext>any());
+    }
+
+    @Test(groups = "fast")
+    public void testBulkRecordIdResolution() throws Exception {
+        final UUID otherInvoiceItemId = UUID.randomUUID();
+        final RecordIdDao recordIdDao = Mockito.mock(RecordIdDao.class);
+        Mockito.when(recordIdDao.reloadRecordIds(ObjectType.INVOICE_ITEM, accountRecordId, tenantRecordId))
+               .thenReturn(ImmutableMap.<UUID, Long>of(invoiceItem.getId(), invoiceItemRecordId, otherInvoiceItemId, 12L));
+
+        final BusinessContextFactory businessContextFactory = new BusinessContextFactory(account.getId(), callContext, currencyConversionDao, recordIdDao, killbillAPI, osgiConfigPropertiesService, clock, analyticsConfigurationHandler);
+        Assert.assertEquals(businessContextFactory.getInvoiceItemRecordId(invoiceItem.getId()), invoiceItemRecordId);
+        Mockito.when(recordIdDao.getCachedRecordId(otherInvoiceItemId, ObjectType.INVOICE_ITEM, accountRecordId, tenantRecordId)).thenReturn(12L);
+        Assert.assertEquals(businessContextFactory.getInvoiceItemRecordId(otherInvoiceItemId), (Long) 12L);
+
+        // All invoice items were resolved at once, without going through the RecordIdApi
+        Mockito.verify(recordIdDao, Mockito.times(1)).reloadRecordIds(ObjectType.INVOICE_ITEM, accountRecordId, tenantRecordId);
+        Mockito.verify(killbillAPI.getRecordIdApi(), Mockito.never()).getRecordId(Mockito.<UUID>any(), Mockito.eq(ObjectType.INVOICE_ITEM), Mockito.<TenantContext>any());
+
+        // Unknown objects still fall back to the RecordIdApi
+        Assert.assertNull(businessContextFactory.getInvoiceItemRecordId(UUID.randomUUID()));
+        Mockito.verify(recordIdDao, Mockito.times(1)).reloadRecordIds(ObjectType.INVOICE_ITEM, accountRecordId, tenantRecordId);
+        Mockito.verify(killbillAPI.getRecordIdApi(), Mockito.times(1)).getRecordId(Mockito.<UUID>any(), Mockito.eq(ObjectType.INVOICE_ITEM), Mockito.<TenantContext>any());
+    }
+}
@@ -37,6 +37,7 @@ import org.killbill.billing.plugin.analytics.BusinessExecutor;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessInvoiceItemBaseModelDao;
 import org.killbill.billing.plugin.analytics.dao.model.BusinessInvoiceItemBaseModelDao.ItemSource;
 import org.killbill.billing.plugin.analytics.utils.BusinessInvoiceUtils;
+import org.killbill.billing.plugin.analytics.utils.InvoiceItemsIndex;
 import org.mockito.Mockito;
 import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
@@ -108,7 +109,7 @@ public class TestBusinessInvoiceFactory extends AnalyticsTestSuiteNoDB {
                                                                                                       account,
                                                                                                       invoice,
                                                                                                       adjustmentItem,
-                                                                                                      ImmutableList.<InvoiceItem>of(taxItem, recurringItem),
+                                                                                                      new InvoiceItemsIndex(ImmutableList.<InvoiceItem>of(adjustmentItem, taxItem, recurringItem)),
                                                                                                       recurringItem,
                                                                                                       false,
                                                                                                       bundles,
@@ -130,7 +131,7 @@ public class TestBusinessInvoiceFactory extends AnalyticsTestSuiteNoDB {
         final BusinessInvoiceItemBaseModelDao businessCreditAdjItem = invoiceFactory.createBusinessInvoiceItem(account,
                                                                                                                invoice,
                                                                                                                createInvoiceItem(invoiceId, InvoiceItemType.CREDIT_ADJ, new BigDecimal("-10")),
-                                                                                                               ImmutableList.<InvoiceItem>of(createInvoiceItem(invoiceId, InvoiceItemType.CBA_ADJ, new BigDecimal("10"))),
+                                                                                                               new InvoiceItemsIndex(ImmutableList.<InvoiceItem>of(createInvoiceItem(invoiceId, InvoiceItemType.CBA_ADJ, new BigDecimal("10")))),
                                                                                                                false,
                                                                                                                null,
                                                                                                                null,
@@ -148,7 +149,7 @@ public class TestBusinessInvoiceFactory extends AnalyticsTestSuiteNoDB {
         final BusinessInvoiceItemBaseModelDao businessCreditItem = invoiceFactory.createBusinessInvoiceItem(account,
                                                                                                             invoice,
                                                                                                             createInvoiceItem(invoiceId, InvoiceItemType.CBA_ADJ, new BigDecimal("10")),
-                                                                                                            ImmutableList.<InvoiceItem>of(createInvoiceItem(invoiceId, InvoiceItemType.CREDIT_ADJ, new BigDecimal("-10"))),
+                                                                                                            new InvoiceItemsIndex(ImmutableList.<InvoiceItem>of(createInvoiceItem(invoiceId, InvoiceItemType.CREDIT_ADJ, new BigDecimal("-10")))),
                                                                                                             false,
                                                                                                             null,
                                                                                                             null,
@@ -168,7 +169,7 @@ public class TestBusinessInvoiceFactory extends AnalyticsTestSuiteNoDB {
         final BusinessInvoiceItemBaseModelDao businessInvoiceAdjustmentItem = invoiceFactory.createBusinessInvoiceItem(account,
                                                                                                                        invoice,
                                                                                                                        createInvoiceItem(invoiceId, InvoiceItemType.CREDIT_ADJ, new BigDecimal("-10")),
-                                                                                                                       ImmutableList.<InvoiceItem>of(createInvoiceItem(invoiceId, InvoiceItemType.RECURRING, new BigDecimal("10"))),
+                                                                                                                       new InvoiceItemsIndex(ImmutableList.<InvoiceItem>of(createInvoiceItem(invoiceId, InvoiceItemType.RECURRING, new BigDecimal("10")))),
                                                                                                                        false,
                                                                                                                        null,
                                                                                                                        null,
@@ -187,7 +188,7 @@ public class TestBusinessInvoiceFactory extends AnalyticsTestSuiteNoDB {
         final BusinessInvoiceItemBaseModelDao businessInvoiceItemAdjustmentItem = invoiceFactory.createBusinessInvoiceItem(account,
                                                                                                                            invoice,
                                                                                                                            createInvoiceItem(invoiceId, InvoiceItemType.ITEM_ADJ, new BigDecimal("-10")),
-                                                                                                                           ImmutableList.<InvoiceItem>of(createInvoiceItem(invoiceId, InvoiceItemType.RECURRING, new BigDecimal("10"))),
+                                                                                                                           new InvoiceItemsIndex(ImmutableList.<InvoiceItem>of(createInvoiceItem(invoiceId, InvoiceItemType.RECURRING, new BigDecimal("10")))),
                                                                                                                            false,
                                                                                                                            null,
                                                                                                                            null,
@@ -206,9 +207,9 @@ public class TestBusinessInvoiceFactory extends AnalyticsTestSuiteNoDB {
         final BusinessInvoiceItemBaseModelDao businessCBAItem = invoiceFactory.createBusinessInvoiceItem(account,
                                                                                                          invoice,
                                                                                                          createInvoiceItem(invoiceId, InvoiceItemType.CBA_ADJ, new BigDecimal("10")),
-                                                                                                         ImmutableList.<InvoiceItem>of(createInvoiceItem(invoiceId, InvoiceItemType.RECURRING, new BigDecimal("30")),
-                                                                                                                                       createInvoiceItem(invoiceId, InvoiceItemType.REPAIR_ADJ, new BigDecimal("-30")),
-                                                                                                                                       createInvoiceItem(invoiceId, InvoiceItemType.RECURRING, new BigDecimal("20"))),
+                                                                                                         new InvoiceItemsIndex(ImmutableList.<InvoiceItem>of(createInvoiceItem(invoiceId, InvoiceItemType.RECURRING, new BigDecimal("30")),
+                                                                                                                                                             createInvoiceItem(invoiceId, InvoiceItemType.REPAIR_ADJ, new BigDecimal("-30")),
+                                                                                                                                                             createInvoiceItem(invoiceId, InvoiceItemType.RECURRING, new BigDecimal("20")))),
                                                                                                          false,
                                                                                                          null,
                                                                                                          null,
@@ -18,6 +18,7 @@
 package org.killbill.billing.plugin.analytics.http;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.util.ArrayList;
@@ -29,13 +30,16 @@ import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
 import org.killbill.billing.plugin.analytics.json.Chart;
 import org.killbill.billing.plugin.analytics.json.DataMarker;
 import org.killbill.billing.plugin.analytics.json.NamedXYTimeSeries;
+import org.killbill.billing.plugin.analytics.json.TableDataSeries;
 import org.killbill.billing.plugin.analytics.json.XY;
+import org.killbill.billing.plugin.analytics.reports.ReportDataWriter;
 import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao.ReportType;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
 
 public class TestReportsServlet extends AnalyticsTestSuiteNoDB {
 
@@ -85,6 +89,56 @@ public class TestReportsServlet extends AnalyticsTestSuiteNoDB {
                            );
     }
 
+    @Test(groups = "fast")
+    public void testStreamingSerialization() throws Exception {
+        final Chart timeline = new Chart(ReportType.TIMELINE,
+                                         "foo",
+                                         ImmutableList.<DataMarker>of(new NamedXYTimeSeries("serie1", ImmutableList.<XY>of(new XY("2013-01-01", 11), new XY("2013-01-02", 7)))));
+        final List<String> header = ImmutableList.<String>of("account_id", "balance");
+        final List<Object> row1 = ImmutableList.<Object>of("a1", 12.5);
+        final List<Object> row2 = ImmutableList.<Object>of("a2", 3);
+        final Chart table = new Chart(ReportType.TABLE,
+                                      "bar",
+                                      ImmutableList.<DataMarker>of(new TableDataSeries("report_balances", header, ImmutableList.<List<Object>>of(row1, row2))));
+        final List<Chart> charts = ImmutableList.<Chart>of(timeline, table);
+
+        final ByteArrayOutputStream jsonOut = new ByteArrayOutputStream();
+        writeCharts(new JsonReportDataWriter(jsonOut), timeline, header, row1, row2);
+        Assert.assertEquals(jsonOut.toString("UTF-8"), jsonMapper.writeValueAsString(charts));
+
+        final ByteArrayOutputStream csvOut = new ByteArrayOutputStream();
+        writeCharts(new CsvReportDataWriter(csvOut), timeline, header, row1, row2);
+        final ByteArrayOutputStream expectedCsvOut = new ByteArrayOutputStream();
+        ReportsResource.writeAsCSV(charts, expectedCsvOut);
+        Assert.assertEquals(csvOut.toString("UTF-8"), expectedCsvOut.toString("UTF-8"));
+    }
+
+    @Test(groups = "fast")
+    public void testAbortedStreamIsNotValidJson() throws Exception {
+        final ByteArrayOutputStream jsonOut = new ByteArrayOutputStream();
+        final JsonReportDataWriter writer = new JsonReportDataWriter(jsonOut);
+        writer.startTable("bar", "report_balances", ImmutableList.<String>of("name"));
+        writer.writeTableRow(ImmutableList.<Object>of("baz"));
+        writer.abort();
+
+        // Open objects and arrays are left as is
+        Assert.assertTrue(jsonOut.toString("UTF-8").endsWith("\"values\":[[\"baz\"]"));
+        try {
+            jsonMapper.readTree(jsonOut.toString("UTF-8"));
+            Assert.fail("Aborted report shouldn't be valid JSON");
+        } catch (final IOException e) {
+            // Expected
+        }
+    }
+
+    private void writeCharts(final ReportDataWriter writer, final Chart timeline, final List<String> header, final List<Object> row1, final List<Object> row2) throws Exception {
+        writer.writeChart(timeline);
+        writer.startTable("bar", "report_balances", header);
+        writer.writeTableRow(row1);
+        writer.writeTableRow(row2);
+        writer.endTable();
+        writer.close();
+    }
 
     @Test(groups = "fast")
     public void testDeserializationReserialization() throws Exception {
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.awaitility.Awaitility;
+import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
+import org.killbill.billing.plugin.analytics.reports.ReportsQueryExecutor.QueryRequest;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+
+public class TestReportsQueryExecutor extends AnalyticsTestSuiteNoDB {
+
+    @Test(groups = "fast")
+    public void testResultsInOrder() throws Exception {
+        final ReportsQueryExecutor queryExecutor = new ReportsQueryExecutor(2, 10, 10, TimeUnit.SECONDS.toMillis(10));
+        try {
+            final QueryRequest request = queryExecutor.newRequest(1L);
+            final Future<Integer> first = request.submit(new SleepingQuery(1, 100));
+            final Future<Integer> second = request.submit(new SleepingQuery(2, 0));
+            Assert.assertEquals((int) request.get(first), 1);
+            Assert.assertEquals((int) request.get(second), 2);
+        } finally {
+            queryExecutor.shutdownNow();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testMaxQueriesPerTenant() throws Exception {
+        final ReportsQueryExecutor queryExecutor = new ReportsQueryExecutor(4, 10, 1, 200);
+        final CountDownLatch latch = new CountDownLatch(1);
+        try {
+            final QueryRequest request = queryExecutor.newRequest(1L);
+            final Future<Integer> blocked = request.submit(new BlockedQuery(latch));
+            try {
+                // Doesn't wait for a permit
+                request.submit(new SleepingQuery(2, 0));
+                Assert.fail();
+            } catch (final RejectedExecutionException e) {
+                Assert.assertEquals(queryExecutor.getNbRejected(), 1);
+            }
+            Assert.assertTrue(blocked.isCancelled());
+
+            // Other tenants aren't impacted
+            final QueryRequest otherTenantRequest = queryExecutor.newRequest(2L);
+            Assert.assertEquals((int) otherTenantRequest.get(otherTenantRequest.submit(new SleepingQuery(3, 0))), 3);
+
+            // The permit is released once the cancelled query has returned
+            Awaitility.await().atMost(5, TimeUnit.SECONDS).until(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return submitAndGet(queryExecutor, 1L, 4) != null;
+                }
+            });
+        } finally {
+            latch.countDown();
+            queryExecutor.shutdownNow();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testQueueFull() throws Exception {
+        final ReportsQueryExecutor queryExecutor = new ReportsQueryExecutor(1, 1, 10, TimeUnit.SECONDS.toMillis(10));
+        final CountDownLatch latch = new CountDownLatch(1);
+        try {
+            final QueryRequest request = queryExecutor.newRequest(1L);
+            request.submit(new BlockedQuery(latch));
+            request.submit(new BlockedQuery(latch));
+            try {
+                request.submit(new BlockedQuery(latch));
+                Assert.fail();
+            } catch (final RejectedExecutionException e) {
+                Assert.assertEquals(queryExecutor.getNbRejected(), 1);
+            }
+        } finally {
+            latch.countDown();
+            queryExecutor.shutdownNow();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testDeadline() throws Exception {
+        final ReportsQueryExecutor queryExecutor = new ReportsQueryExecutor(2, 10, 10, 200);
+        final CountDownLatch latch = new CountDownLatch(1);
+        try {
+            final QueryRequest request = queryExecutor.newRequest(1L);
+            final Future<Integer> blocked = request.submit(new BlockedQuery(latch));
+            try {
+                request.get(blocked);
+                Assert.fail();
+            } catch (final ReportsQueryTimeoutException e) {
+                Assert.assertEquals(queryExecutor.getNbTimeouts(), 1);
+            }
+            Assert.assertTrue(blocked.isCancelled());
+        } finally {
+            latch.countDown();
+            queryExecutor.shutdownNow();
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testPermitHeldUntilCancelledQueryReturns() throws Exception {
+        final ReportsQueryExecutor queryExecutor = new ReportsQueryExecutor(2, 10, 1, TimeUnit.SECONDS.toMillis(10));
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch latch = new CountDownLatch(1);
+        try {
+            final QueryRequest request = queryExecutor.newRequest(1L);
+            final Future<Integer> uninterruptible = request.submit(new Callable<Integer>() {
+                @Override
+                public Integer call() throws Exception {
+                    started.countDown();
+                    // E.g. a JDBC statement which cannot be cancelled
+                    Uninterruptibles.awaitUninterruptibly(latch);
+                    return 0;
+                }
+            });
+            Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+            request.cancel();
+            Assert.assertTrue(uninterruptible.isCancelled());
+
+            // Still running
+            Assert.assertNull(submitAndGet(queryExecutor, 1L, 1));
+
+            latch.countDown();
+            Awaitility.await().atMost(5, TimeUnit.SECONDS).until(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    return submitAndGet(queryExecutor, 1L, 2) != null;
+                }
+            });
+        } finally {
+            latch.countDown();
+            queryExecutor.shutdownNow();
+        }
+    }
+
+    // Null if rejected
+    private Integer submitAndGet(final ReportsQueryExecutor queryExecutor, final Long tenantRecordId, final int result) {
+        final QueryRequest request = queryExecutor.newRequest(tenantRecordId);
+        try {
+            return request.get(request.submit(new SleepingQuery(result, 0)));
+        } catch (final RejectedExecutionException e) {
+            return null;
+        }
+    }
+
+    private static final class SleepingQuery implements Callable<Integer> {
+
+        private final int result;
+        private final long sleepMillis;
+
+        private SleepingQuery(final int result, final long sleepMillis) {
+            this.result = result;
+            this.sleepMillis = sleepMillis;
+        }
+
+        @Override
+        public Integer call() throws Exception {
+            Thread.sleep(sleepMillis);
+            return result;
+        }
+    }
+
+    private static final class BlockedQuery implements Callable<Integer> {
+
+        private final CountDownLatch latch;
+
+        private BlockedQuery(final CountDownLatch latch) {
+            this.latch = latch;
+        }
+
+        @Override
+        public Integer call() throws Exception {
+            latch.await();
+            return 0;
+        }
+    }
+}
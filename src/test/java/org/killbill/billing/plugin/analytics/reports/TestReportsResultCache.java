@@ -0,0 +1,93 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class TestReportsResultCache extends AnalyticsTestSuiteNoDB {
+
+    @Test(groups = "fast")
+    public void testCacheByTenantAndGeneration() throws Exception {
+        final AtomicInteger nbQueries = new AtomicInteger();
+        final Callable<List<String>> loader = new Callable<List<String>>() {
+            @Override
+            public List<String> call() throws Exception {
+                return ImmutableList.<String>of("result" + nbQueries.incrementAndGet());
+            }
+        };
+
+        final ReportsResultCache reportsResultCache = new ReportsResultCache(1024 * 1024, 3600);
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals(reportsResultCache.get(1L, "select 1", 0, loader), ImmutableList.<String>of("result1"));
+        }
+        // Different tenant
+        Assert.assertEquals(reportsResultCache.get(2L, "select 1", 0, loader), ImmutableList.<String>of("result2"));
+        // The tables have been refreshed
+        Assert.assertEquals(reportsResultCache.get(1L, "select 1", 1, loader), ImmutableList.<String>of("result3"));
+        Assert.assertEquals(reportsResultCache.get(1L, "select 1", 1, loader), ImmutableList.<String>of("result3"));
+        Assert.assertEquals(nbQueries.get(), 3);
+        Assert.assertEquals(reportsResultCache.getStats().hitCount(), 3);
+
+        reportsResultCache.invalidateAll();
+        Assert.assertEquals(reportsResultCache.getSize(), 0);
+        Assert.assertEquals(reportsResultCache.get(1L, "select 1", 1, loader), ImmutableList.<String>of("result4"));
+    }
+
+    @Test(groups = "fast")
+    public void testDisabledOrTooLarge() throws Exception {
+        final AtomicInteger nbQueries = new AtomicInteger();
+        final Callable<String> loader = new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                nbQueries.incrementAndGet();
+                return "result";
+            }
+        };
+
+        final ReportsResultCache disabledCache = new ReportsResultCache(0, 3600);
+        disabledCache.get(1L, "select 1", 0, loader);
+        disabledCache.get(1L, "select 1", 0, loader);
+        Assert.assertEquals(nbQueries.get(), 2);
+        Assert.assertEquals(disabledCache.getSize(), 0);
+
+        // Results larger than the cache are evicted right away
+        final ReportsResultCache tinyCache = new ReportsResultCache(16, 3600);
+        tinyCache.get(1L, "select 1", 0, loader);
+        tinyCache.get(1L, "select 1", 0, loader);
+        Assert.assertEquals(nbQueries.get(), 4);
+    }
+
+    @Test(groups = "fast", expectedExceptions = IllegalStateException.class)
+    public void testFailuresArentCached() throws Exception {
+        final ReportsResultCache reportsResultCache = new ReportsResultCache(1024 * 1024, 3600);
+        reportsResultCache.get(1L, "select 1", 0, new Callable<String>() {
+            @Override
+            public String call() throws Exception {
+                throw new IllegalStateException();
+            }
+        });
+    }
+}
@@ -18,11 +18,16 @@
 
 package org.killbill.billing.plugin.analytics.reports;
 
+import java.sql.Date;
+import java.sql.Timestamp;
+
 import javax.annotation.Nullable;
 
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.joda.time.LocalDate;
 import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
+import org.killbill.billing.plugin.analytics.reports.analysis.Smoother.SmootherType;
 import org.killbill.commons.embeddeddb.EmbeddedDB;
 import org.testng.Assert;
 import org.testng.annotations.Test;
@@ -284,6 +289,93 @@ public class TestSqlReportDataExtractor extends AnalyticsTestSuiteNoDB {
                                                                "  `state`\n");
     }
 
+    @Test(groups = "fast")
+    public void testSmoothedInSql() throws Exception {
+        final String rawReportName = "payments_per_day^dimension:currency^metric:amount^metric:count(fee)";
+        final SqlReportDataExtractor sqlReportDataExtractor = buildSqlReportDataExtractor(rawReportName, null, null, SmootherType.SUM_WEEKLY);
+        Assert.assertTrue(sqlReportDataExtractor.isSmoothedInSql());
+        final String sql = sqlReportDataExtractor.toString();
+        Assert.assertTrue(sql.contains("date(date_sub(`day`, interval weekday(`day`) day)) as `day`"), sql);
+        Assert.assertTrue(sql.contains("sum(`amount`) as `amount`"), sql);
+        Assert.assertTrue(sql.contains("count(`fee`)"), sql);
+        Assert.assertTrue(sql.contains("group by \n  date(date_sub(`day`, interval weekday(`day`) day)), \n  `currency`"), sql);
+
+        // Averages need a bounded range
+        Assert.assertFalse(buildSqlReportDataExtractor(rawReportName, null, null, SmootherType.AVERAGE_MONTHLY).isSmoothedInSql());
+        Assert.assertTrue(buildSqlReportDataExtractor(rawReportName, new LocalDate(2012, 11, 10).toDateTimeAtStartOfDay(), null, SmootherType.AVERAGE_MONTHLY).isSmoothedInSql());
+        // Non additive metrics
+        Assert.assertFalse(buildSqlReportDataExtractor("payments_per_day^metric:avg(amount)", null, null, SmootherType.SUM_MONTHLY).isSmoothedInSql());
+        Assert.assertFalse(buildSqlReportDataExtractor("payments_per_day^metric:100*sum(fee)/amount", null, null, SmootherType.SUM_MONTHLY).isSmoothedInSql());
+        Assert.assertFalse(buildSqlReportDataExtractor("payments_per_day^metric:count(distinct fee)", null, null, SmootherType.SUM_MONTHLY).isSmoothedInSql());
+        // All columns are metrics
+        Assert.assertFalse(buildSqlReportDataExtractor("payments_per_day", null, null, SmootherType.SUM_MONTHLY).isSmoothedInSql());
+        // Hourly granularity is only supported for reports by timestamp
+        Assert.assertFalse(buildSqlReportDataExtractor(rawReportName, null, null, SmootherType.SUM_HOURLY).isSmoothedInSql());
+        final SqlReportDataExtractor hourlyExtractor = buildSqlReportDataExtractor("payments_per_day^dimension:ts^metric:amount", null, null, SmootherType.SUM_HOURLY);
+        Assert.assertTrue(hourlyExtractor.isSmoothedInSql());
+        Assert.assertTrue(hourlyExtractor.toString().contains("cast(date_format(`ts`, '%Y-%m-%d %H:00:00') as datetime) as `ts`"), hourlyExtractor.toString());
+        Assert.assertFalse(buildSqlReportDataExtractor("payments_per_day^dimension:ts^metric:amount", null, null, SmootherType.SUM_WEEKLY).isSmoothedInSql());
+
+        // Not smoothed: same query as before
+        Assert.assertEquals(buildSqlReportDataExtractor(rawReportName, null, null, null).toString(), buildSqlReportDataExtractor(rawReportName).toString());
+    }
+
+    @Test(groups = "fast")
+    public void testQueryTemplate() throws Exception {
+        final String rawReportName = "payments_per_day^filter:currency!=EUR^dimension:currency^metric:amount";
+        final DateTime startDate = new LocalDate(2012, 11, 10).toDateTimeAtStartOfDay(DateTimeZone.UTC);
+        final DateTime endDate = new DateTime(2013, 11, 10, 12, 30, DateTimeZone.UTC);
+        final SqlReportDataExtractor sqlReportDataExtractor = buildSqlReportDataExtractor(rawReportName, startDate, endDate);
+
+        final ReportQueryTemplate queryTemplate = sqlReportDataExtractor.toQueryTemplate();
+        Assert.assertEquals(queryTemplate.getSql(), sqlReportDataExtractor.toString()
+                                                                          .replace("'2012-11-10'", "?")
+                                                                          .replace("'" + endDate + "'", "?"));
+        final Object[] parameters = queryTemplate.bind(startDate, endDate);
+        Assert.assertEquals(parameters.length, 2);
+        Assert.assertEquals(parameters[0], Date.valueOf("2012-11-10"));
+        Assert.assertEquals(parameters[1], new Timestamp(endDate.getMillis()));
+
+        // The template is shared by dates of the same kind
+        final ReportQueryTemplateCache queryTemplateCache = new ReportQueryTemplateCache(10, EmbeddedDB.DBEngine.MYSQL);
+        final ReportQueryTemplate cachedQueryTemplate = queryTemplateCache.getQueryTemplate("payments_per_day", rawReportName, startDate, endDate, null, 1234L);
+        Assert.assertEquals(cachedQueryTemplate.getSql(), queryTemplate.getSql());
+        Assert.assertSame(queryTemplateCache.getQueryTemplate("payments_per_day", rawReportName, startDate.plusDays(1), endDate.plusHours(1), null, 1234L), cachedQueryTemplate);
+        Assert.assertNotSame(queryTemplateCache.getQueryTemplate("payments_per_day", rawReportName, startDate, null, null, 1234L), cachedQueryTemplate);
+        Assert.assertNotSame(queryTemplateCache.getQueryTemplate("payments_per_day", rawReportName, startDate, endDate, null, 1L), cachedQueryTemplate);
+        Assert.assertEquals(queryTemplateCache.getQueryTemplate("payments_per_day", rawReportName, null, null, null, 1234L).bind(null, null).length, 0);
+    }
+
+    @Test(groups = "fast")
+    public void testQueryTemplateWithBindVariables() throws Exception {
+        final DateTime startDate = new LocalDate(2012, 11, 10).toDateTimeAtStartOfDay(DateTimeZone.UTC);
+        final SqlReportDataExtractor sqlReportDataExtractor = buildSqlReportDataExtractor("payments_per_day^filter:currency!=EUR^filter:state=PROCESSED^dimension:currency^metric:amount", startDate, null);
+
+        final ReportQueryTemplate queryTemplate = sqlReportDataExtractor.toQueryTemplate(true);
+        Assert.assertEquals(queryTemplate.getSql(), sqlReportDataExtractor.toString()
+                                                                          .replace("'EUR'", "?")
+                                                                          .replace("'PROCESSED'", "?")
+                                                                          .replace("'2012-11-10'", "?")
+                                                                          .replace("= 1234", "= ?"));
+        final Object[] parameters = queryTemplate.bind(startDate, null);
+        Assert.assertEquals(parameters, new Object[]{"EUR", "PROCESSED", Date.valueOf("2012-11-10"), 1234L});
+    }
+
+    @Test(groups = "fast")
+    public void testQueryTemplateWithPlaceholderLikeFilterValues() throws Exception {
+        final DateTime startDate = new LocalDate(2012, 11, 10).toDateTimeAtStartOfDay(DateTimeZone.UTC);
+        final SqlReportDataExtractor sqlReportDataExtractor = buildSqlReportDataExtractor("payments_per_day^filter:currency=__analytics_param_0__^filter:state=__analytics_param_7__^dimension:currency^metric:amount", startDate, null);
+
+        // Values of the filters are never mistaken for the placeholders of the dates
+        Assert.assertEquals(sqlReportDataExtractor.toQueryTemplate(true).bind(startDate, null),
+                            new Object[]{"__analytics_param_0__", "__analytics_param_7__", Date.valueOf("2012-11-10"), 1234L});
+
+        final ReportQueryTemplate queryTemplate = sqlReportDataExtractor.toQueryTemplate();
+        Assert.assertTrue(queryTemplate.getSql().contains("'__analytics_param_0__'"));
+        Assert.assertTrue(queryTemplate.getSql().contains("'__analytics_param_7__'"));
+        Assert.assertEquals(queryTemplate.bind(startDate, null), new Object[]{Date.valueOf("2012-11-10")});
+    }
+
     private SqlReportDataExtractor buildSqlReportDataExtractor(final String rawReportName) {
         return buildSqlReportDataExtractor(rawReportName, null, null);
     }
@@ -292,4 +384,9 @@ public class TestSqlReportDataExtractor extends AnalyticsTestSuiteNoDB {
         final ReportSpecification reportSpecification = new ReportSpecification(rawReportName);
         return new SqlReportDataExtractor(reportSpecification.getReportName(), reportSpecification, startDate, endDate, EmbeddedDB.DBEngine.MYSQL, 1234L);
     }
+
+    private SqlReportDataExtractor buildSqlReportDataExtractor(final String rawReportName, @Nullable final DateTime startDate, @Nullable final DateTime endDate, @Nullable final SmootherType smootherType) {
+        final ReportSpecification reportSpecification = new ReportSpecification(rawReportName);
+        return new SqlReportDataExtractor(reportSpecification.getReportName(), reportSpecification, startDate, endDate, smootherType, EmbeddedDB.DBEngine.MYSQL, 1234L);
+    }
 }
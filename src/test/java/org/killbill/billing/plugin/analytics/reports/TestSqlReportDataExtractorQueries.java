@@ -18,11 +18,14 @@
 
 package org.killbill.billing.plugin.analytics.reports;
 
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.joda.time.DateTimeZone;
 import org.joda.time.LocalDate;
 import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteWithEmbeddedDB;
+import org.killbill.billing.plugin.analytics.reports.analysis.Smoother.SmootherType;
 import org.skife.jdbi.v2.Handle;
 import org.skife.jdbi.v2.tweak.HandleCallback;
 import org.testng.Assert;
@@ -63,4 +66,83 @@ public class TestSqlReportDataExtractorQueries extends AnalyticsTestSuiteWithEmb
         // Don't actually test the query, just make sure it got executed (no MySQL error)
         Assert.assertTrue(results.isEmpty());
     }
+
+    @Test(groups = "slow")
+    public void testSmoothedQuery() throws Exception {
+        final String tableName = "payments_per_day_smoothed";
+        embeddedDB.executeScript(String.format("drop table if exists %s;" +
+                                               "create table %s(day date, currency varchar(10), amount int, tenant_record_id int);" +
+                                               "insert into %s values ('2013-01-06', 'USD', 1, 1234);" +
+                                               "insert into %s values ('2013-01-07', 'USD', 2, 1234);" +
+                                               "insert into %s values ('2013-01-09', 'USD', 4, 1234);" +
+                                               "insert into %s values ('2013-01-09', 'EUR', 8, 1234);" +
+                                               "insert into %s values ('2013-04-01', 'USD', 16, 1234);",
+                                               tableName, tableName, tableName, tableName, tableName, tableName, tableName));
+
+        final ReportSpecification reportSpecification = new ReportSpecification(tableName + "^dimension:currency^metric:amount");
+        final SqlReportDataExtractor weeklyExtractor = new SqlReportDataExtractor(tableName, reportSpecification, null, null, SmootherType.SUM_WEEKLY, embeddedDB.getDBEngine(), 1234L);
+        Assert.assertTrue(weeklyExtractor.isSmoothedInSql());
+        final Map<String, Double> weeklyResults = select(weeklyExtractor);
+        Assert.assertEquals(weeklyResults.size(), 4);
+        Assert.assertEquals(weeklyResults.get("2012-12-31 USD"), (Double) 1.0);
+        Assert.assertEquals(weeklyResults.get("2013-01-07 USD"), (Double) 6.0);
+        Assert.assertEquals(weeklyResults.get("2013-01-07 EUR"), (Double) 8.0);
+        Assert.assertEquals(weeklyResults.get("2013-04-01 USD"), (Double) 16.0);
+
+        final SqlReportDataExtractor quarterlyExtractor = new SqlReportDataExtractor(tableName, reportSpecification, null, null, SmootherType.SUM_QUARTERLY, embeddedDB.getDBEngine(), 1234L);
+        final Map<String, Double> quarterlyResults = select(quarterlyExtractor);
+        Assert.assertEquals(quarterlyResults.size(), 3);
+        Assert.assertEquals(quarterlyResults.get("2013-01-01 USD"), (Double) 7.0);
+        Assert.assertEquals(quarterlyResults.get("2013-04-01 USD"), (Double) 16.0);
+
+        final SqlReportDataExtractor yearlyExtractor = new SqlReportDataExtractor(tableName, reportSpecification, null, null, SmootherType.SUM_YEARLY, embeddedDB.getDBEngine(), 1234L);
+        Assert.assertEquals(select(yearlyExtractor).get("2013-01-01 USD"), (Double) 23.0);
+    }
+
+    @Test(groups = "slow")
+    public void testQueryTemplate() throws Exception {
+        final String tableName = "payments_per_day_template";
+        embeddedDB.executeScript(String.format("drop table if exists %s;" +
+                                               "create table %s(day date, currency varchar(10), amount int, tenant_record_id int);" +
+                                               "insert into %s values ('2013-01-06', 'USD', 1, 1234);" +
+                                               "insert into %s values ('2013-01-07', 'USD', 2, 1234);" +
+                                               "insert into %s values ('2013-01-09', 'USD', 4, 1234);",
+                                               tableName, tableName, tableName, tableName, tableName));
+
+        final ReportQueryTemplateCache queryTemplateCache = new ReportQueryTemplateCache(10, embeddedDB.getDBEngine());
+        final String rawReportName = tableName + "^dimension:currency^metric:amount";
+        final LocalDate startDate = new LocalDate(2013, 1, 7);
+        final ReportQueryTemplate queryTemplate = queryTemplateCache.getQueryTemplate(tableName, rawReportName, startDate.toDateTimeAtStartOfDay(DateTimeZone.UTC), startDate.plusDays(10).toDateTimeAtStartOfDay(DateTimeZone.UTC), null, 1234L);
+
+        Assert.assertEquals(select(queryTemplate.getSql(), queryTemplate.bind(startDate.toDateTimeAtStartOfDay(DateTimeZone.UTC), startDate.plusDays(10).toDateTimeAtStartOfDay(DateTimeZone.UTC))).size(), 2);
+        // Same statement, other dates
+        Assert.assertEquals(select(queryTemplate.getSql(), queryTemplate.bind(startDate.minusDays(1).toDateTimeAtStartOfDay(DateTimeZone.UTC), startDate.toDateTimeAtStartOfDay(DateTimeZone.UTC))).size(), 2);
+        Assert.assertEquals(select(queryTemplate.getSql(), queryTemplate.bind(startDate.plusDays(1).toDateTimeAtStartOfDay(DateTimeZone.UTC), startDate.plusDays(1).toDateTimeAtStartOfDay(DateTimeZone.UTC))).size(), 0);
+
+        // Filters and tenant record id as parameters as well
+        final ReportQueryTemplateCache bindVariablesQueryTemplateCache = new ReportQueryTemplateCache(10, true, embeddedDB.getDBEngine());
+        final ReportQueryTemplate bindVariablesQueryTemplate = bindVariablesQueryTemplateCache.getQueryTemplate(tableName, rawReportName + "^filter:currency=USD", null, null, null, 1234L);
+        Assert.assertFalse(bindVariablesQueryTemplate.getSql().contains("1234"), bindVariablesQueryTemplate.getSql());
+        Assert.assertEquals(select(bindVariablesQueryTemplate.getSql(), bindVariablesQueryTemplate.bind(null, null)).size(), 3);
+    }
+
+    // Day and currency -> amount
+    private Map<String, Double> select(final SqlReportDataExtractor sqlReportDataExtractor) {
+        final List<Map<String, Object>> results = select(sqlReportDataExtractor.toString(), new Object[]{});
+
+        final Map<String, Double> amounts = new HashMap<String, Double>();
+        for (final Map<String, Object> row : results) {
+            amounts.put(row.get("day").toString().substring(0, 10) + " " + row.get("currency"), Double.valueOf(row.get("amount").toString()));
+        }
+        return amounts;
+    }
+
+    private List<Map<String, Object>> select(final String sql, final Object[] parameters) {
+        return dbi.withHandle(new HandleCallback<List<Map<String, Object>>>() {
+            @Override
+            public List<Map<String, Object>> withHandle(final Handle handle) throws Exception {
+                return handle.select(sql, parameters);
+            }
+        });
+    }
 }
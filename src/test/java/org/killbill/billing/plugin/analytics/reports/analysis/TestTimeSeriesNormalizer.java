@@ -0,0 +1,166 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.reports.analysis;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.Days;
+import org.joda.time.LocalDate;
+import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
+import org.killbill.billing.plugin.analytics.json.TimeSeries;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class TestTimeSeriesNormalizer extends AnalyticsTestSuiteNoDB {
+
+    @Test(groups = "fast")
+    public void testParseAndFormatDay() throws Exception {
+        final LocalDate epoch = new LocalDate(1970, 1, 1);
+        LocalDate date = new LocalDate(1899, 12, 25);
+        while (date.isBefore(new LocalDate(2101, 1, 10))) {
+            final long day = TimeSeries.parseDay(date.toString());
+            Assert.assertEquals(day, (long) Days.daysBetween(epoch, date).getDays());
+            Assert.assertEquals(TimeSeries.formatDay(day), date.toString());
+            Assert.assertEquals(TimeSeries.dayToMillis(day), date.toDateTimeAtStartOfDay().getMillis());
+            date = date.plusDays(3);
+        }
+
+        Assert.assertEquals(TimeSeries.parseDay("2013-01-01T00:00:00.000Z"), TimeSeries.NOT_A_DAY);
+        Assert.assertEquals(TimeSeries.parseDay("2013-13-01"), TimeSeries.NOT_A_DAY);
+        Assert.assertEquals(TimeSeries.parseDay("2013-0a-01"), TimeSeries.NOT_A_DAY);
+        Assert.assertEquals(TimeSeries.parseDay(null), TimeSeries.NOT_A_DAY);
+    }
+
+    @Test(groups = "fast")
+    public void testFillByDay() throws Exception {
+        final TimeSeries serie1 = new TimeSeries.Builder().add("2013-01-05", 5).add("2013-01-02", 2).build();
+        final TimeSeries serie2 = new TimeSeries.Builder().add("2013-01-03", 3).build();
+        final Map<String, Map<String, TimeSeries>> dataForReports = createData(serie1, serie2);
+
+        TimeSeriesNormalizer.normalizeAndSortXValues(dataForReports, null, null);
+
+        // Range inferred from the data
+        checkSerie(dataForReports.get("report").get("serie1"), new float[]{2, 0, 0, 5});
+        checkSerie(dataForReports.get("report").get("serie2"), new float[]{0, 3, 0, 0});
+        Assert.assertEquals(dataForReports.get("report").get("serie1").formatX(0), "2013-01-02");
+        Assert.assertEquals(dataForReports.get("report").get("serie1").formatX(3), "2013-01-05");
+    }
+
+    @Test(groups = "fast")
+    public void testFillWithSpecifiedRange() throws Exception {
+        final TimeSeries serie1 = new TimeSeries.Builder().add("2013-01-03", 3).build();
+        // 2012-12-31 is outside of the range
+        final TimeSeries serie2 = new TimeSeries.Builder().add("2013-01-02", 2).add("2012-12-31", 1).build();
+        final Map<String, Map<String, TimeSeries>> dataForReports = createData(serie1, serie2);
+
+        final DateTime startDate = new LocalDate(2013, 1, 1).toDateTimeAtStartOfDay();
+        final DateTime endDate = new LocalDate(2013, 1, 4).toDateTimeAtStartOfDay();
+        TimeSeriesNormalizer.normalizeAndSortXValues(dataForReports, startDate, endDate);
+
+        checkSerie(dataForReports.get("report").get("serie1"), new float[]{0, 0, 3, 0});
+        Assert.assertEquals(dataForReports.get("report").get("serie1").getMillis(0), startDate.getMillis());
+        Assert.assertEquals(dataForReports.get("report").get("serie1").getMillis(3), endDate.getMillis());
+        // Sorted, but points outside of the range are kept
+        final TimeSeries normalizedSerie2 = dataForReports.get("report").get("serie2");
+        Assert.assertEquals(normalizedSerie2.size(), 5);
+        Assert.assertEquals(normalizedSerie2.formatX(0), "2012-12-31");
+        Assert.assertEquals(normalizedSerie2.getY(0), 1f);
+        Assert.assertEquals(normalizedSerie2.getY(2), 2f);
+    }
+
+    @Test(groups = "fast")
+    public void testFillTimestamps() throws Exception {
+        final DateTime startDate = new DateTime(2013, 1, 1, 0, 0, DateTimeZone.UTC);
+        final TimeSeries serie = new TimeSeries.Builder().add(startDate.plusDays(2), 3f)
+                                                         .add(startDate.plusHours(30), 2f)
+                                                         .add(startDate, 1f)
+                                                         .build();
+        final Map<String, Map<String, TimeSeries>> dataForReports = createData(serie, new TimeSeries.Builder().build());
+
+        TimeSeriesNormalizer.normalizeAndSortXValues(dataForReports, null, null);
+
+        // The value at 6am isn't on a day boundary: it is kept, and 0 is added for that day
+        final TimeSeries normalizedSerie = dataForReports.get("report").get("serie1");
+        Assert.assertFalse(normalizedSerie.isByDay());
+        Assert.assertEquals(normalizedSerie.size(), 4);
+        Assert.assertEquals(normalizedSerie.getMillis(0), startDate.getMillis());
+        Assert.assertEquals(normalizedSerie.getY(0), 1f);
+        Assert.assertEquals(normalizedSerie.getMillis(1), startDate.plusDays(1).getMillis());
+        Assert.assertEquals(normalizedSerie.getY(1), 0f);
+        Assert.assertEquals(normalizedSerie.getY(2), 2f);
+        Assert.assertEquals(normalizedSerie.getY(3), 3f);
+        Assert.assertEquals(dataForReports.get("report").get("serie2").size(), 3);
+    }
+
+    @Test(groups = "fast")
+    public void testSmoothByDay() throws Exception {
+        // 2013-01-07 is a Monday
+        final TimeSeries.Builder builder = new TimeSeries.Builder();
+        for (int i = 0; i < 15; i++) {
+            builder.add(new LocalDate(2013, 1, 7).plusDays(i).toString(), i);
+        }
+        final Map<String, Map<String, TimeSeries>> dataForReports = createData(builder.build(), new TimeSeries.Builder().add("2013-01-31", 1).add("2013-02-04", 2).build());
+
+        final Smoother smoother = Smoother.SmootherType.AVERAGE_WEEKLY.createSmoother(dataForReports);
+        smoother.smooth();
+
+        // The last (incomplete) period isn't returned
+        final TimeSeries smoothedSerie1 = smoother.getDataForReports().get("report").get("serie1");
+        Assert.assertEquals(smoothedSerie1.size(), 2);
+        Assert.assertEquals(smoothedSerie1.formatX(0), "2013-01-07");
+        Assert.assertEquals(smoothedSerie1.getY(0), 3f);
+        Assert.assertEquals(smoothedSerie1.formatX(1), "2013-01-14");
+        Assert.assertEquals(smoothedSerie1.getY(1), 10f);
+
+        final TimeSeries smoothedSerie2 = smoother.getDataForReports().get("report").get("serie2");
+        Assert.assertEquals(smoothedSerie2.size(), 1);
+        Assert.assertEquals(smoothedSerie2.formatX(0), "2013-01-28");
+
+        final Smoother monthlySmoother = Smoother.SmootherType.SUM_MONTHLY.createSmoother(createData(new TimeSeries.Builder().add("2013-01-31", 1).add("2013-01-15", 2).add("2013-02-01", 4).build(),
+                                                                                                     new TimeSeries.Builder().build()));
+        monthlySmoother.smooth();
+        final TimeSeries monthlySerie = monthlySmoother.getDataForReports().get("report").get("serie1");
+        Assert.assertEquals(monthlySerie.size(), 1);
+        Assert.assertEquals(monthlySerie.formatX(0), "2013-01-01");
+        Assert.assertEquals(monthlySerie.getY(0), 3f);
+    }
+
+    private Map<String, Map<String, TimeSeries>> createData(final TimeSeries serie1, final TimeSeries serie2) {
+        final Map<String, TimeSeries> dataForReport = new LinkedHashMap<String, TimeSeries>();
+        dataForReport.put("serie1", serie1);
+        dataForReport.put("serie2", serie2);
+        final Map<String, Map<String, TimeSeries>> dataForReports = new HashMap<String, Map<String, TimeSeries>>();
+        dataForReports.put("report", dataForReport);
+        return dataForReports;
+    }
+
+    private void checkSerie(final TimeSeries serie, final float[] expectedValues) {
+        Assert.assertTrue(serie.isByDay());
+        Assert.assertEquals(serie.size(), expectedValues.length);
+        for (int i = 0; i < expectedValues.length; i++) {
+            Assert.assertEquals(serie.getY(i), expectedValues[i]);
+            if (i > 0) {
+                Assert.assertEquals(serie.getX(i), serie.getX(i - 1) + 1);
+            }
+        }
+    }
+}
@@ -49,4 +49,33 @@ public class TestReportsConfigurationModelDao extends AnalyticsTestSuiteNoDB {
         Assert.assertEquals(reportsConfiguration.getRefreshFrequency(), daily);
         Assert.assertEquals(reportsConfiguration.getRefreshHourOfDayGmt(), (Integer) refreshHourOfDayGmt);
     }
+
+    @Test(groups = "fast")
+    public void testRefreshWatermarkColumnValidation() throws Exception {
+        Assert.assertEquals(createIncrementalReport("day").getRefreshWatermarkColumn(), "day");
+        Assert.assertEquals(createIncrementalReport("_created_date2").getRefreshWatermarkColumn(), "_created_date2");
+        Assert.assertNull(createIncrementalReport(null).getRefreshWatermarkColumn());
+
+        for (final String refreshWatermarkColumn : new String[]{"", "2day", "day desc", "day;drop table report_mrr_daily", "`day`", "\"day\"", "t.day"}) {
+            try {
+                createIncrementalReport(refreshWatermarkColumn);
+                Assert.fail("refreshWatermarkColumn should have been rejected: " + refreshWatermarkColumn);
+            } catch (final IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    private ReportsConfigurationModelDao createIncrementalReport(final String refreshWatermarkColumn) {
+        return new ReportsConfigurationModelDao(null,
+                                                UUID.randomUUID().toString(),
+                                                UUID.randomUUID().toString(),
+                                                ReportType.TIMELINE,
+                                                "report_mrr_daily",
+                                                null,
+                                                Frequency.DAILY,
+                                                12,
+                                                refreshWatermarkColumn,
+                                                null);
+    }
 }
@@ -18,13 +18,28 @@
 
 package org.killbill.billing.plugin.analytics.reports.scheduler;
 
+import java.sql.Date;
+import java.sql.Timestamp;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
 import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
 import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao.Frequency;
 import org.testng.Assert;
 import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
+import com.codahale.metrics.MetricRegistry;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
 public class TestJobsScheduler extends AnalyticsTestSuiteNoDB {
 
     private JobsScheduler jobsScheduler;
@@ -59,7 +74,330 @@ public class TestJobsScheduler extends AnalyticsTestSuiteNoDB {
         Assert.assertEquals(computeNextRun(Frequency.HOURLY, null).compareTo(new DateTime(2012, 10, 5, 19, 5, 0)), 0);
     }
 
+    @Test(groups = "fast")
+    public void testIncrementalRefreshWatermark() throws Exception {
+        Assert.assertEquals(IncrementalRefresh.toWatermark("2012-10-05"), new LocalDate(2012, 10, 5));
+        Assert.assertEquals(IncrementalRefresh.toWatermark(Date.valueOf("2012-10-05")), new LocalDate(2012, 10, 5));
+        Assert.assertEquals(IncrementalRefresh.toWatermark(Timestamp.valueOf("2012-10-05 18:33:46")), new LocalDate(2012, 10, 5));
+
+        try {
+            IncrementalRefresh.toWatermark("2012-10-05' or 1=1");
+            Assert.fail();
+        } catch (final IllegalArgumentException e) {
+            // Expected
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testComputeNextRunWithJitter() throws Exception {
+        final JobsScheduler jitteredJobsScheduler = new JobsScheduler(killbillDataSource, clock, notificationQueueService, 3, 600);
+
+        final AnalyticsReportJob job = createJob("report_accounts_summary", Frequency.HOURLY, null, null, null, null, null);
+        final int jitter = jitteredJobsScheduler.computeJitterSeconds(job);
+        Assert.assertTrue(jitter >= 0 && jitter < 600);
+        // Stable across runs
+        Assert.assertEquals(jitteredJobsScheduler.computeJitterSeconds(job), jitter);
+        Assert.assertEquals(jitteredJobsScheduler.computeJitterSeconds(createJob(null, Frequency.HOURLY, null, null, null, null, null)), 0);
+        Assert.assertEquals(jobsScheduler.computeJitterSeconds(job), 0);
+        // Per-report override
+        Assert.assertEquals(jitteredJobsScheduler.computeJitterSeconds(createJob("report_accounts_summary", Frequency.HOURLY, null, null, null, null, 0)), 0);
+        Assert.assertTrue(jobsScheduler.computeJitterSeconds(createJob("report_accounts_summary", Frequency.HOURLY, null, null, null, null, 60)) < 60);
+
+        clock.setTime(new DateTime(2012, 10, 5, 18, 33, 46));
+        Assert.assertEquals(jitteredJobsScheduler.computeNextRun(job).compareTo(new DateTime(2012, 10, 5, 19, 5, 0).plusSeconds(jitter)), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testComputeMinutelyNextRun() throws Exception {
+        clock.setTime(new DateTime(2012, 10, 5, 18, 33, 46));
+        // Every 5' by default
+        Assert.assertEquals(jobsScheduler.computeNextRun(createJob(null, Frequency.MINUTELY, null, null, null, null, null)).compareTo(new DateTime(2012, 10, 5, 18, 35, 0)), 0);
+        Assert.assertEquals(jobsScheduler.computeNextRun(createJob(null, Frequency.MINUTELY, null, 15, null, null, null)).compareTo(new DateTime(2012, 10, 5, 18, 45, 0)), 0);
+
+        // On a slot boundary
+        clock.setTime(new DateTime(2012, 10, 5, 18, 45, 0));
+        Assert.assertEquals(jobsScheduler.computeNextRun(createJob(null, Frequency.MINUTELY, null, 15, null, null, null)).compareTo(new DateTime(2012, 10, 5, 19, 0, 0)), 0);
+
+        // The jitter stays within the interval
+        final DateTime nextRun = jobsScheduler.computeNextRun(createJob("report_payment_provider_monitor", Frequency.MINUTELY, null, 1, null, null, 3600));
+        Assert.assertTrue(nextRun.isAfter(clock.getUTCNow()));
+        Assert.assertFalse(nextRun.isAfter(clock.getUTCNow().plusMinutes(1)));
+    }
+
+    @Test(groups = "fast")
+    public void testComputeCronNextRun() throws Exception {
+        // Friday
+        clock.setTime(new DateTime(2012, 10, 5, 18, 33, 46));
+        Assert.assertEquals(jobsScheduler.computeNextRun(createJob(null, Frequency.CRON, null, null, "*/15 * * * *", null, null)).compareTo(new DateTime(2012, 10, 5, 18, 45, 0)), 0);
+        // Weekdays only
+        Assert.assertEquals(jobsScheduler.computeNextRun(createJob(null, Frequency.CRON, null, null, "30 2 * * 1-5", null, null)).compareTo(new DateTime(2012, 10, 8, 2, 30, 0)), 0);
+        // Sunday
+        Assert.assertEquals(jobsScheduler.computeNextRun(createJob(null, Frequency.CRON, null, null, "0 3 * * 7", null, null)).compareTo(new DateTime(2012, 10, 7, 3, 0, 0)), 0);
+        Assert.assertEquals(jobsScheduler.computeNextRun(createJob(null, Frequency.CRON, null, null, "0 0 1 * *", null, null)).compareTo(new DateTime(2012, 11, 1, 0, 0, 0)), 0);
+        // 2:30am in Paris (UTC+2)
+        Assert.assertEquals(jobsScheduler.computeNextRun(createJob(null, Frequency.CRON, null, null, "30 2 * * *", "Europe/Paris", null)).compareTo(new DateTime(2012, 10, 6, 0, 30, 0)), 0);
+
+        for (final String invalidCron : new String[]{null, "* * *", "61 * * * *", "5-1 * * * *", "a * * * *", "0 0 30 2 *"}) {
+            try {
+                jobsScheduler.computeNextRun(createJob(null, Frequency.CRON, null, null, invalidCron, null, null));
+                Assert.fail(invalidCron);
+            } catch (final IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+
+    @Test(groups = "fast")
+    public void testCronAcrossDaylightSavingTimeTransitions() throws Exception {
+        final DateTimeZone paris = DateTimeZone.forID("Europe/Paris");
+        final CronExpression dailyCron = new CronExpression("30 2 * * *");
+
+        // Spring forward (2024-03-31, 02:00 CET -> 03:00 CEST): 02:30 doesn't exist, the job runs at 03:00 instead
+        DateTime nextRun = dailyCron.nextAfter(new DateTime(2024, 3, 30, 2, 30, paris), paris);
+        Assert.assertEquals(nextRun.compareTo(new DateTime(2024, 3, 31, 1, 0, DateTimeZone.UTC)), 0);
+        nextRun = dailyCron.nextAfter(nextRun, paris);
+        Assert.assertEquals(nextRun.compareTo(new DateTime(2024, 4, 1, 0, 30, DateTimeZone.UTC)), 0);
+
+        // Fall back (2024-10-27, 03:00 CEST -> 02:00 CET): 02:30 occurs twice, the job only runs at 02:30 CEST
+        nextRun = dailyCron.nextAfter(new DateTime(2024, 10, 26, 2, 30, paris), paris);
+        Assert.assertEquals(nextRun.compareTo(new DateTime(2024, 10, 27, 0, 30, DateTimeZone.UTC)), 0);
+        nextRun = dailyCron.nextAfter(nextRun, paris);
+        Assert.assertEquals(nextRun.compareTo(new DateTime(2024, 10, 28, 1, 30, DateTimeZone.UTC)), 0);
+        // Same thing when looking from the repeated hour (e.g. after a restart)
+        nextRun = dailyCron.nextAfter(new DateTime(2024, 10, 27, 1, 10, DateTimeZone.UTC), paris);
+        Assert.assertEquals(nextRun.compareTo(new DateTime(2024, 10, 28, 1, 30, DateTimeZone.UTC)), 0);
+
+        // Frequent jobs: skipped local times run once, at the end of the gap, and the repeated hour is skipped
+        final CronExpression frequentCron = new CronExpression("*/20 * * * *");
+        nextRun = frequentCron.nextAfter(new DateTime(2024, 3, 31, 0, 40, DateTimeZone.UTC), paris);
+        Assert.assertEquals(nextRun.compareTo(new DateTime(2024, 3, 31, 1, 0, DateTimeZone.UTC)), 0);
+        nextRun = frequentCron.nextAfter(nextRun, paris);
+        Assert.assertEquals(nextRun.compareTo(new DateTime(2024, 3, 31, 1, 20, DateTimeZone.UTC)), 0);
+        nextRun = frequentCron.nextAfter(new DateTime(2024, 10, 27, 0, 40, DateTimeZone.UTC), paris);
+        Assert.assertEquals(nextRun.compareTo(new DateTime(2024, 10, 27, 2, 0, DateTimeZone.UTC)), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testIsStale() throws Exception {
+        final DateTime now = new DateTime(2012, 10, 5, 18, 33, 46, DateTimeZone.UTC);
+
+        final AnalyticsReportJob hourlyJob = createJob(null, Frequency.HOURLY, null, null, null, null, null);
+        final AnalyticsReportJob dailyJob = createJob(null, Frequency.DAILY, null, null, null, null, null);
+        final AnalyticsReportJob minutelyJob = createJob(null, Frequency.MINUTELY, null, 5, null, null, null);
+
+        // Two scheduled runs without a successful refresh
+        Assert.assertFalse(jobsScheduler.isStale(hourlyJob, now.minusMinutes(90), now));
+        Assert.assertTrue(jobsScheduler.isStale(hourlyJob, now.minusMinutes(150), now));
+        Assert.assertFalse(jobsScheduler.isStale(dailyJob, now.minusHours(30), now));
+        Assert.assertTrue(jobsScheduler.isStale(dailyJob, now.minusHours(50), now));
+        Assert.assertFalse(jobsScheduler.isStale(minutelyJob, now.minusMinutes(6), now));
+        Assert.assertTrue(jobsScheduler.isStale(minutelyJob, now.minusMinutes(12), now));
+        // Not scheduled periodically
+        Assert.assertFalse(jobsScheduler.isStale(createJob(null, null, null, null, null, null, null), now.minusYears(1), now));
+        // Never refreshed, and the scheduler isn't started
+        Assert.assertFalse(jobsScheduler.isStale(hourlyJob, null, now));
+    }
+
+    @Test(groups = "fast")
+    public void testRefreshRunnerOrdering() throws Exception {
+        final Queue<Runnable> executed = new LinkedList<Runnable>();
+        final RefreshRunner refreshRunner = new RefreshRunner(new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                executed.add(command);
+            }
+        }, 1);
+
+        final List<String> refreshed = new LinkedList<String>();
+        // Keep the only slot busy while the other refreshes are queued
+        refreshRunner.submit("blocker", null, null, recordRefresh(refreshed, "blocker"));
+        refreshRunner.submit("history", 10, "sub1, sub2", recordRefresh(refreshed, "history"));
+        refreshRunner.submit("sub1", null, null, recordRefresh(refreshed, "sub1"));
+        refreshRunner.submit("low", -1, null, recordRefresh(refreshed, "low"));
+        refreshRunner.submit("sub2", 5, null, recordRefresh(refreshed, "sub2"));
+        Assert.assertEquals(refreshRunner.getNbRunning(), 1);
+        Assert.assertEquals(refreshRunner.getNbPending(), 4);
+
+        // history waits for its dependencies, sub2 has a higher priority than sub1
+        while (!executed.isEmpty()) {
+            executed.poll().run();
+        }
+        Assert.assertEquals(refreshed, ImmutableList.<String>of("blocker", "sub2", "sub1", "history", "low"));
+        Assert.assertEquals(refreshRunner.getNbRunning(), 0);
+        Assert.assertEquals(refreshRunner.getNbPending(), 0);
+
+        // Circular dependencies don't block the refreshes
+        refreshed.clear();
+        refreshRunner.submit("blocker", null, null, recordRefresh(refreshed, "blocker"));
+        refreshRunner.submit("a", null, "b", recordRefresh(refreshed, "a"));
+        refreshRunner.submit("b", null, "a", recordRefresh(refreshed, "b"));
+        while (!executed.isEmpty()) {
+            executed.poll().run();
+        }
+        Assert.assertEquals(refreshed, ImmutableList.<String>of("blocker", "a", "b"));
+    }
+
+    @Test(groups = "fast")
+    public void testRefreshRunnerCoalescing() throws Exception {
+        final Queue<Runnable> executed = new LinkedList<Runnable>();
+        final RefreshRunner refreshRunner = new RefreshRunner(new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                executed.add(command);
+            }
+        }, 2);
+
+        final List<String> refreshed = new LinkedList<String>();
+        Assert.assertTrue(refreshRunner.submit("a", null, null, recordRefresh(refreshed, "a")));
+        // Doesn't run concurrently with the previous refresh, even though a slot is available
+        Assert.assertTrue(refreshRunner.submit("a", null, null, recordRefresh(refreshed, "a")));
+        Assert.assertEquals(refreshRunner.getNbRunning(), 1);
+        Assert.assertEquals(refreshRunner.getNbPending(), 1);
+
+        // At most one refresh queued per report (e.g. MINUTELY refreshes taking longer than their interval)
+        Assert.assertFalse(refreshRunner.submit("a", null, null, recordRefresh(refreshed, "a")));
+        Assert.assertTrue(refreshRunner.submit("b", null, null, recordRefresh(refreshed, "b")));
+        Assert.assertEquals(refreshRunner.getNbRunning(), 2);
+        Assert.assertEquals(refreshRunner.getNbPending(), 1);
+
+        while (!executed.isEmpty()) {
+            executed.poll().run();
+        }
+        Assert.assertEquals(refreshed, ImmutableList.<String>of("a", "b", "a"));
+        Assert.assertEquals(refreshRunner.getNbRunning(), 0);
+        Assert.assertEquals(refreshRunner.getNbPending(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testRefreshRunnerWaitsForDependenciesDueInTheSameSlot() throws Exception {
+        final Queue<Runnable> executed = new LinkedList<Runnable>();
+        final RefreshRunner refreshRunner = new RefreshRunner(new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                executed.add(command);
+            }
+        }, 3);
+
+        // No jitter: all notifications are due at the same time, but the dependent one is processed first
+        final DateTime dueDate = new DateTime(2012, 10, 5, 6, 0, 0, DateTimeZone.UTC);
+        final List<String> refreshed = new LinkedList<String>();
+        refreshRunner.submit("history", null, "sub1, sub2", dueDate, ImmutableMap.<String, DateTime>of("sub1", dueDate, "sub2", dueDate), recordRefresh(refreshed, "history"));
+        // Even though slots are available
+        Assert.assertEquals(refreshRunner.getNbRunning(), 0);
+        Assert.assertEquals(refreshRunner.getNbPending(), 1);
+
+        refreshRunner.submit("sub1", null, null, dueDate, ImmutableMap.<String, DateTime>of(), recordRefresh(refreshed, "sub1"));
+        executed.poll().run();
+        Assert.assertTrue(executed.isEmpty());
+        Assert.assertEquals(refreshRunner.getNbPending(), 1);
+
+        refreshRunner.submit("sub2", null, null, dueDate, ImmutableMap.<String, DateTime>of(), recordRefresh(refreshed, "sub2"));
+        // history waits for sub2 to complete
+        Assert.assertEquals(refreshRunner.getNbRunning(), 1);
+        executed.poll().run();
+        executed.poll().run();
+        Assert.assertEquals(refreshed, ImmutableList.<String>of("sub1", "sub2", "history"));
+        Assert.assertEquals(refreshRunner.getNbRunning(), 0);
+        Assert.assertEquals(refreshRunner.getNbPending(), 0);
+
+        // Refreshes from the previous slots don't count
+        refreshed.clear();
+        final DateTime nextDueDate = dueDate.plusDays(1);
+        refreshRunner.submit("history", null, "sub1", nextDueDate, ImmutableMap.<String, DateTime>of("sub1", nextDueDate), recordRefresh(refreshed, "history"));
+        Assert.assertTrue(executed.isEmpty());
+
+        // Dependencies which aren't scheduled anymore aren't waited for
+        refreshRunner.cancelDueDates("sub1");
+        executed.poll().run();
+        Assert.assertEquals(refreshed, ImmutableList.<String>of("history"));
+        Assert.assertEquals(refreshRunner.getNbPending(), 0);
+    }
+
+    @Test(groups = "fast")
+    public void testRefreshDependenciesWithJitter() throws Exception {
+        final JobsScheduler jitteredJobsScheduler = new JobsScheduler(killbillDataSource, clock, notificationQueueService, 3, 600);
+        final AnalyticsReportJob history = createRefreshJob("history", "sub1, sub2");
+        final AnalyticsReportJob sub1 = createRefreshJob("sub1", null);
+        final AnalyticsReportJob sub2 = createRefreshJob("sub2", null);
+
+        clock.setTime(new DateTime(2012, 10, 5, 4, 33, 46, DateTimeZone.UTC));
+        final DateTime historyDueDate = jitteredJobsScheduler.computeNextRun(history);
+        final DateTime sub1DueDate = jitteredJobsScheduler.computeNextRun(sub1);
+        final DateTime sub2DueDate = jitteredJobsScheduler.computeNextRun(sub2);
+        // The jitter schedules history before its dependencies
+        Assert.assertTrue(historyDueDate.isBefore(sub1DueDate));
+        Assert.assertTrue(historyDueDate.isBefore(sub2DueDate));
+
+        final Map<String, DateTime> dependenciesDueDates = jitteredJobsScheduler.computeDependenciesDueDates(history, historyDueDate, ImmutableList.<AnalyticsReportJob>of(sub1, sub2));
+        Assert.assertEquals(dependenciesDueDates, ImmutableMap.<String, DateTime>of("sub1", sub1DueDate, "sub2", sub2DueDate));
+        // Refreshes triggered manually don't wait
+        Assert.assertTrue(jitteredJobsScheduler.computeDependenciesDueDates(history, clock.getUTCNow(), ImmutableList.<AnalyticsReportJob>of(sub1, sub2)).isEmpty());
+
+        // Notifications processed when due, with free slots and refreshes completing right away
+        final Queue<Runnable> executed = new LinkedList<Runnable>();
+        final RefreshRunner refreshRunner = new RefreshRunner(new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                executed.add(command);
+            }
+        }, 3);
+        final List<String> refreshed = new LinkedList<String>();
+        refreshRunner.submit("history", null, history.getRefreshDependencies(), historyDueDate, dependenciesDueDates, recordRefresh(refreshed, "history"));
+        while (!executed.isEmpty()) {
+            executed.poll().run();
+        }
+        refreshRunner.submit("sub1", null, null, sub1DueDate, ImmutableMap.<String, DateTime>of(), recordRefresh(refreshed, "sub1"));
+        while (!executed.isEmpty()) {
+            executed.poll().run();
+        }
+        refreshRunner.submit("sub2", null, null, sub2DueDate, ImmutableMap.<String, DateTime>of(), recordRefresh(refreshed, "sub2"));
+        while (!executed.isEmpty()) {
+            executed.poll().run();
+        }
+        Assert.assertEquals(refreshed, ImmutableList.<String>of("sub1", "sub2", "history"));
+    }
+
+    private AnalyticsReportJob createRefreshJob(final String reportName, final String refreshDependencies) {
+        return new AnalyticsReportJob(null, reportName, null, null, reportName + "_refresh", Frequency.DAILY, null, null, null, null, refreshDependencies,
+                                      null, null, null, null);
+    }
+
+    private Runnable recordRefresh(final List<String> refreshed, final String reportName) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                refreshed.add(reportName);
+            }
+        };
+    }
+
     private DateTime computeNextRun(final Frequency frequency, final Integer refreshHourOfDayGmt) {
-        return jobsScheduler.computeNextRun(new AnalyticsReportJob(null, null, null, null, null, frequency, refreshHourOfDayGmt));
+        return jobsScheduler.computeNextRun(createJob(null, frequency, refreshHourOfDayGmt, null, null, null, null));
+    }
+
+    private AnalyticsReportJob createJob(final String reportName,
+                                         final Frequency frequency,
+                                         final Integer refreshHourOfDayGmt,
+                                         final Integer refreshIntervalMinutes,
+                                         final String refreshCron,
+                                         final String refreshTimeZone,
+                                         final Integer refreshJitterSeconds) {
+        return new AnalyticsReportJob(null, reportName, null, null, null, frequency, refreshHourOfDayGmt, null, null, null, null,
+                                      refreshIntervalMinutes, refreshCron, refreshTimeZone, refreshJitterSeconds);
+    }
+
+    @Test(groups = "fast")
+    public void testRefreshMetricsLookupsDontRegisterMetrics() throws Exception {
+        final MetricRegistry metricRegistry = new MetricRegistry();
+        final RefreshMetrics refreshMetrics = new RefreshMetrics(metricRegistry);
+
+        Assert.assertNull(refreshMetrics.getExistingDuration("report1"));
+        Assert.assertNull(refreshMetrics.getExistingFailures("report1"));
+        Assert.assertTrue(metricRegistry.getMetrics().isEmpty());
+
+        refreshMetrics.recordFailure("report1", 1000000L);
+        Assert.assertEquals(refreshMetrics.getExistingDuration("report1").getCount(), 1);
+        Assert.assertEquals(refreshMetrics.getExistingFailures("report1").getCount(), 1);
+        Assert.assertNull(refreshMetrics.getExistingDuration("report2"));
     }
 }
@@ -17,6 +17,7 @@
 
 package org.killbill.billing.plugin.analytics.reports.scheduler;
 
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.TimeUnit;
 
@@ -24,6 +25,7 @@ import org.awaitility.Awaitility;
 import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteWithEmbeddedDB;
 import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao;
 import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationModelDao.Frequency;
+import org.killbill.billing.plugin.analytics.reports.configuration.ReportsConfigurationSqlDao;
 import org.killbill.notificationq.api.NotificationEventWithMetadata;
 import org.skife.jdbi.v2.Handle;
 import org.skife.jdbi.v2.TransactionCallback;
@@ -95,6 +97,80 @@ public class TestJobsSchedulerWithEmbeddedDB extends AnalyticsTestSuiteWithEmbed
         Assert.assertEquals(nbScheduledJobs(report), 1);
     }
 
+    @Test(groups = "mysql")
+    public void testIncrementalRefresh() throws Exception {
+        final ReportsConfigurationModelDao report = createIncrementalReport();
+
+        // First run: full refresh
+        jobsScheduler.scheduleNow(report);
+        waitForWatermark(report, "2013-01-03");
+        Assert.assertEquals(incrementalReportRows(), "2013-01-01:1,2013-01-02:2,2013-01-03:3");
+
+        // Rows before the refresh window are not recomputed
+        dbi.inTransaction(new TransactionCallback<Void>() {
+            @Override
+            public Void inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
+                conn.execute("update test_incremental_source set count = count * 10");
+                conn.execute("insert into test_incremental_source values ('2013-01-04', 4)");
+                return null;
+            }
+        });
+        cleanScheduledJobs();
+        jobsScheduler.scheduleNow(report);
+        waitForWatermark(report, "2013-01-04");
+        Assert.assertEquals(incrementalReportRows(), "2013-01-01:1,2013-01-02:20,2013-01-03:30,2013-01-04:4");
+    }
+
+    private ReportsConfigurationModelDao createIncrementalReport() {
+        return dbi.inTransaction(new TransactionCallback<ReportsConfigurationModelDao>() {
+            @Override
+            public ReportsConfigurationModelDao inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
+                conn.execute("DROP TABLE IF EXISTS test_incremental_source");
+                conn.execute("CREATE TABLE test_incremental_source(day varchar(10), count int)");
+                conn.execute("INSERT INTO test_incremental_source VALUES ('2013-01-01', 1), ('2013-01-02', 2), ('2013-01-03', 3)");
+                conn.execute("CREATE OR REPLACE VIEW v_test_incremental AS SELECT day, count FROM test_incremental_source");
+                conn.execute("DROP TABLE IF EXISTS test_incremental");
+                conn.execute("CREATE TABLE test_incremental AS SELECT * FROM v_test_incremental LIMIT 0");
+
+                final ReportsConfigurationSqlDao sqlDao = conn.attach(ReportsConfigurationSqlDao.class);
+                sqlDao.deleteReportConfiguration("testIncrementalReport");
+                sqlDao.addReportConfiguration(new ReportsConfigurationModelDao(null,
+                                                                               "testIncrementalReport",
+                                                                               "Test incremental report",
+                                                                               ReportsConfigurationModelDao.ReportType.TIMELINE,
+                                                                               "test_incremental",
+                                                                               null,
+                                                                               Frequency.DAILY,
+                                                                               1,
+                                                                               "day",
+                                                                               1));
+                return sqlDao.getReportConfigurationForReport("testIncrementalReport");
+            }
+        });
+    }
+
+    private String incrementalReportRows() {
+        return dbi.inTransaction(new TransactionCallback<String>() {
+            @Override
+            public String inTransaction(final Handle conn, final TransactionStatus status) throws Exception {
+                final StringBuilder rows = new StringBuilder();
+                for (final Map<String, Object> row : conn.select("select day, count from test_incremental order by day")) {
+                    rows.append(rows.length() == 0 ? "" : ",").append(row.get("day")).append(":").append(row.get("count"));
+                }
+                return rows.toString();
+            }
+        });
+    }
+
+    private void waitForWatermark(final ReportsConfigurationModelDao report, final String watermark) throws Exception {
+        Awaitility.await().atMost(15, TimeUnit.SECONDS).until(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                return watermark.equals(dbi.onDemand(ReportsConfigurationSqlDao.class).getRefreshLastWatermark(report.getReportName()));
+            }
+        });
+    }
+
     private void setupProcedure(final boolean shouldFail) {
         dbi.inTransaction(new TransactionCallback<Void>() {
             @Override
@@ -18,11 +18,20 @@
 
 package org.killbill.billing.plugin.analytics.reports.sql;
 
-import org.jooq.Table;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+import org.awaitility.Awaitility;
+import org.jooq.Field;
 import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteWithEmbeddedDB;
 import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Sets;
 
 public class TestMetadata extends AnalyticsTestSuiteWithEmbeddedDB {
@@ -34,15 +43,43 @@ public class TestMetadata extends AnalyticsTestSuiteWithEmbeddedDB {
         embeddedDB.executeScript(String.format("create table %s(day datetime, name varchar(100), currency varchar(10), state varchar(10), amount int, fee int);", tableName));
 
         final Metadata metadata = new Metadata(Sets.<String>newHashSet(tableName), embeddedDB.getDataSource());
-        final Table table = metadata.getTable(tableName).getTable();
-
-        Assert.assertEquals(table.fields().length, 6);
-        Assert.assertEquals(table.fields()[0].getName(), "day");
-        Assert.assertEquals(table.fields()[1].getName(), "name");
-        Assert.assertEquals(table.fields()[2].getName(), "currency");
-        Assert.assertEquals(table.fields()[3].getName(), "state");
-        Assert.assertEquals(table.fields()[4].getName(), "amount");
-        Assert.assertEquals(table.fields()[5].getName(), "fee");
+        final List<Field<?>> fields = metadata.getTable(tableName).getFields();
+        metadata.shutdownNow();
+
+        Assert.assertEquals(fields.size(), 6);
+        Assert.assertEquals(fields.get(0).getName(), "day");
+        Assert.assertEquals(fields.get(1).getName(), "name");
+        Assert.assertEquals(fields.get(2).getName(), "currency");
+        Assert.assertEquals(fields.get(3).getName(), "state");
+        Assert.assertEquals(fields.get(4).getName(), "amount");
+        Assert.assertEquals(fields.get(5).getName(), "fee");
+    }
+
+    @Test(groups = {"mysql", "postgresql"})
+    public void testDistinctValuesPerTenant() throws Exception {
+        final String tableName = "payments_per_day_metadata_tenants";
+        embeddedDB.executeScript(String.format("create table %s(day datetime, currency varchar(10), tenant_record_id int);" +
+                                               "insert into %s(day, currency, tenant_record_id) values ('2013-01-01', 'USD', 1);" +
+                                               "insert into %s(day, currency, tenant_record_id) values ('2013-01-01', 'EUR', 1);" +
+                                               "insert into %s(day, currency, tenant_record_id) values ('2013-01-01', 'BRL', 2);",
+                                               tableName, tableName, tableName, tableName));
+
+        final Metadata metadata = new Metadata(Sets.<String>newHashSet(tableName), embeddedDB.getDataSource());
+        // Distinct values are computed in the background
+        Assert.assertNull(metadata.getTable(tableName, 1L).getDistinctValues());
+        awaitDistinctValues(metadata, tableName, 1L, ImmutableList.<Object>of("EUR", "USD"));
+        awaitDistinctValues(metadata, tableName, 2L, ImmutableList.<Object>of("BRL"));
+        awaitDistinctValues(metadata, tableName, null, ImmutableList.<Object>of("BRL", "EUR", "USD"));
+        Assert.assertFalse(metadata.getTable(tableName, 1L).getDistinctValues().containsKey("tenant_record_id"));
+
+        // Only the first tenant's values are recomputed
+        embeddedDB.executeScript(String.format("insert into %s(day, currency, tenant_record_id) values ('2013-01-01', 'GBP', 1);" +
+                                               "insert into %s(day, currency, tenant_record_id) values ('2013-01-01', 'GBP', 2);",
+                                               tableName, tableName));
+        metadata.clearCaches(1L);
+        awaitDistinctValues(metadata, tableName, 1L, ImmutableList.<Object>of("EUR", "GBP", "USD"));
+        Assert.assertEquals(metadata.getTable(tableName, 2L).getDistinctValues().get("currency"), ImmutableList.<Object>of("BRL"));
+        metadata.shutdownNow();
     }
 
     @Test(groups = {"mysql", "postgresql"})
@@ -50,4 +87,14 @@ public class TestMetadata extends AnalyticsTestSuiteWithEmbeddedDB {
         final Metadata metadata = new Metadata(Sets.<String>newHashSet(), embeddedDB.getDataSource());
         Assert.assertNull(metadata.getTable("payments_per_day"));
     }
+
+    private void awaitDistinctValues(final Metadata metadata, final String tableName, @Nullable final Long tenantRecordId, final List<Object> currencies) {
+        Awaitility.await().atMost(30, TimeUnit.SECONDS).until(new Callable<Boolean>() {
+            @Override
+            public Boolean call() throws Exception {
+                final Map<String, List<Object>> distinctValues = metadata.getTable(tableName, tenantRecordId).getDistinctValues();
+                return distinctValues != null && currencies.equals(distinctValues.get("currency"));
+            }
+        });
+    }
 }
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2014-2019 Groupon, Inc
+ * Copyright 2014-2019 The Billing Project, LLC
+ *
+ * The Billing Project licenses this file to you under the Apache License, version 2.0
+ * (the "License"); you may not use this file except in compliance with the
+ * License.  You may obtain a copy of the License at:
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.  See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.killbill.billing.plugin.analytics.utils;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+import org.joda.time.LocalDate;
+import org.killbill.billing.invoice.api.InvoiceItem;
+import org.killbill.billing.invoice.api.InvoiceItemType;
+import org.killbill.billing.plugin.analytics.AnalyticsTestSuiteNoDB;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import com.google.common.collect.ImmutableList;
+
+public class TestInvoiceItemsIndex extends AnalyticsTestSuiteNoDB {
+
+    @Test(groups = "fast")
+    public void testLookups() throws Exception {
+        final UUID invoiceId1 = UUID.randomUUID();
+        final UUID invoiceId2 = UUID.randomUUID();
+
+        final InvoiceItem recurring = createInvoiceItem(invoiceId1, InvoiceItemType.RECURRING);
+        final InvoiceItem tax = createInvoiceItem(invoiceId1, InvoiceItemType.TAX);
+        final InvoiceItem repair = createInvoiceItem(invoiceId2, InvoiceItemType.REPAIR_ADJ, UUID.randomUUID(), new LocalDate(2013, 1, 2), new LocalDate(2013, 2, 5), BigDecimal.ONE.negate(), recurring.getId());
+        final InvoiceItem itemAdj = createInvoiceItem(invoiceId2, InvoiceItemType.ITEM_ADJ, UUID.randomUUID(), new LocalDate(2013, 1, 2), new LocalDate(2013, 2, 5), BigDecimal.ONE.negate(), recurring.getId());
+
+        final InvoiceItemsIndex invoiceItemsIndex = new InvoiceItemsIndex(ImmutableList.<InvoiceItem>of(recurring, tax, repair, itemAdj));
+
+        Assert.assertEquals(invoiceItemsIndex.getInvoiceItem(tax.getId()), tax);
+        Assert.assertNull(invoiceItemsIndex.getInvoiceItem(UUID.randomUUID()));
+        Assert.assertNull(invoiceItemsIndex.getInvoiceItem(null));
+
+        Assert.assertNull(invoiceItemsIndex.getLinkedInvoiceItem(recurring));
+        Assert.assertEquals(invoiceItemsIndex.getLinkedInvoiceItem(repair), recurring);
+        Assert.assertEquals(invoiceItemsIndex.getLinkedInvoiceItem(itemAdj), recurring);
+
+        Assert.assertEquals(invoiceItemsIndex.getInvoiceItems(invoiceId1), ImmutableList.<InvoiceItem>of(recurring, tax));
+        Assert.assertEquals(invoiceItemsIndex.getInvoiceItems(invoiceId2), ImmutableList.<InvoiceItem>of(repair, itemAdj));
+        Assert.assertTrue(invoiceItemsIndex.getInvoiceItems(UUID.randomUUID()).isEmpty());
+        Assert.assertEquals(invoiceItemsIndex.getSingleOtherInvoiceItem(recurring), tax);
+        Assert.assertEquals(invoiceItemsIndex.getSingleOtherInvoiceItem(itemAdj), repair);
+    }
+
+    @Test(groups = "fast")
+    public void testSingleOtherInvoiceItem() throws Exception {
+        final UUID invoiceId = UUID.randomUUID();
+
+        final InvoiceItem creditAdj = createInvoiceItem(invoiceId, InvoiceItemType.CREDIT_ADJ);
+        Assert.assertNull(new InvoiceItemsIndex(ImmutableList.<InvoiceItem>of(creditAdj)).getSingleOtherInvoiceItem(creditAdj));
+
+        final InvoiceItem cbaAdj = createInvoiceItem(invoiceId, InvoiceItemType.CBA_ADJ, creditAdj.getAmount().negate());
+        final InvoiceItemsIndex invoiceItemsIndex = new InvoiceItemsIndex(ImmutableList.<InvoiceItem>of(creditAdj, cbaAdj));
+        Assert.assertEquals(invoiceItemsIndex.getSingleOtherInvoiceItem(creditAdj), cbaAdj);
+        Assert.assertEquals(invoiceItemsIndex.getSingleOtherInvoiceItem(cbaAdj), creditAdj);
+
+        // User generated credit
+        Assert.assertFalse(BusinessInvoiceUtils.isInvoiceAdjustmentItem(creditAdj, invoiceItemsIndex));
+        Assert.assertFalse(BusinessInvoiceUtils.isRevenueRecognizable(cbaAdj, invoiceItemsIndex));
+
+        final InvoiceItem recurring = createInvoiceItem(invoiceId, InvoiceItemType.RECURRING);
+        final InvoiceItemsIndex invoiceItemsIndex2 = new InvoiceItemsIndex(ImmutableList.<InvoiceItem>of(creditAdj, cbaAdj, recurring));
+        Assert.assertNull(invoiceItemsIndex2.getSingleOtherInvoiceItem(creditAdj));
+
+        // Invoice adjustment
+        Assert.assertTrue(BusinessInvoiceUtils.isInvoiceAdjustmentItem(creditAdj, invoiceItemsIndex2));
+        Assert.assertTrue(BusinessInvoiceUtils.isRevenueRecognizable(cbaAdj, invoiceItemsIndex2));
+    }
+}